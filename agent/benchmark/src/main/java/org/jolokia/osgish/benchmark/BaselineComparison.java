@@ -0,0 +1,140 @@
+package org.jolokia.osgish.benchmark;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.*;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Compares two JMH result files written with <code>-rf json</code>, a baseline
+ * and a current run. Results are matched by benchmark name and parameters. A
+ * benchmark is reported as regression when its score got worse by more than the
+ * given threshold (in percent), taking into account whether higher scores are
+ * better (throughput) or lower scores (average or sample time). The exit code is
+ * 1 if any regression has been found, so that it can be used in a build.
+ *
+ * <pre>
+ *   java -cp target/benchmarks.jar org.jolokia.osgish.benchmark.BaselineComparison baseline.json current.json 10
+ * </pre>
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public final class BaselineComparison {
+
+    // Default threshold in percent
+    private static final double DEFAULT_THRESHOLD = 10.0;
+
+    private BaselineComparison() {
+    }
+
+    public static void main(String[] args) throws IOException, ParseException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineComparison <baseline.json> <current.json> [threshold-percent]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+        Map<String,JSONObject> baseline = readResults(args[0]);
+        Map<String,JSONObject> current = readResults(args[1]);
+
+        int regressions = 0;
+        System.out.println(String.format("%-70s %14s %14s %9s", "Benchmark", "Baseline", "Current", "Change"));
+        for (Map.Entry<String,JSONObject> entry : current.entrySet()) {
+            JSONObject base = baseline.get(entry.getKey());
+            if (base == null) {
+                System.out.println(String.format("%-70s %14s %14.3f %9s", entry.getKey(), "-", getScore(entry.getValue()), "new"));
+                continue;
+            }
+            double baseScore = getScore(base);
+            double currentScore = getScore(entry.getValue());
+            double change = baseScore != 0 ? (currentScore - baseScore) * 100 / baseScore : 0;
+            // Positive means worse
+            double loss = higherIsBetter(entry.getValue()) ? -change : change;
+            boolean regression = loss > threshold;
+            if (regression) {
+                regressions++;
+            }
+            System.out.println(String.format("%-70s %14.3f %14.3f %+8.1f%%%s", entry.getKey(), baseScore, currentScore,
+                                             change, regression ? "  REGRESSION" : ""));
+        }
+        for (String name : baseline.keySet()) {
+            if (!current.containsKey(name)) {
+                System.out.println(String.format("%-70s %14.3f %14s %9s", name, getScore(baseline.get(name)), "-", "missing"));
+            }
+        }
+        System.out.println();
+        System.out.println(regressions + " regression(s) above " + threshold + "%");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    // =================================================================================
+
+    // Read results keyed by benchmark name, parameters
+    private static Map<String,JSONObject> readResults(String pFile) throws IOException, ParseException {
+        Reader reader = new InputStreamReader(new FileInputStream(pFile), "UTF-8");
+        try {
+            JSONArray results = (JSONArray) new JSONParser().parse(reader);
+            Map<String,JSONObject> ret = new TreeMap<String, JSONObject>();
+            for (Object o : results) {
+                JSONObject result = (JSONObject) o;
+                ret.put(getKey(result), result);
+            }
+            return ret;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String getKey(JSONObject pResult) {
+        StringBuilder key = new StringBuilder((String) pResult.get("benchmark"));
+        JSONObject params = (JSONObject) pResult.get("params");
+        if (params != null && !params.isEmpty()) {
+            key.append(' ');
+            for (Object name : new TreeSet<Object>(params.keySet())) {
+                key.append(name).append('=').append(params.get(name)).append(',');
+            }
+            key.setLength(key.length() - 1);
+        }
+        return key.toString();
+    }
+
+    private static double getScore(JSONObject pResult) {
+        JSONObject metric = (JSONObject) pResult.get("primaryMetric");
+        return ((Number) metric.get("score")).doubleValue();
+    }
+
+    private static boolean higherIsBetter(JSONObject pResult) {
+        return "thrpt".equals(pResult.get("mode"));
+    }
+}
@@ -0,0 +1,59 @@
+package org.jolokia.osgish.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Helpers for setting up and cleaning up benchmark fixtures
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+final class BenchmarkUtils {
+
+    private BenchmarkUtils() {
+    }
+
+    static File createTempDir(String pPrefix) throws IOException {
+        File dir = File.createTempFile(pPrefix, ".dir");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create temporary directory " + dir.getAbsolutePath());
+        }
+        return dir;
+    }
+
+    static void delete(File pFile) {
+        File[] children = pFile.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        pFile.delete();
+    }
+}
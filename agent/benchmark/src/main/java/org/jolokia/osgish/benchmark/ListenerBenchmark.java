@@ -0,0 +1,120 @@
+package org.jolokia.osgish.benchmark;
+
+import org.jolokia.osgish.OsgishService;
+import org.openjdk.jmh.annotations.*;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Throughput of the framework listeners of the osgish service with synthetic
+ * bundle and service events: the cost on the framework's event thread for a
+ * single callback, and the end-to-end throughput until a burst of events has
+ * been processed completely.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerBenchmark {
+
+    // Number of events fired per burst
+    private static final int BURST = 1000;
+
+    private File dataDir;
+    private StubBundleContext context;
+    private OsgishService service;
+    private List<ServiceReference> services;
+    private Bundle[] bundles;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        dataDir = BenchmarkUtils.createTempDir("osgish-listener");
+        context = StubBundleContext.create(dataDir, 200, 40);
+        services = context.getServices();
+        bundles = context.getBundles();
+        service = new OsgishService(context);
+        service.preRegister(null, null);
+        service.postRegister(true);
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.preDeregister();
+        BenchmarkUtils.delete(dataDir);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void serviceCallback() {
+        service.serviceChanged(nextServiceEvent());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void bundleCallback() {
+        service.bundleChanged(nextBundleEvent());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @OperationsPerInvocation(BURST)
+    public long processedBurst() {
+        for (int i = 0; i < BURST; i++) {
+            if (i % 10 == 0) {
+                context.fireBundleEvent(nextBundleEvent());
+            } else {
+                context.fireServiceEvent(nextServiceEvent());
+            }
+        }
+        // Waits until all events have been processed
+        return service.getSequence();
+    }
+
+    private ServiceEvent nextServiceEvent() {
+        ServiceReference ref = services.get(next++ % services.size());
+        return new ServiceEvent(ServiceEvent.MODIFIED, ref);
+    }
+
+    private BundleEvent nextBundleEvent() {
+        Bundle bundle = bundles[next++ % bundles.length];
+        return new BundleEvent(BundleEvent.STARTED, bundle);
+    }
+}
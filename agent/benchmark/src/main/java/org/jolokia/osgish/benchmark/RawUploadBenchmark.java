@@ -0,0 +1,166 @@
+package org.jolokia.osgish.benchmark;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.RequestContext;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.jolokia.osgish.upload.UploadIndex;
+import org.jolokia.osgish.upload.UploadWriter;
+import org.jolokia.osgish.util.Base64;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Compares the two ways the upload servlet receives a single file: as multipart
+ * request, which is parsed by commons-fileupload including the scan for the part
+ * boundary, and as raw request body, which is stored as it is into a preallocated
+ * file. The raw body is measured with and without an MD5 check as done for a
+ * <code>Content-MD5</code> header. Both work on the same content held in memory,
+ * so that the difference is the cost of the parsing and not of the network.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RawUploadBenchmark {
+
+    private static final String BOUNDARY = "----osgish-benchmark-boundary";
+
+    @Param({ "262144", "4194304", "67108864" })
+    public int size;
+
+    private File dir;
+    private byte[] content;
+    private byte[] multipart;
+    private String md5;
+    private UploadWriter writer;
+
+    /**
+     * Bytes transferred, reported as additional throughput metric
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Transferred {
+        public long bytes;
+    }
+
+    @Setup
+    public void setup() throws IOException, NoSuchAlgorithmException {
+        dir = BenchmarkUtils.createTempDir("osgish-raw");
+        content = new byte[size];
+        new Random(42).nextBytes(content);
+        multipart = createMultipartBody(content);
+        md5 = Base64.encode(MessageDigest.getInstance("MD5").digest(content));
+        writer = new UploadWriter(dir, UploadWriter.SyncPolicy.NONE, new UploadIndex(dir));
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkUtils.delete(dir);
+    }
+
+    @Benchmark
+    public File multipartUpload(Transferred pTransferred) throws IOException, FileUploadException {
+        // Same as UploadServlet.doPost()
+        FileItemIterator iter = new ServletFileUpload().getItemIterator(new MultipartContext(multipart));
+        File ret = null;
+        while (iter.hasNext()) {
+            FileItemStream item = iter.next();
+            ret = writer.write(item.openStream(), item.getName(), multipart.length, null);
+        }
+        pTransferred.bytes += content.length;
+        return ret;
+    }
+
+    @Benchmark
+    public File rawUpload(Transferred pTransferred) throws IOException {
+        File ret = writer.store(new ByteArrayInputStream(content), "raw.jar", content.length, null, null);
+        pTransferred.bytes += content.length;
+        return ret;
+    }
+
+    @Benchmark
+    public File rawUploadWithMd5(Transferred pTransferred) throws IOException {
+        File ret = writer.store(new ByteArrayInputStream(content), "raw.jar", content.length, null, md5);
+        pTransferred.bytes += content.length;
+        return ret;
+    }
+
+    // =================================================================================
+
+    // A multipart body as sent by the Perl client, with a single file
+    private static byte[] createMultipartBody(byte[] pContent) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(pContent.length + 512);
+        out.write(("--" + BOUNDARY + "\r\n" +
+                   "Content-Disposition: form-data; name=\"upload\"; filename=\"multipart.jar\"\r\n" +
+                   "Content-Type: application/octet-stream\r\n\r\n").getBytes("ISO-8859-1"));
+        out.write(pContent);
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes("ISO-8859-1"));
+        return out.toByteArray();
+    }
+
+    // Request as seen by commons-fileupload
+    private static final class MultipartContext implements RequestContext {
+        private final byte[] body;
+
+        private MultipartContext(byte[] pBody) {
+            body = pBody;
+        }
+
+        public String getCharacterEncoding() {
+            return "ISO-8859-1";
+        }
+
+        public String getContentType() {
+            return "multipart/form-data; boundary=" + BOUNDARY;
+        }
+
+        public int getContentLength() {
+            return body.length;
+        }
+
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(body);
+        }
+    }
+}
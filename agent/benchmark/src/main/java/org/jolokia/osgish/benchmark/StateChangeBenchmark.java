@@ -0,0 +1,101 @@
+package org.jolokia.osgish.benchmark;
+
+import org.jolokia.osgish.OsgishService;
+import org.openjdk.jmh.annotations.*;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Cost of <code>hasStateChanged</code>, which clients call for every cache check,
+ * with a single caller, with many concurrent callers and with concurrent callers
+ * while services change all the time.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateChangeBenchmark {
+
+    private File dataDir;
+    private StubBundleContext context;
+    private OsgishService service;
+    private List<ServiceReference> services;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        dataDir = BenchmarkUtils.createTempDir("osgish-state");
+        context = StubBundleContext.create(dataDir, 200, 5);
+        services = context.getServices();
+        service = new OsgishService(context);
+        service.preRegister(null, null);
+        service.postRegister(true);
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.preDeregister();
+        BenchmarkUtils.delete(dataDir);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean singleCaller() {
+        return service.hasStateChanged("bundles", 0);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean concurrentCallers() {
+        return service.hasStateChanged("bundles", 0);
+    }
+
+    @Benchmark
+    @Group("withEvents")
+    @GroupThreads(7)
+    public boolean callerWithEvents() {
+        return service.hasStateChanged("services", 0);
+    }
+
+    @Benchmark
+    @Group("withEvents")
+    @GroupThreads(1)
+    public void serviceModified() {
+        ServiceReference ref = services.get(next++ % services.size());
+        context.fireServiceEvent(new ServiceEvent(ServiceEvent.MODIFIED, ref));
+    }
+}
@@ -0,0 +1,162 @@
+package org.jolokia.osgish.benchmark;
+
+import org.osgi.framework.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.*;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Bundle of a {@link StubBundleContext}. Only identity, state and headers are
+ * supported, lifecycle operations do nothing.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class StubBundle implements Bundle {
+
+    private final BundleContext context;
+    private final long id;
+    private final String symbolicName;
+    private final Version version;
+    private final Hashtable<String,String> headers = new Hashtable<String, String>();
+    private int state = ACTIVE;
+
+    public StubBundle(BundleContext pContext, long pId, String pSymbolicName, String pVersion) {
+        context = pContext;
+        id = pId;
+        symbolicName = pSymbolicName;
+        version = new Version(pVersion);
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, pSymbolicName);
+        headers.put(Constants.BUNDLE_VERSION, pVersion);
+        headers.put(Constants.EXPORT_PACKAGE, pSymbolicName + ".api;version=" + pVersion);
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public void start(int options) {
+        state = ACTIVE;
+    }
+
+    public void start() {
+        state = ACTIVE;
+    }
+
+    public void stop(int options) {
+        state = RESOLVED;
+    }
+
+    public void stop() {
+        state = RESOLVED;
+    }
+
+    public void update(InputStream input) {
+    }
+
+    public void update() {
+    }
+
+    public void uninstall() {
+        state = UNINSTALLED;
+    }
+
+    public Dictionary getHeaders() {
+        return headers;
+    }
+
+    public long getBundleId() {
+        return id;
+    }
+
+    public String getLocation() {
+        return "stub:" + symbolicName;
+    }
+
+    public ServiceReference[] getRegisteredServices() {
+        return null;
+    }
+
+    public ServiceReference[] getServicesInUse() {
+        return null;
+    }
+
+    public boolean hasPermission(Object permission) {
+        return true;
+    }
+
+    public URL getResource(String name) {
+        return null;
+    }
+
+    public Dictionary getHeaders(String locale) {
+        return headers;
+    }
+
+    public String getSymbolicName() {
+        return symbolicName;
+    }
+
+    public Class loadClass(String name) throws ClassNotFoundException {
+        throw new ClassNotFoundException(name);
+    }
+
+    public Enumeration getResources(String name) throws IOException {
+        return null;
+    }
+
+    public Enumeration getEntryPaths(String path) {
+        return null;
+    }
+
+    public URL getEntry(String path) {
+        return null;
+    }
+
+    public long getLastModified() {
+        return 0;
+    }
+
+    public Enumeration findEntries(String path, String filePattern, boolean recurse) {
+        return null;
+    }
+
+    public BundleContext getBundleContext() {
+        return context;
+    }
+
+    public Map getSignerCertificates(int signersType) {
+        return Collections.emptyMap();
+    }
+
+    public Version getVersion() {
+        return version;
+    }
+}
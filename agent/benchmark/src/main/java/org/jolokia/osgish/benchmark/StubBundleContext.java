@@ -0,0 +1,211 @@
+package org.jolokia.osgish.benchmark;
+
+import org.osgi.framework.*;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Minimal {@link BundleContext} for running agent code outside of a container.
+ * It knows a fixed set of bundles and services, remembers the registered
+ * listeners so that benchmarks can fire synthetic events, and returns nothing
+ * for any other lookup.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class StubBundleContext implements BundleContext {
+
+    private final Map<Long,Bundle> bundles = new LinkedHashMap<Long, Bundle>();
+    private final List<ServiceReference> services = new ArrayList<ServiceReference>();
+    private final List<ServiceListener> serviceListeners = new CopyOnWriteArrayList<ServiceListener>();
+    private final List<BundleListener> bundleListeners = new CopyOnWriteArrayList<BundleListener>();
+
+    private final File dataDir;
+
+    /**
+     * Constructor
+     *
+     * @param pDataDir directory returned by {@link #getDataFile(String)}
+     */
+    public StubBundleContext(File pDataDir) {
+        dataDir = pDataDir;
+    }
+
+    /**
+     * Create a context with the given number of bundles, each registering the given
+     * number of services
+     *
+     * @param pDataDir data directory
+     * @param pBundles number of bundles
+     * @param pServicesPerBundle number of services per bundle
+     * @return the context
+     */
+    public static StubBundleContext create(File pDataDir, int pBundles, int pServicesPerBundle) {
+        StubBundleContext ctx = new StubBundleContext(pDataDir);
+        long serviceId = 1;
+        for (int i = 0; i < pBundles; i++) {
+            StubBundle bundle = new StubBundle(ctx, i, "org.example.bundle" + i, "1.0." + i);
+            ctx.bundles.put((long) i, bundle);
+            for (int j = 0; j < pServicesPerBundle; j++) {
+                ctx.services.add(new StubServiceReference(serviceId++, bundle,
+                                                          "org.example.api.Service" + (j % 16)));
+            }
+        }
+        return ctx;
+    }
+
+    public List<ServiceReference> getServices() {
+        return services;
+    }
+
+    /**
+     * Deliver an event to all registered service listeners
+     *
+     * @param pEvent event to fire
+     */
+    public void fireServiceEvent(ServiceEvent pEvent) {
+        for (ServiceListener listener : serviceListeners) {
+            listener.serviceChanged(pEvent);
+        }
+    }
+
+    /**
+     * Deliver an event to all registered bundle listeners
+     *
+     * @param pEvent event to fire
+     */
+    public void fireBundleEvent(BundleEvent pEvent) {
+        for (BundleListener listener : bundleListeners) {
+            listener.bundleChanged(pEvent);
+        }
+    }
+
+    // =================================================================================
+
+    public String getProperty(String key) {
+        return null;
+    }
+
+    public Bundle getBundle() {
+        return bundles.get(0L);
+    }
+
+    public Bundle installBundle(String location, InputStream input) throws BundleException {
+        throw new BundleException("Not supported by the stub");
+    }
+
+    public Bundle installBundle(String location) throws BundleException {
+        throw new BundleException("Not supported by the stub");
+    }
+
+    public Bundle getBundle(long id) {
+        return bundles.get(id);
+    }
+
+    public Bundle[] getBundles() {
+        return bundles.values().toArray(new Bundle[bundles.size()]);
+    }
+
+    public void addServiceListener(ServiceListener listener, String filter) {
+        serviceListeners.add(listener);
+    }
+
+    public void addServiceListener(ServiceListener listener) {
+        serviceListeners.add(listener);
+    }
+
+    public void removeServiceListener(ServiceListener listener) {
+        serviceListeners.remove(listener);
+    }
+
+    public void addBundleListener(BundleListener listener) {
+        bundleListeners.add(listener);
+    }
+
+    public void removeBundleListener(BundleListener listener) {
+        bundleListeners.remove(listener);
+    }
+
+    public void addFrameworkListener(FrameworkListener listener) {
+    }
+
+    public void removeFrameworkListener(FrameworkListener listener) {
+    }
+
+    public ServiceRegistration registerService(String[] clazzes, Object service, Dictionary properties) {
+        throw new UnsupportedOperationException("Not supported by the stub");
+    }
+
+    public ServiceRegistration registerService(String clazz, Object service, Dictionary properties) {
+        throw new UnsupportedOperationException("Not supported by the stub");
+    }
+
+    public ServiceReference[] getServiceReferences(String clazz, String filter) throws InvalidSyntaxException {
+        return getAllServiceReferences(clazz, filter);
+    }
+
+    public ServiceReference[] getAllServiceReferences(String clazz, String filter) throws InvalidSyntaxException {
+        Filter f = filter != null ? createFilter(filter) : null;
+        List<ServiceReference> ret = new ArrayList<ServiceReference>();
+        for (ServiceReference ref : services) {
+            if ((clazz == null || Arrays.asList((String[]) ref.getProperty(Constants.OBJECTCLASS)).contains(clazz)) &&
+                (f == null || f.match(ref))) {
+                ret.add(ref);
+            }
+        }
+        return ret.isEmpty() ? null : ret.toArray(new ServiceReference[ret.size()]);
+    }
+
+    public ServiceReference getServiceReference(String clazz) {
+        try {
+            ServiceReference[] refs = getAllServiceReferences(clazz, null);
+            return refs != null ? refs[0] : null;
+        } catch (InvalidSyntaxException exp) {
+            return null;
+        }
+    }
+
+    public Object getService(ServiceReference reference) {
+        return null;
+    }
+
+    public boolean ungetService(ServiceReference reference) {
+        return false;
+    }
+
+    public File getDataFile(String filename) {
+        return new File(dataDir, filename);
+    }
+
+    public Filter createFilter(String filter) throws InvalidSyntaxException {
+        return FrameworkUtil.createFilter(filter);
+    }
+}
@@ -0,0 +1,79 @@
+package org.jolokia.osgish.benchmark;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Service reference of a {@link StubBundleContext}, with an id, object classes
+ * and the registering bundle
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class StubServiceReference implements ServiceReference {
+
+    private final Bundle bundle;
+    private final Map<String,Object> properties = new HashMap<String, Object>();
+
+    public StubServiceReference(long pId, Bundle pBundle, String ... pObjectClasses) {
+        bundle = pBundle;
+        properties.put(Constants.SERVICE_ID, pId);
+        properties.put(Constants.OBJECTCLASS, pObjectClasses);
+    }
+
+    public Object getProperty(String key) {
+        return properties.get(key);
+    }
+
+    public String[] getPropertyKeys() {
+        return properties.keySet().toArray(new String[properties.size()]);
+    }
+
+    public Bundle getBundle() {
+        return bundle;
+    }
+
+    public Bundle[] getUsingBundles() {
+        return null;
+    }
+
+    public boolean isAssignableTo(Bundle bundle, String className) {
+        return true;
+    }
+
+    public int compareTo(Object reference) {
+        Long id = (Long) properties.get(Constants.SERVICE_ID);
+        Long other = (Long) ((ServiceReference) reference).getProperty(Constants.SERVICE_ID);
+        // Lower ids rank higher
+        return other.compareTo(id);
+    }
+}
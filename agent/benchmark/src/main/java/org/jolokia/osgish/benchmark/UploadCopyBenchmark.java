@@ -0,0 +1,133 @@
+package org.jolokia.osgish.benchmark;
+
+import org.jolokia.osgish.upload.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Throughput of storing uploaded content for different file sizes, both for a
+ * plain upload (as done by the upload servlet for multipart requests) and for a
+ * chunked upload through an upload session. As reference, {@link #legacyUpload}
+ * runs the copy loop the upload servlet used before, a 4 KB <code>byte[]</code>
+ * written straight into the final file through a <code>FileOutputStream</code>.
+ * Besides the operations per second, the bytes per second are reported as "bytes".
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadCopyBenchmark {
+
+    // Chunk size for chunked uploads
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    @Param({ "4096", "262144", "4194304", "67108864" })
+    public int size;
+
+    @Param({ "none", "data" })
+    public String sync;
+
+    private File dir;
+    private byte[] content;
+    private UploadWriter writer;
+    private UploadSessions sessions;
+
+    /**
+     * Bytes transferred, reported as additional throughput metric
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Transferred {
+        public long bytes;
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        dir = BenchmarkUtils.createTempDir("osgish-copy");
+        content = new byte[size];
+        // Random content, so that nothing can be optimized away by compression in the filesystem
+        new Random(42).nextBytes(content);
+        writer = new UploadWriter(dir, UploadWriter.SyncPolicy.fromName(sync), new UploadIndex(dir));
+        sessions = new UploadSessions(writer);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sessions.abortAll();
+        BenchmarkUtils.delete(dir);
+    }
+
+    @Benchmark
+    public File plainUpload(Transferred pTransferred) throws IOException {
+        File ret = writer.write(new ByteArrayInputStream(content), "plain.jar", content.length, null);
+        pTransferred.bytes += content.length;
+        return ret;
+    }
+
+    @Benchmark
+    public File chunkedUpload(Transferred pTransferred) throws IOException {
+        UploadSession session = sessions.create("chunked.jar", content.length, null);
+        for (int offset = 0; offset < content.length; offset += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, content.length - offset);
+            session.write(new ByteArrayInputStream(content, offset, length), offset, length);
+        }
+        File ret = session.commit();
+        sessions.remove(session.getId());
+        pTransferred.bytes += content.length;
+        return ret;
+    }
+
+    // The former UploadServlet.copy(), which never synced, so "sync" doesn't apply
+    @Benchmark
+    public File legacyUpload(Transferred pTransferred) throws IOException {
+        File dest = new File(dir, "legacy.jar");
+        InputStream in = new ByteArrayInputStream(content);
+        OutputStream out = new FileOutputStream(dest);
+        try {
+            byte[] buffer = new byte[4096];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+            }
+            out.flush();
+        } finally {
+            try { in.close(); } catch (IOException ex) { }
+            try { out.close(); } catch (IOException ex) { }
+        }
+        pTransferred.bytes += content.length;
+        return dest;
+    }
+}
@@ -0,0 +1,87 @@
+package org.jolokia.osgish.benchmark;
+
+import org.jolokia.osgish.upload.UploadIndex;
+import org.jolokia.osgish.upload.UploadStore;
+import org.jolokia.osgish.upload.UploadWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Listing the upload directory via <code>UploadStore.listUploadDirectory</code>
+ * for directories of different sizes
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UploadDirectoryBenchmark {
+
+    @Param({ "10", "1000", "100000" })
+    public int files;
+
+    private File dir;
+    private UploadStore store;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = BenchmarkUtils.createTempDir("osgish-uploads");
+        byte[] content = new byte[128];
+        for (int i = 0; i < files; i++) {
+            FileOutputStream out = new FileOutputStream(new File(dir, String.format("bundle-%06d.jar", i)));
+            try {
+                out.write(content);
+            } finally {
+                out.close();
+            }
+        }
+        UploadWriter writer = new UploadWriter(dir, UploadWriter.SyncPolicy.NONE, new UploadIndex(dir));
+        store = new UploadStore(dir, writer, StubBundleContext.create(dir, 0, 0));
+        // Fill the index once, the benchmark measures the steady state
+        store.listUploadDirectory();
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkUtils.delete(dir);
+    }
+
+    @Benchmark
+    public Map listUploadDirectory() {
+        return store.listUploadDirectory();
+    }
+}
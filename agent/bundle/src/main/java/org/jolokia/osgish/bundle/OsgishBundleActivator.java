@@ -4,9 +4,13 @@ import org.apache.aries.jmx.Activator;
 import org.apache.felix.http.jetty.internal.JettyActivator;
 import org.jolokia.osgi.JolokiaActivator;
 import org.jolokia.osgish.OsgishActivator;
+import org.jolokia.osgish.StartupTimings;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 
+import java.util.*;
+import java.util.concurrent.*;
+
 /*
  * osgish - An OSGi Shell
  *
@@ -37,6 +41,11 @@ import org.osgi.framework.BundleContext;
  *
  * It also registers an (arbitrary) MBeanServer if not already
  * an MBeanServer is registered. This service is required by Aries JMX.
+ *
+ * The embedded parts only depend on each other via services, so they can be
+ * started concurrently when the framework property <code>osgish.activation</code>
+ * is set to <code>parallel</code>. The default is to start them one after another.
+ * The time each part takes is available from the osgish service MBean.
 
  * @author roland
  * @since Jan 9, 2010
@@ -49,25 +58,148 @@ public class OsgishBundleActivator implements BundleActivator {
     private Activator ariesActivator;
     private JettyActivator felixHttpWebActivator;
 
+    // Framework property selecting the activation mode ("sequential" or "parallel")
+    private static final String ACTIVATION_PROPERTY = "osgish.activation";
+
+    // How long to wait for the parts to start in parallel mode
+    private static final long PARALLEL_START_TIMEOUT = 5 * 60 * 1000L;
+
+    // Timings of the startup phases
+    private final StartupTimings startupTimings = new StartupTimings();
+
+    // Parts in start order, and those which have been started successfully
+    private final Map<String,BundleActivator> parts = new LinkedHashMap<String, BundleActivator>();
+    private final Set<String> started = Collections.synchronizedSet(new HashSet<String>());
+
+    // Set (while holding the lock of "started") when the parts are stopped, so that a part
+    // which finishes its start only afterwards, e.g. after a timeout, stops itself again
+    private boolean stopping;
+
     // Name of our MBeans
     public OsgishBundleActivator() {
         felixHttpWebActivator = new JettyActivator();
         j4pActivator = new JolokiaActivator();
         ariesActivator = new Activator();
-        osgishActivator = new OsgishActivator();
+        osgishActivator = new OsgishActivator(startupTimings);
+
+        parts.put("http",felixHttpWebActivator);
+        parts.put("jmx",ariesActivator);
+        parts.put("jolokia",j4pActivator);
+        parts.put("osgish",osgishActivator);
     }
 
     public void start(BundleContext pContext) throws Exception {
-        felixHttpWebActivator.start(pContext);
-        ariesActivator.start(pContext);
-        j4pActivator.start(pContext);
-        osgishActivator.start(pContext);
+        boolean parallel = "parallel".equalsIgnoreCase(pContext.getProperty(ACTIVATION_PROPERTY));
+        startupTimings.reset(parallel ? "parallel" : "sequential");
+        synchronized (started) {
+            stopping = false;
+        }
+        try {
+            if (parallel) {
+                startParallel(pContext);
+            } else {
+                for (String name : parts.keySet()) {
+                    startPart(name, pContext);
+                }
+            }
+        } catch (Exception exp) {
+            // Don't leave half of the agent running
+            stop(pContext);
+            throw exp;
+        }
     }
 
     public void stop(BundleContext pContext) throws Exception {
-        osgishActivator.stop(pContext);
-        j4pActivator.stop(pContext);
-        ariesActivator.stop(pContext);
-        felixHttpWebActivator.stop(pContext);
+        synchronized (started) {
+            stopping = true;
+        }
+        List<String> names = new ArrayList<String>(parts.keySet());
+        Collections.reverse(names);
+        Exception error = null;
+        for (String name : names) {
+            if (started.remove(name)) {
+                try {
+                    parts.get(name).stop(pContext);
+                } catch (Exception exp) {
+                    // Stop the others nevertheless
+                    if (error == null) {
+                        error = exp;
+                    }
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // =================================================================================
+
+    // Start all parts concurrently and wait until all are done. The first error is rethrown.
+    private void startParallel(final BundleContext pContext) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(parts.size(), new ThreadFactory() {
+            private int count;
+
+            public synchronized Thread newThread(Runnable pRunnable) {
+                Thread thread = new Thread(pRunnable, "osgish-activation-" + ++count);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (final String name : parts.keySet()) {
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        startPart(name, pContext);
+                        return null;
+                    }
+                }));
+            }
+            long deadline = System.currentTimeMillis() + PARALLEL_START_TIMEOUT;
+            Exception error = null;
+            for (Future<Object> future : futures) {
+                try {
+                    future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (ExecutionException exp) {
+                    if (error == null) {
+                        error = exp.getCause() instanceof Exception ? (Exception) exp.getCause() : exp;
+                    }
+                } catch (TimeoutException exp) {
+                    // Give up on the part. If it still finishes, it stops itself.
+                    future.cancel(true);
+                    if (error == null) {
+                        error = new IllegalStateException("Agent did not start within " +
+                                                          PARALLEL_START_TIMEOUT / 1000 + " seconds");
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void startPart(String pName, BundleContext pContext) throws Exception {
+        long start = System.nanoTime();
+        BundleActivator part = parts.get(pName);
+        try {
+            part.start(pContext);
+            startupTimings.record(pName,start,null);
+        } catch (Exception exp) {
+            startupTimings.record(pName,start,exp);
+            throw exp;
+        }
+        synchronized (started) {
+            if (!stopping) {
+                started.add(pName);
+                return;
+            }
+        }
+        // The start has been given up meanwhile
+        part.stop(pContext);
+        throw new IllegalStateException("Activation of " + pName + " finished after the agent has been stopped");
     }
 }
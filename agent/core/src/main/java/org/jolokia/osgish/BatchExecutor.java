@@ -0,0 +1,215 @@
+package org.jolokia.osgish;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import javax.management.*;
+import java.util.*;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Executes a batch of operations on osgish MBeans within a single request. Each
+ * sub-request names an operation, its arguments and optionally the MBean (the
+ * osgish service by default). Operations are looked up by name and number of
+ * arguments, and JSON arguments are converted to the parameter types.
+ *
+ * Sub-requests are not checked by the Jolokia policy, only the batch operation itself
+ * is. Therefore only read-only operations of osgish MBeans can be called: state
+ * checks, deltas, queries and listings. Anything which changes the framework or the
+ * upload directory, reads content or blocks has to be called directly.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class BatchExecutor {
+
+    // Domain of the MBeans which can be called
+    private static final String DOMAIN = "osgish";
+
+    // Operations which can be called within a batch
+    private static final Set<String> READ_ONLY_OPERATIONS = new HashSet<String>(Arrays.asList(
+            "hasStateChanged", "changesSince",
+            "getBundleDelta", "getServiceDelta", "getPackageDelta",
+            "searchPackages", "analyzeDependencies", "queryServices", "listBundleContent",
+            "listUploadDirectory", "listFiles", "listFileNames", "lookupDigest", "getDigest"));
+
+    private final MBeanServer mBeanServer;
+    private final ObjectName defaultMBean;
+
+    /**
+     * Constructor
+     *
+     * @param pMBeanServer server where the MBeans are registered
+     * @param pDefaultMBean MBean to call if none is given in a sub-request
+     */
+    public BatchExecutor(MBeanServer pMBeanServer, ObjectName pDefaultMBean) {
+        mBeanServer = pMBeanServer;
+        defaultMBean = pDefaultMBean;
+    }
+
+    /**
+     * Execute a batch
+     *
+     * @param pRequests JSON array of sub-requests, each one an object with "operation",
+     *        "arguments" (array, optional) and "mbean" (optional)
+     * @return list of results in the order of the requests. Each result is a map containing either
+     *         the return "value" or an "error" message.
+     * @throws IllegalArgumentException if the requests can not be parsed
+     */
+    public List<Map<String,Object>> execute(String pRequests) {
+        List<Map<String,Object>> ret = new ArrayList<Map<String, Object>>();
+        for (Object request : parse(pRequests)) {
+            Map<String,Object> result = new HashMap<String, Object>();
+            try {
+                if (!(request instanceof JSONObject)) {
+                    throw new IllegalArgumentException("Request must be a JSON object, not " + request);
+                }
+                result.put("value",execute((JSONObject) request));
+            } catch (MBeanException exp) {
+                result.put("error",getMessage(exp.getTargetException()));
+            } catch (ReflectionException exp) {
+                result.put("error",getMessage(exp.getTargetException()));
+            } catch (RuntimeMBeanException exp) {
+                result.put("error",getMessage(exp.getTargetException()));
+            } catch (Exception exp) {
+                result.put("error",getMessage(exp));
+            }
+            ret.add(result);
+        }
+        return ret;
+    }
+
+    // =================================================================================
+
+    private JSONArray parse(String pRequests) {
+        if (pRequests == null) {
+            throw new IllegalArgumentException("No requests given");
+        }
+        try {
+            Object parsed = new JSONParser().parse(pRequests);
+            if (!(parsed instanceof JSONArray)) {
+                throw new IllegalArgumentException("Requests must be given as JSON array");
+            }
+            return (JSONArray) parsed;
+        } catch (ParseException exp) {
+            throw new IllegalArgumentException("Cannot parse requests: " + exp,exp);
+        }
+    }
+
+    private Object execute(JSONObject pRequest) throws JMException {
+        String operation = (String) pRequest.get("operation");
+        if (operation == null) {
+            throw new IllegalArgumentException("No operation given");
+        }
+        String mbean = (String) pRequest.get("mbean");
+        ObjectName name = mbean != null ? new ObjectName(mbean) : defaultMBean;
+        if (!DOMAIN.equals(name.getDomain())) {
+            throw new IllegalArgumentException("Only MBeans of the domain '" + DOMAIN + "' can be called, not " + name);
+        }
+        if (!READ_ONLY_OPERATIONS.contains(operation)) {
+            throw new IllegalArgumentException("Operation " + operation + " can not be called within a batch, " +
+                                               "only " + READ_ONLY_OPERATIONS);
+        }
+        List args = (List) pRequest.get("arguments");
+        if (args == null) {
+            args = Collections.emptyList();
+        }
+        MBeanOperationInfo info = findOperation(name, operation, args.size());
+        MBeanParameterInfo[] params = info.getSignature();
+        Object[] values = new Object[params.length];
+        String[] signature = new String[params.length];
+        for (int i = 0; i < params.length; i++) {
+            signature[i] = params[i].getType();
+            values[i] = convert(args.get(i), signature[i]);
+        }
+        return mBeanServer.invoke(name, operation, values, signature);
+    }
+
+    private MBeanOperationInfo findOperation(ObjectName pName, String pOperation, int pNrArgs) throws JMException {
+        for (MBeanOperationInfo info : mBeanServer.getMBeanInfo(pName).getOperations()) {
+            if (info.getName().equals(pOperation) && info.getSignature().length == pNrArgs) {
+                return info;
+            }
+        }
+        throw new IllegalArgumentException("No operation " + pOperation + " with " + pNrArgs + " arguments on " + pName);
+    }
+
+    private Object convert(Object pValue, String pType) {
+        if (pValue == null) {
+            if (isPrimitive(pType)) {
+                throw new IllegalArgumentException("null given for parameter of type " + pType);
+            }
+            return null;
+        }
+        if ("long".equals(pType) || Long.class.getName().equals(pType)) {
+            return pValue instanceof Number ? ((Number) pValue).longValue() : Long.parseLong(pValue.toString());
+        }
+        if ("int".equals(pType) || Integer.class.getName().equals(pType)) {
+            return pValue instanceof Number ? ((Number) pValue).intValue() : Integer.parseInt(pValue.toString());
+        }
+        if ("boolean".equals(pType) || Boolean.class.getName().equals(pType)) {
+            return pValue instanceof Boolean ? pValue : Boolean.valueOf(pValue.toString());
+        }
+        if (String.class.getName().equals(pType)) {
+            return pValue.toString();
+        }
+        if ("[J".equals(pType)) {
+            List list = toList(pValue, pType);
+            long[] ret = new long[list.size()];
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = (Long) convert(list.get(i), "long");
+            }
+            return ret;
+        }
+        if ("[Ljava.lang.String;".equals(pType)) {
+            List list = toList(pValue, pType);
+            String[] ret = new String[list.size()];
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = list.get(i) != null ? list.get(i).toString() : null;
+            }
+            return ret;
+        }
+        return pValue;
+    }
+
+    private List toList(Object pValue, String pType) {
+        if (!(pValue instanceof List)) {
+            throw new IllegalArgumentException("Expected an array for parameter of type " + pType + ", got " + pValue);
+        }
+        return (List) pValue;
+    }
+
+    private boolean isPrimitive(String pType) {
+        return "long".equals(pType) || "int".equals(pType) || "boolean".equals(pType);
+    }
+
+    private String getMessage(Throwable pExp) {
+        return pExp.getMessage() != null ? pExp.getMessage() : pExp.toString();
+    }
+}
@@ -1,8 +1,17 @@
 package org.jolokia.osgish;
 
 import org.jolokia.osgi.servlet.JolokiaContext;
+import org.jolokia.osgish.log.AgentLog;
+import org.jolokia.osgish.metrics.InstrumentedMBean;
+import org.jolokia.osgish.metrics.Metrics;
+import org.jolokia.osgish.upload.TransferAdmission;
+import org.jolokia.osgish.upload.UploadIndex;
 import org.jolokia.osgish.upload.UploadServlet;
+import org.jolokia.osgish.upload.UploadSessions;
 import org.jolokia.osgish.upload.UploadStore;
+import org.jolokia.osgish.upload.UploadStoreMBean;
+import org.jolokia.osgish.upload.UploadSweeper;
+import org.jolokia.osgish.upload.UploadWriter;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
@@ -57,6 +66,7 @@ public class OsgishActivator implements BundleActivator {
     // Name of our MBeans
     private ObjectName serviceMBeanName;
     private ObjectName uploadStoreMBeanName;
+    private ObjectName metricsMBeanName;
 
     // MBeanServer where we registered our MBeans
     private MBeanServer mBeanServer;
@@ -67,8 +77,8 @@ public class OsgishActivator implements BundleActivator {
     // Service Tracker for the JolokiaContext
     private ServiceTracker jolokiaTracker;
 
-    // Tracker to be used for the LogService
-    private ServiceTracker logTracker;
+    // Logging shared by all parts of the agent
+    private AgentLog log;
 
     // Registration of our MBeanServer Service. Might be null
     private ServiceRegistration mBeanServerRegistration;
@@ -79,19 +89,93 @@ public class OsgishActivator implements BundleActivator {
     // Alias of the upload servlet
     private String uploadServiceAlias;
 
+    // Writer for uploaded files, shared by the upload servlet and store
+    private UploadWriter uploadWriter;
+
+    // Open chunked uploads of the servlet, expired by the sweeper of the store
+    private UploadSessions uploadSessions;
+
+    // Framework property for the sync policy of uploaded files ("none", "data" or "full")
+    private static final String UPLOAD_SYNC_PROPERTY = "osgish.upload.sync";
+
+    // Framework properties for limiting the upload directory: a hard quota in bytes and a
+    // maximum size of a single file in bytes (only set if given) checked on upload, and retention rules enforced in the background (maximum age in seconds,
+    // maximum total size in bytes, number of versions kept per bundle)
+    private static final String UPLOAD_QUOTA_PROPERTY = "osgish.upload.quota";
+    private static final String UPLOAD_MAX_FILE_SIZE_PROPERTY = "osgish.upload.maxFileSize";
+    private static final String UPLOAD_MAX_AGE_PROPERTY = "osgish.upload.maxAge";
+    private static final String UPLOAD_MAX_BYTES_PROPERTY = "osgish.upload.maxBytes";
+    private static final String UPLOAD_KEEP_VERSIONS_PROPERTY = "osgish.upload.keepVersions";
+
+    // Delay between two sweeps of the upload directory (ms)
+    private static final long UPLOAD_SWEEP_INTERVAL = 10 * 60 * 1000L;
+
+    // Framework property for the highest level to log ("error", "warning", "info" or "debug")
+    private static final String LOG_LEVEL_PROPERTY = "osgish.log.level";
+
+    // Number of log messages queued at most
+    private static final int LOG_CAPACITY = 4096;
+
+    // Framework property for the number of uploads which may transfer data concurrently
+    private static final String UPLOAD_MAX_TRANSFERS_PROPERTY = "osgish.upload.maxTransfers";
+
+    // How long an upload waits for admission before it is rejected with a 503 (ms) and
+    // after how many seconds the client should retry
+    private static final long UPLOAD_MAX_WAIT = 2000;
+    private static final int UPLOAD_RETRY_AFTER = 5;
+
+    // Where to record how long the startup takes
+    private final StartupTimings startupTimings;
+
+    // Metrics about the agent itself
+    private final Metrics metrics = new Metrics();
+
+    public OsgishActivator() {
+        this(new StartupTimings());
+    }
+
+    /**
+     * Constructor used when embedded into another activator
+     *
+     * @param pStartupTimings timings to record the startup phases into
+     */
+    public OsgishActivator(StartupTimings pStartupTimings) {
+        startupTimings = pStartupTimings;
+    }
+
     public void start(BundleContext pContext) throws Exception {
+        long start = System.nanoTime();
         uploadDir = getUploadDirectory(pContext);
+        // The upload index is loaded lazily on first use
+        uploadWriter = new UploadWriter(uploadDir,
+                                        UploadWriter.SyncPolicy.fromName(pContext.getProperty(UPLOAD_SYNC_PROPERTY)),
+                                        new UploadIndex(uploadDir));
+        uploadWriter.setQuota(getLongProperty(pContext,UPLOAD_QUOTA_PROPERTY));
+        if (pContext.getProperty(UPLOAD_MAX_FILE_SIZE_PROPERTY) != null) {
+            uploadWriter.setMaxFileSize(getLongProperty(pContext,UPLOAD_MAX_FILE_SIZE_PROPERTY));
+        }
+        uploadSessions = new UploadSessions(uploadWriter);
 
-        openLogTracker(pContext);
+        log = new AgentLog(pContext,
+                           AgentLog.parseLevel(pContext.getProperty(LOG_LEVEL_PROPERTY),LogService.LOG_INFO),
+                           LOG_CAPACITY,metrics);
+        log.open();
         registerMBeanServer(pContext);
+        startupTimings.record("osgish.mbeanserver",start,null);
+
+        start = System.nanoTime();
         registerMBeans(pContext);
+        startupTimings.record("osgish.mbeans",start,null);
+
+        start = System.nanoTime();
         startJolokiaContextTracker(pContext);
+        startupTimings.record("osgish.upload",start,null);
     }
 
     public void stop(BundleContext pContext) throws Exception {
         unregisterMBeans();
         unregisterMBeanServer();
-        closeLogTracker();
+        log.close();
     }
 
 
@@ -134,11 +218,20 @@ public class OsgishActivator implements BundleActivator {
     // Register our own service for MBeanServer at use.
     private void registerMBeans(BundleContext pBundleContext)
             throws MBeanRegistrationException, InstanceAlreadyExistsException, NotCompliantMBeanException {
-        OsgishService service = new OsgishService(pBundleContext);
-        serviceMBeanName = mBeanServer.registerMBean(service,null).getObjectName();
-
-        UploadStore uploadStore = new UploadStore(uploadDir);
-        uploadStoreMBeanName = mBeanServer.registerMBean(uploadStore,null).getObjectName();
+        metricsMBeanName = mBeanServer.registerMBean(metrics,null).getObjectName();
+
+        OsgishService service = new OsgishService(pBundleContext,startupTimings,metrics,log);
+        serviceMBeanName = mBeanServer.registerMBean(
+                new InstrumentedMBean(service,OsgishServiceMBean.class,"service",metrics),null).getObjectName();
+
+        UploadSweeper sweeper = new UploadSweeper(uploadWriter,uploadSessions,pBundleContext,
+                                                  getLongProperty(pBundleContext,UPLOAD_MAX_AGE_PROPERTY) * 1000,
+                                                  getLongProperty(pBundleContext,UPLOAD_MAX_BYTES_PROPERTY),
+                                                  (int) getLongProperty(pBundleContext,UPLOAD_KEEP_VERSIONS_PROPERTY),
+                                                  UPLOAD_SWEEP_INTERVAL,metrics);
+        UploadStore uploadStore = new UploadStore(uploadDir,uploadWriter,pBundleContext,sweeper);
+        uploadStoreMBeanName = mBeanServer.registerMBean(
+                new InstrumentedMBean(uploadStore,UploadStoreMBean.class,"uploadStore",metrics),null).getObjectName();
     }
 
     // Un-Register MBean. Since we want to use the same MBeanSever as during registration
@@ -147,6 +240,7 @@ public class OsgishActivator implements BundleActivator {
         if (mBeanServer != null) {
             mBeanServer.unregisterMBean(serviceMBeanName);
             mBeanServer.unregisterMBean(uploadStoreMBeanName);
+            mBeanServer.unregisterMBean(metricsMBeanName);
         }
     }
 
@@ -161,7 +255,8 @@ public class OsgishActivator implements BundleActivator {
     // the servlet alias to register under as well as the security config. Next, the HttpService
     // is waited for to register the servlet itself.
     private void startJolokiaContextTracker(BundleContext pContext) {
-        UploadServlet uploadServlet = new UploadServlet(logTracker,uploadDir);
+        TransferAdmission admission = new TransferAdmission(getMaxTransfers(pContext),UPLOAD_MAX_WAIT,UPLOAD_RETRY_AFTER);
+        UploadServlet uploadServlet = new UploadServlet(log,uploadWriter,uploadSessions,admission,metrics);
         jolokiaTracker = new ServiceTracker(pContext, JolokiaContext.class.getName(),
                                                 getJolokiaContextRegistrationCustomizer(pContext, uploadServlet));
         jolokiaTracker.open();
@@ -207,9 +302,9 @@ public class OsgishActivator implements BundleActivator {
                                                 null,pJolokiaContext.getHttpContext()
                                                 );
                 } catch (ServletException e) {
-                    log(LogService.LOG_ERROR,"ServletException during registration of " + alias,e);
+                    log.log(LogService.LOG_ERROR,"ServletException during registration of " + alias,e);
                 } catch (NamespaceException e) {
-                    log(LogService.LOG_ERROR,"NamespaceException during registration of " + alias,e);
+                    log.log(LogService.LOG_ERROR,"NamespaceException during registration of " + alias,e);
                 }
                 return httpService;
             }
@@ -224,36 +319,6 @@ public class OsgishActivator implements BundleActivator {
         };
     }
 
-    // Logging
-    private void openLogTracker(BundleContext pContext) {
-        // Track logging service
-        logTracker = new ServiceTracker(pContext, LogService.class.getName(), null);
-        logTracker.open();
-    }
-
-
-
-    private void closeLogTracker() {
-        logTracker.close();
-        logTracker = null;
-    }
-
-    private void log(int level,String message, Exception ... exp) {
-        LogService logService = (LogService) logTracker.getService();
-        if (logService != null) {
-            if (exp != null && exp.length > 0) {
-                logService.log(level,message,exp[0]);
-            } else {
-                logService.log(level,message);
-            }
-        } else {
-            System.err.println((level == LogService.LOG_ERROR ? "ERROR: " : "") + message);
-            if (exp != null && exp.length > 0) {
-                exp[0].printStackTrace(System.err);
-            }
-        }
-    }
-
     // Check for a upload directory
     private File getUploadDirectory(BundleContext pContext) {
         File dir = pContext.getDataFile("");
@@ -270,4 +335,17 @@ public class OsgishActivator implements BundleActivator {
         }
         return dir;
     }
+
+    // Number of concurrent upload transfers. By default two per processor, since
+    // uploads mostly wait for the network or the disk
+    private int getMaxTransfers(BundleContext pContext) {
+        String max = pContext.getProperty(UPLOAD_MAX_TRANSFERS_PROPERTY);
+        return max != null ? Integer.parseInt(max.trim()) : 2 * Runtime.getRuntime().availableProcessors();
+    }
+
+    // Numeric framework property, 0 if not set
+    private long getLongProperty(BundleContext pContext, String pName) {
+        String value = pContext.getProperty(pName);
+        return value != null ? Long.parseLong(value.trim()) : 0;
+    }
 }
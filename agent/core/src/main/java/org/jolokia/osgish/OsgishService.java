@@ -1,13 +1,32 @@
 package org.jolokia.osgish;
 
+import org.jolokia.osgish.content.BundleContent;
+import org.jolokia.osgish.lifecycle.BundleLifecycle;
+import org.jolokia.osgish.log.AgentLog;
+import org.jolokia.osgish.metrics.Histogram;
+import org.jolokia.osgish.metrics.Metrics;
+import org.jolokia.osgish.state.Change;
+import org.jolokia.osgish.state.ChangeJournal;
+import org.jolokia.osgish.state.CompactView;
+import org.jolokia.osgish.state.DependencyGraph;
+import org.jolokia.osgish.state.EventProcessor;
+import org.jolokia.osgish.state.FrameworkState;
+import org.jolokia.osgish.state.PackageIndex;
+import org.jolokia.osgish.state.ServiceQuery;
+import org.jolokia.osgish.state.StateChangeNotifier;
 import org.osgi.framework.*;
 import org.osgi.service.log.LogService;
-import org.osgi.util.tracker.ServiceTracker;
 
 import javax.management.MBeanRegistration;
 import javax.management.MBeanServer;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EventObject;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /*
  * osgish - An OSGi Shell
@@ -44,64 +63,368 @@ public class OsgishService implements OsgishServiceMBean, MBeanRegistration, Ser
     // remember context for housekeeping
     BundleContext bundleContext;
 
-    // Timestamps for state checks
-    private long bundlesLastChanged;
-    private long servicesLastChanged;
-    private long packagesLastChanged;
+    // Journal of all bundle and service changes, used for state checks
+    private ChangeJournal journal;
 
-    // Tracker to be used for the LogService
-    private ServiceTracker logTracker;
+    // Pre-serialized, compact view on bundles and services
+    private CompactView compactView;
+
+    // Used for blocking until a state change happens
+    private StateChangeNotifier notifier;
+
+    // Versioned snapshots of bundles, services and packages
+    private FrameworkState frameworkState;
+
+    // Search index for exported packages
+    private PackageIndex packageIndex;
+
+    // Wiring graph for dependency analysis
+    private DependencyGraph dependencyGraph;
+
+    // Indexed, cached service queries
+    private ServiceQuery serviceQuery;
+
+    // Parallel lifecycle operations on many bundles
+    private BundleLifecycle bundleLifecycle;
+
+    // Access to the content of bundle archives
+    private BundleContent bundleContent;
+
+    // Timings of the agent's startup
+    private StartupTimings startupTimings;
+
+    // Logging, shared with the rest of the agent or owned by this service
+    private AgentLog log;
+    private boolean ownLog;
+
+    // Processes the framework events on its own thread
+    private EventProcessor eventProcessor;
+
+    // Duration of the listener callbacks, which run on the framework's event thread
+    private Histogram serviceListenerTimer;
+    private Histogram bundleListenerTimer;
+
+    // Executor for batch requests, created when registered
+    private BatchExecutor batchExecutor;
 
     // Name under which this MBean is registered
     private static final String OSGISH_SERVICE_NAME = "osgish:type=Service";
 
+    // Number of changes kept in the journal
+    private static final int JOURNAL_SIZE = 4096;
+
+    // Maximum number of clients blocking in awaitStateChange() and how long they can wait
+    private static final int MAX_WAITERS = 8;
+    private static final long MAX_WAIT_TIMEOUT = 30000;
+
+    // Number of framework events queued for processing at most
+    private static final int EVENT_QUEUE_CAPACITY = 8192;
+
+    // How long reads wait at most for queued events to be processed
+    private static final long MAX_EVENT_WAIT = 1000;
+
+    // Framework property for the number of bundles processed concurrently by bulk operations
+    private static final String LIFECYCLE_THREADS_PROPERTY = "osgish.lifecycle.threads";
+    private static final int DEFAULT_LIFECYCLE_THREADS = 4;
+
+    // Number of log messages queued when this service owns its log
+    private static final int LOG_CAPACITY = 1024;
+
     public OsgishService(BundleContext pBundleContext) {
+        this(pBundleContext,new StartupTimings(),new Metrics());
+    }
+
+    /**
+     * Constructor for a service with its own log
+     *
+     * @param pBundleContext bundle context
+     * @param pStartupTimings timings of the agent startup to expose
+     * @param pMetrics where to record metrics about the listeners and caches
+     */
+    public OsgishService(BundleContext pBundleContext, StartupTimings pStartupTimings, Metrics pMetrics) {
+        this(pBundleContext,pStartupTimings,pMetrics,
+             new AgentLog(pBundleContext,LogService.LOG_INFO,LOG_CAPACITY,pMetrics));
+        ownLog = true;
+    }
 
-        logTracker = new ServiceTracker(pBundleContext, LogService.class.getName(), null);
-        long time = getCurrentTime();
-        bundlesLastChanged = time;
-        servicesLastChanged = time;
-        packagesLastChanged = time;
+    /**
+     * Constructor
+     *
+     * @param pBundleContext bundle context
+     * @param pStartupTimings timings of the agent startup to expose
+     * @param pMetrics where to record metrics about the listeners and caches
+     * @param pLog log to use, opened and closed by the caller
+     */
+    public OsgishService(BundleContext pBundleContext, StartupTimings pStartupTimings, Metrics pMetrics, AgentLog pLog) {
+        startupTimings = pStartupTimings;
+        serviceListenerTimer = pMetrics.timer("listener.serviceChanged");
+        bundleListenerTimer = pMetrics.timer("listener.bundleChanged");
+
+        log = pLog;
+        journal = new ChangeJournal(JOURNAL_SIZE);
+        notifier = new StateChangeNotifier(journal, MAX_WAITERS, MAX_WAIT_TIMEOUT);
+        frameworkState = new FrameworkState(pBundleContext);
+        compactView = new CompactView(pBundleContext, pMetrics);
+        bundleContent = new BundleContent(pBundleContext, pMetrics);
+        packageIndex = new PackageIndex(pBundleContext);
+        dependencyGraph = new DependencyGraph(pBundleContext);
+        serviceQuery = new ServiceQuery(pBundleContext, pMetrics);
+        bundleLifecycle = new BundleLifecycle(pBundleContext, dependencyGraph, getLifecycleThreads(pBundleContext));
+        eventProcessor = new EventProcessor(new EventProcessor.Handler() {
+            public void process(List<EventObject> pEvents) {
+                processEvents(pEvents);
+            }
+
+            public void resync() {
+                resyncState();
+            }
+        }, EVENT_QUEUE_CAPACITY, "osgish-events", pMetrics);
         bundleContext = pBundleContext;
     }
 
+    public Map getStartupTimings() {
+        return startupTimings.toMap();
+    }
+
+    public Map getEventQueue() {
+        return eventProcessor.toMap();
+    }
+
     public boolean hasStateChanged(String pWhat, long pTimestamp) {
-        if ("bundles".equals(pWhat)) {
-            return isYoungerThan(bundlesLastChanged,pTimestamp);
-        } else if ("services".equals(pWhat)) {
-            return isYoungerThan(servicesLastChanged,pTimestamp);
-        } else if ("packages".equals(pWhat)) {
-            return isYoungerThan(packagesLastChanged,pTimestamp);
+        awaitEvents();
+        int category = Change.getCategory(pWhat);
+        return category != 0 && journal.getLastChangeTime(category) / 1000 >= pTimestamp;
+    }
+
+    public long getSequence() {
+        awaitEvents();
+        return journal.getSequence();
+    }
+
+    public long getEpoch() {
+        return journal.getEpoch();
+    }
+
+    public Map changesSince(long pSequence, long pEpoch) {
+        awaitEvents();
+        return journal.changesSince(pSequence, pEpoch);
+    }
+
+    public Map awaitStateChange(String pWhat, long pSequence, long pTimeout) {
+        int category = Change.getCategory(pWhat);
+        if (category == 0) {
+            throw new IllegalArgumentException("Unknown state category '" + pWhat + "'");
         }
-        return false;
+        awaitEvents();
+        return notifier.await(category, pSequence, pTimeout);
     }
 
-    private boolean isYoungerThan(long pLastChanged, long pTimestamp) {
-        return pLastChanged >= pTimestamp;
+    public String getCompactBundles() {
+        awaitEvents();
+        return compactView.getBundles();
     }
 
-    void log(int level,String message) {
-        LogService logService = (LogService) logTracker.getService();
-        if (logService != null) {
-            logService.log(level,message);
+    public String getCompactServices() {
+        awaitEvents();
+        return compactView.getServices();
+    }
+
+    public String getColumnarBundles() {
+        awaitEvents();
+        return compactView.getColumnarBundles();
+    }
+
+    public String getColumnarServices() {
+        awaitEvents();
+        return compactView.getColumnarServices();
+    }
+
+    public Map getBundleDelta(long pVersion) {
+        awaitEvents();
+        return frameworkState.getBundleDelta(pVersion);
+    }
+
+    public Map getServiceDelta(long pVersion) {
+        awaitEvents();
+        return frameworkState.getServiceDelta(pVersion);
+    }
+
+    public Map getPackageDelta(long pVersion) {
+        awaitEvents();
+        return frameworkState.getPackageDelta(pVersion);
+    }
+
+    public List searchPackages(String pName, String pVersionRange, int pLimit) {
+        awaitEvents();
+        return packageIndex.search(pName, pVersionRange, pLimit);
+    }
+
+    public Map analyzeDependencies(long[] pBundleIds) {
+        awaitEvents();
+        return dependencyGraph.analyze(pBundleIds);
+    }
+
+    public List queryServices(String pFilter, String[] pProjection, int pLimit) {
+        awaitEvents();
+        return serviceQuery.query(pFilter, pProjection, pLimit);
+    }
+
+    public Map executeBundleOperation(String pOperation, long[] pBundleIds) {
+        return bundleLifecycle.execute(pOperation, pBundleIds);
+    }
+
+    public List listBundleContent(long pBundleId, String pPrefix) {
+        try {
+            return bundleContent.list(pBundleId, pPrefix);
+        } catch (IOException exp) {
+            throw new IllegalStateException("Cannot read content of bundle " + pBundleId + ": " + exp,exp);
+        }
+    }
+
+    public Map readBundleEntry(long pBundleId, String pEntry, long pOffset, int pLength) {
+        try {
+            return bundleContent.read(pBundleId, pEntry, pOffset, pLength);
+        } catch (IOException exp) {
+            throw new IllegalStateException("Cannot read " + pEntry + " from bundle " + pBundleId + ": " + exp,exp);
         }
     }
 
+    public Map readBundle(long pBundleId, long pOffset, int pLength) {
+        try {
+            return bundleContent.readBundle(pBundleId, pOffset, pLength);
+        } catch (IOException exp) {
+            throw new IllegalStateException("Cannot read bundle " + pBundleId + ": " + exp,exp);
+        }
+    }
+
+    public Map batch(String pRequests) {
+        awaitEvents();
+        long sequence = journal.getSequence();
+        List results = batchExecutor.execute(pRequests);
+        Map<String,Object> ret = new HashMap<String, Object>();
+        ret.put("sequence",sequence);
+        ret.put("epoch",journal.getEpoch());
+        ret.put("consistent",journal.getSequence() == sequence);
+        ret.put("results",results);
+        return ret;
+    }
+
+    // Make sure that all events delivered so far are reflected in the state. A read must
+    // see e.g. the effect of a bundle operation which just has returned.
+    private void awaitEvents() {
+        eventProcessor.awaitProcessed(MAX_EVENT_WAIT);
+    }
+
+    private int getLifecycleThreads(BundleContext pContext) {
+        String threads = pContext.getProperty(LIFECYCLE_THREADS_PROPERTY);
+        try {
+            return threads != null ? Math.max(1, Integer.parseInt(threads.trim())) : DEFAULT_LIFECYCLE_THREADS;
+        } catch (NumberFormatException exp) {
+            return DEFAULT_LIFECYCLE_THREADS;
+        }
+    }
+
+    void log(int level,String message) {
+        log.log(level,message);
+    }
+
 
     // =================================================================================
     // Listener interfaces
+    // The listeners only queue the events, they are processed on the thread of the event processor
+
     public void serviceChanged(ServiceEvent event) {
-        servicesLastChanged = getCurrentTime();
+        long start = System.nanoTime();
+        // The owner is looked up now, by the time the event is processed an unregistered
+        // service does not know its bundle anymore
+        Bundle owner = event.getServiceReference().getBundle();
+        eventProcessor.offer(new QueuedServiceEvent(event, owner != null ? owner.getBundleId() : -1));
+        serviceListenerTimer.recordSince(start);
     }
 
     public void bundleChanged(BundleEvent event) {
-        long time = getCurrentTime();
-        bundlesLastChanged = time;
-        packagesLastChanged = time;
+        long start = System.nanoTime();
+        eventProcessor.offer(event);
+        bundleListenerTimer.recordSince(start);
+    }
+
+    // Process a batch of events. Waiting clients are woken up only once for the whole batch.
+    private void processEvents(List<EventObject> pEvents) {
+        List<ServiceEvent> serviceEvents = new ArrayList<ServiceEvent>();
+        for (EventObject event : pEvents) {
+            if (event instanceof QueuedServiceEvent) {
+                QueuedServiceEvent queued = (QueuedServiceEvent) event;
+                processServiceEvent(queued.event, queued.ownerId);
+                serviceEvents.add(queued.event);
+            } else if (event instanceof BundleEvent) {
+                processBundleEvent((BundleEvent) event);
+            }
+        }
+        if (!serviceEvents.isEmpty()) {
+            serviceQuery.servicesChanged(serviceEvents);
+        }
+        notifier.signal();
     }
 
-    private long getCurrentTime() {
-        return System.currentTimeMillis() / 1000;
+    // Events have been lost, so everything has to be rebuilt. Clients are told about
+    // a change of all categories, so they refetch their state.
+    private void resyncState() {
+        frameworkState.invalidateAll();
+        compactView.invalidateAll();
+        bundleContent.invalidateAll();
+        packageIndex.invalidateAll();
+        dependencyGraph.invalidateAll();
+        serviceQuery.close();
+        journal.record(Change.BUNDLES | Change.SERVICES | Change.PACKAGES, "framework", "RESYNC", -1);
+        notifier.signal();
+    }
+
+    private void processServiceEvent(ServiceEvent event, long pOwnerId) {
+        Long id = (Long) event.getServiceReference().getProperty(Constants.SERVICE_ID);
+        journal.record(Change.SERVICES, "service", getServiceEventName(event.getType()), id != null ? id : -1);
+        frameworkState.serviceChanged(event, pOwnerId);
+        compactView.serviceChanged(event);
+    }
+
+    private void processBundleEvent(BundleEvent event) {
+        int type = event.getType();
+        // Only a change in the resolution state changes the wiring of packages
+        int categories = Change.BUNDLES;
+        if ((type & (BundleEvent.RESOLVED | BundleEvent.UNRESOLVED |
+                     BundleEvent.UPDATED | BundleEvent.UNINSTALLED)) != 0) {
+            categories |= Change.PACKAGES;
+        }
+        journal.record(categories, "bundle", getBundleEventName(type), event.getBundle().getBundleId());
+        frameworkState.bundleChanged(event, (categories & Change.PACKAGES) != 0);
+        compactView.bundleChanged(event);
+        bundleContent.bundleChanged(event);
+        packageIndex.bundleChanged(event);
+        dependencyGraph.bundleChanged(event);
+    }
+
+    private String getServiceEventName(int pType) {
+        switch (pType) {
+            case ServiceEvent.REGISTERED: return "REGISTERED";
+            case ServiceEvent.MODIFIED: return "MODIFIED";
+            case ServiceEvent.UNREGISTERING: return "UNREGISTERING";
+            default: return "UNKNOWN";
+        }
+    }
+
+    private String getBundleEventName(int pType) {
+        switch (pType) {
+            case BundleEvent.INSTALLED: return "INSTALLED";
+            case BundleEvent.RESOLVED: return "RESOLVED";
+            case BundleEvent.LAZY_ACTIVATION: return "LAZY_ACTIVATION";
+            case BundleEvent.STARTING: return "STARTING";
+            case BundleEvent.STARTED: return "STARTED";
+            case BundleEvent.STOPPING: return "STOPPING";
+            case BundleEvent.STOPPED: return "STOPPED";
+            case BundleEvent.UPDATED: return "UPDATED";
+            case BundleEvent.UNRESOLVED: return "UNRESOLVED";
+            case BundleEvent.UNINSTALLED: return "UNINSTALLED";
+            default: return "UNKNOWN";
+        }
     }
 
 
@@ -111,25 +434,56 @@ public class OsgishService implements OsgishServiceMBean, MBeanRegistration, Ser
     public ObjectName preRegister(MBeanServer pMBeanServer, ObjectName pObjectName)
             throws MalformedObjectNameException {
         // We are providing our own name
-        return new ObjectName(OSGISH_SERVICE_NAME);
+        ObjectName name = new ObjectName(OSGISH_SERVICE_NAME);
+        batchExecutor = new BatchExecutor(pMBeanServer, name);
+        return name;
     }
 
     public void postRegister(Boolean pBoolean) {
+        frameworkState.open();
+        packageIndex.open();
+        dependencyGraph.open();
+        bundleLifecycle.open();
+        eventProcessor.start();
         bundleContext.addBundleListener(this);
         bundleContext.addServiceListener(this);
-        logTracker.open();
+        if (ownLog) {
+            log.open();
+        }
         log(LogService.LOG_DEBUG,"Registered " + OSGISH_SERVICE_NAME);
     }
 
     public void preDeregister()  {
         bundleContext.removeBundleListener(this);
         bundleContext.removeServiceListener(this);
+        eventProcessor.stop();
+        frameworkState.close();
+        packageIndex.close();
+        dependencyGraph.close();
+        serviceQuery.close();
+        bundleLifecycle.close();
         log(LogService.LOG_DEBUG,"Unregistered " + OSGISH_SERVICE_NAME);
-        logTracker.close();
+        if (ownLog) {
+            log.close();
+        }
     }
 
     public void postDeregister() {
     }
 
+    // A service event along with the id of the bundle which registered the service,
+    // recorded when the event was delivered (-1 if not known)
+    private static final class QueuedServiceEvent extends EventObject {
+        private static final long serialVersionUID = 1L;
+
+        private final ServiceEvent event;
+        private final long ownerId;
+
+        private QueuedServiceEvent(ServiceEvent pEvent, long pOwnerId) {
+            super(pEvent.getSource());
+            event = pEvent;
+            ownerId = pOwnerId;
+        }
+    }
 
 }
@@ -1,5 +1,8 @@
 package org.jolokia.osgish;
 
+import java.util.List;
+import java.util.Map;
+
 /*
  * osgish - An OSGi Shell
  *
@@ -30,16 +33,272 @@ package org.jolokia.osgish;
  */
 public interface OsgishServiceMBean {
 
+    /**
+     * Get the timings of the agent's startup. The map contains the activation "mode"
+     * ("sequential" or "parallel"), the "total" time and the "phases" with their "start"
+     * offset and "duration" in milliseconds, the "thread" they ran in and an "error" if
+     * the phase failed.
+     *
+     * @return startup timings
+     */
+    Map getStartupTimings();
+
+    /**
+     * Statistics of the queue of framework events. The listeners only queue the events,
+     * which are then processed in batches by a separate thread. The returned map contains
+     * the current queue "depth", the "lag" of the oldest queued event in ms, the queue
+     * "capacity", the number of events "processed" and "dropped" (because the queue was
+     * full, which causes a complete resync) and the number of "batches".
+     *
+     * @return queue statistics
+     */
+    Map getEventQueue();
 
     /**
      * Check for state changs on the server side. A client can use this method in order
      * to determine, whether it should update an internal cache.
      *
      * @param pWhat what should be checked for changes
-     *        ("bundles","services","all")
+     *        ("bundles","services","packages","all")
      * @param pTimestamp date since what state changes are
      *        taken into account (in epoch seconds)
      * @return true if the state changed, false otherwise
      */
     boolean hasStateChanged(String pWhat,long pTimestamp);
+
+    /**
+     * Get the sequence number of the latest change recorded on the server side. A client
+     * should remember this number along with the epoch before fetching a full state and use
+     * it for subsequent calls to {@link #changesSince(long, long)}.
+     *
+     * @return current sequence number
+     */
+    long getSequence();
+
+    /**
+     * Get the epoch of the sequence numbers, which changes whenever the agent is restarted.
+     *
+     * @return epoch of the current sequence numbers
+     */
+    long getEpoch();
+
+    /**
+     * Get all bundle and service changes which happened after the given sequence number.
+     * The returned map contains the sequence number and epoch to use for the next call
+     * ("sequence", "epoch"), the changes themselves ("changes") and a "resync" flag which is
+     * true if the server can not tell what changed since the given sequence number, e.g.
+     * because it is from another epoch. In this case the client needs to refetch its
+     * complete state.
+     *
+     * @param pSequence sequence number up to which changes are already known to the client
+     * @param pEpoch epoch of this sequence number as returned by the server
+     * @return map describing the changes
+     */
+    Map changesSince(long pSequence, long pEpoch);
+
+    /**
+     * Block until the state of the given category changes after the given sequence number
+     * or until the timeout expires. This can be used instead of polling with
+     * {@link #changesSince(long, long)}. The returned map contains a flag "changed", the current
+     * sequence number ("sequence") and a flag "busy" which is true if too many clients are
+     * already waiting. A busy client has not waited at all and should fall back to polling.
+     *
+     * @param pWhat what to wait for ("bundles","services","packages","all")
+     * @param pSequence sequence number up to which changes are already known to the client
+     * @param pTimeout maximum time to wait in milliseconds. The server might use a lower limit.
+     * @return map describing the result
+     */
+    Map awaitStateChange(String pWhat, long pSequence, long pTimeout);
+
+    /**
+     * Get the bundles which were added, modified or removed since the given version of
+     * the bundle table. Rows have the same layout as those returned by the
+     * <code>listBundles</code> operation of the OSGi <code>BundleStateMBean</code> and are keyed by
+     * the bundle id. The returned map contains the new version ("version"), the rows
+     * "added" and "modified", the keys "removed" and a flag "full", which is true if all
+     * rows are returned as "added" and the client should drop its old state. Columns which
+     * can change without any framework event ("ServicesInUse" here, "UsingBundles" for
+     * services) are not part of the rows, but returned for all current rows in "live", a
+     * map from column name to a map from row key to value.
+     *
+     * @param pVersion version of the table already known to the client or -1 for the full table
+     * @return the delta
+     */
+    Map getBundleDelta(long pVersion);
+
+    /**
+     * Get the services which were added, modified or removed since the given version of
+     * the service table. Rows have the same layout as those of <code>listServices</code> from the
+     * OSGi <code>ServiceStateMBean</code>. See {@link #getBundleDelta(long)} for the format of
+     * the returned map.
+     *
+     * @param pVersion version of the table already known to the client or -1 for the full table
+     * @return the delta
+     */
+    Map getServiceDelta(long pVersion);
+
+    /**
+     * Get the packages which were added, modified or removed since the given version of
+     * the package table. Rows have the same layout as those of <code>listPackages</code> from
+     * the OSGi <code>PackageStateMBean</code> and are keyed by name, version and exporting
+     * bundle id, separated by ';'. See {@link #getBundleDelta(long)} for the format of the
+     * returned map.
+     *
+     * @param pVersion version of the table already known to the client or -1 for the full table
+     * @return the delta
+     */
+    Map getPackageDelta(long pVersion);
+
+    /**
+     * Get a compact view of all bundles as serialized JSON object, keyed by bundle id.
+     * Each bundle is described by its "id", "symbolicName", "version", "state" (the
+     * numeric OSGi state) and "location". The serialized form is cached and only
+     * rebuilt for bundles which changed since the last call.
+     *
+     * @return JSON object as string
+     */
+    String getCompactBundles();
+
+    /**
+     * Get a compact view of all services as serialized JSON object, keyed by service id.
+     * Each service is described by its "id", the "bundle" which registered it and its
+     * "objectClass"es. Like for {@link #getCompactBundles()} the serialized form is cached.
+     * The using bundles are not included since using a service fires no event which
+     * could invalidate the cache; <code>listServices</code> of the OSGi <code>ServiceStateMBean</code>
+     * provides them.
+     *
+     * @return JSON object as string
+     */
+    String getCompactServices();
+
+    /**
+     * Get all bundles in a columnar binary encoding, gzipped and Base64 encoded. The columns
+     * are the same as for {@link #getCompactBundles()}, but keys are written only once,
+     * strings are interned and numbers are written as variable length integers. This is
+     * considerably smaller than the JSON representation for large frameworks.
+     *
+     * @return encoded bundle table
+     */
+    String getColumnarBundles();
+
+    /**
+     * Get all services in the columnar encoding of {@link #getColumnarBundles()} with the
+     * columns of {@link #getCompactServices()}.
+     *
+     * @return encoded service table
+     */
+    String getColumnarServices();
+
+    /**
+     * Search for exported packages together with the bundles exporting and importing them.
+     * The packages are returned in the same format as by the <code>listPackages</code> operation
+     * of the OSGi <code>PackageStateMBean</code>, but only the matching ones are transferred.
+     *
+     * @param pName name of the package. A trailing '*' searches for all packages starting
+     *        with the given name, e.g. <code>org.osgi.*</code>
+     * @param pVersionRange OSGi version range the package version must be in, e.g.
+     *        <code>[1.0,2.0)</code>. null or empty for all versions.
+     * @param pLimit maximum number of packages to return, -1 for all
+     * @return list of matching packages, sorted by name and descending version
+     */
+    List searchPackages(String pName, String pVersionRange, int pLimit);
+
+    /**
+     * Analyze the wiring of bundles in one go, e.g. before updating or refreshing them.
+     * The answer comes from a dependency graph kept up to date on the server.
+     *
+     * @param pBundleIds bundles to analyze. If empty, only the cycles among all bundles are
+     *        determined.
+     * @return map with the sorted ids of all bundles depending transitively on the given ones
+     *         ("dependents"), of all bundles they depend on transitively ("dependencies"),
+     *         of all bundles affected by a refresh of the given ones ("impact", including
+     *         attached fragments and hosts) and the dependency "cycles" among the affected
+     *         bundles, each as list of bundle ids
+     */
+    Map analyzeDependencies(long[] pBundleIds);
+
+    /**
+     * Start, stop, update or refresh several bundles at once. Bundles are processed in
+     * parallel, but along their dependencies: a bundle is started (or updated) only after
+     * the bundles it depends on, and stopped only after the bundles depending on it. A
+     * refresh is done for all bundles in one go. The returned map contains the "operation",
+     * the total "time" in ms, the number of bundles "failed" and a list of "results" with
+     * the "id", "symbolicName", "success", "time", "error" and final "state" per bundle.
+     *
+     * @param pOperation one of "start", "stop", "update" or "refresh"
+     * @param pBundleIds ids of the bundles
+     * @return map describing the outcome
+     */
+    Map executeBundleOperation(String pOperation, long[] pBundleIds);
+
+    /**
+     * List the entries of a bundle archive. Each entry is described by its "name", its
+     * uncompressed "size", its "compressedSize" and its modification "time". For bundles
+     * not installed from a local file, only the names are known and the other values
+     * are -1.
+     *
+     * @param pBundleId id of the bundle
+     * @param pPrefix only entries starting with this path are returned, null for all
+     * @return list of entries, sorted by name
+     */
+    List listBundleContent(long pBundleId, String pPrefix);
+
+    /**
+     * Read a part of an entry of a bundle archive. At most 1 MB can be read with a single
+     * call, larger entries have to be read in several steps. The returned map contains
+     * the entry's "name" and total "size" (-1 if unknown), the "offset" and "length" of
+     * the part read, and the content itself Base64 encoded as "data".
+     *
+     * @param pBundleId id of the bundle
+     * @param pEntry name of the entry
+     * @param pOffset where to start within the uncompressed entry
+     * @param pLength number of bytes to read, -1 for as much as possible
+     * @return map containing the data
+     */
+    Map readBundleEntry(long pBundleId, String pEntry, long pOffset, int pLength);
+
+    /**
+     * Read a part of the bundle archive itself, e.g. for downloading a bundle. This works
+     * only for bundles installed from a local file. The format of the returned map is the
+     * same as for {@link #readBundleEntry(long, String, long, int)}, with the bundle
+     * location as name.
+     *
+     * @param pBundleId id of the bundle
+     * @param pOffset where to start
+     * @param pLength number of bytes to read, -1 for as much as possible
+     * @return map containing the data
+     */
+    Map readBundle(long pBundleId, long pOffset, int pLength);
+
+    /**
+     * Execute several operations within a single request. The requests are given as a JSON
+     * array, each element being an object with the "operation" to call, its "arguments"
+     * as array and optionally the "mbean" to call (this service by default). Only read-only
+     * operations of MBeans in the <code>osgish</code> domain can be called (state checks,
+     * deltas, queries and listings), since the operations within a batch are not subject
+     * to the Jolokia policy. The returned map contains the journal "sequence" before the
+     * first operation along with its "epoch", a flag "consistent" which is true if no bundle,
+     * service or package change happened while the batch was executed, and a list of
+     * "results" with either the "value" or an "error" message for each request.
+     *
+     * @param pRequests JSON array of requests
+     * @return map with the results
+     */
+    Map batch(String pRequests);
+
+    /**
+     * Query services with an OSGi LDAP filter. Filters requiring a certain object class,
+     * like <code>(objectClass=javax.sql.DataSource)</code> or a conjunction containing such
+     * a test, are evaluated against an index of the services registered under this class
+     * only. Compiled filters and matches are cached until the next service event. The
+     * services are returned in the format of the OSGi <code>ServiceStateMBean</code>, with
+     * the properties (if selected) as map from key to "Key", "Value" and "Type".
+     *
+     * @param pFilter LDAP filter, null or empty for all services
+     * @param pProjection columns to return ("Identifier", "BundleIdentifier", "objectClass",
+     *        "UsingBundles" and "Properties"), null or empty for all
+     * @param pLimit maximum number of services to return, -1 for all
+     * @return matching services, sorted by id
+     */
+    List queryServices(String pFilter, String[] pProjection, int pLimit);
 }
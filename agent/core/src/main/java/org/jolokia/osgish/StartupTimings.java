@@ -0,0 +1,102 @@
+package org.jolokia.osgish;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Timings of the phases of the agent's startup. Phases can run concurrently,
+ * so for each phase its start relative to the beginning of the activation is
+ * recorded together with its duration and the thread it ran in.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class StartupTimings {
+
+    // Start of the activation
+    private volatile long startNanos = System.nanoTime();
+
+    // How the phases were run
+    private volatile String mode = "sequential";
+
+    // Phase name -> timing, in the order the phases finished
+    private final Map<String,Map<String,Object>> phases = new LinkedHashMap<String, Map<String, Object>>();
+
+    /**
+     * Start a new activation, forgetting about previous timings
+     *
+     * @param pMode activation mode used
+     */
+    public synchronized void reset(String pMode) {
+        startNanos = System.nanoTime();
+        mode = pMode;
+        phases.clear();
+    }
+
+    /**
+     * Record a finished phase
+     *
+     * @param pPhase name of the phase
+     * @param pStartNanos {@link System#nanoTime()} when the phase started
+     * @param pError error if the phase failed, null otherwise
+     */
+    public synchronized void record(String pPhase, long pStartNanos, Throwable pError) {
+        long end = System.nanoTime();
+        Map<String,Object> timing = new LinkedHashMap<String, Object>();
+        timing.put("start",toMillis(pStartNanos - startNanos));
+        timing.put("duration",toMillis(end - pStartNanos));
+        timing.put("thread",Thread.currentThread().getName());
+        if (pError != null) {
+            timing.put("error",pError.toString());
+        }
+        phases.put(pPhase,timing);
+    }
+
+    /**
+     * Get all timings
+     *
+     * @return map with the activation "mode", the "total" time from the start of the
+     *         activation until the last phase finished and the "phases" with their
+     *         "start" offset, "duration" (all in ms), "thread" and "error" if any.
+     */
+    public synchronized Map<String,Object> toMap() {
+        double total = 0;
+        for (Map<String,Object> timing : phases.values()) {
+            total = Math.max(total, (Double) timing.get("start") + (Double) timing.get("duration"));
+        }
+        Map<String,Object> ret = new LinkedHashMap<String, Object>();
+        ret.put("mode",mode);
+        ret.put("total",total);
+        ret.put("phases",new LinkedHashMap<String, Map<String, Object>>(phases));
+        return ret;
+    }
+
+    private static double toMillis(long pNanos) {
+        return Math.round(pNanos / 1000.0) / 1000.0;
+    }
+}
@@ -0,0 +1,305 @@
+package org.jolokia.osgish.content;
+
+import org.jolokia.osgish.metrics.Metrics;
+import org.jolokia.osgish.metrics.StripedCounter;
+import org.jolokia.osgish.util.Base64;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+
+import java.io.*;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.*;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Access to the content of installed bundles. For bundles installed from a local
+ * JAR file, the parsed {@link ZipDirectory} is cached per bundle so that browsing
+ * and extracting entries neither reopens nor rescans the archive. The cache is
+ * invalidated when a bundle gets updated or uninstalled, or when its file changes.
+ *
+ * Bundles without a local JAR (e.g. installed from a stream or exploded
+ * directories) are served through the OSGi entry API, which is slower but works
+ * everywhere.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class BundleContent {
+
+    /**
+     * Maximum number of bytes returned by a single read
+     */
+    public static final int MAX_READ_LENGTH = 1024 * 1024;
+
+    // Number of bundles whose directory is cached
+    private static final int MAX_CACHED = 64;
+
+    private final BundleContext bundleContext;
+
+    // Bundle id -> parsed directory, least recently used first
+    private final Map<Long,ZipDirectory> cache = new LinkedHashMap<Long, ZipDirectory>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ZipDirectory> pEldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    // Cache statistics
+    private final StripedCounter hits;
+    private final StripedCounter misses;
+
+    public BundleContent(BundleContext pBundleContext, Metrics pMetrics) {
+        bundleContext = pBundleContext;
+        hits = pMetrics.cacheHits("bundleContent");
+        misses = pMetrics.cacheMisses("bundleContent");
+    }
+
+    /**
+     * Invalidate the cache for bundles whose content changes
+     *
+     * @param pEvent bundle event
+     */
+    public void bundleChanged(BundleEvent pEvent) {
+        int type = pEvent.getType();
+        if (type == BundleEvent.UPDATED || type == BundleEvent.UNINSTALLED) {
+            synchronized (cache) {
+                cache.remove(pEvent.getBundle().getBundleId());
+            }
+        }
+    }
+
+    /**
+     * Drop all cached directories
+     */
+    public void invalidateAll() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * List the entries of a bundle
+     *
+     * @param pBundleId id of the bundle
+     * @param pPrefix only entries starting with this prefix are returned, can be null
+     * @return list of entries, each described by "name", "size", "compressedSize" and "time". Sizes
+     *         and time are -1 if they are not known.
+     * @throws IOException if the bundle can not be read
+     */
+    public List<Map<String,Object>> list(long pBundleId, String pPrefix) throws IOException {
+        Bundle bundle = getBundle(pBundleId);
+        List<Map<String,Object>> ret = new ArrayList<Map<String, Object>>();
+        ZipDirectory dir = getDirectory(bundle);
+        if (dir != null) {
+            for (ZipDirectory.Entry entry : dir.getEntries(pPrefix)) {
+                ret.add(toMap(entry.getName(), entry.getSize(), entry.getCompressedSize(), entry.getTime()));
+            }
+        } else {
+            SortedSet<String> names = new TreeSet<String>();
+            Enumeration paths = bundle.findEntries("/", "*", true);
+            while (paths != null && paths.hasMoreElements()) {
+                String path = ((URL) paths.nextElement()).getPath();
+                String name = path.startsWith("/") ? path.substring(1) : path;
+                if (name.length() > 0 && (pPrefix == null || name.startsWith(pPrefix))) {
+                    names.add(name);
+                }
+            }
+            for (String name : names) {
+                ret.add(toMap(name, -1, -1, -1));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Read a range of an entry of a bundle
+     *
+     * @param pBundleId id of the bundle
+     * @param pEntry name of the entry
+     * @param pOffset where to start within the (uncompressed) entry
+     * @param pLength number of bytes to read at most, limited by {@link #MAX_READ_LENGTH}
+     * @return map with the "name", the entry's "size" (-1 if unknown), "offset", "length" and
+     *         the Base64 encoded "data".
+     * @throws IOException if reading fails
+     * @throws IllegalArgumentException if there is no such entry
+     */
+    public Map<String,Object> read(long pBundleId, String pEntry, long pOffset, int pLength) throws IOException {
+        Bundle bundle = getBundle(pBundleId);
+        int length = checkRange(pOffset, pLength);
+        ZipDirectory dir = getDirectory(bundle);
+        byte[] data;
+        long size;
+        if (dir != null) {
+            ZipDirectory.Entry entry = dir.getEntry(pEntry);
+            if (entry == null) {
+                throw new IllegalArgumentException("No entry " + pEntry + " in bundle " + pBundleId);
+            }
+            data = dir.read(entry, pOffset, length);
+            size = entry.getSize();
+        } else {
+            URL url = bundle.getEntry(pEntry);
+            if (url == null) {
+                throw new IllegalArgumentException("No entry " + pEntry + " in bundle " + pBundleId);
+            }
+            data = readStream(url.openStream(), pOffset, length);
+            size = -1;
+        }
+        return toResult(pEntry, size, pOffset, data);
+    }
+
+    /**
+     * Read a range of the bundle's JAR file itself, e.g. for downloading it
+     *
+     * @param pBundleId id of the bundle
+     * @param pOffset where to start
+     * @param pLength number of bytes to read at most, limited by {@link #MAX_READ_LENGTH}
+     * @return map like for {@link #read(long, String, long, int)} with the location as name
+     * @throws IOException if reading fails
+     * @throws IllegalArgumentException if the bundle is not available as local file
+     */
+    public Map<String,Object> readBundle(long pBundleId, long pOffset, int pLength) throws IOException {
+        Bundle bundle = getBundle(pBundleId);
+        int length = checkRange(pOffset, pLength);
+        ZipDirectory dir = getDirectory(bundle);
+        if (dir == null) {
+            throw new IllegalArgumentException("Bundle " + pBundleId + " is not available as local file (location: " +
+                                               bundle.getLocation() + ")");
+        }
+        return toResult(bundle.getLocation(), dir.getLength(), pOffset, dir.readRaw(pOffset, length));
+    }
+
+    // =================================================================================
+
+    private Bundle getBundle(long pBundleId) {
+        Bundle bundle = bundleContext.getBundle(pBundleId);
+        if (bundle == null) {
+            throw new IllegalArgumentException("No bundle with id " + pBundleId);
+        }
+        return bundle;
+    }
+
+    // Get the cached directory, parsing the file if necessary. Null if the bundle has no local JAR.
+    private ZipDirectory getDirectory(Bundle pBundle) throws IOException {
+        long id = pBundle.getBundleId();
+        synchronized (cache) {
+            ZipDirectory dir = cache.get(id);
+            if (dir != null && dir.isValid()) {
+                hits.increment();
+                return dir;
+            }
+        }
+        misses.increment();
+        File file = getLocalFile(pBundle.getLocation());
+        ZipDirectory dir = file != null ? ZipDirectory.read(file) : null;
+        if (dir != null) {
+            synchronized (cache) {
+                cache.put(id, dir);
+            }
+        }
+        return dir;
+    }
+
+    private File getLocalFile(String pLocation) {
+        if (pLocation == null || !pLocation.startsWith("file:")) {
+            return null;
+        }
+        String path = pLocation.substring("file:".length());
+        if (path.startsWith("//")) {
+            path = path.substring(2);
+        }
+        File file = new File(path);
+        if (!file.isFile()) {
+            try {
+                // Might be URL encoded
+                file = new File(URLDecoder.decode(path, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                return null;
+            }
+        }
+        return file.isFile() ? file : null;
+    }
+
+    private int checkRange(long pOffset, int pLength) {
+        if (pOffset < 0) {
+            throw new IllegalArgumentException("Invalid offset " + pOffset);
+        }
+        return pLength < 0 ? MAX_READ_LENGTH : Math.min(pLength, MAX_READ_LENGTH);
+    }
+
+    private byte[] readStream(InputStream pIn, long pOffset, int pLength) throws IOException {
+        try {
+            long skip = pOffset;
+            while (skip > 0) {
+                long skipped = pIn.skip(skip);
+                if (skipped <= 0) {
+                    if (pIn.read() == -1) {
+                        return new byte[0];
+                    }
+                    skipped = 1;
+                }
+                skip -= skipped;
+            }
+            byte[] buf = new byte[pLength];
+            int filled = 0;
+            int read;
+            while (filled < pLength && (read = pIn.read(buf, filled, pLength - filled)) != -1) {
+                filled += read;
+            }
+            if (filled == pLength) {
+                return buf;
+            }
+            byte[] ret = new byte[filled];
+            System.arraycopy(buf, 0, ret, 0, filled);
+            return ret;
+        } finally {
+            pIn.close();
+        }
+    }
+
+    private Map<String,Object> toMap(String pName, long pSize, long pCompressedSize, long pTime) {
+        Map<String,Object> ret = new HashMap<String, Object>();
+        ret.put("name",pName);
+        ret.put("size",pSize);
+        ret.put("compressedSize",pCompressedSize);
+        ret.put("time",pTime);
+        return ret;
+    }
+
+    private Map<String,Object> toResult(String pName, long pSize, long pOffset, byte[] pData) {
+        Map<String,Object> ret = new HashMap<String, Object>();
+        ret.put("name",pName);
+        ret.put("size",pSize);
+        ret.put("offset",pOffset);
+        ret.put("length",pData.length);
+        ret.put("data",Base64.encode(pData));
+        return ret;
+    }
+}
@@ -0,0 +1,366 @@
+package org.jolokia.osgish.content;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Parsed central directory of a ZIP file. Parsing happens once with a few
+ * positional reads at the end of the file. Afterwards any entry can be read
+ * without scanning the archive again, since the directory knows where each
+ * entry's data starts.
+ *
+ * ZIP64 archives are not supported, {@link #read(File)} returns null for them.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class ZipDirectory {
+
+    // Signatures and fixed sizes of the ZIP records
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int END_SIZE = 22;
+    private static final int CENTRAL_SIZE = 46;
+    private static final int LOCAL_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private final File file;
+
+    // Size and modification time of the file when parsed
+    private final long length;
+    private final long lastModified;
+
+    // Entries, sorted by name
+    private final TreeMap<String,Entry> entries;
+
+    private ZipDirectory(File pFile, long pLength, long pLastModified, TreeMap<String,Entry> pEntries) {
+        file = pFile;
+        length = pLength;
+        lastModified = pLastModified;
+        entries = pEntries;
+    }
+
+    /**
+     * Parse the central directory of a ZIP file
+     *
+     * @param pFile file to parse
+     * @return the directory or null if the file is not a (supported) ZIP file
+     * @throws IOException if reading fails
+     */
+    public static ZipDirectory read(File pFile) throws IOException {
+        long lastModified = pFile.lastModified();
+        RandomAccessFile raf = new RandomAccessFile(pFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            ByteBuffer end = findEnd(channel, size);
+            if (end == null) {
+                return null;
+            }
+            int count = end.getShort(10) & 0xffff;
+            long cdSize = end.getInt(12) & 0xffffffffL;
+            long cdOffset = end.getInt(16) & 0xffffffffL;
+            if (count == 0xffff || cdOffset == 0xffffffffL || cdOffset + cdSize > size) {
+                // ZIP64 or broken
+                return null;
+            }
+            ByteBuffer cd = readFully(channel, cdOffset, (int) cdSize);
+            TreeMap<String,Entry> entries = new TreeMap<String, Entry>();
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                if (pos + CENTRAL_SIZE > cdSize || cd.getInt(pos) != CENTRAL_SIGNATURE) {
+                    return null;
+                }
+                int nameLen = cd.getShort(pos + 28) & 0xffff;
+                int extraLen = cd.getShort(pos + 30) & 0xffff;
+                int commentLen = cd.getShort(pos + 32) & 0xffff;
+                byte[] nameBytes = new byte[nameLen];
+                for (int j = 0; j < nameLen; j++) {
+                    nameBytes[j] = cd.get(pos + CENTRAL_SIZE + j);
+                }
+                Entry entry = new Entry(new String(nameBytes, "UTF-8"),
+                                        cd.getShort(pos + 10) & 0xffff,
+                                        dosToJavaTime(cd.getShort(pos + 14) & 0xffff, cd.getShort(pos + 12) & 0xffff),
+                                        cd.getInt(pos + 20) & 0xffffffffL,
+                                        cd.getInt(pos + 24) & 0xffffffffL,
+                                        cd.getInt(pos + 42) & 0xffffffffL);
+                entries.put(entry.name, entry);
+                pos += CENTRAL_SIZE + nameLen + extraLen + commentLen;
+            }
+            return new ZipDirectory(pFile, size, lastModified, entries);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Check whether the file has not changed since it was parsed
+     *
+     * @return true if this directory still describes the file
+     */
+    public boolean isValid() {
+        return file.length() == length && file.lastModified() == lastModified;
+    }
+
+    /**
+     * Get all entries whose name starts with the given prefix
+     *
+     * @param pPrefix prefix or null for all entries
+     * @return entries sorted by name
+     */
+    public Collection<Entry> getEntries(String pPrefix) {
+        if (pPrefix == null || pPrefix.length() == 0) {
+            return entries.values();
+        }
+        return entries.subMap(pPrefix, pPrefix + Character.MAX_VALUE).values();
+    }
+
+    /**
+     * Lookup an entry
+     *
+     * @param pName name of the entry
+     * @return the entry or null
+     */
+    public Entry getEntry(String pName) {
+        return entries.get(pName);
+    }
+
+    /**
+     * Get the size of the whole archive
+     *
+     * @return size in bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Read a range of the uncompressed content of an entry. Stored entries are read
+     * directly at their position, compressed entries are inflated up to the end of
+     * the range.
+     *
+     * @param pEntry entry to read
+     * @param pOffset offset within the uncompressed content
+     * @param pLength number of bytes to read at most
+     * @return the bytes read, which are less than requested if the entry ends before
+     * @throws IOException if reading fails
+     */
+    public byte[] read(Entry pEntry, long pOffset, int pLength) throws IOException {
+        int len = (int) Math.max(0, Math.min(pLength, pEntry.size - pOffset));
+        byte[] ret = new byte[len];
+        if (len == 0) {
+            return ret;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer local = readFully(channel, pEntry.headerOffset, LOCAL_SIZE);
+            if (local.getInt(0) != LOCAL_SIGNATURE) {
+                throw new IOException("No local header for " + pEntry.name + " in " + file);
+            }
+            long dataStart = pEntry.headerOffset + LOCAL_SIZE +
+                             (local.getShort(26) & 0xffff) + (local.getShort(28) & 0xffff);
+            if (pEntry.method == STORED) {
+                ByteBuffer buf = ByteBuffer.wrap(ret);
+                readFully(channel, dataStart + pOffset, buf);
+            } else if (pEntry.method == DEFLATED) {
+                inflate(channel, dataStart, pEntry, pOffset, ret);
+            } else {
+                throw new IOException("Unsupported compression method " + pEntry.method + " for " + pEntry.name);
+            }
+        } finally {
+            raf.close();
+        }
+        return ret;
+    }
+
+    /**
+     * Read a range of the archive itself
+     *
+     * @param pOffset where to start
+     * @param pLength number of bytes to read at most
+     * @return the bytes read
+     * @throws IOException if reading fails
+     */
+    public byte[] readRaw(long pOffset, int pLength) throws IOException {
+        int len = (int) Math.max(0, Math.min(pLength, length - pOffset));
+        byte[] ret = new byte[len];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            readFully(raf.getChannel(), pOffset, ByteBuffer.wrap(ret));
+        } finally {
+            raf.close();
+        }
+        return ret;
+    }
+
+    // =================================================================================
+
+    // The end record is at the end of the file, followed by an optional comment
+    private static ByteBuffer findEnd(FileChannel pChannel, long pSize) throws IOException {
+        if (pSize < END_SIZE) {
+            return null;
+        }
+        int tail = (int) Math.min(pSize, END_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer buf = readFully(pChannel, pSize - tail, tail);
+        for (int pos = tail - END_SIZE; pos >= 0; pos--) {
+            if (buf.getInt(pos) == END_SIGNATURE) {
+                buf.position(pos);
+                return buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+        return null;
+    }
+
+    private static void inflate(FileChannel pChannel, long pDataStart, Entry pEntry, long pOffset, byte[] pDest)
+            throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+            byte[] skip = new byte[(int) Math.min(pOffset, 16 * 1024)];
+            long toSkip = pOffset;
+            long pos = pDataStart;
+            long compressedEnd = pDataStart + pEntry.compressedSize;
+            int filled = 0;
+            boolean dummySupplied = false;
+            while (filled < pDest.length) {
+                if (inflater.needsInput()) {
+                    if (pos >= compressedEnd) {
+                        if (dummySupplied) {
+                            // Compressed data is truncated, no more input to come
+                            throw new EOFException("Unexpected end of " + pEntry.name);
+                        }
+                        // Raw inflater needs one dummy byte at the end
+                        inflater.setInput(new byte[1]);
+                        dummySupplied = true;
+                    } else {
+                        in.clear();
+                        in.limit((int) Math.min(in.capacity(), compressedEnd - pos));
+                        int read = pChannel.read(in, pos);
+                        if (read < 0) {
+                            throw new EOFException("Unexpected end of " + pEntry.name);
+                        }
+                        pos += read;
+                        inflater.setInput(in.array(), 0, read);
+                    }
+                }
+                int n;
+                if (toSkip > 0) {
+                    n = inflater.inflate(skip, 0, (int) Math.min(skip.length, toSkip));
+                    toSkip -= n;
+                } else {
+                    n = inflater.inflate(pDest, filled, pDest.length - filled);
+                    filled += n;
+                }
+                if (n == 0 && (inflater.finished() || inflater.needsDictionary())) {
+                    throw new EOFException("Unexpected end of " + pEntry.name);
+                }
+            }
+        } catch (DataFormatException exp) {
+            throw new IOException("Corrupt entry " + pEntry.name + ": " + exp.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel pChannel, long pPosition, int pLength) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(pLength).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(pChannel, pPosition, buf);
+        buf.flip();
+        return buf;
+    }
+
+    private static void readFully(FileChannel pChannel, long pPosition, ByteBuffer pBuffer) throws IOException {
+        long pos = pPosition;
+        while (pBuffer.hasRemaining()) {
+            int read = pChannel.read(pBuffer, pos);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at position " + pos);
+            }
+            pos += read;
+        }
+    }
+
+    private static long dosToJavaTime(int pDate, int pTime) {
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(1980 + ((pDate >> 9) & 0x7f), ((pDate >> 5) & 0x0f) - 1, pDate & 0x1f,
+                (pTime >> 11) & 0x1f, (pTime >> 5) & 0x3f, (pTime & 0x1f) * 2);
+        return cal.getTimeInMillis();
+    }
+
+    /**
+     * A single entry of the archive
+     */
+    public static final class Entry {
+        private final String name;
+        private final int method;
+        private final long time;
+        private final long compressedSize;
+        private final long size;
+        private final long headerOffset;
+
+        private Entry(String pName, int pMethod, long pTime, long pCompressedSize, long pSize, long pHeaderOffset) {
+            name = pName;
+            method = pMethod;
+            time = pTime;
+            compressedSize = pCompressedSize;
+            size = pSize;
+            headerOffset = pHeaderOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+}
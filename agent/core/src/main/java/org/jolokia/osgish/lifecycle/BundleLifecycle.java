@@ -0,0 +1,447 @@
+package org.jolokia.osgish.lifecycle;
+
+import org.jolokia.osgish.state.DependencyGraph;
+import org.osgi.framework.*;
+import org.osgi.service.packageadmin.PackageAdmin;
+import org.osgi.util.tracker.ServiceTracker;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Runs lifecycle operations on a set of bundles in parallel on a bounded pool of
+ * worker threads. Bundles are scheduled along their dependencies: a bundle is
+ * started or updated only after all bundles it depends on are done, and stopped
+ * only after all bundles depending on it are stopped. Independent bundles are
+ * processed concurrently, so that a slow activator does not hold up unrelated
+ * bundles. The dependencies are taken from the {@link DependencyGraph}. Dependency
+ * cycles are broken by processing the lowest bundle id first.
+ *
+ * A refresh is handed over to the {@link PackageAdmin} as a whole, since the
+ * framework refreshes all affected bundles in one go anyway.
+ *
+ * Bundles can also be installed or updated from local files, which are handed
+ * to the framework as open streams. New bundles are installed concurrently,
+ * updates of existing bundles are scheduled along their dependencies like any
+ * other update.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class BundleLifecycle {
+
+    /**
+     * Operations supported
+     */
+    public enum Operation {
+        START, STOP, UPDATE, REFRESH;
+
+        /**
+         * Lookup an operation by name, case insensitive
+         *
+         * @param pName name of the operation
+         * @return the operation
+         * @throws IllegalArgumentException if there is no such operation
+         */
+        public static Operation fromName(String pName) {
+            if (pName == null) {
+                throw new IllegalArgumentException("No operation given");
+            }
+            try {
+                return valueOf(pName.trim().toUpperCase());
+            } catch (IllegalArgumentException exp) {
+                throw new IllegalArgumentException("Unknown operation '" + pName + "' (known: start, stop, update, refresh)");
+            }
+        }
+    }
+
+    // How long to wait for a refresh to finish
+    private static final long REFRESH_TIMEOUT = 5 * 60 * 1000L;
+
+    private final BundleContext bundleContext;
+    private final ServiceTracker packageAdminTracker;
+
+    // Source of the dependencies among bundles
+    private final DependencyGraph dependencyGraph;
+
+    // Workers, threads are created on demand and kept until the lifecycle is closed
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Constructor
+     *
+     * @param pBundleContext bundle context
+     * @param pDependencyGraph graph for ordering bundles along their dependencies
+     * @param pThreads maximum number of bundles processed concurrently
+     */
+    public BundleLifecycle(BundleContext pBundleContext, DependencyGraph pDependencyGraph, int pThreads) {
+        bundleContext = pBundleContext;
+        dependencyGraph = pDependencyGraph;
+        packageAdminTracker = new ServiceTracker(pBundleContext, PackageAdmin.class.getName(), null);
+        executor = new ThreadPoolExecutor(pThreads, pThreads, 0, TimeUnit.SECONDS,
+                                          new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+    }
+
+    public void open() {
+        packageAdminTracker.open();
+    }
+
+    public void close() {
+        executor.shutdownNow();
+        packageAdminTracker.close();
+    }
+
+    /**
+     * Execute an operation on a set of bundles and wait until it is done for all of them
+     *
+     * @param pOperation operation to execute ("start", "stop", "update" or "refresh")
+     * @param pIds ids of the bundles
+     * @return map with the "operation", the total "time" in ms, the number of bundles "failed"
+     *         and a list of "results", one per bundle in the order they finished. Each
+     *         result contains the bundle "id", its "symbolicName", whether it succeeded
+     *         ("success"), the "time" it took in ms, the "error" message if any and the
+     *         resulting "state".
+     */
+    public Map<String,Object> execute(String pOperation, long[] pIds) {
+        Operation operation = Operation.fromName(pOperation);
+        long start = System.nanoTime();
+        List<Map<String,Object>> results = new ArrayList<Map<String, Object>>();
+        Map<Long,Bundle> bundles = new TreeMap<Long, Bundle>();
+        for (long id : pIds != null ? pIds : new long[0]) {
+            Bundle bundle = bundleContext.getBundle(id);
+            if (bundle == null) {
+                results.add(createResult(id, null, 0, "No bundle with id " + id));
+            } else {
+                bundles.put(id, bundle);
+            }
+        }
+        try {
+            if (operation == Operation.REFRESH) {
+                results.addAll(refresh(bundles.values()));
+            } else {
+                results.addAll(runOrdered(operation, bundles, null));
+            }
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for " + pOperation + " to finish");
+        }
+        return createSummary(operation.name().toLowerCase(), start, results);
+    }
+
+    /**
+     * Install bundles from local files. The content is passed to the framework as stream,
+     * so that it doesn't have to resolve and open the location itself. Bundles whose location
+     * is already installed are either updated from the file or left alone.
+     *
+     * @param pFiles files to install, keyed by the location to install them under
+     * @param pUpdate whether to update bundles which are already installed
+     * @return map like for {@link #execute(String, long[])} with "operation" "install". Each
+     *         result contains additionally the "location" and the "action" taken ("installed",
+     *         "updated" or "none" if the bundle was already installed)
+     */
+    public Map<String,Object> install(Map<String,File> pFiles, boolean pUpdate) {
+        long start = System.nanoTime();
+        Map<String,Bundle> installed = new HashMap<String, Bundle>();
+        for (Bundle bundle : bundleContext.getBundles()) {
+            installed.put(bundle.getLocation(), bundle);
+        }
+        List<Map<String,Object>> results = new ArrayList<Map<String, Object>>();
+        Map<Long,Bundle> updates = new TreeMap<Long, Bundle>();
+        Map<Long,File> updateContent = new HashMap<Long, File>();
+        Map<Long,String> updateLocations = new HashMap<Long, String>();
+        CompletionService<Map<String,Object>> completion = new ExecutorCompletionService<Map<String, Object>>(executor);
+        int running = 0;
+        for (Map.Entry<String,File> entry : pFiles.entrySet()) {
+            Bundle bundle = installed.get(entry.getKey());
+            if (bundle == null) {
+                completion.submit(createInstallTask(entry.getKey(), entry.getValue()));
+                running++;
+            } else if (pUpdate) {
+                updates.put(bundle.getBundleId(), bundle);
+                updateContent.put(bundle.getBundleId(), entry.getValue());
+                updateLocations.put(bundle.getBundleId(), entry.getKey());
+            } else {
+                Map<String,Object> result = createResult(bundle.getBundleId(), bundle, 0, null);
+                result.put("location",entry.getKey());
+                result.put("action","none");
+                results.add(result);
+            }
+        }
+        try {
+            for (; running > 0; running--) {
+                results.add(getResult(completion.take()));
+            }
+            if (!updates.isEmpty()) {
+                for (Map<String,Object> result : runOrdered(Operation.UPDATE, updates, updateContent)) {
+                    result.put("location",updateLocations.get((Long) result.get("id")));
+                    result.put("action","updated");
+                    results.add(result);
+                }
+            }
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for installation to finish");
+        }
+        return createSummary("install", start, results);
+    }
+
+    // =================================================================================
+
+    private Map<String,Object> createSummary(String pOperation, long pStart, List<Map<String,Object>> pResults) {
+        int failed = 0;
+        for (Map<String,Object> result : pResults) {
+            if (!(Boolean) result.get("success")) {
+                failed++;
+            }
+        }
+        Map<String,Object> ret = new HashMap<String, Object>();
+        ret.put("operation",pOperation);
+        ret.put("time",toMillis(System.nanoTime() - pStart));
+        ret.put("failed",failed);
+        ret.put("results",pResults);
+        return ret;
+    }
+
+    // Content for updates is taken from pContent if given there, otherwise from the bundle's location
+    private List<Map<String,Object>> runOrdered(final Operation pOperation, Map<Long,Bundle> pBundles,
+                                                Map<Long,File> pContent) throws InterruptedException {
+        Map<Long,Set<Long>> dependencies = dependencyGraph.getDependencies(pBundles.values());
+        Map<Long,Set<Long>> dependents = invert(dependencies);
+        // What a bundle has to wait for and whom it unblocks when done
+        Map<Long,Set<Long>> waitFor = pOperation == Operation.STOP ? dependents : dependencies;
+        Map<Long,Set<Long>> unblocks = pOperation == Operation.STOP ? dependencies : dependents;
+
+        Map<Long,Integer> blockedBy = new HashMap<Long, Integer>();
+        TreeSet<Long> remaining = new TreeSet<Long>(pBundles.keySet());
+        CompletionService<Map<String,Object>> completion = new ExecutorCompletionService<Map<String, Object>>(executor);
+        int running = 0;
+        for (Long id : pBundles.keySet()) {
+            blockedBy.put(id, waitFor.get(id).size());
+        }
+        for (Long id : pBundles.keySet()) {
+            if (blockedBy.get(id) == 0) {
+                remaining.remove(id);
+                completion.submit(createTask(pOperation, pBundles.get(id), pContent));
+                running++;
+            }
+        }
+        List<Map<String,Object>> results = new ArrayList<Map<String, Object>>();
+        while (running > 0 || !remaining.isEmpty()) {
+            if (running == 0) {
+                // Only a cycle is left
+                Long id = remaining.first();
+                remaining.remove(id);
+                completion.submit(createTask(pOperation, pBundles.get(id), pContent));
+                running++;
+            }
+            Map<String,Object> result = getResult(completion.take());
+            running--;
+            results.add(result);
+            for (Long next : unblocks.get((Long) result.get("id"))) {
+                int blocked = blockedBy.get(next) - 1;
+                blockedBy.put(next, blocked);
+                if (blocked == 0 && remaining.remove(next)) {
+                    completion.submit(createTask(pOperation, pBundles.get(next), pContent));
+                    running++;
+                }
+            }
+        }
+        return results;
+    }
+
+    // Reverse relation, i.e. for each bundle the bundles depending on it
+    private Map<Long,Set<Long>> invert(Map<Long,Set<Long>> pDependencies) {
+        Map<Long,Set<Long>> ret = new HashMap<Long, Set<Long>>();
+        for (Long id : pDependencies.keySet()) {
+            ret.put(id, new HashSet<Long>());
+        }
+        for (Map.Entry<Long,Set<Long>> entry : pDependencies.entrySet()) {
+            for (Long dep : entry.getValue()) {
+                ret.get(dep).add(entry.getKey());
+            }
+        }
+        return ret;
+    }
+
+    private Callable<Map<String,Object>> createTask(final Operation pOperation, final Bundle pBundle,
+                                                   Map<Long,File> pContent) {
+        final File content = pContent != null ? pContent.get(pBundle.getBundleId()) : null;
+        return new Callable<Map<String, Object>>() {
+            public Map<String, Object> call() {
+                long start = System.nanoTime();
+                String error = null;
+                try {
+                    switch (pOperation) {
+                        case START: pBundle.start(); break;
+                        case STOP: pBundle.stop(); break;
+                        case UPDATE: update(pBundle, content); break;
+                        default: throw new IllegalArgumentException("Cannot run " + pOperation + " per bundle");
+                    }
+                } catch (Exception exp) {
+                    error = getMessage(exp);
+                }
+                return createResult(pBundle.getBundleId(), pBundle, System.nanoTime() - start, error);
+            }
+        };
+    }
+
+    private Callable<Map<String,Object>> createInstallTask(final String pLocation, final File pFile) {
+        return new Callable<Map<String, Object>>() {
+            public Map<String, Object> call() {
+                long start = System.nanoTime();
+                Bundle bundle = null;
+                String error = null;
+                try {
+                    // The framework closes the stream, closing it here again doesn't hurt
+                    InputStream in = new FileInputStream(pFile);
+                    try {
+                        bundle = bundleContext.installBundle(pLocation, in);
+                    } finally {
+                        in.close();
+                    }
+                } catch (Exception exp) {
+                    error = getMessage(exp);
+                }
+                Map<String,Object> result =
+                        createResult(bundle != null ? bundle.getBundleId() : -1, bundle, System.nanoTime() - start, error);
+                result.put("location",pLocation);
+                result.put("action","installed");
+                return result;
+            }
+        };
+    }
+
+    private void update(Bundle pBundle, File pContent) throws BundleException, IOException {
+        if (pContent == null) {
+            pBundle.update();
+            return;
+        }
+        InputStream in = new FileInputStream(pContent);
+        try {
+            pBundle.update(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private Map<String,Object> getResult(Future<Map<String,Object>> pFuture) throws InterruptedException {
+        try {
+            return pFuture.get();
+        } catch (ExecutionException exp) {
+            // Tasks catch their exceptions, so this is an error
+            throw new IllegalStateException("Internal error: " + exp.getCause(),exp.getCause());
+        }
+    }
+
+    private List<Map<String,Object>> refresh(Collection<Bundle> pBundles) throws InterruptedException {
+        PackageAdmin packageAdmin = (PackageAdmin) packageAdminTracker.getService();
+        long start = System.nanoTime();
+        String error = null;
+        if (packageAdmin == null) {
+            error = "No PackageAdmin service available";
+        } else {
+            final CountDownLatch refreshed = new CountDownLatch(1);
+            FrameworkListener listener = new FrameworkListener() {
+                public void frameworkEvent(FrameworkEvent pEvent) {
+                    if (pEvent.getType() == FrameworkEvent.PACKAGES_REFRESHED) {
+                        refreshed.countDown();
+                    }
+                }
+            };
+            bundleContext.addFrameworkListener(listener);
+            try {
+                packageAdmin.refreshPackages(pBundles.toArray(new Bundle[pBundles.size()]));
+                if (!refreshed.await(REFRESH_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    error = "Refresh did not finish within " + REFRESH_TIMEOUT / 1000 + " seconds";
+                }
+            } finally {
+                bundleContext.removeFrameworkListener(listener);
+            }
+        }
+        long time = System.nanoTime() - start;
+        List<Map<String,Object>> ret = new ArrayList<Map<String, Object>>();
+        for (Bundle bundle : pBundles) {
+            ret.add(createResult(bundle.getBundleId(), bundle, time, error));
+        }
+        return ret;
+    }
+
+    private Map<String,Object> createResult(long pId, Bundle pBundle, long pNanos, String pError) {
+        Map<String,Object> ret = new HashMap<String, Object>();
+        ret.put("id",pId);
+        ret.put("success",pError == null);
+        ret.put("time",toMillis(pNanos));
+        if (pError != null) {
+            ret.put("error",pError);
+        }
+        if (pBundle != null) {
+            ret.put("symbolicName",pBundle.getSymbolicName());
+            ret.put("state",getStateName(pBundle.getState()));
+        }
+        return ret;
+    }
+
+    private String getMessage(Exception pExp) {
+        Throwable cause = pExp instanceof BundleException && ((BundleException) pExp).getNestedException() != null ?
+                ((BundleException) pExp).getNestedException() : null;
+        return pExp.getMessage() != null ? pExp.getMessage() + (cause != null ? ": " + cause : "") : pExp.toString();
+    }
+
+    private static double toMillis(long pNanos) {
+        return Math.round(pNanos / 1000.0) / 1000.0;
+    }
+
+    private static String getStateName(int pState) {
+        switch (pState) {
+            case Bundle.UNINSTALLED: return "UNINSTALLED";
+            case Bundle.INSTALLED: return "INSTALLED";
+            case Bundle.RESOLVED: return "RESOLVED";
+            case Bundle.STARTING: return "STARTING";
+            case Bundle.STOPPING: return "STOPPING";
+            case Bundle.ACTIVE: return "ACTIVE";
+            default: return "UNKNOWN";
+        }
+    }
+
+    // Daemon threads with a recognizable name
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable pRunnable) {
+            Thread thread = new Thread(pRunnable, "osgish-lifecycle-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package org.jolokia.osgish.log;
+
+import org.jolokia.osgish.metrics.Metrics;
+import org.jolokia.osgish.metrics.StripedCounter;
+import org.jolokia.osgish.util.DrainQueue;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
+import org.osgi.util.tracker.ServiceTracker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Logging for all parts of the agent. Callers only put their message into a
+ * bounded, lock-free {@link DrainQueue}. A background thread drains the queue in batches and
+ * hands the messages over to the {@link LogService}, which is looked up once per
+ * batch. Without a log service, warnings and errors go to <code>System.err</code>,
+ * but from the background thread as well, so that no request or framework thread
+ * ever blocks on logging.
+ *
+ * Messages above the configured level are discarded right at the call site with a
+ * single volatile read. Callers building expensive messages should check
+ * {@link #isEnabled(int)} first.
+ *
+ * Under overload, debug and info messages are only sampled (every 16th is kept)
+ * once the queue is three quarters full and dropped when it is full. Warnings and
+ * errors can use some extra room before they are dropped as well. Dropped messages
+ * are counted and reported with a single warning as soon as the queue drains.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class AgentLog {
+
+    // Maximum number of messages handed over in one batch
+    private static final int MAX_BATCH = 256;
+
+    // Every n-th debug or info message is kept when sampling
+    private static final int SAMPLE_RATE = 16;
+
+    private static final String[] LEVEL_NAMES = { "error", "warning", "info", "debug" };
+
+    private final ServiceTracker logTracker;
+
+    // Capacity for all messages, the sampling threshold and the limit for warnings and errors
+    private final int capacity;
+    private final int sampleThreshold;
+    private final int urgentCapacity;
+
+    private final DrainQueue<Entry> queue = new DrainQueue<Entry>("osgish-log", MAX_BATCH);
+
+    // For picking samples under overload
+    private final AtomicInteger sampleCounter = new AtomicInteger();
+
+    // Messages dropped since the last report
+    private final AtomicLong droppedSinceReport = new AtomicLong();
+
+    private final StripedCounter written;
+    private final StripedCounter dropped;
+
+    // Highest level which is logged (LogService.LOG_ERROR .. LogService.LOG_DEBUG)
+    private volatile int level;
+
+    // Writes out the queued messages from the drain thread
+    private final DrainQueue.Handler writer = new DrainQueue.Handler() {
+        private final List<Entry> batch = new ArrayList<Entry>();
+
+        public boolean process() {
+            try {
+                return flush(batch);
+            } finally {
+                batch.clear();
+            }
+        }
+
+        public boolean hasPending() {
+            return droppedSinceReport.get() > 0;
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param pContext bundle context for looking up the log service
+     * @param pLevel highest level to log, e.g. {@link LogService#LOG_INFO}
+     * @param pCapacity maximum number of queued messages
+     * @param pMetrics where to count written and dropped messages
+     */
+    public AgentLog(BundleContext pContext, int pLevel, int pCapacity, Metrics pMetrics) {
+        logTracker = new ServiceTracker(pContext, LogService.class.getName(), null);
+        level = pLevel;
+        capacity = pCapacity;
+        sampleThreshold = pCapacity * 3 / 4;
+        urgentCapacity = pCapacity + pCapacity / 4;
+        written = pMetrics.counter("log.written");
+        dropped = pMetrics.counter("log.dropped");
+    }
+
+    /**
+     * Lookup a level by its name ("error", "warning", "info" or "debug"), case insensitive
+     *
+     * @param pName name of the level
+     * @param pDefault level to use if no name is given
+     * @return the level as defined by {@link LogService}
+     * @throws IllegalArgumentException if there is no such level
+     */
+    public static int parseLevel(String pName, int pDefault) {
+        if (pName == null || pName.trim().length() == 0) {
+            return pDefault;
+        }
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(pName.trim())) {
+                return i + 1;
+            }
+        }
+        throw new IllegalArgumentException("Unknown log level '" + pName + "' (known: error, warning, info, debug)");
+    }
+
+    /**
+     * Start tracking the log service and the drain thread
+     */
+    public synchronized void open() {
+        if (queue.isRunning()) {
+            return;
+        }
+        logTracker.open();
+        queue.start(writer);
+    }
+
+    /**
+     * Stop the drain thread. Messages still queued are written out before.
+     */
+    public synchronized void close() {
+        if (!queue.stop()) {
+            return;
+        }
+        // Whatever came in while stopping
+        flush(new ArrayList<Entry>());
+        logTracker.close();
+    }
+
+    /**
+     * Check whether messages of the given level are logged at all
+     *
+     * @param pLevel level to check
+     * @return true if messages of this level are logged
+     */
+    public boolean isEnabled(int pLevel) {
+        return pLevel <= level;
+    }
+
+    /**
+     * Set the highest level to log
+     *
+     * @param pLevel level as defined by {@link LogService}
+     */
+    public void setLevel(int pLevel) {
+        level = pLevel;
+    }
+
+    public void log(int pLevel, String pMessage) {
+        log(pLevel, pMessage, null);
+    }
+
+    /**
+     * Queue a message for logging. Never blocks.
+     *
+     * @param pLevel level as defined by {@link LogService}
+     * @param pMessage message to log
+     * @param pException exception to log along with the message or null
+     */
+    public void log(int pLevel, String pMessage, Throwable pException) {
+        if (pLevel > level) {
+            return;
+        }
+        boolean urgent = pLevel <= LogService.LOG_WARNING;
+        boolean sampledOut = !urgent && queue.size() >= sampleThreshold &&
+                             sampleCounter.incrementAndGet() % SAMPLE_RATE != 0;
+        if (sampledOut || !queue.offer(new Entry(pLevel, pMessage, pException), urgent ? urgentCapacity : capacity)) {
+            dropped.increment();
+            droppedSinceReport.incrementAndGet();
+        }
+    }
+
+    // =================================================================================
+
+    // Write out one batch, returns false if there was nothing to write
+    private boolean flush(List<Entry> pBatch) {
+        queue.drainTo(pBatch);
+        long lost = droppedSinceReport.getAndSet(0);
+        if (lost > 0) {
+            pBatch.add(new Entry(LogService.LOG_WARNING, "Dropped " + lost + " log messages because of overload", null));
+        }
+        if (pBatch.isEmpty()) {
+            return false;
+        }
+        LogService logService = (LogService) logTracker.getService();
+        try {
+            if (logService != null) {
+                for (Entry e : pBatch) {
+                    logService.log(e.level, e.message, e.exception);
+                }
+            } else {
+                writeToStdErr(pBatch);
+            }
+        } catch (Throwable exp) {
+            // A broken log service must not lose the batch
+            writeToStdErr(pBatch);
+        }
+        written.add(pBatch.size());
+        return true;
+    }
+
+    // Fallback without log service: Warnings and errors only, as one write
+    private void writeToStdErr(List<Entry> pBatch) {
+        StringBuilder buf = new StringBuilder();
+        List<Throwable> exceptions = new ArrayList<Throwable>();
+        for (Entry e : pBatch) {
+            if (e.level <= LogService.LOG_WARNING) {
+                buf.append(e.level == LogService.LOG_ERROR ? "ERROR: " : "WARNING: ").append(e.message).append('\n');
+                if (e.exception != null) {
+                    exceptions.add(e.exception);
+                }
+            }
+        }
+        if (buf.length() > 0) {
+            System.err.print(buf);
+            for (Throwable exp : exceptions) {
+                exp.printStackTrace(System.err);
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final int level;
+        private final String message;
+        private final Throwable exception;
+
+        private Entry(int pLevel, String pMessage, Throwable pException) {
+            level = pLevel;
+            message = pMessage;
+            exception = pException;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.jolokia.osgish.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Histogram with logarithmic buckets, similar to an HDR histogram. Each power of
+ * two is divided into eight linear sub buckets, so a recorded value is known with
+ * a relative error of at most 12.5%, across a range from 1 to 2^40 (for nanoseconds
+ * about 18 minutes, larger values go into the last bucket). Recording a value
+ * allocates nothing and costs a few atomic increments.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class Histogram {
+
+    // Sub buckets per power of two
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Largest power of two with own buckets
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    // Percentiles reported
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+    private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final StripedCounter count = new StripedCounter();
+    private final StripedCounter sum = new StripedCounter();
+    private final AtomicLong max = new AtomicLong();
+
+    // Unit and divisor for reporting (e.g. values recorded in ns, reported in us)
+    private final String unit;
+    private final long divisor;
+
+    // Start of the period for rate calculation
+    private volatile long since = System.currentTimeMillis();
+
+    /**
+     * Constructor
+     *
+     * @param pUnit unit of the reported values
+     * @param pDivisor divisor for converting recorded values to the reported unit
+     */
+    public Histogram(String pUnit, long pDivisor) {
+        unit = pUnit;
+        divisor = pDivisor;
+    }
+
+    /**
+     * Record a value
+     *
+     * @param pValue value to record, negative values count as 0
+     */
+    public void record(long pValue) {
+        long value = Math.max(pValue, 0);
+        buckets.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Record the time elapsed since the given start
+     *
+     * @param pStartNanos start time as returned by {@link System#nanoTime()}
+     */
+    public void recordSince(long pStartNanos) {
+        record(System.nanoTime() - pStartNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Get the value below which the given percentage of the recorded values lies
+     *
+     * @param pPercentile percentile, between 0 and 100
+     * @return upper bound of the bucket containing the percentile (in the recorded unit) or
+     *         0 if nothing has been recorded
+     */
+    public long getPercentile(double pPercentile) {
+        long[] snapshot = snapshot();
+        long total = 0;
+        for (long c : snapshot) {
+            total += c;
+        }
+        return percentile(snapshot, total, pPercentile);
+    }
+
+    /**
+     * Reset all buckets. Concurrently recorded values might get lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * Summary suitable for JSON serialization with "count", "rate" (per second since
+     * creation or last reset), "mean", "max", percentiles "p50", "p90", "p99", "p999"
+     * and the "unit" of the values.
+     *
+     * @return summary
+     */
+    public Map<String,Object> toMap() {
+        long[] snapshot = snapshot();
+        long total = 0;
+        for (long c : snapshot) {
+            total += c;
+        }
+        Map<String,Object> ret = new LinkedHashMap<String, Object>();
+        ret.put("count",total);
+        long elapsed = System.currentTimeMillis() - since;
+        ret.put("rate",elapsed > 0 ? total * 1000.0 / elapsed : 0.0);
+        ret.put("mean",total > 0 ? (double) sum.sum() / total / divisor : 0.0);
+        ret.put("max",max.get() / divisor);
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            ret.put(PERCENTILE_NAMES[i],percentile(snapshot, total, PERCENTILES[i]) / divisor);
+        }
+        ret.put("unit",unit);
+        return ret;
+    }
+
+    // =================================================================================
+
+    private long[] snapshot() {
+        long[] ret = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            ret[i] = buckets.get(i);
+        }
+        return ret;
+    }
+
+    private long percentile(long[] pBuckets, long pTotal, double pPercentile) {
+        if (pTotal == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(pTotal * pPercentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < pBuckets.length; i++) {
+            seen += pBuckets[i];
+            if (seen >= rank && pBuckets[i] > 0) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    static int index(long pValue) {
+        if (pValue < SUB_BUCKETS) {
+            return (int) pValue;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(pValue);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (pValue >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Largest value falling into the given bucket
+    static long upperBound(int pIndex) {
+        if (pIndex < SUB_BUCKETS) {
+            return pIndex;
+        }
+        int shift = pIndex / SUB_BUCKETS - 1;
+        int sub = pIndex % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub) << shift) + (1L << shift) - 1;
+    }
+}
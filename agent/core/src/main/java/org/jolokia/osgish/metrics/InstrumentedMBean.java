@@ -0,0 +1,143 @@
+package org.jolokia.osgish.metrics;
+
+import javax.management.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Wrapper for a standard MBean which records the latency of every operation and
+ * attribute access in a timer named <code>&lt;prefix&gt;.&lt;operation or attribute&gt;</code>
+ * and counts the requests in flight. Registration callbacks are passed on to the
+ * wrapped MBean, so it can still choose its own name.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class InstrumentedMBean extends StandardMBean {
+
+    /** Prefix of the counters for requests in flight */
+    public static final String IN_FLIGHT_PREFIX = "inflight.";
+
+    private final Object implementation;
+    private final Metrics metrics;
+    private final String prefix;
+    private final StripedCounter inFlight;
+
+    // Timers by operation or attribute name, to avoid building the full name on every call
+    private final ConcurrentMap<String,Histogram> timers = new ConcurrentHashMap<String, Histogram>();
+
+    /**
+     * Constructor
+     *
+     * @param pImplementation MBean to wrap
+     * @param pInterface its management interface
+     * @param pPrefix prefix for the timer names
+     * @param pMetrics where to record into
+     * @param <T> type of the management interface
+     * @throws NotCompliantMBeanException if the implementation does not implement the interface
+     */
+    public <T> InstrumentedMBean(T pImplementation, Class<T> pInterface, String pPrefix, Metrics pMetrics)
+            throws NotCompliantMBeanException {
+        super(pImplementation, pInterface);
+        implementation = pImplementation;
+        metrics = pMetrics;
+        prefix = pPrefix + ".";
+        inFlight = pMetrics.counter(IN_FLIGHT_PREFIX + pPrefix);
+    }
+
+    @Override
+    public Object invoke(String pActionName, Object[] pParams, String[] pSignature)
+            throws MBeanException, ReflectionException {
+        long start = System.nanoTime();
+        inFlight.increment();
+        try {
+            return super.invoke(pActionName, pParams, pSignature);
+        } finally {
+            inFlight.decrement();
+            timer(pActionName).recordSince(start);
+        }
+    }
+
+    @Override
+    public Object getAttribute(String pAttribute)
+            throws AttributeNotFoundException, MBeanException, ReflectionException {
+        long start = System.nanoTime();
+        inFlight.increment();
+        try {
+            return super.getAttribute(pAttribute);
+        } finally {
+            inFlight.decrement();
+            timer(pAttribute).recordSince(start);
+        }
+    }
+
+    private Histogram timer(String pName) {
+        Histogram timer = timers.get(pName);
+        if (timer == null) {
+            timer = metrics.timer(prefix + pName);
+            timers.put(pName, timer);
+        }
+        return timer;
+    }
+
+    // =================================================================================
+    // MBeanRegistration, delegated to the implementation
+
+    @Override
+    public ObjectName preRegister(MBeanServer pServer, ObjectName pName) throws Exception {
+        ObjectName name = super.preRegister(pServer, pName);
+        if (implementation instanceof MBeanRegistration) {
+            name = ((MBeanRegistration) implementation).preRegister(pServer, name);
+        }
+        return name;
+    }
+
+    @Override
+    public void postRegister(Boolean pRegistrationDone) {
+        super.postRegister(pRegistrationDone);
+        if (implementation instanceof MBeanRegistration) {
+            ((MBeanRegistration) implementation).postRegister(pRegistrationDone);
+        }
+    }
+
+    @Override
+    public void preDeregister() throws Exception {
+        if (implementation instanceof MBeanRegistration) {
+            ((MBeanRegistration) implementation).preDeregister();
+        }
+        super.preDeregister();
+    }
+
+    @Override
+    public void postDeregister() {
+        if (implementation instanceof MBeanRegistration) {
+            ((MBeanRegistration) implementation).postDeregister();
+        }
+        super.postDeregister();
+    }
+}
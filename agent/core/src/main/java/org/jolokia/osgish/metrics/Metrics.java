@@ -0,0 +1,204 @@
+package org.jolokia.osgish.metrics;
+
+import javax.management.MBeanRegistration;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Registry of all metrics of the osgish agent, exported as MBean. Components look
+ * up their timers and counters once and update them directly, so recording never
+ * goes through a map lookup on a hot path.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class Metrics implements MetricsMBean, MBeanRegistration {
+
+    private static final String METRICS_MBEAN_NAME = "osgish:type=Metrics";
+
+    // Prefix and suffixes of the cache counters
+    private static final String CACHE_PREFIX = "cache.";
+    private static final String HIT_SUFFIX = ".hit";
+    private static final String MISS_SUFFIX = ".miss";
+
+    private final ConcurrentMap<String,Histogram> timers = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String,Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String,StripedCounter> counters = new ConcurrentHashMap<String, StripedCounter>();
+
+    /**
+     * Get or create a timer. Times are recorded in nanoseconds and reported in microseconds.
+     *
+     * @param pName name of the timer
+     * @return the timer
+     */
+    public Histogram timer(String pName) {
+        return lookup(timers, pName, "us", 1000);
+    }
+
+    /**
+     * Get or create a histogram for other values
+     *
+     * @param pName name of the histogram
+     * @param pUnit unit of the recorded values
+     * @return the histogram
+     */
+    public Histogram histogram(String pName, String pUnit) {
+        return lookup(histograms, pName, pUnit, 1);
+    }
+
+    /**
+     * Get or create a counter
+     *
+     * @param pName name of the counter
+     * @return the counter
+     */
+    public StripedCounter counter(String pName) {
+        StripedCounter counter = counters.get(pName);
+        if (counter == null) {
+            StripedCounter created = new StripedCounter();
+            counter = counters.putIfAbsent(pName, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Get the hit counter of a cache
+     *
+     * @param pCache name of the cache
+     * @return counter for cache hits
+     */
+    public StripedCounter cacheHits(String pCache) {
+        return counter(CACHE_PREFIX + pCache + HIT_SUFFIX);
+    }
+
+    /**
+     * Get the miss counter of a cache
+     *
+     * @param pCache name of the cache
+     * @return counter for cache misses
+     */
+    public StripedCounter cacheMisses(String pCache) {
+        return counter(CACHE_PREFIX + pCache + MISS_SUFFIX);
+    }
+
+    // =================================================================================
+    // MBean interface
+
+    public Map getTimers() {
+        return summarize(timers);
+    }
+
+    public Map getHistograms() {
+        return summarize(histograms);
+    }
+
+    public Map getCounters() {
+        Map<String,Long> ret = new TreeMap<String, Long>();
+        for (Map.Entry<String,StripedCounter> entry : counters.entrySet()) {
+            ret.put(entry.getKey(),entry.getValue().sum());
+        }
+        return ret;
+    }
+
+    public Map getCacheHitRates() {
+        Map<String,Double> ret = new TreeMap<String, Double>();
+        for (Map.Entry<String,StripedCounter> entry : counters.entrySet()) {
+            String name = entry.getKey();
+            if (name.startsWith(CACHE_PREFIX) && name.endsWith(HIT_SUFFIX)) {
+                String cache = name.substring(CACHE_PREFIX.length(), name.length() - HIT_SUFFIX.length());
+                long hits = entry.getValue().sum();
+                long total = hits + cacheMisses(cache).sum();
+                ret.put(cache,total > 0 ? (double) hits / total : 0.0);
+            }
+        }
+        return ret;
+    }
+
+    public void reset() {
+        for (Histogram histogram : timers.values()) {
+            histogram.reset();
+        }
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        for (Map.Entry<String,StripedCounter> entry : counters.entrySet()) {
+            // Requests in flight are a state, not a count
+            if (!entry.getKey().startsWith(InstrumentedMBean.IN_FLIGHT_PREFIX)) {
+                entry.getValue().reset();
+            }
+        }
+    }
+
+    // =================================================================================
+    // MBeanRegistration
+
+    public ObjectName preRegister(MBeanServer pMBeanServer, ObjectName pObjectName)
+            throws MalformedObjectNameException {
+        // We are providing our own name
+        return new ObjectName(METRICS_MBEAN_NAME);
+    }
+
+    public void postRegister(Boolean pBoolean) {
+    }
+
+    public void preDeregister() {
+    }
+
+    public void postDeregister() {
+    }
+
+    // =================================================================================
+
+    private Histogram lookup(ConcurrentMap<String,Histogram> pMap, String pName, String pUnit, long pDivisor) {
+        Histogram histogram = pMap.get(pName);
+        if (histogram == null) {
+            Histogram created = new Histogram(pUnit, pDivisor);
+            histogram = pMap.putIfAbsent(pName, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    private Map<String,Object> summarize(Map<String,Histogram> pHistograms) {
+        Map<String,Object> ret = new TreeMap<String, Object>();
+        for (Map.Entry<String,Histogram> entry : pHistograms.entrySet()) {
+            ret.put(entry.getKey(),entry.getValue().toMap());
+        }
+        return ret;
+    }
+}
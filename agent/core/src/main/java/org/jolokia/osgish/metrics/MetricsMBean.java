@@ -0,0 +1,76 @@
+package org.jolokia.osgish.metrics;
+
+import java.util.Map;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * MBean exposing the metrics collected by the osgish agent about itself
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public interface MetricsMBean {
+
+    /**
+     * Latency of the operations and attribute reads on the osgish MBeans, of the upload
+     * servlet requests and of the framework listener callbacks. Each timer is described
+     * by its "count", "rate" (per second), "mean", "max" and the percentiles "p50",
+     * "p90", "p99" and "p999", all in microseconds.
+     *
+     * @return map of timer names to their summaries
+     */
+    Map getTimers();
+
+    /**
+     * Distributions of other values, like the size and throughput of uploads. The
+     * format is the same as for {@link #getTimers()}, with the "unit" of the values given.
+     *
+     * @return map of histogram names to their summaries
+     */
+    Map getHistograms();
+
+    /**
+     * Plain counters, e.g. bytes uploaded, cache hits and misses or requests
+     * currently in flight.
+     *
+     * @return map of counter names to values
+     */
+    Map getCounters();
+
+    /**
+     * Hit rate (between 0 and 1) of the internal caches, calculated from the
+     * <code>cache.&lt;name&gt;.hit</code> and <code>cache.&lt;name&gt;.miss</code> counters
+     *
+     * @return map of cache names to hit rates
+     */
+    Map getCacheHitRates();
+
+    /**
+     * Reset all metrics
+     */
+    void reset();
+}
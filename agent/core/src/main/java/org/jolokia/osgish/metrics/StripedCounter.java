@@ -0,0 +1,104 @@
+package org.jolokia.osgish.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Counter which is cheap to update from many threads concurrently. Updates go to
+ * one of several cells, selected by the id of the updating thread. The cells are
+ * padded so that they don't share a cache line. Reading sums up all cells, which
+ * is more expensive but rare. (This is what <code>LongAdder</code> does on Java 8.)
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class StripedCounter {
+
+    // Number of cells, a power of two
+    private static final int STRIPES = stripes();
+
+    // Number of longs per cell, so that each cell gets its own cache line (64 bytes)
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    /**
+     * Add a value
+     *
+     * @param pValue value to add, can be negative
+     */
+    public void add(long pValue) {
+        cells.addAndGet(cell(), pValue);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void decrement() {
+        add(-1);
+    }
+
+    /**
+     * Current value. Concurrent updates might or might not be included.
+     *
+     * @return sum of all cells
+     */
+    public long sum() {
+        long ret = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            ret += cells.get(i * PADDING);
+        }
+        return ret;
+    }
+
+    /**
+     * Reset to zero. Concurrent updates might get lost.
+     */
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0);
+        }
+    }
+
+    // =================================================================================
+
+    private int cell() {
+        // Spread the sequential thread ids (Fibonacci hashing)
+        long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return ((int) (h >>> 32) & (STRIPES - 1)) * PADDING;
+    }
+
+    private static int stripes() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int ret = 1;
+        while (ret < cpus * 2 && ret < 64) {
+            ret <<= 1;
+        }
+        return ret;
+    }
+}
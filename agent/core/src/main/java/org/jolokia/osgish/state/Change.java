@@ -0,0 +1,145 @@
+package org.jolokia.osgish.state;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+/**
+ * A single, immutable entry in the {@link ChangeJournal}.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public final class Change {
+
+    // Categories which can be affected by a change (bit mask)
+    public static final int BUNDLES = 1;
+    public static final int SERVICES = 2;
+    public static final int PACKAGES = 4;
+
+    private static final int[] CATEGORIES = { BUNDLES, SERVICES, PACKAGES };
+    private static final String[] CATEGORY_NAMES = { "bundles", "services", "packages" };
+
+    private final long sequence;
+    private final int categories;
+    private final String source;
+    private final String event;
+    private final long id;
+    private final long time;
+
+    /**
+     * Constructor
+     *
+     * @param pSequence sequence number of this change
+     * @param pCategories bit mask of categories affected
+     * @param pSource source of the event ("bundle" or "service")
+     * @param pEvent event type as string (e.g. "STARTED")
+     * @param pId bundle or service id this change is about
+     * @param pTime time of the change in epoch milliseconds
+     */
+    Change(long pSequence, int pCategories, String pSource, String pEvent, long pId, long pTime) {
+        sequence = pSequence;
+        categories = pCategories;
+        source = pSource;
+        event = pEvent;
+        id = pId;
+        time = pTime;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getCategories() {
+        return categories;
+    }
+
+    public boolean affects(int pCategory) {
+        return (categories & pCategory) != 0;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Convert this change into a map suitable for JSON serialization
+     *
+     * @return map representation
+     */
+    public Map<String, Object> toMap() {
+        Map<String,Object> ret = new HashMap<String, Object>();
+        ret.put("seq",sequence);
+        ret.put("type",source);
+        ret.put("event",event);
+        ret.put("id",id);
+        ret.put("time",time);
+        ret.put("categories",getCategoryNames(categories));
+        return ret;
+    }
+
+    /**
+     * Lookup the bit mask for a category given by name ("bundles", "services", "packages" or "all")
+     *
+     * @param pWhat category name
+     * @return the bitmask or 0 if the name is not known
+     */
+    public static int getCategory(String pWhat) {
+        if ("all".equals(pWhat)) {
+            return BUNDLES | SERVICES | PACKAGES;
+        }
+        for (int i = 0; i < CATEGORY_NAMES.length; i++) {
+            if (CATEGORY_NAMES[i].equals(pWhat)) {
+                return CATEGORIES[i];
+            }
+        }
+        return 0;
+    }
+
+    private static List<String> getCategoryNames(int pCategories) {
+        List<String> ret = new ArrayList<String>();
+        for (int i = 0; i < CATEGORIES.length; i++) {
+            if ((pCategories & CATEGORIES[i]) != 0) {
+                ret.add(CATEGORY_NAMES[i]);
+            }
+        }
+        return ret;
+    }
+}
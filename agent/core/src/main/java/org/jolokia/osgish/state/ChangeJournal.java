@@ -0,0 +1,233 @@
+package org.jolokia.osgish.state;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+/**
+ * Bounded journal of bundle and service changes. Each change gets a monotonic
+ * sequence number so that clients can ask for everything which happened after
+ * the last sequence number they have seen. The journal is a ring buffer which
+ * is written without locks: A writer reserves a sequence number and then publishes
+ * its entry into the slot for this number. If a client has fallen behind by more
+ * than the capacity of the journal, it gets a "resync" marker and has to fetch
+ * the full state again. Sequence numbers start anew with every journal, so each
+ * journal has an epoch (its creation time) which clients send along with their
+ * sequence number.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class ChangeJournal {
+
+    // Number of categories known (bundles, services, packages)
+    private static final int NR_CATEGORIES = 3;
+
+    // Ring buffer holding the changes
+    private final AtomicReferenceArray<Change> slots;
+    private final int mask;
+
+    // Last sequence number handed out
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    // Creation time (epoch millis), identifying the range of sequence numbers of this journal
+    private final long epoch;
+
+    // Sequence number and time (epoch millis) of the last change per category
+    private final AtomicLongArray lastSequences = new AtomicLongArray(NR_CATEGORIES);
+    private final AtomicLongArray lastTimes = new AtomicLongArray(NR_CATEGORIES);
+
+    /**
+     * Create a journal which can hold at least the given number of changes.
+     *
+     * @param pCapacity minimal capacity, rounded up to the next power of two
+     */
+    public ChangeJournal(int pCapacity) {
+        if (pCapacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive (given: " + pCapacity + ")");
+        }
+        int size = 1;
+        while (size < pCapacity) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<Change>(size);
+        mask = size - 1;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < NR_CATEGORIES; i++) {
+            lastTimes.set(i, now);
+        }
+        epoch = now;
+    }
+
+    /**
+     * Record a new change
+     *
+     * @param pCategories categories affected by this change (see {@link Change})
+     * @param pSource source of the change ("bundle" or "service")
+     * @param pEvent type of event
+     * @param pId id of the bundle or service
+     * @return the sequence number assigned to this change
+     */
+    public long record(int pCategories, String pSource, String pEvent, long pId) {
+        long seq = sequence.incrementAndGet();
+        long now = System.currentTimeMillis();
+        slots.set(index(seq), new Change(seq, pCategories, pSource, pEvent, pId, now));
+        for (int i = 0; i < NR_CATEGORIES; i++) {
+            if ((pCategories & (1 << i)) != 0) {
+                raise(lastSequences, i, seq);
+                raise(lastTimes, i, now);
+            }
+        }
+        return seq;
+    }
+
+    /**
+     * Get the last sequence number handed out
+     *
+     * @return current sequence number
+     */
+    public long getSequence() {
+        return sequence.get();
+    }
+
+    /**
+     * Get the epoch of this journal. Sequence numbers are only comparable within
+     * the same epoch.
+     *
+     * @return creation time of this journal in epoch milliseconds
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Get the sequence number of the last change which affected one of the given categories
+     *
+     * @param pCategories categories to check
+     * @return sequence number or 0 if no change has happened yet
+     */
+    public long getLastSequence(int pCategories) {
+        return max(lastSequences, pCategories);
+    }
+
+    /**
+     * Get the time of the last change (or of the creation of this journal)
+     * which affected one of the given categories.
+     *
+     * @param pCategories categories to check
+     * @return time in epoch milliseconds
+     */
+    public long getLastChangeTime(int pCategories) {
+        return max(lastTimes, pCategories);
+    }
+
+    /**
+     * Get all changes which happened after the given sequence number. The returned
+     * map contains the following keys:
+     * <ul>
+     *   <li><code>sequence</code> : sequence number up to which changes are included. This is
+     *       the value to use for the next call.</li>
+     *   <li><code>epoch</code> : epoch of this journal, to be used for the next call</li>
+     *   <li><code>resync</code> : true if the journal can not provide all changes since the given
+     *       sequence number, either because the client has fallen too far behind or because the
+     *       sequence number is from another journal (e.g. from before an agent restart), as
+     *       told by the epoch. The client must reload its full state in this case.</li>
+     *   <li><code>changes</code> : list of changes (possibly empty), ordered by sequence number</li>
+     * </ul>
+     *
+     * @param pSequence sequence number already seen by the client
+     * @param pEpoch epoch the sequence number belongs to
+     * @return map describing the changes
+     */
+    public Map<String, Object> changesSince(long pSequence, long pEpoch) {
+        long current = sequence.get();
+        List<Map<String,Object>> changes = new ArrayList<Map<String, Object>>();
+        boolean resync = pEpoch != epoch || pSequence < 0 || pSequence > current ||
+                         current - pSequence > slots.length();
+        long last = current;
+        if (!resync) {
+            for (long seq = pSequence + 1; seq <= current; seq++) {
+                Change change = slots.get(index(seq));
+                if (change == null || change.getSequence() < seq) {
+                    // Reserved, but not yet published. Stop here, the client
+                    // gets the rest on its next call.
+                    last = seq - 1;
+                    break;
+                }
+                if (change.getSequence() > seq) {
+                    // Already overwritten by a writer which wrapped around
+                    resync = true;
+                    break;
+                }
+                changes.add(change.toMap());
+            }
+        }
+        Map<String,Object> ret = new HashMap<String, Object>();
+        ret.put("sequence",last);
+        ret.put("epoch",epoch);
+        ret.put("resync",resync);
+        ret.put("changes",resync ? new ArrayList<Map<String, Object>>() : changes);
+        return ret;
+    }
+
+    /**
+     * Capacity of this journal
+     *
+     * @return maximum number of changes which can be hold
+     */
+    public int getCapacity() {
+        return slots.length();
+    }
+
+    // =================================================================================
+
+    private int index(long pSeq) {
+        return (int) (pSeq & mask);
+    }
+
+    // Monotonically raise a value. Concurrent writers might arrive out of order.
+    private void raise(AtomicLongArray pArray, int pIdx, long pValue) {
+        long old;
+        do {
+            old = pArray.get(pIdx);
+        } while (old < pValue && !pArray.compareAndSet(pIdx, old, pValue));
+    }
+
+    private long max(AtomicLongArray pArray, int pCategories) {
+        long ret = 0;
+        for (int i = 0; i < NR_CATEGORIES; i++) {
+            if ((pCategories & (1 << i)) != 0) {
+                ret = Math.max(ret, pArray.get(i));
+            }
+        }
+        return ret;
+    }
+}
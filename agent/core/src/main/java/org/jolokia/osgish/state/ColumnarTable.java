@@ -0,0 +1,293 @@
+package org.jolokia.osgish.state;
+
+import org.jolokia.osgish.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Columnar binary encoding of a table. Compared to a list of JSON objects, column
+ * names are written only once, all strings are interned in a string table and
+ * referenced by index, and numbers are written as variable length integers. Numeric
+ * columns are delta encoded, so that ascending ids take a single byte each.
+ *
+ * The layout (all integers are unsigned varints unless noted otherwise):
+ * <pre>
+ *   'O' 'C' version
+ *   columnCount  { name(string) type(byte) }*
+ *   rowCount
+ *   stringCount  { length utf8-bytes }*
+ *   for each column: rowCount values
+ *     LONG:        zigzag encoded delta to the previous value of this column
+ *     STRING:      string index + 1, 0 for null
+ *     LONG_LIST:   count { zigzag encoded value }*
+ *     STRING_LIST: count { string index + 1 }*
+ * </pre>
+ * For transport the whole table is gzipped and Base64 encoded.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class ColumnarTable {
+
+    /** Version of the encoding */
+    public static final int VERSION = 1;
+
+    /**
+     * Type of a column
+     */
+    public enum Type {
+        LONG, STRING, LONG_LIST, STRING_LIST
+    }
+
+    private final String[] names;
+    private final Type[] types;
+
+    // Encoded values per column
+    private final Buffer[] columns;
+
+    // Last value of the LONG columns for delta encoding
+    private final long[] last;
+
+    // Interned strings with their index
+    private final Map<String,Integer> strings = new LinkedHashMap<String, Integer>();
+
+    private int rows;
+
+    /**
+     * Constructor
+     *
+     * @param pNames column names
+     * @param pTypes column types
+     */
+    public ColumnarTable(String[] pNames, Type[] pTypes) {
+        if (pNames.length != pTypes.length) {
+            throw new IllegalArgumentException("Number of column names and types differ");
+        }
+        names = pNames;
+        types = pTypes;
+        columns = new Buffer[pNames.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new Buffer(64);
+        }
+        last = new long[pNames.length];
+    }
+
+    /**
+     * Add a row. The values must match the column types: a {@link Number} for LONG,
+     * a String for STRING, a collection or array of numbers for LONG_LIST and a collection
+     * or array of strings for STRING_LIST. Only strings and lists can be null.
+     *
+     * @param pValues one value per column
+     */
+    public void addRow(Object ... pValues) {
+        if (pValues.length != types.length) {
+            throw new IllegalArgumentException("Expected " + types.length + " values, got " + pValues.length);
+        }
+        for (int i = 0; i < types.length; i++) {
+            Buffer column = columns[i];
+            switch (types[i]) {
+                case LONG:
+                    long value = ((Number) pValues[i]).longValue();
+                    column.writeZigZag(value - last[i]);
+                    last[i] = value;
+                    break;
+                case STRING:
+                    column.writeVarLong(intern((String) pValues[i]));
+                    break;
+                case LONG_LIST:
+                    Collection<?> longs = toCollection(pValues[i]);
+                    column.writeVarLong(longs.size());
+                    for (Object l : longs) {
+                        column.writeZigZag(((Number) l).longValue());
+                    }
+                    break;
+                case STRING_LIST:
+                    Collection<?> strs = toCollection(pValues[i]);
+                    column.writeVarLong(strs.size());
+                    for (Object s : strs) {
+                        column.writeVarLong(intern((String) s));
+                    }
+                    break;
+            }
+        }
+        rows++;
+    }
+
+    /**
+     * Number of rows added so far
+     *
+     * @return number of rows
+     */
+    public int getRowCount() {
+        return rows;
+    }
+
+    /**
+     * Get the uncompressed binary encoding
+     *
+     * @return encoded table
+     */
+    public byte[] toByteArray() {
+        Buffer out = new Buffer(256);
+        out.write('O');
+        out.write('C');
+        out.write(VERSION);
+        out.writeVarLong(names.length);
+        for (int i = 0; i < names.length; i++) {
+            out.writeString(names[i]);
+            out.write(types[i].ordinal());
+        }
+        out.writeVarLong(rows);
+        out.writeVarLong(strings.size());
+        for (String s : strings.keySet()) {
+            out.writeString(s);
+        }
+        for (Buffer column : columns) {
+            out.write(column);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Get the gzipped and Base64 encoded table, ready for transport as JSON string
+     *
+     * @return encoded table
+     */
+    public String encode() {
+        byte[] data = toByteArray();
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 3 + 64);
+            GZIPOutputStream gzip = new GZIPOutputStream(bos);
+            gzip.write(data);
+            gzip.close();
+            return Base64.encode(bos.toByteArray());
+        } catch (IOException exp) {
+            // Cannot happen for an in-memory stream
+            throw new IllegalStateException("Cannot compress table: " + exp,exp);
+        }
+    }
+
+    // =================================================================================
+
+    // Index + 1 of the given string, 0 for null
+    private int intern(String pString) {
+        if (pString == null) {
+            return 0;
+        }
+        Integer idx = strings.get(pString);
+        if (idx == null) {
+            idx = strings.size() + 1;
+            strings.put(pString, idx);
+        }
+        return idx;
+    }
+
+    private Collection<?> toCollection(Object pValue) {
+        if (pValue == null) {
+            return Collections.emptyList();
+        } else if (pValue instanceof Collection) {
+            return (Collection<?>) pValue;
+        } else if (pValue instanceof Object[]) {
+            return Arrays.asList((Object[]) pValue);
+        } else if (pValue instanceof long[]) {
+            long[] values = (long[]) pValue;
+            List<Long> ret = new ArrayList<Long>(values.length);
+            for (long v : values) {
+                ret.add(v);
+            }
+            return ret;
+        }
+        throw new IllegalArgumentException("Cannot convert " + pValue.getClass() + " to a list");
+    }
+
+    // Growable byte buffer which avoids the synchronization of ByteArrayOutputStream
+    private static final class Buffer {
+
+        private byte[] data;
+        private int length;
+
+        private Buffer(int pCapacity) {
+            data = new byte[pCapacity];
+        }
+
+        private void write(int pByte) {
+            ensure(1);
+            data[length++] = (byte) pByte;
+        }
+
+        private void write(Buffer pOther) {
+            ensure(pOther.length);
+            System.arraycopy(pOther.data, 0, data, length, pOther.length);
+            length += pOther.length;
+        }
+
+        private void writeVarLong(long pValue) {
+            ensure(10);
+            long v = pValue;
+            while ((v & ~0x7FL) != 0) {
+                data[length++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            data[length++] = (byte) v;
+        }
+
+        private void writeZigZag(long pValue) {
+            writeVarLong((pValue << 1) ^ (pValue >> 63));
+        }
+
+        private void writeString(String pString) {
+            byte[] bytes;
+            try {
+                bytes = pString.getBytes("UTF-8");
+            } catch (java.io.UnsupportedEncodingException exp) {
+                throw new IllegalStateException("No UTF-8 support: " + exp,exp);
+            }
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, data, length, bytes.length);
+            length += bytes.length;
+        }
+
+        private void ensure(int pNeeded) {
+            if (length + pNeeded > data.length) {
+                byte[] grown = new byte[Math.max(data.length * 2, length + pNeeded)];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+            }
+        }
+
+        private byte[] toByteArray() {
+            byte[] ret = new byte[length];
+            System.arraycopy(data, 0, ret, 0, length);
+            return ret;
+        }
+    }
+}
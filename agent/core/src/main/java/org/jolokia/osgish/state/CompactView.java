@@ -0,0 +1,324 @@
+package org.jolokia.osgish.state;
+
+import org.jolokia.osgish.metrics.Metrics;
+import org.jolokia.osgish.metrics.StripedCounter;
+import org.json.simple.JSONValue;
+import org.osgi.framework.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+/**
+ * Compact, pre-serialized view on bundles and services. Each bundle and service is
+ * serialized once into a JSON fragment which is kept until the listeners invalidate
+ * it. The complete table is assembled from these fragments and cached as well, so
+ * that repeated reads by many clients return the very same string without touching
+ * the framework or serializing anything.
+ *
+ * Both tables are also available in the more compact columnar encoding of
+ * {@link ColumnarTable}, cached in the same way.
+ *
+ * The bundles using a service are not part of the service view: getting and ungetting
+ * a service doesn't fire any event, so they can't be cached reliably. Use the regular
+ * service listing for them.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class CompactView {
+
+    private final BundleContext bundleContext;
+
+    private final Table bundles = new Table();
+    private final Table services = new Table();
+
+    // Cache statistics
+    private final StripedCounter hits;
+    private final StripedCounter misses;
+
+    public CompactView(BundleContext pBundleContext, Metrics pMetrics) {
+        bundleContext = pBundleContext;
+        hits = pMetrics.cacheHits("compactView");
+        misses = pMetrics.cacheMisses("compactView");
+    }
+
+    // =================================================================================
+    // Invalidation, called from the listeners
+
+    public void bundleChanged(BundleEvent pEvent) {
+        bundles.invalidate(pEvent.getBundle().getBundleId());
+    }
+
+    public void invalidateAll() {
+        bundles.invalidateAll();
+        services.invalidateAll();
+    }
+
+    public void serviceChanged(ServiceEvent pEvent) {
+        Long id = (Long) pEvent.getServiceReference().getProperty(Constants.SERVICE_ID);
+        if (id != null) {
+            services.invalidate(id);
+        }
+    }
+
+    // =================================================================================
+
+    /**
+     * Get all bundles as JSON object, keyed by bundle id. Each bundle is described by its
+     * "id", "symbolicName", "version", "state" and "location".
+     *
+     * @return serialized bundle table
+     */
+    public String getBundles() {
+        String table = bundles.getCached();
+        if (table != null) {
+            hits.increment();
+            return table;
+        }
+        misses.increment();
+        long generation = bundles.getGeneration();
+        Set<Long> ids = new HashSet<Long>();
+        StringBuilder buf = new StringBuilder("{");
+        for (Bundle bundle : bundleContext.getBundles()) {
+            long id = bundle.getBundleId();
+            String fragment = bundles.getFragment(id);
+            if (fragment == null) {
+                fragment = serializeBundle(bundle);
+                bundles.putFragment(generation, id, fragment);
+            }
+            append(buf, id, fragment);
+            ids.add(id);
+        }
+        buf.append("}");
+        bundles.retainOnly(ids);
+        return bundles.cache(generation, buf.toString());
+    }
+
+    /**
+     * Get all services as JSON object, keyed by service id. Each service is described by
+     * its "id", "bundle" and the "objectClass"es.
+     *
+     * @return serialized service table
+     */
+    public String getServices() {
+        String table = services.getCached();
+        if (table != null) {
+            hits.increment();
+            return table;
+        }
+        misses.increment();
+        long generation = services.getGeneration();
+        Set<Long> ids = new HashSet<Long>();
+        StringBuilder buf = new StringBuilder("{");
+        for (ServiceReference ref : getAllServiceReferences()) {
+            Long id = (Long) ref.getProperty(Constants.SERVICE_ID);
+            String fragment = services.getFragment(id);
+            if (fragment == null) {
+                fragment = serializeService(id, ref);
+                if (fragment == null) {
+                    continue;
+                }
+                services.putFragment(generation, id, fragment);
+            }
+            append(buf, id, fragment);
+            ids.add(id);
+        }
+        buf.append("}");
+        services.retainOnly(ids);
+        return services.cache(generation, buf.toString());
+    }
+
+    /**
+     * Get all bundles in the columnar encoding of {@link ColumnarTable} with the columns
+     * "id", "symbolicName", "version", "state" and "location", gzipped and Base64 encoded.
+     *
+     * @return encoded bundle table
+     */
+    public String getColumnarBundles() {
+        String encoded = bundles.getEncoded();
+        if (encoded != null) {
+            hits.increment();
+            return encoded;
+        }
+        misses.increment();
+        long generation = bundles.getGeneration();
+        ColumnarTable table = new ColumnarTable(
+                new String[] { "id", "symbolicName", "version", "state", "location" },
+                new ColumnarTable.Type[] { ColumnarTable.Type.LONG, ColumnarTable.Type.STRING, ColumnarTable.Type.STRING,
+                                           ColumnarTable.Type.LONG, ColumnarTable.Type.STRING });
+        for (Bundle bundle : bundleContext.getBundles()) {
+            table.addRow(bundle.getBundleId(), bundle.getSymbolicName(), bundle.getVersion().toString(),
+                         bundle.getState(), bundle.getLocation());
+        }
+        return bundles.cacheEncoded(generation, table.encode());
+    }
+
+    /**
+     * Get all services in the columnar encoding of {@link ColumnarTable} with the columns
+     * "id", "bundle" and "objectClass", gzipped and Base64 encoded.
+     *
+     * @return encoded service table
+     */
+    public String getColumnarServices() {
+        String encoded = services.getEncoded();
+        if (encoded != null) {
+            hits.increment();
+            return encoded;
+        }
+        misses.increment();
+        long generation = services.getGeneration();
+        ColumnarTable table = new ColumnarTable(
+                new String[] { "id", "bundle", "objectClass" },
+                new ColumnarTable.Type[] { ColumnarTable.Type.LONG, ColumnarTable.Type.LONG,
+                                           ColumnarTable.Type.STRING_LIST });
+        for (ServiceReference ref : getAllServiceReferences()) {
+            Bundle owner = ref.getBundle();
+            if (owner == null) {
+                // Already unregistered
+                continue;
+            }
+            table.addRow(ref.getProperty(Constants.SERVICE_ID), owner.getBundleId(),
+                         ref.getProperty(Constants.OBJECTCLASS));
+        }
+        return services.cacheEncoded(generation, table.encode());
+    }
+
+    // =================================================================================
+
+    private String serializeBundle(Bundle pBundle) {
+        Map<String,Object> entry = new LinkedHashMap<String, Object>();
+        entry.put("id",pBundle.getBundleId());
+        entry.put("symbolicName",pBundle.getSymbolicName());
+        entry.put("version",pBundle.getVersion().toString());
+        entry.put("state",pBundle.getState());
+        entry.put("location",pBundle.getLocation());
+        return JSONValue.toJSONString(entry);
+    }
+
+    private String serializeService(Long pId, ServiceReference pRef) {
+        Bundle owner = pRef.getBundle();
+        if (owner == null) {
+            // Already unregistered
+            return null;
+        }
+        Map<String,Object> entry = new LinkedHashMap<String, Object>();
+        entry.put("id",pId);
+        entry.put("bundle",owner.getBundleId());
+        entry.put("objectClass",Arrays.asList((String[]) pRef.getProperty(Constants.OBJECTCLASS)));
+        return JSONValue.toJSONString(entry);
+    }
+
+    private void append(StringBuilder pBuf, long pId, String pFragment) {
+        if (pBuf.length() > 1) {
+            pBuf.append(',');
+        }
+        pBuf.append('"').append(pId).append("\":").append(pFragment);
+    }
+
+    private ServiceReference[] getAllServiceReferences() {
+        try {
+            ServiceReference[] refs = bundleContext.getAllServiceReferences(null, null);
+            return refs != null ? refs : new ServiceReference[0];
+        } catch (InvalidSyntaxException e) {
+            // Cannot happen for a null filter
+            throw new IllegalStateException("Cannot lookup services: " + e,e);
+        }
+    }
+
+    // Serialized fragments per entry and the assembled table. The table is only
+    // valid as long as no invalidation has happened since it was built.
+    private static final class Table {
+
+        private final ConcurrentMap<Long,String> fragments = new ConcurrentHashMap<Long, String>();
+        private final AtomicLong generation = new AtomicLong();
+        private volatile Cached cached;
+        private volatile Cached encoded;
+
+        private String getFragment(long pId) {
+            return fragments.get(pId);
+        }
+
+        // Remember a fragment built while the given generation was valid. If an
+        // invalidation happened in the meantime, the fragment might be stale already.
+        private void putFragment(long pGeneration, long pId, String pFragment) {
+            fragments.put(pId, pFragment);
+            if (generation.get() != pGeneration) {
+                fragments.remove(pId, pFragment);
+            }
+        }
+
+        private void invalidate(long pId) {
+            fragments.remove(pId);
+            generation.incrementAndGet();
+        }
+
+        private void invalidateAll() {
+            fragments.clear();
+            generation.incrementAndGet();
+        }
+
+        private void retainOnly(Set<Long> pIds) {
+            fragments.keySet().retainAll(pIds);
+        }
+
+        private long getGeneration() {
+            return generation.get();
+        }
+
+        private String getCached() {
+            Cached current = cached;
+            return current != null && current.generation == generation.get() ? current.table : null;
+        }
+
+        private String cache(long pGeneration, String pTable) {
+            cached = new Cached(pGeneration, pTable);
+            return pTable;
+        }
+
+        private String getEncoded() {
+            Cached current = encoded;
+            return current != null && current.generation == generation.get() ? current.table : null;
+        }
+
+        private String cacheEncoded(long pGeneration, String pTable) {
+            encoded = new Cached(pGeneration, pTable);
+            return pTable;
+        }
+    }
+
+    private static final class Cached {
+        private final long generation;
+        private final String table;
+
+        private Cached(long pGeneration, String pTable) {
+            generation = pGeneration;
+            table = pTable;
+        }
+    }
+}
@@ -0,0 +1,657 @@
+package org.jolokia.osgish.state;
+
+import org.jolokia.osgish.util.HeaderParser;
+import org.osgi.framework.*;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+import org.osgi.service.packageadmin.RequiredBundle;
+
+import java.util.*;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Graph of the dependencies between bundles as wired by the framework: a bundle
+ * depends on the bundles whose packages it imports and on the bundles it requires.
+ * Fragments and their hosts are attached to each other. Each bundle gets a slot
+ * and the edges are kept as arrays of slots, so that traversals don't box
+ * anything and stay fast with thousands of bundles.
+ *
+ * Like the {@link PackageIndex}, the graph is built once and afterwards only updated
+ * for bundles whose resolution state changed: their edges in both directions are
+ * reread from the {@link PackageAdmin}. The {@link WiringTracker} applies the updates
+ * lazily before the next query, so that the listener stays cheap.
+ *
+ * The graph also provides the order for lifecycle operations on a set of bundles
+ * (see {@link #getDependencies(Collection)}).
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class DependencyGraph {
+
+    // Bundles whose wiring changed since the last query
+    private final WiringTracker tracker;
+
+    // Bundle id -> slot
+    private final LongIntMap slots = new LongIntMap();
+
+    // Per slot: bundle id, the bundles it depends on, the bundles depending on it and attached
+    // fragments or hosts. Free slots have null edges.
+    private long[] ids = new long[0];
+    private IntList[] dependencies = new IntList[0];
+    private IntList[] dependents = new IntList[0];
+    private IntList[] attached = new IntList[0];
+    private final IntList freeSlots = new IntList();
+
+    // Applies the changes tracked
+    private final WiringTracker.Handler handler = new WiringTracker.Handler() {
+        public void clear() {
+            DependencyGraph.this.clear();
+        }
+
+        public void rebuild(PackageAdmin pPackageAdmin) {
+            DependencyGraph.this.rebuild(pPackageAdmin);
+        }
+
+        public void update(PackageAdmin pPackageAdmin, long pBundleId) {
+            updateBundle(pPackageAdmin, pBundleId);
+        }
+    };
+
+    public DependencyGraph(BundleContext pBundleContext) {
+        tracker = new WiringTracker(pBundleContext);
+    }
+
+    public void open() {
+        tracker.open();
+    }
+
+    public void close() {
+        tracker.close();
+    }
+
+    /**
+     * Mark a bundle for updating if its resolution state changed
+     *
+     * @param pEvent bundle event
+     */
+    public void bundleChanged(BundleEvent pEvent) {
+        tracker.bundleChanged(pEvent);
+    }
+
+    /**
+     * Mark all bundles for updating, e.g. when events have been lost
+     */
+    public void invalidateAll() {
+        tracker.invalidateAll();
+    }
+
+    /**
+     * Analyze the dependencies of a set of bundles, e.g. before updating them
+     *
+     * @param pIds bundle ids to analyze. If empty, only the cycles of the whole graph are returned.
+     * @return map with the "dependents" (all bundles depending transitively on the given
+     *         ones), the "dependencies" (all bundles the given ones depend on transitively),
+     *         the "impact" of a refresh (the given bundles, their dependents and attached
+     *         fragments or hosts, transitively) and the "cycles" among the impacted bundles
+     *         (or among all bundles if no ids are given), each as sorted list of bundle ids.
+     *         "bundles" and "edges" give the size of the graph.
+     * @throws IllegalArgumentException if an id is unknown
+     */
+    public synchronized Map<String,Object> analyze(long[] pIds) {
+        tracker.update(handler);
+        long[] given = pIds != null ? pIds : new long[0];
+        int[] start = new int[given.length];
+        for (int i = 0; i < given.length; i++) {
+            start[i] = slots.get(given[i]);
+            if (start[i] < 0) {
+                throw new IllegalArgumentException("No bundle with id " + given[i]);
+            }
+        }
+        Map<String,Object> ret = new HashMap<String, Object>();
+        ret.put("dependents",toIds(closure(start, dependents, null, false)));
+        ret.put("dependencies",toIds(closure(start, dependencies, null, false)));
+        boolean[] impact = closure(start, dependents, attached, true);
+        ret.put("impact",toIds(impact));
+        ret.put("cycles",findCycles(given.length > 0 ? impact : null));
+        ret.put("bundles",slots.size());
+        ret.put("edges",countEdges());
+        return ret;
+    }
+
+    /**
+     * Get the dependencies among a set of bundles, e.g. for ordering lifecycle operations
+     * on them. The edges of the given bundles are reread first, so that they are up to date
+     * even if the latest bundle events have not been processed yet. For bundles which are not
+     * resolved, the declared Import-Package and Require-Bundle headers are matched against
+     * the Export-Package headers and symbolic names within the set. Only dependencies between
+     * members of the set are returned.
+     *
+     * @param pBundles bundles to look at
+     * @return map from the id of each bundle to the ids of the bundles it depends on
+     */
+    public synchronized Map<Long,Set<Long>> getDependencies(Collection<Bundle> pBundles) {
+        for (Bundle bundle : pBundles) {
+            tracker.markDirty(bundle.getBundleId());
+        }
+        tracker.update(handler);
+        Map<Long,Set<Long>> ret = new HashMap<Long, Set<Long>>();
+        for (Bundle bundle : pBundles) {
+            ret.put(bundle.getBundleId(), new HashSet<Long>());
+        }
+        for (Bundle bundle : pBundles) {
+            int slot = slots.get(bundle.getBundleId());
+            if (slot >= 0) {
+                Set<Long> deps = ret.get(bundle.getBundleId());
+                for (int i = 0; i < dependencies[slot].size(); i++) {
+                    long dep = ids[dependencies[slot].get(i)];
+                    if (ret.containsKey(dep)) {
+                        deps.add(dep);
+                    }
+                }
+            }
+        }
+        addDeclared(pBundles, ret);
+        return ret;
+    }
+
+    // =================================================================================
+
+    private void rebuild(PackageAdmin pPackageAdmin) {
+        clear();
+        Bundle[] bundles = tracker.getBundles();
+        for (Bundle bundle : bundles) {
+            slotFor(bundle.getBundleId());
+        }
+        ExportedPackage[] exported = pPackageAdmin.getExportedPackages((Bundle) null);
+        if (exported != null) {
+            for (ExportedPackage pkg : exported) {
+                Bundle exporter = pkg.getExportingBundle();
+                if (exporter != null) {
+                    addDependents(pkg.getImportingBundles(), slotFor(exporter.getBundleId()));
+                }
+            }
+        }
+        RequiredBundle[] required = pPackageAdmin.getRequiredBundles(null);
+        if (required != null) {
+            for (RequiredBundle req : required) {
+                Bundle bundle = req.getBundle();
+                if (bundle != null) {
+                    addDependents(req.getRequiringBundles(), slotFor(bundle.getBundleId()));
+                }
+            }
+        }
+        for (Bundle bundle : bundles) {
+            attach(slotFor(bundle.getBundleId()), pPackageAdmin.getHosts(bundle));
+        }
+    }
+
+    // Reread all edges of a single bundle
+    private void updateBundle(PackageAdmin pPackageAdmin, long pId) {
+        int slot = slots.get(pId);
+        if (slot >= 0) {
+            removeEdges(slot);
+        }
+        Bundle bundle = tracker.getBundle(pId);
+        if (bundle == null) {
+            if (slot >= 0) {
+                freeSlot(slot);
+            }
+            return;
+        }
+        slot = slotFor(pId);
+
+        // What the bundle depends on
+        for (ExportedPackage pkg : WiringTracker.getImportedPackages(pPackageAdmin, bundle)) {
+            addEdge(slot, slotFor(pkg.getExportingBundle().getBundleId()));
+        }
+        for (Bundle exporter : WiringTracker.getRequiredBundles(pPackageAdmin, bundle)) {
+            addEdge(slot, slotFor(exporter.getBundleId()));
+        }
+
+        // Who depends on the bundle
+        ExportedPackage[] exported = pPackageAdmin.getExportedPackages(bundle);
+        if (exported != null) {
+            for (ExportedPackage pkg : exported) {
+                addDependents(pkg.getImportingBundles(), slot);
+            }
+        }
+        for (Bundle dependent : WiringTracker.getRequiringBundles(pPackageAdmin, bundle)) {
+            addEdge(slotFor(dependent.getBundleId()), slot);
+        }
+
+        attach(slot, pPackageAdmin.getHosts(bundle));
+        attach(slot, pPackageAdmin.getFragments(bundle));
+    }
+
+    private void addDependents(Bundle[] pDependents, int pDependency) {
+        if (pDependents != null) {
+            for (Bundle dependent : pDependents) {
+                addEdge(slotFor(dependent.getBundleId()), pDependency);
+            }
+        }
+    }
+
+    private void addEdge(int pFrom, int pTo) {
+        if (pFrom != pTo && !dependencies[pFrom].contains(pTo)) {
+            dependencies[pFrom].add(pTo);
+            dependents[pTo].add(pFrom);
+        }
+    }
+
+    private void attach(int pSlot, Bundle[] pBundles) {
+        if (pBundles != null) {
+            for (Bundle bundle : pBundles) {
+                int other = slotFor(bundle.getBundleId());
+                if (other != pSlot && !attached[pSlot].contains(other)) {
+                    attached[pSlot].add(other);
+                    attached[other].add(pSlot);
+                }
+            }
+        }
+    }
+
+    // Remove all edges of a slot in both directions
+    private void removeEdges(int pSlot) {
+        for (int i = 0; i < dependencies[pSlot].size(); i++) {
+            dependents[dependencies[pSlot].get(i)].remove(pSlot);
+        }
+        for (int i = 0; i < dependents[pSlot].size(); i++) {
+            dependencies[dependents[pSlot].get(i)].remove(pSlot);
+        }
+        for (int i = 0; i < attached[pSlot].size(); i++) {
+            attached[attached[pSlot].get(i)].remove(pSlot);
+        }
+        dependencies[pSlot].clear();
+        dependents[pSlot].clear();
+        attached[pSlot].clear();
+    }
+
+    private int slotFor(long pId) {
+        int slot = slots.get(pId);
+        if (slot >= 0) {
+            return slot;
+        }
+        if (freeSlots.size() > 0) {
+            slot = freeSlots.removeLast();
+        } else {
+            slot = ids.length;
+            int capacity = Math.max(16, slot * 2);
+            long[] grownIds = new long[capacity];
+            System.arraycopy(ids, 0, grownIds, 0, slot);
+            ids = grownIds;
+            dependencies = grow(dependencies, capacity);
+            dependents = grow(dependents, capacity);
+            attached = grow(attached, capacity);
+            for (int i = capacity - 1; i > slot; i--) {
+                freeSlots.add(i);
+            }
+        }
+        ids[slot] = pId;
+        dependencies[slot] = new IntList();
+        dependents[slot] = new IntList();
+        attached[slot] = new IntList();
+        slots.put(pId, slot);
+        return slot;
+    }
+
+    private static IntList[] grow(IntList[] pLists, int pCapacity) {
+        IntList[] ret = new IntList[pCapacity];
+        System.arraycopy(pLists, 0, ret, 0, pLists.length);
+        return ret;
+    }
+
+    private void freeSlot(int pSlot) {
+        slots.remove(ids[pSlot]);
+        dependencies[pSlot] = null;
+        dependents[pSlot] = null;
+        attached[pSlot] = null;
+        freeSlots.add(pSlot);
+    }
+
+    private void clear() {
+        slots.clear();
+        ids = new long[0];
+        dependencies = new IntList[0];
+        dependents = new IntList[0];
+        attached = new IntList[0];
+        freeSlots.clear();
+    }
+
+    // Breadth first search along the given edges (and optionally a second kind of edges)
+    private boolean[] closure(int[] pStart, IntList[] pEdges, IntList[] pMoreEdges, boolean pIncludeStart) {
+        boolean[] seen = new boolean[ids.length];
+        int[] queue = new int[ids.length];
+        int head = 0, tail = 0;
+        for (int slot : pStart) {
+            if (!seen[slot]) {
+                seen[slot] = true;
+                queue[tail++] = slot;
+            }
+        }
+        while (head < tail) {
+            int slot = queue[head++];
+            tail = enqueue(pEdges[slot], seen, queue, tail);
+            if (pMoreEdges != null) {
+                tail = enqueue(pMoreEdges[slot], seen, queue, tail);
+            }
+        }
+        if (!pIncludeStart) {
+            for (int slot : pStart) {
+                seen[slot] = false;
+            }
+        }
+        return seen;
+    }
+
+    private int enqueue(IntList pEdges, boolean[] pSeen, int[] pQueue, int pTail) {
+        int tail = pTail;
+        for (int i = 0; i < pEdges.size(); i++) {
+            int next = pEdges.get(i);
+            if (!pSeen[next]) {
+                pSeen[next] = true;
+                pQueue[tail++] = next;
+            }
+        }
+        return tail;
+    }
+
+    // Strongly connected components with more than one bundle (Tarjan's algorithm without
+    // recursion, so that long dependency chains can't overflow the stack). Only components
+    // containing a bundle of the given set are returned, all if no set is given.
+    private List<List<Long>> findCycles(boolean[] pRelevant) {
+        int n = ids.length;
+        int[] index = new int[n];
+        int[] low = new int[n];
+        int[] edgePos = new int[n];
+        boolean[] onStack = new boolean[n];
+        int[] stack = new int[n];
+        int[] callStack = new int[n];
+        int sp = 0;
+        int counter = 0;
+        Arrays.fill(index, -1);
+        List<List<Long>> ret = new ArrayList<List<Long>>();
+        for (int root = 0; root < n; root++) {
+            if (dependencies[root] == null || index[root] >= 0) {
+                continue;
+            }
+            int csp = 0;
+            callStack[csp++] = root;
+            index[root] = low[root] = counter++;
+            edgePos[root] = 0;
+            stack[sp++] = root;
+            onStack[root] = true;
+            while (csp > 0) {
+                int v = callStack[csp - 1];
+                IntList edges = dependencies[v];
+                if (edgePos[v] < edges.size()) {
+                    int w = edges.get(edgePos[v]++);
+                    if (index[w] < 0) {
+                        index[w] = low[w] = counter++;
+                        edgePos[w] = 0;
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                        callStack[csp++] = w;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+                csp--;
+                if (csp > 0) {
+                    int parent = callStack[csp - 1];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+                if (low[v] == index[v]) {
+                    List<Long> component = new ArrayList<Long>();
+                    boolean relevant = pRelevant == null;
+                    int w;
+                    do {
+                        w = stack[--sp];
+                        onStack[w] = false;
+                        component.add(ids[w]);
+                        relevant |= pRelevant != null && pRelevant[w];
+                    } while (w != v);
+                    if (component.size() > 1 && relevant) {
+                        Collections.sort(component);
+                        ret.add(component);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    private List<Long> toIds(boolean[] pSlots) {
+        List<Long> ret = new ArrayList<Long>();
+        for (int slot = 0; slot < pSlots.length; slot++) {
+            if (pSlots[slot]) {
+                ret.add(ids[slot]);
+            }
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private int countEdges() {
+        int ret = 0;
+        for (IntList deps : dependencies) {
+            if (deps != null) {
+                ret += deps.size();
+            }
+        }
+        return ret;
+    }
+
+    // Match the declared imports of bundles which are not resolved yet against the exports
+    // and symbolic names within the set
+    private void addDeclared(Collection<Bundle> pBundles, Map<Long,Set<Long>> pDependencies) {
+        Map<String,Set<Long>> exporters = new HashMap<String, Set<Long>>();
+        Map<String,Set<Long>> symbolicNames = new HashMap<String, Set<Long>>();
+        for (Bundle bundle : pBundles) {
+            Dictionary headers = bundle.getHeaders("");
+            for (String pkg : HeaderParser.getNames((String) headers.get(Constants.EXPORT_PACKAGE))) {
+                addId(exporters, pkg, bundle.getBundleId());
+            }
+            if (bundle.getSymbolicName() != null) {
+                addId(symbolicNames, bundle.getSymbolicName(), bundle.getBundleId());
+            }
+        }
+        for (Bundle bundle : pBundles) {
+            if ((bundle.getState() & (Bundle.INSTALLED | Bundle.UNINSTALLED)) == 0) {
+                // Resolved, the wiring is known already
+                continue;
+            }
+            Dictionary headers = bundle.getHeaders("");
+            Set<Long> deps = pDependencies.get(bundle.getBundleId());
+            for (String pkg : HeaderParser.getNames((String) headers.get(Constants.IMPORT_PACKAGE))) {
+                addAll(deps, exporters.get(pkg), bundle.getBundleId());
+            }
+            for (String name : HeaderParser.getNames((String) headers.get(Constants.REQUIRE_BUNDLE))) {
+                addAll(deps, symbolicNames.get(name), bundle.getBundleId());
+            }
+        }
+    }
+
+    private void addId(Map<String,Set<Long>> pMap, String pKey, long pId) {
+        Set<Long> ids = pMap.get(pKey);
+        if (ids == null) {
+            ids = new HashSet<Long>();
+            pMap.put(pKey, ids);
+        }
+        ids.add(pId);
+    }
+
+    private void addAll(Set<Long> pDependencies, Set<Long> pIds, long pSelf) {
+        if (pIds != null) {
+            for (Long id : pIds) {
+                if (id != pSelf) {
+                    pDependencies.add(id);
+                }
+            }
+        }
+    }
+
+    // Growable list of ints. Removal doesn't keep the order.
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        private void add(int pValue) {
+            if (size == values.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+            values[size++] = pValue;
+        }
+
+        private int get(int pIndex) {
+            return values[pIndex];
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private boolean contains(int pValue) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == pValue) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void remove(int pValue) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == pValue) {
+                    values[i] = values[--size];
+                    return;
+                }
+            }
+        }
+
+        private int removeLast() {
+            return values[--size];
+        }
+
+        private void clear() {
+            size = 0;
+        }
+    }
+
+    // Open addressing hash map from long keys to non negative int values
+    private static final class LongIntMap {
+        private long[] keys = new long[64];
+        private int[] values = newValues(64);
+        private int size;
+
+        private int get(long pKey) {
+            int mask = keys.length - 1;
+            for (int i = hash(pKey, mask); values[i] >= 0; i = (i + 1) & mask) {
+                if (keys[i] == pKey) {
+                    return values[i];
+                }
+            }
+            return -1;
+        }
+
+        private void put(long pKey, int pValue) {
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            int i = hash(pKey, mask);
+            while (values[i] >= 0) {
+                if (keys[i] == pKey) {
+                    values[i] = pValue;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = pKey;
+            values[i] = pValue;
+            size++;
+        }
+
+        private void remove(long pKey) {
+            int mask = keys.length - 1;
+            for (int i = hash(pKey, mask); values[i] >= 0; i = (i + 1) & mask) {
+                if (keys[i] == pKey) {
+                    // Shift back following entries which would not be found anymore otherwise
+                    int gap = i;
+                    for (int j = (gap + 1) & mask; values[j] >= 0; j = (j + 1) & mask) {
+                        int home = hash(keys[j], mask);
+                        if (gap <= j ? (home <= gap || home > j) : (home <= gap && home > j)) {
+                            keys[gap] = keys[j];
+                            values[gap] = values[j];
+                            gap = j;
+                        }
+                    }
+                    values[gap] = -1;
+                    size--;
+                    return;
+                }
+            }
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private void clear() {
+            keys = new long[64];
+            values = newValues(64);
+            size = 0;
+        }
+
+        private void resize(int pCapacity) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[pCapacity];
+            values = newValues(pCapacity);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] >= 0) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int hash(long pKey, int pMask) {
+            long h = pKey * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32) & pMask;
+        }
+
+        private static int[] newValues(int pCapacity) {
+            int[] ret = new int[pCapacity];
+            Arrays.fill(ret, -1);
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package org.jolokia.osgish.state;
+
+import org.jolokia.osgish.metrics.Histogram;
+import org.jolokia.osgish.metrics.Metrics;
+import org.jolokia.osgish.util.DrainQueue;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Moves the processing of framework events off the framework's event delivery
+ * threads. Listeners only {@link #offer(EventObject)} the event into a bounded,
+ * lock-free {@link DrainQueue}. A single consumer thread drains everything queued so far and
+ * hands it over to the {@link Handler} as one batch, so that a burst of events
+ * (e.g. hundreds of service registrations during a refresh) is processed in one go.
+ *
+ * If the queue is full, the event is dropped instead of blocking the framework.
+ * The handler is then asked to {@link Handler#resync()} its complete state.
+ *
+ * Readers which must see the effect of all events delivered so far can call
+ * {@link #awaitProcessed(long)} before reading.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class EventProcessor {
+
+    /**
+     * Receiver of the events
+     */
+    public interface Handler {
+
+        /**
+         * Process a batch of events, in the order they were delivered
+         *
+         * @param pEvents events to process
+         */
+        void process(List<EventObject> pEvents);
+
+        /**
+         * Events were lost, so everything derived from them has to be rebuilt
+         */
+        void resync();
+    }
+
+    // Maximum number of events processed in one batch
+    private static final int MAX_BATCH = 1024;
+
+    private final Handler handler;
+    private final int capacity;
+
+    private final DrainQueue<Entry> queue;
+
+    // Events offered (including dropped ones) and events processed (including resynced ones)
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+
+    // Events dropped since the last resync and in total
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong droppedTotal = new AtomicLong();
+
+    private final AtomicLong batches = new AtomicLong();
+
+    // For readers waiting until everything has been processed
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition processedCondition = lock.newCondition();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final Histogram batchSizes;
+    private final Histogram lagTimer;
+    private final Histogram processTimer;
+
+    // Entries taken out of the queue and their events, only used by the consumer thread
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final List<EventObject> batch = new ArrayList<EventObject>();
+
+    // Set when processing or a resync failed, so that the next round resyncs
+    private boolean resyncPending;
+
+    // Processes the queued events from the consumer thread
+    private final DrainQueue.Handler consumer = new DrainQueue.Handler() {
+        public boolean process() {
+            return consume();
+        }
+
+        public boolean hasPending() {
+            return dropped.get() > 0;
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param pHandler handler for the events
+     * @param pCapacity maximum number of queued events
+     * @param pThreadName name of the consumer thread
+     * @param pMetrics where to record batch sizes, lag and processing time
+     */
+    public EventProcessor(Handler pHandler, int pCapacity, String pThreadName, Metrics pMetrics) {
+        handler = pHandler;
+        capacity = pCapacity;
+        queue = new DrainQueue<Entry>(pThreadName, MAX_BATCH);
+        batchSizes = pMetrics.histogram("events.batchSize","events");
+        lagTimer = pMetrics.timer("events.lag");
+        processTimer = pMetrics.timer("events.process");
+    }
+
+    /**
+     * Start the consumer thread
+     */
+    public synchronized void start() {
+        queue.start(consumer);
+    }
+
+    /**
+     * Stop the consumer thread. Events still queued are discarded.
+     */
+    public synchronized void stop() {
+        queue.stop();
+        queue.clear();
+        processed.set(offered.get());
+    }
+
+    /**
+     * Queue an event. Never blocks.
+     *
+     * @param pEvent event to queue
+     * @return false if the queue was full and the event has been dropped
+     */
+    public boolean offer(EventObject pEvent) {
+        offered.incrementAndGet();
+        if (queue.offer(new Entry(pEvent), capacity)) {
+            return true;
+        }
+        dropped.incrementAndGet();
+        droppedTotal.incrementAndGet();
+        // The consumer has to resync
+        queue.wakeUp();
+        return false;
+    }
+
+    /**
+     * Wait until all events offered before this call have been processed
+     *
+     * @param pTimeout how long to wait at most (in milliseconds)
+     * @return true if everything has been processed, false on timeout
+     */
+    public boolean awaitProcessed(long pTimeout) {
+        long target = offered.get();
+        if (processed.get() >= target || !queue.isRunning()) {
+            return true;
+        }
+        long nanos = TimeUnit.MILLISECONDS.toNanos(pTimeout);
+        lock.lock();
+        waiting.incrementAndGet();
+        try {
+            while (processed.get() < target && nanos > 0 && queue.isRunning()) {
+                nanos = processedCondition.awaitNanos(nanos);
+            }
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiting.decrementAndGet();
+            lock.unlock();
+        }
+        return processed.get() >= target;
+    }
+
+    /**
+     * Number of queued events
+     *
+     * @return queue depth
+     */
+    public int getDepth() {
+        return queue.size();
+    }
+
+    /**
+     * How long the oldest queued event has been waiting
+     *
+     * @return lag in milliseconds, 0 if the queue is empty
+     */
+    public long getLag() {
+        Entry head = queue.peek();
+        return head != null ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - head.time) : 0;
+    }
+
+    /**
+     * Statistics suitable for JSON serialization with the queue "depth", the "lag" of
+     * the oldest queued event in ms, the "capacity", the number of events "processed"
+     * and "dropped" and the number of "batches"
+     *
+     * @return statistics
+     */
+    public Map<String,Object> toMap() {
+        Map<String,Object> ret = new LinkedHashMap<String, Object>();
+        ret.put("depth",getDepth());
+        ret.put("lag",getLag());
+        ret.put("capacity",capacity);
+        ret.put("processed",processed.get());
+        ret.put("dropped",droppedTotal.get());
+        ret.put("batches",batches.get());
+        return ret;
+    }
+
+    // =================================================================================
+
+    // Process one batch, returns false if there was nothing to do or it failed
+    private boolean consume() {
+        int count = 0;
+        long lost = 0;
+        try {
+            count = queue.drainTo(entries);
+            lost = dropped.getAndSet(0);
+            if (count == 0 && lost == 0 && !resyncPending) {
+                return false;
+            }
+            long start = System.nanoTime();
+            if (count > 0) {
+                for (Entry entry : entries) {
+                    batch.add(entry.event);
+                }
+                lagTimer.record(start - entries.get(0).time);
+                batchSizes.record(count);
+                try {
+                    handler.process(batch);
+                } catch (Throwable exp) {
+                    // The state might be inconsistent now
+                    resyncPending = true;
+                }
+            }
+            if (lost > 0 || resyncPending) {
+                // Cleared only if the resync succeeded, otherwise it is tried again
+                resyncPending = true;
+                handler.resync();
+                resyncPending = false;
+            }
+            processTimer.recordSince(start);
+            return true;
+        } catch (Throwable exp) {
+            // Don't retry a failing resync in a tight loop
+            resyncPending = true;
+            return false;
+        } finally {
+            entries.clear();
+            batch.clear();
+            if (count > 0 || lost > 0) {
+                batches.incrementAndGet();
+                processed.addAndGet(count + lost);
+                signalProcessed();
+            }
+        }
+    }
+
+    private void signalProcessed() {
+        if (waiting.get() > 0) {
+            lock.lock();
+            try {
+                processedCondition.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Queued event with the time it was queued
+    private static final class Entry {
+        private final EventObject event;
+        private final long time;
+
+        private Entry(EventObject pEvent) {
+            event = pEvent;
+            time = System.nanoTime();
+        }
+    }
+}
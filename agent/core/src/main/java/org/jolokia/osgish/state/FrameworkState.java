@@ -0,0 +1,368 @@
+package org.jolokia.osgish.state;
+
+import org.osgi.framework.*;
+import org.osgi.service.packageadmin.PackageAdmin;
+import org.osgi.service.startlevel.StartLevel;
+import org.osgi.util.tracker.ServiceTracker;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+/**
+ * Versioned snapshots of the bundle, service and package tables. The rows have
+ * the same layout as the rows returned by the Aries <code>listBundles</code>,
+ * <code>listServices</code> and <code>listPackages</code> operations, so that a client
+ * can merge deltas into a state fetched from there.
+ *
+ * Listener callbacks only mark entries as dirty. The snapshots are brought up to date
+ * lazily when a delta is requested.
+ *
+ * Getting and ungetting a service fires no event, so "ServicesInUse" of bundles and
+ * "UsingBundles" of services are not part of the versioned rows. They are read anew
+ * for every delta and returned for all rows in the map "live", keyed by column and
+ * row key.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class FrameworkState {
+
+    // Number of removed rows remembered per table
+    private static final int MAX_TOMBSTONES = 1024;
+
+    // Number of dirty services above which all services are reread in one go
+    private static final int FULL_SERVICE_REFRESH_THRESHOLD = 64;
+
+    private static final String[] BUNDLE_STATES = {
+            "UNINSTALLED", "INSTALLED", "RESOLVED", "STARTING", "STOPPING", "ACTIVE"
+    };
+
+    private final BundleContext bundleContext;
+    private final ServiceTracker packageAdminTracker;
+    private final ServiceTracker startLevelTracker;
+
+    private final SnapshotTable bundles = new SnapshotTable(MAX_TOMBSTONES);
+    private final SnapshotTable services = new SnapshotTable(MAX_TOMBSTONES);
+    private final SnapshotTable packages = new SnapshotTable(MAX_TOMBSTONES);
+
+    // Dirty markers set by the listeners
+    private final Map<Long,Boolean> dirtyBundles = new ConcurrentHashMap<Long, Boolean>();
+    private final Map<Long,Boolean> dirtyServices = new ConcurrentHashMap<Long, Boolean>();
+    private volatile boolean allBundlesDirty = true;
+    private volatile boolean allServicesDirty = true;
+    private volatile boolean wiringDirty = true;
+
+    // Current wiring, rebuilt when dirty
+    private Wiring wiring;
+
+    public FrameworkState(BundleContext pBundleContext) {
+        bundleContext = pBundleContext;
+        packageAdminTracker = new ServiceTracker(pBundleContext, PackageAdmin.class.getName(), null);
+        startLevelTracker = new ServiceTracker(pBundleContext, StartLevel.class.getName(), null);
+    }
+
+    public void open() {
+        packageAdminTracker.open();
+        startLevelTracker.open();
+    }
+
+    public void close() {
+        startLevelTracker.close();
+        packageAdminTracker.close();
+    }
+
+    // =================================================================================
+    // Dirty marking, called from the listeners
+
+    public void bundleChanged(BundleEvent pEvent, boolean pWiringChanged) {
+        if (pWiringChanged) {
+            // Imports, exports, hosts and fragments of other bundles might have changed as well
+            wiringDirty = true;
+            allBundlesDirty = true;
+        }
+        dirtyBundles.put(pEvent.getBundle().getBundleId(), Boolean.TRUE);
+    }
+
+    /**
+     * Mark everything as dirty, e.g. when events have been lost
+     */
+    public void invalidateAll() {
+        wiringDirty = true;
+        allBundlesDirty = true;
+        allServicesDirty = true;
+    }
+
+    /**
+     * Mark a service and the bundle which registered it as dirty
+     *
+     * @param pEvent service event
+     * @param pOwnerId id of the bundle which registered the service, as known when the event
+     *        was delivered (an unregistered service does not know its bundle later on).
+     *        -1 if not known.
+     */
+    public void serviceChanged(ServiceEvent pEvent, long pOwnerId) {
+        ServiceReference ref = pEvent.getServiceReference();
+        Long id = (Long) ref.getProperty(Constants.SERVICE_ID);
+        if (id != null) {
+            dirtyServices.put(id, Boolean.TRUE);
+        }
+        // Registered services are part of the bundle row
+        long owner = pOwnerId;
+        if (owner == -1 && ref.getBundle() != null) {
+            owner = ref.getBundle().getBundleId();
+        }
+        if (owner != -1) {
+            dirtyBundles.put(owner, Boolean.TRUE);
+        }
+    }
+
+    // =================================================================================
+    // Deltas
+
+    public Map<String,Object> getBundleDelta(long pVersion) {
+        refreshBundles();
+        Map<String,Object> ret = bundles.delta(pVersion);
+        Map<String,Object> inUse = new HashMap<String, Object>();
+        for (Bundle bundle : bundleContext.getBundles()) {
+            try {
+                inUse.put(Long.toString(bundle.getBundleId()),getServiceIds(bundle.getServicesInUse()));
+            } catch (IllegalStateException exp) {
+                // Uninstalled in the meantime
+            }
+        }
+        ret.put("live",Collections.singletonMap("ServicesInUse",inUse));
+        return ret;
+    }
+
+    public Map<String,Object> getServiceDelta(long pVersion) {
+        refreshServices();
+        Map<String,Object> ret = services.delta(pVersion);
+        Map<String,Object> using = new HashMap<String, Object>();
+        for (ServiceReference ref : getAllServiceReferences(null)) {
+            using.put(ref.getProperty(Constants.SERVICE_ID).toString(),getBundleIds(ref.getUsingBundles()));
+        }
+        ret.put("live",Collections.singletonMap("UsingBundles",using));
+        return ret;
+    }
+
+    public Map<String,Object> getPackageDelta(long pVersion) {
+        refreshWiring();
+        return packages.delta(pVersion);
+    }
+
+    // =================================================================================
+
+    private synchronized void refreshBundles() {
+        Wiring current = refreshWiring();
+        if (allBundlesDirty) {
+            allBundlesDirty = false;
+            dirtyBundles.clear();
+            Set<String> keys = new HashSet<String>();
+            for (Bundle bundle : bundleContext.getBundles()) {
+                if (updateBundle(bundle, current)) {
+                    keys.add(Long.toString(bundle.getBundleId()));
+                }
+            }
+            bundles.retainOnly(keys);
+        } else {
+            Iterator<Long> it = dirtyBundles.keySet().iterator();
+            while (it.hasNext()) {
+                long id = it.next();
+                it.remove();
+                Bundle bundle = bundleContext.getBundle(id);
+                if (bundle == null || !updateBundle(bundle, current)) {
+                    bundles.remove(Long.toString(id));
+                }
+            }
+        }
+    }
+
+    private synchronized void refreshServices() {
+        if (allServicesDirty || dirtyServices.size() > FULL_SERVICE_REFRESH_THRESHOLD) {
+            allServicesDirty = false;
+            dirtyServices.clear();
+            Set<String> keys = new HashSet<String>();
+            for (ServiceReference ref : getAllServiceReferences(null)) {
+                Long id = (Long) ref.getProperty(Constants.SERVICE_ID);
+                if (updateService(id, ref)) {
+                    keys.add(Long.toString(id));
+                }
+            }
+            services.retainOnly(keys);
+        } else {
+            Iterator<Long> it = dirtyServices.keySet().iterator();
+            while (it.hasNext()) {
+                long id = it.next();
+                it.remove();
+                ServiceReference[] refs = getAllServiceReferences("(" + Constants.SERVICE_ID + "=" + id + ")");
+                if (refs.length == 0 || !updateService(id, refs[0])) {
+                    services.remove(Long.toString(id));
+                }
+            }
+        }
+    }
+
+    private synchronized Wiring refreshWiring() {
+        if (wiringDirty || wiring == null) {
+            wiringDirty = false;
+            wiring = new Wiring((PackageAdmin) packageAdminTracker.getService());
+            Map<String,Map<String,Object>> rows = wiring.getPackages();
+            for (Map.Entry<String,Map<String,Object>> entry : rows.entrySet()) {
+                packages.put(entry.getKey(), entry.getValue());
+            }
+            packages.retainOnly(rows.keySet());
+        }
+        return wiring;
+    }
+
+    // Update the row for a single bundle. Returns false if the bundle is gone
+    private boolean updateBundle(Bundle pBundle, Wiring pWiring) {
+        try {
+            bundles.put(Long.toString(pBundle.getBundleId()), createBundleRow(pBundle, pWiring));
+            return true;
+        } catch (IllegalStateException exp) {
+            // Uninstalled in the meantime
+            return false;
+        }
+    }
+
+    private boolean updateService(Long pId, ServiceReference pRef) {
+        Map<String,Object> row = createServiceRow(pId, pRef);
+        if (row == null) {
+            return false;
+        }
+        services.put(Long.toString(pId), row);
+        return true;
+    }
+
+    private Map<String,Object> createBundleRow(Bundle pBundle, Wiring pWiring) {
+        long id = pBundle.getBundleId();
+        Dictionary headers = pBundle.getHeaders();
+        Map<String,Object> row = new HashMap<String, Object>();
+        row.put("Identifier",id);
+        row.put("SymbolicName",pBundle.getSymbolicName());
+        row.put("Version",pBundle.getVersion().toString());
+        row.put("State",getStateName(pBundle.getState()));
+        row.put("Location",pBundle.getLocation());
+        row.put("LastModified",pBundle.getLastModified());
+        row.put("Fragment",headers.get(Constants.FRAGMENT_HOST) != null);
+        row.put("RemovalPending",pWiring.isRemovalPending(id));
+        row.put("Required",!pWiring.getRequiringBundles(id).isEmpty());
+        row.put("RequiredBundles",sorted(pWiring.getRequiredBundles(id)));
+        row.put("RequiringBundles",sorted(pWiring.getRequiringBundles(id)));
+        row.put("ExportedPackages",sorted(pWiring.getExports(id)));
+        row.put("ImportedPackages",sorted(pWiring.getImports(id)));
+        row.put("RegisteredServices",getServiceIds(pBundle.getRegisteredServices()));
+        row.put("Headers",getHeaders(headers));
+
+        PackageAdmin packageAdmin = (PackageAdmin) packageAdminTracker.getService();
+        if (packageAdmin != null) {
+            row.put("Hosts",getBundleIds(packageAdmin.getHosts(pBundle)));
+            row.put("Fragments",getBundleIds(packageAdmin.getFragments(pBundle)));
+        }
+        StartLevel startLevel = (StartLevel) startLevelTracker.getService();
+        if (startLevel != null) {
+            row.put("StartLevel",startLevel.getBundleStartLevel(pBundle));
+            row.put("PersistentlyStarted",startLevel.isBundlePersistentlyStarted(pBundle));
+            row.put("ActivationPolicyUsed",startLevel.isBundleActivationPolicyUsed(pBundle));
+        }
+        return row;
+    }
+
+    private Map<String,Object> createServiceRow(Long pId, ServiceReference pRef) {
+        Bundle owner = pRef.getBundle();
+        if (owner == null) {
+            // Unregistered in the meantime
+            return null;
+        }
+        Map<String,Object> row = new HashMap<String, Object>();
+        row.put("Identifier",pId);
+        row.put("BundleIdentifier",owner.getBundleId());
+        row.put("objectClass",Arrays.asList((String[]) pRef.getProperty(Constants.OBJECTCLASS)));
+        return row;
+    }
+
+    private ServiceReference[] getAllServiceReferences(String pFilter) {
+        try {
+            ServiceReference[] refs = bundleContext.getAllServiceReferences(null, pFilter);
+            return refs != null ? refs : new ServiceReference[0];
+        } catch (InvalidSyntaxException e) {
+            throw new IllegalArgumentException("Invalid filter " + pFilter + ": " + e,e);
+        }
+    }
+
+    private Map<String,Object> getHeaders(Dictionary pHeaders) {
+        Map<String,Object> ret = new HashMap<String, Object>();
+        Enumeration keys = pHeaders.keys();
+        while (keys.hasMoreElements()) {
+            String key = (String) keys.nextElement();
+            Map<String,Object> header = new HashMap<String, Object>();
+            header.put("Key",key);
+            header.put("Value",pHeaders.get(key));
+            ret.put(key,header);
+        }
+        return ret;
+    }
+
+    private List<Long> getServiceIds(ServiceReference[] pRefs) {
+        List<Long> ret = new ArrayList<Long>();
+        if (pRefs != null) {
+            for (ServiceReference ref : pRefs) {
+                ret.add((Long) ref.getProperty(Constants.SERVICE_ID));
+            }
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private List<Long> getBundleIds(Bundle[] pBundles) {
+        List<Long> ret = new ArrayList<Long>();
+        if (pBundles != null) {
+            for (Bundle b : pBundles) {
+                ret.add(b.getBundleId());
+            }
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private <T extends Comparable<T>> List<T> sorted(List<T> pList) {
+        List<T> ret = new ArrayList<T>(pList);
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private String getStateName(int pState) {
+        // States are single bits, from UNINSTALLED (1) up to ACTIVE (32)
+        for (int i = 0; i < BUNDLE_STATES.length; i++) {
+            if (pState == 1 << i) {
+                return BUNDLE_STATES[i];
+            }
+        }
+        return "UNKNOWN";
+    }
+}
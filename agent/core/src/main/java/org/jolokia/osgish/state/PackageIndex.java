@@ -0,0 +1,305 @@
+package org.jolokia.osgish.state;
+
+import org.jolokia.osgish.util.VersionRange;
+import org.osgi.framework.*;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+import java.util.*;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Searchable index of all exported packages with their exporting and importing
+ * bundles, sorted by package name. The index is built once and afterwards only
+ * updated for bundles whose resolution state changed: their own exports are
+ * reread and they are added as importer to the packages named in their
+ * Import-Package and Require-Bundle headers. Updates are applied lazily before
+ * the next search by a {@link WiringTracker}, so that the listener stays cheap.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class PackageIndex {
+
+    // Bundles whose wiring changed since the last search
+    private final WiringTracker tracker;
+
+    // Package name -> all exports of this name
+    private final TreeMap<String,List<Export>> byName = new TreeMap<String, List<Export>>();
+
+    // Bundle id -> packages exported and packages imported by this bundle
+    private final Map<Long,List<Export>> exportsOf = new HashMap<Long, List<Export>>();
+    private final Map<Long,Set<Export>> importsOf = new HashMap<Long, Set<Export>>();
+
+    // Applies the changes tracked
+    private final WiringTracker.Handler handler = new WiringTracker.Handler() {
+        public void clear() {
+            PackageIndex.this.clear();
+        }
+
+        public void rebuild(PackageAdmin pPackageAdmin) {
+            clear();
+            addExports(pPackageAdmin.getExportedPackages((Bundle) null));
+        }
+
+        public void update(PackageAdmin pPackageAdmin, long pBundleId) {
+            updateBundle(pPackageAdmin, pBundleId);
+        }
+    };
+
+    public PackageIndex(BundleContext pBundleContext) {
+        tracker = new WiringTracker(pBundleContext);
+    }
+
+    public void open() {
+        tracker.open();
+    }
+
+    public void close() {
+        tracker.close();
+    }
+
+    /**
+     * Mark a bundle for updating if its resolution state changed
+     *
+     * @param pEvent bundle event
+     */
+    public void bundleChanged(BundleEvent pEvent) {
+        tracker.bundleChanged(pEvent);
+    }
+
+    /**
+     * Mark all bundles for updating, e.g. when events have been lost
+     */
+    public void invalidateAll() {
+        tracker.invalidateAll();
+    }
+
+    /**
+     * Search for exported packages
+     *
+     * @param pName package name. With a trailing '*', all packages starting with the part before
+     *        are returned.
+     * @param pVersionRange only packages with a version within this range are returned. Can be null.
+     * @param pLimit maximum number of packages to return, a negative number for no limit
+     * @return list of packages in the format of the <code>listPackages</code> operation of the
+     *         <code>PackageStateMBean</code>, sorted by name and version
+     */
+    public synchronized List<Map<String,Object>> search(String pName, String pVersionRange, int pLimit) {
+        if (pName == null || pName.length() == 0) {
+            throw new IllegalArgumentException("No package name given");
+        }
+        VersionRange range = VersionRange.parse(pVersionRange);
+        tracker.update(handler);
+        Collection<List<Export>> matching;
+        if (pName.endsWith("*")) {
+            String prefix = pName.substring(0, pName.length() - 1);
+            matching = byName.subMap(prefix, prefix + Character.MAX_VALUE).values();
+        } else {
+            List<Export> exports = byName.get(pName);
+            matching = exports != null ? Collections.singletonList(exports) : Collections.<List<Export>>emptyList();
+        }
+        List<Map<String,Object>> ret = new ArrayList<Map<String, Object>>();
+        for (List<Export> exports : matching) {
+            for (Export export : exports) {
+                if (pLimit >= 0 && ret.size() >= pLimit) {
+                    return ret;
+                }
+                if (range.includes(export.version)) {
+                    ret.add(export.toMap());
+                }
+            }
+        }
+        return ret;
+    }
+
+    // =================================================================================
+
+    private void updateBundle(PackageAdmin pPackageAdmin, long pId) {
+        removeExports(pId);
+        Set<Export> imports = importsOf.remove(pId);
+        if (imports != null) {
+            for (Export export : imports) {
+                export.importers.remove(pId);
+            }
+        }
+        Bundle bundle = tracker.getBundle(pId);
+        if (bundle == null) {
+            return;
+        }
+        addExports(pPackageAdmin.getExportedPackages(bundle));
+
+        // Packages imported directly
+        for (ExportedPackage pkg : WiringTracker.getImportedPackages(pPackageAdmin, bundle)) {
+            addImport(pkg, pId);
+        }
+
+        // Packages visible through required bundles. Their exports are reread completely.
+        for (Bundle exporter : WiringTracker.getRequiredBundles(pPackageAdmin, bundle)) {
+            removeExports(exporter.getBundleId());
+            addExports(pPackageAdmin.getExportedPackages(exporter));
+        }
+    }
+
+    private void addExports(ExportedPackage[] pPackages) {
+        if (pPackages != null) {
+            for (ExportedPackage pkg : pPackages) {
+                addExport(pkg);
+            }
+        }
+    }
+
+    private Export addExport(ExportedPackage pPkg) {
+        Bundle exporter = pPkg.getExportingBundle();
+        if (exporter == null) {
+            // Stale package
+            return null;
+        }
+        Export export = new Export(pPkg.getName(), pPkg.getVersion(), exporter.getBundleId(), pPkg.isRemovalPending());
+        List<Export> exports = byName.get(export.name);
+        if (exports == null) {
+            exports = new ArrayList<Export>(1);
+            byName.put(export.name, exports);
+        }
+        exports.add(export);
+        Collections.sort(exports);
+        getList(exportsOf, export.exporter).add(export);
+        Bundle[] importers = pPkg.getImportingBundles();
+        if (importers != null) {
+            for (Bundle importer : importers) {
+                long id = importer.getBundleId();
+                export.importers.add(id);
+                getSet(importsOf, id).add(export);
+            }
+        }
+        return export;
+    }
+
+    private void addImport(ExportedPackage pPkg, long pImporter) {
+        Bundle exporter = pPkg.getExportingBundle();
+        if (exporter == null) {
+            return;
+        }
+        Export export = findExport(pPkg.getName(), pPkg.getVersion(), exporter.getBundleId());
+        if (export == null) {
+            // Picks up all importers, including this one
+            addExport(pPkg);
+        } else {
+            export.importers.add(pImporter);
+            getSet(importsOf, pImporter).add(export);
+        }
+    }
+
+    private void removeExports(long pExporter) {
+        List<Export> exports = exportsOf.remove(pExporter);
+        if (exports == null) {
+            return;
+        }
+        for (Export export : exports) {
+            List<Export> named = byName.get(export.name);
+            named.remove(export);
+            if (named.isEmpty()) {
+                byName.remove(export.name);
+            }
+            for (Long importer : export.importers) {
+                Set<Export> imports = importsOf.get(importer);
+                if (imports != null) {
+                    imports.remove(export);
+                }
+            }
+        }
+    }
+
+    private Export findExport(String pName, Version pVersion, long pExporter) {
+        List<Export> exports = byName.get(pName);
+        if (exports != null) {
+            for (Export export : exports) {
+                if (export.exporter == pExporter && export.version.equals(pVersion)) {
+                    return export;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void clear() {
+        byName.clear();
+        exportsOf.clear();
+        importsOf.clear();
+    }
+
+    private <T> List<T> getList(Map<Long,List<T>> pMap, long pKey) {
+        List<T> list = pMap.get(pKey);
+        if (list == null) {
+            list = new ArrayList<T>();
+            pMap.put(pKey, list);
+        }
+        return list;
+    }
+
+    private <T> Set<T> getSet(Map<Long,Set<T>> pMap, long pKey) {
+        Set<T> set = pMap.get(pKey);
+        if (set == null) {
+            set = new HashSet<T>();
+            pMap.put(pKey, set);
+        }
+        return set;
+    }
+
+    // A single exported package. Identity is used for equality, since there is only
+    // one instance per export in the index.
+    private static final class Export implements Comparable<Export> {
+        private final String name;
+        private final Version version;
+        private final long exporter;
+        private final boolean removalPending;
+        private final SortedSet<Long> importers = new TreeSet<Long>();
+
+        private Export(String pName, Version pVersion, long pExporter, boolean pRemovalPending) {
+            name = pName;
+            version = pVersion;
+            exporter = pExporter;
+            removalPending = pRemovalPending;
+        }
+
+        // Highest version first, like the framework prefers it
+        public int compareTo(Export pOther) {
+            int cmp = pOther.version.compareTo(version);
+            return cmp != 0 ? cmp : (exporter < pOther.exporter ? -1 : (exporter == pOther.exporter ? 0 : 1));
+        }
+
+        private Map<String,Object> toMap() {
+            Map<String,Object> row = new HashMap<String, Object>();
+            row.put("Name",name);
+            row.put("Version",version.toString());
+            row.put("ExportingBundles",Collections.singletonList(exporter));
+            row.put("ImportingBundles",new ArrayList<Long>(importers));
+            row.put("RemovalPending",removalPending);
+            return row;
+        }
+    }
+}
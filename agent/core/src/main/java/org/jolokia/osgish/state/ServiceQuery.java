@@ -0,0 +1,365 @@
+package org.jolokia.osgish.state;
+
+import org.jolokia.osgish.metrics.Metrics;
+import org.jolokia.osgish.metrics.StripedCounter;
+import org.osgi.framework.*;
+
+import java.lang.reflect.Array;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Server side query for services by an OSGi LDAP filter. Services are indexed by
+ * object class, so that filters which require a concrete object class (either
+ * alone or as part of a top level conjunction) are only evaluated against the
+ * services registered under this class instead of the whole registry.
+ *
+ * Compiled filters and the references matching a query are kept in LRU caches.
+ * Every service event invalidates the cached matches. Rows are always built from
+ * the matched references when returned, since e.g. the using bundles can change
+ * without any event.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class ServiceQuery {
+
+    // Number of compiled filters and query results cached
+    private static final int MAX_FILTERS = 256;
+    private static final int MAX_RESULTS = 64;
+
+    // Columns which can be selected
+    private static final List<String> COLUMNS =
+            Arrays.asList("Identifier", "BundleIdentifier", "objectClass", "UsingBundles", "Properties");
+
+    // A single equality test on the object class without wildcards
+    private static final Pattern OBJECT_CLASS_FILTER =
+            Pattern.compile("^\\(\\s*objectClass\\s*=([^*()\\\\]+)\\)$", Pattern.CASE_INSENSITIVE);
+
+    private final BundleContext bundleContext;
+
+    // Object class -> services registered under it. Built on the first query.
+    private Map<String,Set<ServiceReference>> index;
+
+    // All services, sorted by id
+    private SortedMap<Long,ServiceReference> references;
+
+    private final Map<String,Filter> filters = new LinkedHashMap<String, Filter>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Filter> pEldest) {
+            return size() > MAX_FILTERS;
+        }
+    };
+
+    private final Map<String,List<ServiceReference>> results = new LinkedHashMap<String, List<ServiceReference>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<ServiceReference>> pEldest) {
+            return size() > MAX_RESULTS;
+        }
+    };
+
+    // Cache statistics
+    private final StripedCounter hits;
+    private final StripedCounter misses;
+
+    public ServiceQuery(BundleContext pBundleContext, Metrics pMetrics) {
+        bundleContext = pBundleContext;
+        hits = pMetrics.cacheHits("serviceQuery");
+        misses = pMetrics.cacheMisses("serviceQuery");
+    }
+
+    /**
+     * Update the index and invalidate the cached results
+     *
+     * @param pEvent service event
+     */
+    public synchronized void serviceChanged(ServiceEvent pEvent) {
+        results.clear();
+        if (index == null) {
+            return;
+        }
+        ServiceReference ref = pEvent.getServiceReference();
+        if (pEvent.getType() == ServiceEvent.REGISTERED) {
+            add(ref);
+        } else if (pEvent.getType() == ServiceEvent.UNREGISTERING) {
+            remove(ref);
+        }
+    }
+
+    /**
+     * Update the index and invalidate the cached results for several events at once
+     *
+     * @param pEvents service events in the order they were delivered
+     */
+    public synchronized void servicesChanged(List<ServiceEvent> pEvents) {
+        for (ServiceEvent event : pEvents) {
+            serviceChanged(event);
+        }
+    }
+
+    /**
+     * Drop the index and all caches. The index is rebuilt on the next query.
+     */
+    public synchronized void close() {
+        index = null;
+        references = null;
+        results.clear();
+        filters.clear();
+    }
+
+    /**
+     * Query for services
+     *
+     * @param pFilter LDAP filter, null or empty for all services
+     * @param pProjection columns to return, null or empty for all. Possible columns are
+     *        "Identifier", "BundleIdentifier", "objectClass", "UsingBundles" and "Properties".
+     * @param pLimit maximum number of services to return, -1 for all
+     * @return matching services in the format of the <code>ServiceStateMBean</code>, sorted by id
+     * @throws IllegalArgumentException if the filter or the projection is invalid
+     */
+    public List<Map<String,Object>> query(String pFilter, String[] pProjection, int pLimit) {
+        List<String> columns = getColumns(pProjection);
+        List<Map<String,Object>> ret = new ArrayList<Map<String, Object>>();
+        for (ServiceReference ref : match(pFilter != null ? pFilter.trim() : "", pLimit)) {
+            Map<String,Object> row = createRow(ref, columns);
+            if (row != null) {
+                ret.add(row);
+            }
+        }
+        return ret;
+    }
+
+    // =================================================================================
+
+    private synchronized List<ServiceReference> match(String pFilter, int pLimit) {
+        String key = pFilter + "|" + pLimit;
+        List<ServiceReference> ret = results.get(key);
+        if (ret != null) {
+            hits.increment();
+            return ret;
+        }
+        misses.increment();
+        Filter filter = pFilter.length() > 0 ? getFilter(pFilter) : null;
+        ret = new ArrayList<ServiceReference>();
+        for (ServiceReference ref : getCandidates(pFilter)) {
+            if (pLimit >= 0 && ret.size() >= pLimit) {
+                break;
+            }
+            if (filter == null || filter.match(ref)) {
+                ret.add(ref);
+            }
+        }
+        ret = Collections.unmodifiableList(ret);
+        results.put(key, ret);
+        return ret;
+    }
+
+    private Filter getFilter(String pFilter) {
+        Filter filter = filters.get(pFilter);
+        if (filter == null) {
+            try {
+                filter = bundleContext.createFilter(pFilter);
+            } catch (InvalidSyntaxException exp) {
+                throw new IllegalArgumentException("Invalid filter " + pFilter + ": " + exp.getMessage(),exp);
+            }
+            filters.put(pFilter, filter);
+        }
+        return filter;
+    }
+
+    // Services which can match the given filter, sorted by id
+    private Collection<ServiceReference> getCandidates(String pFilter) {
+        if (index == null) {
+            buildIndex();
+        }
+        String objectClass = getRequiredObjectClass(pFilter);
+        if (objectClass == null) {
+            return references.values();
+        }
+        Set<ServiceReference> refs = index.get(objectClass);
+        if (refs == null) {
+            return Collections.emptyList();
+        }
+        SortedMap<Long,ServiceReference> ret = new TreeMap<Long, ServiceReference>();
+        for (ServiceReference ref : refs) {
+            ret.put((Long) ref.getProperty(Constants.SERVICE_ID), ref);
+        }
+        return ret.values();
+    }
+
+    // Object class every matching service must have or null if the filter has no
+    // such restriction which can be used for the lookup
+    private String getRequiredObjectClass(String pFilter) {
+        for (String part : getConjunction(pFilter)) {
+            Matcher matcher = OBJECT_CLASS_FILTER.matcher(part);
+            if (matcher.matches()) {
+                return matcher.group(1).trim();
+            }
+        }
+        return null;
+    }
+
+    // Split a filter into the parts of a top level conjunction. Any other filter
+    // is returned as is.
+    private List<String> getConjunction(String pFilter) {
+        if (!pFilter.startsWith("(&") || !pFilter.endsWith(")")) {
+            return Collections.singletonList(pFilter);
+        }
+        List<String> ret = new ArrayList<String>();
+        int depth = 0;
+        int start = -1;
+        for (int i = 2; i < pFilter.length() - 1; i++) {
+            char c = pFilter.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '(') {
+                if (depth++ == 0) {
+                    start = i;
+                }
+            } else if (c == ')' && --depth == 0) {
+                ret.add(pFilter.substring(start, i + 1));
+            }
+        }
+        return ret;
+    }
+
+    private void buildIndex() {
+        index = new HashMap<String, Set<ServiceReference>>();
+        references = new TreeMap<Long, ServiceReference>();
+        try {
+            ServiceReference[] refs = bundleContext.getAllServiceReferences(null, null);
+            if (refs != null) {
+                for (ServiceReference ref : refs) {
+                    add(ref);
+                }
+            }
+        } catch (InvalidSyntaxException exp) {
+            // Cannot happen for a null filter
+            throw new IllegalStateException("Cannot lookup services: " + exp,exp);
+        }
+    }
+
+    private void add(ServiceReference pRef) {
+        references.put((Long) pRef.getProperty(Constants.SERVICE_ID), pRef);
+        for (String objectClass : (String[]) pRef.getProperty(Constants.OBJECTCLASS)) {
+            Set<ServiceReference> refs = index.get(objectClass);
+            if (refs == null) {
+                refs = new HashSet<ServiceReference>();
+                index.put(objectClass, refs);
+            }
+            refs.add(pRef);
+        }
+    }
+
+    private void remove(ServiceReference pRef) {
+        references.remove((Long) pRef.getProperty(Constants.SERVICE_ID));
+        for (String objectClass : (String[]) pRef.getProperty(Constants.OBJECTCLASS)) {
+            Set<ServiceReference> refs = index.get(objectClass);
+            if (refs != null) {
+                refs.remove(pRef);
+                if (refs.isEmpty()) {
+                    index.remove(objectClass);
+                }
+            }
+        }
+    }
+
+    private List<String> getColumns(String[] pProjection) {
+        if (pProjection == null || pProjection.length == 0) {
+            return COLUMNS;
+        }
+        for (String column : pProjection) {
+            if (!COLUMNS.contains(column)) {
+                throw new IllegalArgumentException("Unknown column " + column + ", known columns: " + COLUMNS);
+            }
+        }
+        return Arrays.asList(pProjection);
+    }
+
+    private Map<String,Object> createRow(ServiceReference pRef, List<String> pColumns) {
+        Bundle owner = pRef.getBundle();
+        if (owner == null) {
+            // Unregistered in the meantime
+            return null;
+        }
+        Map<String,Object> row = new HashMap<String, Object>();
+        for (String column : pColumns) {
+            if ("Identifier".equals(column)) {
+                row.put("Identifier",pRef.getProperty(Constants.SERVICE_ID));
+            } else if ("BundleIdentifier".equals(column)) {
+                row.put("BundleIdentifier",owner.getBundleId());
+            } else if ("objectClass".equals(column)) {
+                row.put("objectClass",Arrays.asList((String[]) pRef.getProperty(Constants.OBJECTCLASS)));
+            } else if ("UsingBundles".equals(column)) {
+                row.put("UsingBundles",getBundleIds(pRef.getUsingBundles()));
+            } else if ("Properties".equals(column)) {
+                row.put("Properties",getProperties(pRef));
+            }
+        }
+        return row;
+    }
+
+    private List<Long> getBundleIds(Bundle[] pBundles) {
+        List<Long> ret = new ArrayList<Long>();
+        if (pBundles != null) {
+            for (Bundle b : pBundles) {
+                ret.add(b.getBundleId());
+            }
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    // Properties in the format of the ServiceStateMBean (key -> { Key, Value, Type })
+    private Map<String,Object> getProperties(ServiceReference pRef) {
+        Map<String,Object> ret = new HashMap<String, Object>();
+        for (String key : pRef.getPropertyKeys()) {
+            Object value = pRef.getProperty(key);
+            Map<String,Object> prop = new HashMap<String, Object>();
+            prop.put("Key",key);
+            if (value != null && value.getClass().isArray()) {
+                List<Object> values = new ArrayList<Object>();
+                for (int i = 0; i < Array.getLength(value); i++) {
+                    values.add(Array.get(value, i).toString());
+                }
+                prop.put("Value",values.toString());
+                prop.put("Type","Array of " + value.getClass().getComponentType().getSimpleName());
+            } else {
+                prop.put("Value",value != null ? value.toString() : null);
+                prop.put("Type",value != null ? value.getClass().getSimpleName() : null);
+            }
+            ret.put(key,prop);
+        }
+        return ret;
+    }
+}
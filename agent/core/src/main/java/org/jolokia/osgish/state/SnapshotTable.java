@@ -0,0 +1,234 @@
+package org.jolokia.osgish.state;
+
+import java.util.*;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+/**
+ * A versioned table of rows, keyed by a string. Every row which is added,
+ * modified or removed gets a new version number so that a client can ask for
+ * exactly those rows which changed after a version it has already seen.
+ * Removed rows are kept as tombstones for a limited number of removals. A
+ * client asking for a version older than the oldest forgotten tombstone gets
+ * the full table instead.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class SnapshotTable {
+
+    // Rows (including tombstones) by key
+    private final Map<String,Row> rows = new HashMap<String, Row>();
+
+    // Keys ordered by the version of their last change
+    private final TreeMap<Long,String> history = new TreeMap<Long, String>();
+
+    // Current version of this table
+    private long version;
+
+    // Deltas for versions below this horizon can not be computed anymore
+    private long horizon;
+
+    // Maximum number of tombstones to keep
+    private final int maxTombstones;
+    private int tombstones;
+
+    /**
+     * Constructor
+     *
+     * @param pMaxTombstones number of removed rows to remember
+     */
+    public SnapshotTable(int pMaxTombstones) {
+        maxTombstones = pMaxTombstones;
+    }
+
+    /**
+     * Add or update a row. If the row is equal to the already stored row, nothing
+     * happens.
+     *
+     * @param pKey key of the row
+     * @param pValue the row itself, which should be comparable via {@link Object#equals(Object)}
+     */
+    public synchronized void put(String pKey, Map<String,Object> pValue) {
+        Row row = rows.get(pKey);
+        if (row != null && !row.isRemoved() && row.value.equals(pValue)) {
+            return;
+        }
+        long newVersion = ++version;
+        if (row == null) {
+            row = new Row(pValue, newVersion);
+            rows.put(pKey, row);
+        } else {
+            history.remove(row.version);
+            if (row.isRemoved()) {
+                tombstones--;
+                row.created = newVersion;
+            }
+            row.value = pValue;
+        }
+        row.version = newVersion;
+        history.put(newVersion, pKey);
+    }
+
+    /**
+     * Remove a row
+     *
+     * @param pKey key of the row to remove
+     */
+    public synchronized void remove(String pKey) {
+        Row row = rows.get(pKey);
+        if (row == null || row.isRemoved()) {
+            return;
+        }
+        long newVersion = ++version;
+        history.remove(row.version);
+        row.value = null;
+        row.version = newVersion;
+        history.put(newVersion, pKey);
+        tombstones++;
+        trimTombstones();
+    }
+
+    /**
+     * Remove all rows whose key is not contained in the given set. Used after a full
+     * rebuild of the table.
+     *
+     * @param pKeys keys to retain
+     */
+    public synchronized void retainOnly(Set<String> pKeys) {
+        List<String> toRemove = new ArrayList<String>();
+        for (Map.Entry<String,Row> entry : rows.entrySet()) {
+            if (!entry.getValue().isRemoved() && !pKeys.contains(entry.getKey())) {
+                toRemove.add(entry.getKey());
+            }
+        }
+        for (String key : toRemove) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Get the current version of this table
+     *
+     * @return version
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Number of rows currently in this table (without tombstones)
+     *
+     * @return number of rows
+     */
+    public synchronized int size() {
+        return rows.size() - tombstones;
+    }
+
+    /**
+     * Get all rows which changed since the given version. The returned map contains
+     * the following keys:
+     * <ul>
+     *    <li><code>version</code> : the current version of this table, to be used for
+     *        the next call</li>
+     *    <li><code>full</code> : true if the delta could not be computed and all rows are
+     *        returned as "added". The client should drop its old state in this case.</li>
+     *    <li><code>added</code> : map with rows which were added since the given version</li>
+     *    <li><code>modified</code> : map with rows which were modified since the given version</li>
+     *    <li><code>removed</code> : list of keys of rows removed since the given version</li>
+     * </ul>
+     *
+     * @param pVersion version known to the client. Use -1 to get the full table.
+     * @return the delta as map
+     */
+    public synchronized Map<String,Object> delta(long pVersion) {
+        Map<String,Object> added = new HashMap<String, Object>();
+        Map<String,Object> modified = new HashMap<String, Object>();
+        List<String> removed = new ArrayList<String>();
+        boolean full = pVersion < horizon || pVersion > version;
+        if (full) {
+            for (Map.Entry<String,Row> entry : rows.entrySet()) {
+                if (!entry.getValue().isRemoved()) {
+                    added.put(entry.getKey(),entry.getValue().value);
+                }
+            }
+        } else {
+            for (String key : history.tailMap(pVersion + 1).values()) {
+                Row row = rows.get(key);
+                if (row.isRemoved()) {
+                    if (row.created <= pVersion) {
+                        removed.add(key);
+                    }
+                } else if (row.created > pVersion) {
+                    added.put(key,row.value);
+                } else {
+                    modified.put(key,row.value);
+                }
+            }
+        }
+        Map<String,Object> ret = new HashMap<String, Object>();
+        ret.put("version",version);
+        ret.put("full",full);
+        ret.put("added",added);
+        ret.put("modified",modified);
+        ret.put("removed",removed);
+        return ret;
+    }
+
+    // Forget about the oldest tombstones, moving the horizon forward
+    private void trimTombstones() {
+        Iterator<Map.Entry<Long,String>> it = history.entrySet().iterator();
+        while (tombstones > maxTombstones && it.hasNext()) {
+            Map.Entry<Long,String> entry = it.next();
+            Row row = rows.get(entry.getValue());
+            if (row.isRemoved()) {
+                it.remove();
+                rows.remove(entry.getValue());
+                tombstones--;
+                horizon = entry.getKey();
+            }
+        }
+    }
+
+    // A single row along with its version information
+    private static final class Row {
+        // Value, null for a removed row
+        private Map<String,Object> value;
+        // Version when this row was created
+        private long created;
+        // Version of the last change
+        private long version;
+
+        private Row(Map<String,Object> pValue, long pVersion) {
+            value = pValue;
+            created = pVersion;
+            version = pVersion;
+        }
+
+        private boolean isRemoved() {
+            return value == null;
+        }
+    }
+}
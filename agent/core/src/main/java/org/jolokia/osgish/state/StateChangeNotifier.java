@@ -0,0 +1,151 @@
+package org.jolokia.osgish.state;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+/**
+ * Lets callers block until the {@link ChangeJournal} records a change for a given
+ * category. Since a JMX call always occupies the thread of the request, the number
+ * of concurrent waiters is bounded. A caller which finds all waiter slots taken
+ * returns immediately with a "busy" marker and has to fall back to polling.
+ *
+ * All waiters are woken up with a single signal when a change is recorded. When
+ * nobody is waiting, signalling costs a single volatile read.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class StateChangeNotifier {
+
+    private final ChangeJournal journal;
+
+    // Slots for concurrent waiters
+    private final Semaphore waiterSlots;
+
+    // Upper limit for the time to wait
+    private final long maxTimeout;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * Constructor
+     *
+     * @param pJournal journal to watch
+     * @param pMaxWaiters number of callers which can wait concurrently
+     * @param pMaxTimeout maximum time to wait in milliseconds
+     */
+    public StateChangeNotifier(ChangeJournal pJournal, int pMaxWaiters, long pMaxTimeout) {
+        journal = pJournal;
+        waiterSlots = new Semaphore(pMaxWaiters);
+        maxTimeout = pMaxTimeout;
+    }
+
+    /**
+     * Wait until a change for one of the given categories has been recorded after the given
+     * sequence number. The returned map contains whether a change happened ("changed"), the
+     * current sequence number of the journal ("sequence") and whether the caller was not
+     * allowed to wait because all waiter slots were taken ("busy").
+     *
+     * @param pCategories categories to wait for
+     * @param pSequence sequence number known to the caller
+     * @param pTimeout how long to wait at most (in milliseconds)
+     * @return map describing the result
+     */
+    public Map<String,Object> await(int pCategories, long pSequence, long pTimeout) {
+        boolean busy = false;
+        if (!hasChanged(pCategories, pSequence) && pTimeout > 0) {
+            if (waiterSlots.tryAcquire()) {
+                try {
+                    waitForChange(pCategories, pSequence, Math.min(pTimeout, maxTimeout));
+                } finally {
+                    waiterSlots.release();
+                }
+            } else {
+                busy = true;
+            }
+        }
+        Map<String,Object> ret = new HashMap<String, Object>();
+        ret.put("changed",hasChanged(pCategories, pSequence));
+        ret.put("sequence",journal.getSequence());
+        ret.put("busy",busy);
+        return ret;
+    }
+
+    /**
+     * Wake up all waiters. To be called after a change has been recorded in the journal.
+     */
+    public void signal() {
+        if (waiting.get() > 0) {
+            lock.lock();
+            try {
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Number of callers currently waiting
+     *
+     * @return number of waiters
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    // =================================================================================
+
+    private void waitForChange(int pCategories, long pSequence, long pTimeout) {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(pTimeout);
+        lock.lock();
+        waiting.incrementAndGet();
+        try {
+            while (!hasChanged(pCategories, pSequence) && nanos > 0) {
+                nanos = changed.awaitNanos(nanos);
+            }
+        } catch (InterruptedException exp) {
+            // Return what we have, but keep the interrupted state for the caller
+            Thread.currentThread().interrupt();
+        } finally {
+            waiting.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    // A sequence number from the future (e.g. from before an agent restart) counts as change, too.
+    private boolean hasChanged(int pCategories, long pSequence) {
+        return journal.getLastSequence(pCategories) > pSequence || pSequence > journal.getSequence();
+    }
+}
@@ -0,0 +1,169 @@
+package org.jolokia.osgish.state;
+
+import org.osgi.framework.Bundle;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+import org.osgi.service.packageadmin.RequiredBundle;
+
+import java.util.*;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+/**
+ * Snapshot of the package and bundle wiring as seen by the {@link PackageAdmin}.
+ * Imports can only be obtained by looking at all exported packages, so this is done
+ * once for all bundles whenever the wiring changes.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+class Wiring {
+
+    private final Map<Long,List<String>> exports = new HashMap<Long, List<String>>();
+    private final Map<Long,List<String>> imports = new HashMap<Long, List<String>>();
+    private final Map<Long,List<Long>> requiredBundles = new HashMap<Long, List<Long>>();
+    private final Map<Long,List<Long>> requiringBundles = new HashMap<Long, List<Long>>();
+    private final Set<Long> removalPending = new HashSet<Long>();
+
+    // Package rows, keyed by name, version and exporting bundle
+    private final Map<String,Map<String,Object>> packages = new HashMap<String, Map<String, Object>>();
+
+    /**
+     * Build up the wiring snapshot
+     *
+     * @param pPackageAdmin package admin to query. If null, an empty wiring is created.
+     */
+    Wiring(PackageAdmin pPackageAdmin) {
+        if (pPackageAdmin == null) {
+            return;
+        }
+        ExportedPackage[] exported = pPackageAdmin.getExportedPackages((Bundle) null);
+        if (exported != null) {
+            for (ExportedPackage pkg : exported) {
+                addPackage(pkg);
+            }
+        }
+        RequiredBundle[] required = pPackageAdmin.getRequiredBundles(null);
+        if (required != null) {
+            for (RequiredBundle req : required) {
+                addRequiredBundle(req);
+            }
+        }
+    }
+
+    List<String> getExports(long pBundleId) {
+        return get(exports, pBundleId);
+    }
+
+    List<String> getImports(long pBundleId) {
+        return get(imports, pBundleId);
+    }
+
+    List<Long> getRequiredBundles(long pBundleId) {
+        return get(requiredBundles, pBundleId);
+    }
+
+    List<Long> getRequiringBundles(long pBundleId) {
+        return get(requiringBundles, pBundleId);
+    }
+
+    boolean isRemovalPending(long pBundleId) {
+        return removalPending.contains(pBundleId);
+    }
+
+    Map<String, Map<String, Object>> getPackages() {
+        return packages;
+    }
+
+    // =================================================================================
+
+    private void addPackage(ExportedPackage pPkg) {
+        Bundle exporter = pPkg.getExportingBundle();
+        if (exporter == null) {
+            // Stale package
+            return;
+        }
+        long exporterId = exporter.getBundleId();
+        String version = pPkg.getVersion().toString();
+        String nameAndVersion = pPkg.getName() + ";" + version;
+
+        add(exports, exporterId, nameAndVersion);
+        List<Long> importers = new ArrayList<Long>();
+        Bundle[] importing = pPkg.getImportingBundles();
+        if (importing != null) {
+            for (Bundle importer : importing) {
+                long importerId = importer.getBundleId();
+                importers.add(importerId);
+                if (importerId != exporterId) {
+                    add(imports, importerId, nameAndVersion);
+                }
+            }
+        }
+        Collections.sort(importers);
+        if (pPkg.isRemovalPending()) {
+            removalPending.add(exporterId);
+        }
+
+        Map<String,Object> row = new HashMap<String, Object>();
+        row.put("Name",pPkg.getName());
+        row.put("Version",version);
+        row.put("ExportingBundles", Collections.singletonList(exporterId));
+        row.put("ImportingBundles",importers);
+        row.put("RemovalPending",pPkg.isRemovalPending());
+        packages.put(nameAndVersion + ";" + exporterId,row);
+    }
+
+    private void addRequiredBundle(RequiredBundle pReq) {
+        Bundle required = pReq.getBundle();
+        if (required == null) {
+            return;
+        }
+        long requiredId = required.getBundleId();
+        Bundle[] requiring = pReq.getRequiringBundles();
+        if (requiring != null) {
+            for (Bundle b : requiring) {
+                add(requiringBundles, requiredId, b.getBundleId());
+                add(requiredBundles, b.getBundleId(), requiredId);
+            }
+        }
+        if (pReq.isRemovalPending()) {
+            removalPending.add(requiredId);
+        }
+    }
+
+    private <T> void add(Map<Long,List<T>> pMap, long pKey, T pValue) {
+        List<T> list = pMap.get(pKey);
+        if (list == null) {
+            list = new ArrayList<T>();
+            pMap.put(pKey,list);
+        }
+        list.add(pValue);
+    }
+
+    private <T> List<T> get(Map<Long,List<T>> pMap, long pKey) {
+        List<T> ret = pMap.get(pKey);
+        return ret != null ? ret : Collections.<T>emptyList();
+    }
+}
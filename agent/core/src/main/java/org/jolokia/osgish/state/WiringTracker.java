@@ -0,0 +1,257 @@
+package org.jolokia.osgish.state;
+
+import org.jolokia.osgish.util.HeaderParser;
+import org.osgi.framework.*;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+import org.osgi.service.packageadmin.RequiredBundle;
+import org.osgi.util.tracker.ServiceTracker;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+/**
+ * Keeps track of the bundles whose wiring changed, for views on the wiring which are
+ * built once and afterwards only updated for these bundles (like the {@link PackageIndex}
+ * and the {@link DependencyGraph}). Bundles are marked by the listener, which stays
+ * cheap that way, and the changes are applied lazily by the view before its next query.
+ *
+ * It also provides the lookups of the wires of a single bundle. Imports can't be
+ * asked for directly, so the packages and bundles named in the Import-Package and
+ * Require-Bundle headers are looked up and checked for the bundle as importer.
+ * Wires of dynamic imports are only picked up when a view is rebuilt completely.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class WiringTracker {
+
+    private final BundleContext bundleContext;
+    private final ServiceTracker packageAdminTracker;
+
+    // Bundles whose wiring changed since the last update
+    private final Map<Long,Boolean> dirtyBundles = new ConcurrentHashMap<Long, Boolean>();
+    private volatile boolean allDirty = true;
+
+    /**
+     * Callback of a view for applying changes
+     */
+    public interface Handler {
+
+        /**
+         * Drop everything, since there is no package admin
+         */
+        void clear();
+
+        /**
+         * Build up the view from scratch
+         *
+         * @param pPackageAdmin package admin to ask for the wiring
+         */
+        void rebuild(PackageAdmin pPackageAdmin);
+
+        /**
+         * Reread the wiring of a single bundle
+         *
+         * @param pPackageAdmin package admin to ask for the wiring
+         * @param pBundleId id of the bundle, which might be uninstalled already
+         */
+        void update(PackageAdmin pPackageAdmin, long pBundleId);
+    }
+
+    public WiringTracker(BundleContext pBundleContext) {
+        bundleContext = pBundleContext;
+        packageAdminTracker = new ServiceTracker(pBundleContext, PackageAdmin.class.getName(), null);
+    }
+
+    public void open() {
+        packageAdminTracker.open();
+    }
+
+    public void close() {
+        packageAdminTracker.close();
+    }
+
+    /**
+     * Mark a bundle for updating if its resolution state changed
+     *
+     * @param pEvent bundle event
+     */
+    public void bundleChanged(BundleEvent pEvent) {
+        if ((pEvent.getType() & (BundleEvent.RESOLVED | BundleEvent.UNRESOLVED |
+                                 BundleEvent.UPDATED | BundleEvent.UNINSTALLED)) != 0) {
+            markDirty(pEvent.getBundle().getBundleId());
+        }
+    }
+
+    /**
+     * Mark a single bundle for updating
+     *
+     * @param pBundleId id of the bundle
+     */
+    public void markDirty(long pBundleId) {
+        dirtyBundles.put(pBundleId, Boolean.TRUE);
+    }
+
+    /**
+     * Mark all bundles for updating, e.g. when events have been lost
+     */
+    public void invalidateAll() {
+        allDirty = true;
+    }
+
+    /**
+     * Apply the changes since the last update to a view. Must be called with the
+     * lock of the view held.
+     *
+     * @param pHandler view to update
+     */
+    public void update(Handler pHandler) {
+        PackageAdmin packageAdmin = (PackageAdmin) packageAdminTracker.getService();
+        if (packageAdmin == null) {
+            pHandler.clear();
+            allDirty = true;
+            return;
+        }
+        if (allDirty) {
+            allDirty = false;
+            dirtyBundles.clear();
+            pHandler.rebuild(packageAdmin);
+            return;
+        }
+        Iterator<Long> it = dirtyBundles.keySet().iterator();
+        while (it.hasNext()) {
+            long id = it.next();
+            it.remove();
+            pHandler.update(packageAdmin, id);
+        }
+    }
+
+    /**
+     * Get all installed bundles
+     *
+     * @return installed bundles
+     */
+    public Bundle[] getBundles() {
+        Bundle[] ret = bundleContext.getBundles();
+        return ret != null ? ret : new Bundle[0];
+    }
+
+    /**
+     * Get the bundle for an id
+     *
+     * @param pBundleId id of the bundle
+     * @return the bundle or null if it is not installed anymore
+     */
+    public Bundle getBundle(long pBundleId) {
+        return bundleContext.getBundle(pBundleId);
+    }
+
+    /**
+     * Get the packages a bundle imports from other bundles or itself, as far as they
+     * are named in its Import-Package header
+     *
+     * @param pPackageAdmin package admin to ask
+     * @param pBundle the importing bundle
+     * @return the packages wired to the bundle
+     */
+    public static List<ExportedPackage> getImportedPackages(PackageAdmin pPackageAdmin, Bundle pBundle) {
+        List<ExportedPackage> ret = new ArrayList<ExportedPackage>();
+        String header = (String) pBundle.getHeaders("").get(Constants.IMPORT_PACKAGE);
+        for (String name : HeaderParser.getNames(header)) {
+            ExportedPackage[] candidates = pPackageAdmin.getExportedPackages(name);
+            if (candidates != null) {
+                for (ExportedPackage pkg : candidates) {
+                    if (pkg.getExportingBundle() != null &&
+                        contains(pkg.getImportingBundles(), pBundle.getBundleId())) {
+                        ret.add(pkg);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get the bundles a bundle is wired to by its Require-Bundle header
+     *
+     * @param pPackageAdmin package admin to ask
+     * @param pBundle the requiring bundle
+     * @return the required bundles
+     */
+    public static List<Bundle> getRequiredBundles(PackageAdmin pPackageAdmin, Bundle pBundle) {
+        List<Bundle> ret = new ArrayList<Bundle>();
+        String header = (String) pBundle.getHeaders("").get(Constants.REQUIRE_BUNDLE);
+        for (String name : HeaderParser.getNames(header)) {
+            RequiredBundle[] required = pPackageAdmin.getRequiredBundles(name);
+            if (required != null) {
+                for (RequiredBundle req : required) {
+                    if (req.getBundle() != null && contains(req.getRequiringBundles(), pBundle.getBundleId())) {
+                        ret.add(req.getBundle());
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get the bundles requiring a bundle
+     *
+     * @param pPackageAdmin package admin to ask
+     * @param pBundle the required bundle
+     * @return the requiring bundles
+     */
+    public static List<Bundle> getRequiringBundles(PackageAdmin pPackageAdmin, Bundle pBundle) {
+        List<Bundle> ret = new ArrayList<Bundle>();
+        if (pBundle.getSymbolicName() != null) {
+            RequiredBundle[] required = pPackageAdmin.getRequiredBundles(pBundle.getSymbolicName());
+            if (required != null) {
+                for (RequiredBundle req : required) {
+                    if (req.getBundle() != null && req.getBundle().getBundleId() == pBundle.getBundleId() &&
+                        req.getRequiringBundles() != null) {
+                        ret.addAll(Arrays.asList(req.getRequiringBundles()));
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    // =================================================================================
+
+    private static boolean contains(Bundle[] pBundles, long pId) {
+        if (pBundles != null) {
+            for (Bundle b : pBundles) {
+                if (b.getBundleId() == pId) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,221 @@
+package org.jolokia.osgish.upload;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+/**
+ * Decodes content transferred with a <code>Content-Encoding</code> while it is read,
+ * so that compressed uploads are inflated on their way into the destination file
+ * without ever being buffered as a whole. Supported are "gzip" and "deflate" (zlib
+ * format) as well as "identity".
+ *
+ * The bytes read on both sides are counted, as well as the time spent inflating
+ * (not including the time waiting for the network), so that the compression ratio
+ * and the decoding cost can be reported back to the client.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class ContentDecoder {
+
+    // Size of the buffer for compressed input. Large enough so that the inflater
+    // does not need to go back to the network for every few bytes.
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Encodings supported
+     */
+    public enum Encoding {
+        IDENTITY, GZIP, DEFLATE;
+
+        /**
+         * Lookup the encoding given in a <code>Content-Encoding</code> header
+         *
+         * @param pHeader header value, can be null
+         * @return the encoding, {@link #IDENTITY} if no header is given
+         * @throws IllegalArgumentException if the encoding is not supported
+         */
+        public static Encoding fromHeader(String pHeader) {
+            if (pHeader == null || pHeader.trim().length() == 0) {
+                return IDENTITY;
+            }
+            String name = pHeader.trim().toLowerCase();
+            if (name.equals("x-gzip")) {
+                return GZIP;
+            }
+            try {
+                return valueOf(name.toUpperCase());
+            } catch (IllegalArgumentException exp) {
+                throw new IllegalArgumentException("Unsupported Content-Encoding '" + pHeader +
+                                                   "' (supported: gzip, deflate, identity)");
+            }
+        }
+    }
+
+    private final Encoding encoding;
+
+    // Counting the compressed bytes and the decompressed bytes handed out
+    private final CountingInputStream raw;
+    private final CountingInputStream decoded;
+
+    /**
+     * Constructor
+     *
+     * @param pIn stream with the content as transferred
+     * @param pContentEncoding value of the <code>Content-Encoding</code> header, can be null
+     * @throws IOException if the header of a compressed stream can not be read
+     * @throws IllegalArgumentException if the encoding is not supported
+     */
+    public ContentDecoder(InputStream pIn, String pContentEncoding) throws IOException {
+        encoding = Encoding.fromHeader(pContentEncoding);
+        raw = new CountingInputStream(pIn);
+        switch (encoding) {
+            case GZIP:
+                decoded = new CountingInputStream(new GZIPInputStream(raw, INPUT_BUFFER_SIZE));
+                break;
+            case DEFLATE:
+                decoded = new CountingInputStream(new InflaterInputStream(raw, new Inflater(), INPUT_BUFFER_SIZE));
+                break;
+            default:
+                decoded = raw;
+        }
+    }
+
+    /**
+     * Get the stream providing the decoded content. Closing it closes the original stream.
+     *
+     * @return decoded stream
+     */
+    public InputStream getStream() {
+        return decoded;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    public boolean isEncoded() {
+        return encoding != Encoding.IDENTITY;
+    }
+
+    /**
+     * Get the number of bytes received so far
+     *
+     * @return bytes as transferred
+     */
+    public long getEncodedSize() {
+        return raw.count;
+    }
+
+    /**
+     * Get the number of bytes decoded so far
+     *
+     * @return bytes after decoding
+     */
+    public long getDecodedSize() {
+        return decoded.count;
+    }
+
+    /**
+     * Get the time spent for decoding, without the time spent for receiving the content
+     *
+     * @return time in nanoseconds
+     */
+    public long getDecodeNanos() {
+        return isEncoded() ? Math.max(decoded.nanos - raw.nanos, 0) : 0;
+    }
+
+    /**
+     * Get the statistics of the transfer as map suitable for JSON serialization
+     *
+     * @return map with the "encoding", the "encodedSize" and (decoded) "size" in bytes, the
+     *         compression "ratio" (decoded size per transferred byte) and the "decodeTime" in ms
+     */
+    public Map<String,Object> toMap() {
+        Map<String,Object> ret = new HashMap<String, Object>();
+        long encodedSize = getEncodedSize();
+        long size = getDecodedSize();
+        ret.put("encoding",encoding.name().toLowerCase());
+        ret.put("encodedSize",encodedSize);
+        ret.put("size",size);
+        ret.put("ratio",encodedSize > 0 ? Math.round(size * 100.0 / encodedSize) / 100.0 : 1.0);
+        ret.put("decodeTime",Math.round(getDecodeNanos() / 1000.0) / 1000.0);
+        return ret;
+    }
+
+    // =================================================================================
+
+    // Counts bytes and the time spent within read(). Only used by a single thread.
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+        private long nanos;
+
+        private CountingInputStream(InputStream pIn) {
+            super(pIn);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int ret = super.read();
+            nanos += System.nanoTime() - start;
+            if (ret != -1) {
+                count++;
+            }
+            return ret;
+        }
+
+        @Override
+        public int read(byte[] pBuffer, int pOffset, int pLength) throws IOException {
+            long start = System.nanoTime();
+            int ret = super.read(pBuffer, pOffset, pLength);
+            nanos += System.nanoTime() - start;
+            if (ret > 0) {
+                count += ret;
+            }
+            return ret;
+        }
+
+        @Override
+        public long skip(long pLength) throws IOException {
+            long ret = super.skip(pLength);
+            count += ret;
+            return ret;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.jolokia.osgish.upload;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Striped locks for file names in the upload directory. All operations which
+ * replace or remove a file under its final name (and update the digest index
+ * accordingly) hold the lock for this name. Different names map to different
+ * stripes with high probability, so that unrelated uploads do not block each
+ * other, while the number of locks stays fixed.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class NameLocks {
+
+    private final Lock[] locks;
+
+    // Mask for selecting a stripe, the number of stripes is a power of two
+    private final int mask;
+
+    /**
+     * Constructor
+     *
+     * @param pStripes minimal number of stripes, rounded up to a power of two
+     */
+    public NameLocks(int pStripes) {
+        int stripes = Integer.highestOneBit(Math.max(pStripes, 1) * 2 - 1);
+        locks = new Lock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        mask = stripes - 1;
+    }
+
+    /**
+     * Get the lock responsible for the given name
+     *
+     * @param pName file name
+     * @return lock for this name
+     */
+    public Lock get(String pName) {
+        int h = pName.hashCode();
+        // Spread the higher bits, names often differ only at their end
+        h ^= (h >>> 16) ^ (h >>> 8);
+        return locks[h & mask];
+    }
+}
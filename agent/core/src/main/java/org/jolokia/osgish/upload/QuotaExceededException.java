@@ -0,0 +1,43 @@
+package org.jolokia.osgish.upload;
+
+import java.io.IOException;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+/**
+ * Thrown when storing a file would exceed the quota of the upload directory.
+ * Nothing has been stored in this case.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class QuotaExceededException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public QuotaExceededException(String pMessage) {
+        super(pMessage);
+    }
+}
@@ -0,0 +1,100 @@
+package org.jolokia.osgish.upload;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Admission control for transfers into the upload directory. Since the servlet
+ * container's request thread does the I/O, the number of transfers running at
+ * once is bounded by permits. A transfer which doesn't get a permit within a
+ * short time is rejected, so that the client can retry later instead of piling
+ * up threads which all compete for the same disk.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class TransferAdmission {
+
+    // Permits for concurrent transfers
+    private final Semaphore permits;
+
+    // How long to wait for a permit (in milliseconds)
+    private final long maxWait;
+
+    // Seconds after which a rejected client should try again
+    private final int retryAfter;
+
+    /**
+     * Constructor
+     *
+     * @param pMaxTransfers number of transfers which may run concurrently
+     * @param pMaxWait how long a transfer may wait for admission (in milliseconds)
+     * @param pRetryAfter seconds after which a rejected client should retry
+     */
+    public TransferAdmission(int pMaxTransfers, long pMaxWait, int pRetryAfter) {
+        if (pMaxTransfers <= 0) {
+            throw new IllegalArgumentException("Number of concurrent transfers must be positive, not " + pMaxTransfers);
+        }
+        // Fair, so that waiting transfers are admitted in order
+        permits = new Semaphore(pMaxTransfers, true);
+        maxWait = pMaxWait;
+        retryAfter = pRetryAfter;
+    }
+
+    /**
+     * Try to get admitted. If this returns true, {@link #release()} must be called
+     * when the transfer is done.
+     *
+     * @return true if the transfer may start, false if it is to be rejected
+     */
+    public boolean acquire() {
+        try {
+            return permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Finish a transfer admitted by {@link #acquire()}
+     */
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * Seconds after which a rejected client should retry, suitable for a
+     * <code>Retry-After</code> header
+     *
+     * @return seconds to wait
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,633 @@
+package org.jolokia.osgish.upload;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Index of all files in the upload directory, holding size, modification time,
+ * SHA-256 digest and the bundle's symbolic name and version for each file. It
+ * allows to lookup a file by its content, so that clients can check whether a
+ * bundle is already there before transferring it again, and serves sorted, prefix
+ * filtered listings without scanning the directory.
+ *
+ * Files uploaded are recorded while they are written. Files which appear otherwise
+ * are picked up when the modification time of the directory changes. An entry is
+ * only trusted as long as size and modification time of the file are unchanged.
+ * The index is kept in a hidden subdirectory of the upload directory so that it
+ * survives restarts. Changes are not saved right away but collected and written
+ * by {@link #flush()}, which is called periodically by the {@link UploadSweeper} and
+ * when the upload store is closed. Entries lost by a crash are rebuilt lazily.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class UploadIndex {
+
+    /**
+     * Digest algorithm used for all files
+     */
+    public static final String ALGORITHM = "SHA-256";
+
+    // Directory holding the persisted index. Starts with the temp prefix, so it is
+    // never listed or overwritten by an upload. Since the index is rewritten within
+    // this directory, saving it doesn't change the modification time of the upload
+    // directory itself, which would trigger a rescan.
+    private static final String INDEX_DIRECTORY = UploadWriter.TEMP_PREFIX + "meta";
+    private static final String INDEX_FILE = "index";
+
+    // Where older versions kept the index, read if there is no other index yet
+    private static final String LEGACY_INDEX_FILE = UploadWriter.TEMP_PREFIX + "index";
+
+    // Directory timestamps closer than this to the time of a scan are not trusted,
+    // since filesystems with a coarse granularity could hide later changes
+    private static final long TIMESTAMP_GRANULARITY = 2000;
+
+    private final File directory;
+    private final File indexDirectory;
+    private final File indexFile;
+
+    // Serializes writing the index, taken before the lock of the index itself
+    private final Object saveLock = new Object();
+
+    // Path prefix for all files in the directory
+    private final String canonicalDirectory;
+
+    // Name -> entry, sorted by name, and digest -> names
+    private final TreeMap<String,Entry> entries = new TreeMap<String, Entry>();
+    private final Map<String,Set<String>> byDigest = new HashMap<String, Set<String>>();
+
+    // Sum of the sizes of all indexed files
+    private long totalSize;
+
+    // Modification time of the directory when it was scanned last
+    private long lastScan = -1;
+
+    // Whether there are changes which have not been saved yet
+    private boolean dirty;
+
+    // Whether the persisted index has been read already
+    private boolean loaded;
+
+    /**
+     * Constructor
+     *
+     * @param pDirectory upload directory
+     */
+    public UploadIndex(File pDirectory) {
+        directory = pDirectory;
+        indexDirectory = new File(pDirectory, INDEX_DIRECTORY);
+        indexFile = new File(indexDirectory, INDEX_FILE);
+        canonicalDirectory = getCanonicalPath(pDirectory);
+    }
+
+    /**
+     * Record the digest of a file which has just been written
+     *
+     * @param pFile file within the upload directory
+     * @param pDigest hex encoded digest of its content
+     */
+    public void put(File pFile, String pDigest) {
+        checkLoaded();
+        long size = pFile.length();
+        long lastModified = pFile.lastModified();
+        // Parse the manifest outside the lock
+        String[] bundle = readBundleHeaders(pFile);
+        synchronized (this) {
+            addEntry(new Entry(pFile.getName(), size, lastModified, pDigest, bundle[0], bundle[1]));
+            dirty = true;
+        }
+    }
+
+    /**
+     * Forget about a file, e.g. after it has been deleted
+     *
+     * @param pName name of the file
+     */
+    public synchronized void remove(String pName) {
+        checkLoaded();
+        if (removeEntry(pName) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Save the index if it has changed since it has been saved last. The index is
+     * written to a temporary file first, so that a crash never leaves a truncated index.
+     */
+    public void flush() {
+        synchronized (saveLock) {
+            Properties props;
+            synchronized (this) {
+                if (!dirty) {
+                    return;
+                }
+                dirty = false;
+                props = toProperties();
+            }
+            if (!save(props)) {
+                synchronized (this) {
+                    dirty = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the digest of a file in the upload directory, calculating it if necessary
+     *
+     * @param pName name of the file
+     * @return hex encoded digest or null if there is no such file
+     * @throws IOException if the file can not be read
+     */
+    public String getDigest(String pName) throws IOException {
+        checkLoaded();
+        File file = new File(directory, pName);
+        synchronized (this) {
+            Entry entry = entries.get(pName);
+            if (entry != null && entry.isValid(file)) {
+                return entry.digest;
+            }
+        }
+        if (!file.isFile()) {
+            synchronized (this) {
+                if (removeEntry(pName) != null) {
+                    dirty = true;
+                }
+            }
+            return null;
+        }
+        String digest = digest(file);
+        put(file, digest);
+        return digest;
+    }
+
+    /**
+     * Get the canonical path of a file in the upload directory, as reported in
+     * "canonicalPath" by {@link #getFileInfo(String)}
+     *
+     * @param pName name of the file
+     * @return canonical path
+     */
+    public String getCanonicalPath(String pName) {
+        return canonicalDirectory + File.separator + pName;
+    }
+
+    /**
+     * Get the total size of all indexed files. The directory is not scanned, so files
+     * which appeared behind our back are only counted after the next {@link #refresh()}.
+     *
+     * @return size in bytes
+     */
+    public synchronized long getTotalSize() {
+        checkLoaded();
+        return totalSize;
+    }
+
+    /**
+     * Get the number of indexed files, with the same restriction as for {@link #getTotalSize()}
+     *
+     * @return number of files
+     */
+    public synchronized int getFileCount() {
+        checkLoaded();
+        return entries.size();
+    }
+
+    /**
+     * Get the size of a file as known to the index, without touching the file itself
+     *
+     * @param pName name of the file
+     * @return size in bytes or 0 if the file is not indexed
+     */
+    public synchronized long getSize(String pName) {
+        checkLoaded();
+        Entry entry = entries.get(pName);
+        return entry != null ? entry.size : 0;
+    }
+
+    /**
+     * Lookup a file by the digest of its content
+     *
+     * @param pDigest hex encoded digest
+     * @return a file with this content or null if there is none
+     * @throws IOException if files in the directory need to be hashed and can not be read
+     */
+    public File lookup(String pDigest) throws IOException {
+        String digest = pDigest.toLowerCase();
+        refresh();
+        List<String> names;
+        synchronized (this) {
+            Set<String> candidates = byDigest.get(digest);
+            if (candidates == null) {
+                return null;
+            }
+            names = new ArrayList<String>(candidates);
+        }
+        for (String name : names) {
+            // Recheck, the file might have been modified in place
+            if (digest.equals(getDigest(name))) {
+                return new File(directory, name);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get all files whose name starts with the given prefix, sorted by name
+     *
+     * @param pPrefix prefix to match, null or empty for all files
+     * @param pOffset number of matching files to skip
+     * @param pLimit maximum number of files to return, a negative number for no limit
+     * @return map with the total number of matching files ("total") and the requested
+     *         page ("files", a list of maps as returned by {@link #getFileInfo(String)})
+     * @throws IOException if files have been added and can not be indexed
+     */
+    public Map<String,Object> list(String pPrefix, int pOffset, int pLimit) throws IOException {
+        refresh();
+        List<Entry> page = new ArrayList<Entry>();
+        int total;
+        synchronized (this) {
+            SortedMap<String,Entry> matching = getMatching(pPrefix);
+            total = matching.size();
+            int idx = 0;
+            for (Entry entry : matching.values()) {
+                if (pLimit >= 0 && page.size() >= pLimit) {
+                    break;
+                }
+                if (idx++ >= pOffset) {
+                    page.add(entry);
+                }
+            }
+        }
+        List<Map<String,Object>> files = new ArrayList<Map<String, Object>>();
+        for (Entry entry : page) {
+            Entry current = revalidate(entry);
+            if (current != null) {
+                files.add(current.toMap(canonicalDirectory));
+            }
+        }
+        Map<String,Object> ret = new HashMap<String, Object>();
+        ret.put("total",total);
+        ret.put("offset",pOffset);
+        ret.put("files",files);
+        return ret;
+    }
+
+    /**
+     * Get the names of all files starting with a given prefix, e.g. for completion
+     *
+     * @param pPrefix prefix to match
+     * @param pLimit maximum number of names to return, a negative number for no limit
+     * @return sorted list of names
+     * @throws IOException if files have been added and can not be indexed
+     */
+    public List<String> getNames(String pPrefix, int pLimit) throws IOException {
+        refresh();
+        List<String> ret = new ArrayList<String>();
+        synchronized (this) {
+            for (String name : getMatching(pPrefix).keySet()) {
+                if (pLimit >= 0 && ret.size() >= pLimit) {
+                    break;
+                }
+                ret.add(name);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get the metadata of a single file
+     *
+     * @param pName name of the file
+     * @return map with "name", "length", "modified", "canonicalPath", "digest", "symbolicName"
+     *         and "version" (the latter two only for bundles) or null if there is no such file.
+     * @throws IOException if the file can not be indexed
+     */
+    public Map<String,Object> getFileInfo(String pName) throws IOException {
+        if (getDigest(pName) == null) {
+            return null;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(pName);
+        }
+        return entry != null ? entry.toMap(canonicalDirectory) : null;
+    }
+
+    /**
+     * Bring the index up to date with the directory if files have been added or removed
+     * behind our back.
+     *
+     * @throws IOException if a new file can not be hashed
+     */
+    public void refresh() throws IOException {
+        checkLoaded();
+        long modified = directory.lastModified();
+        synchronized (this) {
+            if (modified == lastScan) {
+                return;
+            }
+        }
+        File[] files = directory.listFiles();
+        Set<String> names = new HashSet<String>();
+        for (File file : files != null ? files : new File[0]) {
+            String name = file.getName();
+            if (file.isFile() && !name.startsWith(UploadWriter.TEMP_PREFIX)) {
+                names.add(name);
+                getDigest(name);
+            }
+        }
+        synchronized (this) {
+            for (String name : new ArrayList<String>(entries.keySet())) {
+                if (!names.contains(name)) {
+                    removeEntry(name);
+                    dirty = true;
+                }
+            }
+            // A change in the same time slot as the scan would go unnoticed
+            lastScan = System.currentTimeMillis() - modified > TIMESTAMP_GRANULARITY ? modified : -1;
+        }
+    }
+
+    // =================================================================================
+
+    /**
+     * Create a new digest for the algorithm used by the index
+     *
+     * @return message digest
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every JRE is required to support SHA-256
+            throw new IllegalStateException("No " + ALGORITHM + " available: " + e,e);
+        }
+    }
+
+    /**
+     * Calculate the digest of a file
+     *
+     * @param pFile file to hash
+     * @return hex encoded digest
+     * @throws IOException if the file can not be read
+     */
+    public static String digest(File pFile) throws IOException {
+        MessageDigest digest = newDigest();
+        FileInputStream in = new FileInputStream(pFile);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Convert a digest to its lower case hex representation
+     *
+     * @param pDigest digest to convert
+     * @return hex string
+     */
+    public static String toHex(byte[] pDigest) {
+        StringBuilder ret = new StringBuilder(pDigest.length * 2);
+        for (byte b : pDigest) {
+            ret.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return ret.toString();
+    }
+
+    // =================================================================================
+
+    // Get the current entry for an entry which might be stale, or null if the file is gone
+    private Entry revalidate(Entry pEntry) throws IOException {
+        if (pEntry.isValid(new File(directory, pEntry.name))) {
+            return pEntry;
+        }
+        if (getDigest(pEntry.name) == null) {
+            return null;
+        }
+        synchronized (this) {
+            return entries.get(pEntry.name);
+        }
+    }
+
+    private SortedMap<String,Entry> getMatching(String pPrefix) {
+        if (pPrefix == null || pPrefix.length() == 0) {
+            return entries;
+        }
+        return entries.subMap(pPrefix, pPrefix + Character.MAX_VALUE);
+    }
+
+    // Symbolic name and version of a bundle, both null for files which are not bundles
+    private static String[] readBundleHeaders(File pFile) {
+        String[] ret = new String[2];
+        try {
+            JarFile jar = new JarFile(pFile, false);
+            try {
+                Manifest manifest = jar.getManifest();
+                if (manifest != null) {
+                    Attributes attrs = manifest.getMainAttributes();
+                    String bsn = attrs.getValue("Bundle-SymbolicName");
+                    if (bsn != null) {
+                        // Strip directives like ";singleton:=true"
+                        int idx = bsn.indexOf(';');
+                        ret[0] = (idx != -1 ? bsn.substring(0, idx) : bsn).trim();
+                        String version = attrs.getValue("Bundle-Version");
+                        ret[1] = version != null ? version.trim() : "0.0.0";
+                    }
+                }
+            } finally {
+                jar.close();
+            }
+        } catch (IOException exp) {
+            // No jar at all
+        }
+        return ret;
+    }
+
+    private static String getCanonicalPath(File pFile) {
+        try {
+            return pFile.getCanonicalPath();
+        } catch (IOException exp) {
+            return pFile.getAbsolutePath();
+        }
+    }
+
+    private void addEntry(Entry pEntry) {
+        removeEntry(pEntry.name);
+        entries.put(pEntry.name, pEntry);
+        totalSize += pEntry.size;
+        Set<String> names = byDigest.get(pEntry.digest);
+        if (names == null) {
+            names = new HashSet<String>();
+            byDigest.put(pEntry.digest, names);
+        }
+        names.add(pEntry.name);
+    }
+
+    private Entry removeEntry(String pName) {
+        Entry old = entries.remove(pName);
+        if (old != null) {
+            totalSize -= old.size;
+            Set<String> names = byDigest.get(old.digest);
+            names.remove(pName);
+            if (names.isEmpty()) {
+                byDigest.remove(old.digest);
+            }
+        }
+        return old;
+    }
+
+    // The index is read on first use, so that it does not slow down the startup
+    private synchronized void checkLoaded() {
+        if (!loaded) {
+            loaded = true;
+            load();
+        }
+    }
+
+    // Format: one line per file: name=size,mtime,digest[,symbolicName,version]
+    private void load() {
+        File file = indexFile.exists() ? indexFile : new File(directory, LEGACY_INDEX_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        Properties props = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException exp) {
+            // Will be rebuilt lazily
+            return;
+        }
+        for (Object key : props.keySet()) {
+            String name = (String) key;
+            String[] parts = props.getProperty(name).split(",");
+            if (parts.length == 3 || parts.length == 5) {
+                try {
+                    addEntry(new Entry(name, Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2],
+                                       parts.length == 5 ? parts[3] : null, parts.length == 5 ? parts[4] : null));
+                } catch (NumberFormatException exp) {
+                    // Ignore broken line
+                }
+            }
+        }
+    }
+
+    private Properties toProperties() {
+        Properties props = new Properties();
+        for (Entry entry : entries.values()) {
+            props.setProperty(entry.name, entry.size + "," + entry.lastModified + "," + entry.digest +
+                              (entry.symbolicName != null ? "," + entry.symbolicName + "," + entry.version : ""));
+        }
+        return props;
+    }
+
+    // Write to a temporary file next to the index first so that a crash never leaves
+    // a truncated index. Returns false if the index could not be written.
+    private boolean save(Properties pProps) {
+        try {
+            if (!indexDirectory.isDirectory() && !indexDirectory.mkdir()) {
+                return false;
+            }
+            File temp = File.createTempFile(INDEX_FILE, ".tmp", indexDirectory);
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                pProps.store(out, "Digests of uploaded files");
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(indexFile) && (!indexFile.delete() || !temp.renameTo(indexFile))) {
+                temp.delete();
+                return false;
+            }
+            new File(directory, LEGACY_INDEX_FILE).delete();
+            return true;
+        } catch (IOException exp) {
+            // Not fatal, the index is rebuilt lazily after a restart
+            return false;
+        }
+    }
+
+    // A single file with its metadata
+    private static final class Entry {
+        private final String name;
+        private final long size;
+        private final long lastModified;
+        private final String digest;
+        private final String symbolicName;
+        private final String version;
+
+        private Entry(String pName, long pSize, long pLastModified, String pDigest,
+                      String pSymbolicName, String pVersion) {
+            name = pName;
+            size = pSize;
+            lastModified = pLastModified;
+            digest = pDigest;
+            symbolicName = pSymbolicName;
+            version = pVersion;
+        }
+
+        private boolean isValid(File pFile) {
+            return pFile.length() == size && pFile.lastModified() == lastModified;
+        }
+
+        // Same keys as used for serializing a java.io.File, so existing clients keep working
+        private Map<String,Object> toMap(String pDirectory) {
+            Map<String,Object> ret = new HashMap<String, Object>();
+            ret.put("name",name);
+            ret.put("length",size);
+            ret.put("modified",lastModified);
+            ret.put("canonicalPath",pDirectory + File.separator + name);
+            ret.put("digest",digest);
+            if (symbolicName != null) {
+                ret.put("symbolicName",symbolicName);
+                ret.put("version",version);
+            }
+            return ret;
+        }
+    }
+}
@@ -1,17 +1,31 @@
 package org.jolokia.osgish.upload;
 
+import org.apache.commons.fileupload.FileItemHeaders;
 import org.apache.commons.fileupload.FileItemIterator;
 import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.io.FilenameUtils;
+import org.jolokia.osgish.log.AgentLog;
+import org.jolokia.osgish.metrics.Histogram;
+import org.jolokia.osgish.metrics.Metrics;
+import org.jolokia.osgish.metrics.StripedCounter;
+import org.jolokia.osgish.util.Base64;
+import org.json.simple.JSONValue;
 import org.osgi.service.log.LogService;
-import org.osgi.util.tracker.ServiceTracker;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipException;
 
 /*
  * osgish - An OSGi Shell
@@ -45,24 +59,229 @@ import java.io.*;
 public class UploadServlet extends HttpServlet {
 
     // for logging. It is supposed to be open and managed outside
-    private ServiceTracker logTracker;
+    private AgentLog log;
 
-    // Directory where to upload
-    private File uploadDirectory;
+    // Writer used for storing uploaded files in the upload directory
+    private UploadWriter uploadWriter;
 
-    public UploadServlet(ServiceTracker pLogTracker,File pDataDir) {
-        logTracker = pLogTracker;
+    // Open sessions for chunked uploads
+    private UploadSessions uploadSessions;
 
-        uploadDirectory = pDataDir;
+    // Path below which chunked upload sessions live
+    private static final String SESSION_PATH = "/session";
+
+    // Range of a chunk, e.g. "bytes 0-1023/4096"
+    private static final Pattern CONTENT_RANGE = Pattern.compile("^bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)$");
+
+    // Request parameter holding the SHA-256 digest expected by the client
+    private static final String DIGEST_PARAM = "sha256";
+
+    // Metrics: request latency per method, requests in flight, bytes received and
+    // size and throughput of each transfer, uploads rejected because of overload or quota
+    private Histogram getTimer;
+    private Histogram postTimer;
+    private Histogram putTimer;
+    private Histogram deleteTimer;
+    private Histogram otherTimer;
+    private StripedCounter inFlight;
+    private StripedCounter bytesReceived;
+    private Histogram transferSize;
+    private Histogram throughput;
+    private StripedCounter rejected;
+    private StripedCounter quotaExceeded;
+
+    // Metrics for compressed transfers: bytes on the wire, time spent decoding and
+    // compression ratio (decoded size in percent of the transferred size)
+    private StripedCounter bytesTransferred;
+    private Histogram decodeTime;
+    private Histogram compressionRatio;
+
+    // Admission control for requests transferring content
+    private TransferAdmission admission;
+
+    /**
+     * Constructor
+     *
+     * @param pLog agent log
+     * @param pUploadWriter writer for storing uploaded files
+     * @param pUploadSessions open sessions of chunked uploads
+     * @param pAdmission admission control for uploads and chunks
+     * @param pMetrics where to record metrics
+     */
+    public UploadServlet(AgentLog pLog, UploadWriter pUploadWriter, UploadSessions pUploadSessions,
+                         TransferAdmission pAdmission, Metrics pMetrics) {
+        log = pLog;
+
+        uploadWriter = pUploadWriter;
+        uploadSessions = pUploadSessions;
+        admission = pAdmission;
+
+        // Fixed set of timers, so that arbitrary methods sent by clients can't create new ones
+        getTimer = pMetrics.timer("upload.GET");
+        postTimer = pMetrics.timer("upload.POST");
+        putTimer = pMetrics.timer("upload.PUT");
+        deleteTimer = pMetrics.timer("upload.DELETE");
+        otherTimer = pMetrics.timer("upload.other");
+        inFlight = pMetrics.counter("inflight.upload");
+        bytesReceived = pMetrics.counter("upload.bytes");
+        transferSize = pMetrics.histogram("upload.size","bytes");
+        throughput = pMetrics.histogram("upload.throughput","KB/s");
+        rejected = pMetrics.counter("upload.rejected");
+        quotaExceeded = pMetrics.counter("upload.quotaExceeded");
+        bytesTransferred = pMetrics.counter("upload.transferredBytes");
+        decodeTime = pMetrics.timer("upload.decode");
+        compressionRatio = pMetrics.histogram("upload.compressionRatio","%");
+    }
+
+    @Override
+    protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        long start = System.nanoTime();
+        // Only uploads, chunks and commits (which read the whole file) are subject to
+        // admission control, status requests and aborts are always served
+        boolean transfer = "POST".equals(req.getMethod()) || "PUT".equals(req.getMethod());
+        if (transfer && !admission.acquire()) {
+            rejected.increment();
+            resp.setHeader("Retry-After",Integer.toString(admission.getRetryAfter()));
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,"Too many concurrent uploads, try again later");
+            return;
+        }
+        inFlight.increment();
+        try {
+            super.service(req, resp);
+        } finally {
+            inFlight.decrement();
+            if (transfer) {
+                admission.release();
+            }
+            getMethodTimer(req.getMethod()).recordSince(start);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        uploadSessions.abortAll();
+        super.destroy();
     }
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        throw new ServletException("GET is not supported for file upload");
+        UploadSession session = lookupSession(req, resp);
+        if (session != null) {
+            // Status of a chunked upload, including the ranges already received
+            sendJson(resp, session.toMap());
+            return;
+        }
+        if (!resp.isCommitted()) {
+            throw new ServletException("GET is not supported for file upload");
+        }
+    }
+
+    /**
+     * Upload a single file as raw request body to <code>/&lt;name&gt;</code>, without any
+     * multipart parsing. The body is streamed straight into the upload directory and can be
+     * checked against a <code>Content-MD5</code> or <code>Digest</code> header (SHA-256 or MD5)
+     * or the <code>sha256</code> parameter.
+     *
+     * Alternatively, write a chunk of a chunked upload. The request must contain a <code>Content-Range</code>
+     * header (e.g. <code>bytes 0-1023/4096</code>) and goes to <code>session/&lt;id&gt;</code>.
+     * The chunk can be compressed with a <code>Content-Encoding</code> of "gzip" or "deflate",
+     * the range always refers to the decoded content.
+     */
+    @Override
+    protected void doPut(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        UploadSession session = lookupSession(req, resp);
+        if (session == null) {
+            if (resp.isCommitted()) {
+                return;
+            }
+            String path = req.getPathInfo();
+            if (path != null && path.length() > 1 && !isSessionPath(path)) {
+                uploadRaw(path.substring(1), req, resp);
+            } else {
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND,"No upload session or file name given");
+            }
+            return;
+        }
+        String range = req.getHeader("Content-Range");
+        Matcher matcher = range != null ? CONTENT_RANGE.matcher(range.trim()) : null;
+        if (matcher == null || !matcher.matches()) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST,"Missing or invalid Content-Range: " + range);
+            return;
+        }
+        long start = Long.parseLong(matcher.group(1));
+        long end = Long.parseLong(matcher.group(2));
+        if (end < start || end >= session.getSize() ||
+            (!"*".equals(matcher.group(3)) && Long.parseLong(matcher.group(3)) != session.getSize())) {
+            resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE,
+                           "Range " + range + " does not match size " + session.getSize() + " of " + session.getName());
+            return;
+        }
+        ContentDecoder decoder = createDecoder(req.getInputStream(), req.getHeader("Content-Encoding"), resp);
+        if (decoder == null) {
+            return;
+        }
+        long length = end - start + 1;
+        long transferStart = System.nanoTime();
+        long written;
+        try {
+            written = session.write(decoder.getStream(), start, length);
+        } catch (ZipException exp) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST,"Invalid " + decoder.getEncoding() + " content in chunk " + range + ": " + exp.getMessage());
+            return;
+        } catch (IllegalArgumentException exp) {
+            // More content than the range announced
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST,exp.getMessage());
+            return;
+        } catch (IllegalStateException exp) {
+            // Committed, aborted or expired since the lookup
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND,exp.getMessage());
+            return;
+        }
+        recordTransfer(written, transferStart);
+        recordDecoding(decoder);
+        if (written < length) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST,"Chunk " + range + " is incomplete, got only " + written + " bytes");
+            return;
+        }
+        Map<String,Object> ret = session.toMap();
+        if (decoder.isEncoded()) {
+            ret.put("transfer",decoder.toMap());
+        }
+        sendJson(resp, ret);
     }
 
+    /**
+     * Abort a chunked upload
+     */
+    @Override
+    protected void doDelete(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        UploadSession session = lookupSession(req, resp);
+        if (session != null) {
+            uploadSessions.remove(session.getId());
+            session.abort();
+            resp.setStatus(HttpServletResponse.SC_OK);
+        } else if (!resp.isCommitted()) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND,"No upload session given");
+        }
+    }
+
+    /**
+     * Upload files with a multipart request, or open and commit a chunked upload below
+     * <code>session</code>. Each file item can be compressed on its own, announced by a
+     * <code>Content-Encoding</code> header of "gzip" or "deflate" within the item. The
+     * response lists the files stored along with their compression ratio and decoding time.
+     */
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String path = request.getPathInfo();
+        if (isSessionPath(path)) {
+            if (path.equals(SESSION_PATH) || path.equals(SESSION_PATH + "/")) {
+                createSession(request, response);
+            } else {
+                commitSession(request, response);
+            }
+            return;
+        }
         if (!ServletFileUpload.isMultipartContent(request)) {
             throw new ServletException("Request has no multipart content");
         }
@@ -71,6 +290,7 @@ public class UploadServlet extends HttpServlet {
 
         // Parse the request
         FileItemIterator iter;
+        List<Map<String,Object>> files = new ArrayList<Map<String, Object>>();
         try {
             iter = upload.getItemIterator(request);
             while (iter.hasNext()) {
@@ -79,43 +299,269 @@ public class UploadServlet extends HttpServlet {
                 if (item.isFormField()) {
                     throw new ServletException("A Form field is not expected here");
                 } else {
-                    File dest = new File(uploadDirectory, item.getName());
+                    // Some browser send the full client side path
+                    String name = FilenameUtils.getName(item.getName());
+                    // Items can be compressed individually
+                    ContentDecoder decoder = createDecoder(in, getHeader(item, "Content-Encoding"), response);
+                    if (decoder == null) {
+                        return;
+                    }
                     try {
-                        OutputStream out = new FileOutputStream(dest);
-                        copy(in,out);
-                        LogService log = (LogService) logTracker.getService();
-                        if (log != null) {
+                        long transferStart = System.nanoTime();
+                        // The size of compressed content is not known in advance. The request's
+                        // length covers all parts, so only the item's own length is a hint.
+                        File dest = uploadWriter.write(decoder.getStream(), name,
+                                                       decoder.isEncoded() ? -1 : parseLength(getHeader(item, "Content-Length")),
+                                                       request.getParameter(DIGEST_PARAM));
+                        recordTransfer(dest.length(), transferStart);
+                        recordDecoding(decoder);
+                        if (log.isEnabled(LogService.LOG_INFO)) {
                             log.log(LogService.LOG_INFO,"Uploaded " + dest.getName() +
-                                    " (size: " + dest.length() + ")");
+                                    " (size: " + dest.length() + ", " + decoder.getEncoding() + " encoded: " +
+                                    decoder.getEncodedSize() + ")");
                         }
+                        Map<String,Object> file = decoder.toMap();
+                        file.put("name",dest.getName());
+                        files.add(file);
                         // TODO: Return internal location/url of this bundle
+                    } catch (ZipException exp) {
+                        response.sendError(HttpServletResponse.SC_BAD_REQUEST,"Invalid " + decoder.getEncoding() +
+                                           " content for " + name + ": " + exp.getMessage());
+                        return;
+                    } catch (QuotaExceededException exp) {
+                        quotaExceeded.increment();
+                        response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,exp.getMessage());
+                        return;
                     } catch (IOException exp) {
-                        throw new ServletException("Cannot copy uploaded file to " +
-                                dest.getAbsolutePath() + ": " + exp,exp);
+                        throw new ServletException("Cannot store uploaded file " + name + ": " + exp,exp);
+                    } catch (IllegalArgumentException exp) {
+                        // Invalid name or checksum mismatch
+                        response.sendError(HttpServletResponse.SC_BAD_REQUEST,exp.getMessage());
+                        return;
                     }
                 }
             }
         } catch (FileUploadException e) {
             throw new ServletException("Upload failed: " + e,e);
         }
-        response.setStatus(HttpServletResponse.SC_OK);
-    }
-
-    // Copy input stream in output directory
-    private void copy(InputStream in,OutputStream out) throws IOException {
-		try {
-			byte[] buffer = new byte[4096];
-			int bytesRead;
-			while ((bytesRead = in.read(buffer)) != -1) {
-				out.write(buffer, 0, bytesRead);
-			}
-			out.flush();
-		}
-		finally {
-			try { in.close();} catch (IOException ex) { }
-			try { out.close(); }catch (IOException ex) {}
-		}
-	}
+        Map<String,Object> ret = new HashMap<String, Object>();
+        ret.put("files",files);
+        sendJson(response, ret);
+    }
+
+    // Store the raw request body under the given name
+    private void uploadRaw(String pName, HttpServletRequest pRequest, HttpServletResponse pResponse) throws IOException {
+        ContentDecoder decoder = createDecoder(pRequest.getInputStream(), pRequest.getHeader("Content-Encoding"), pResponse);
+        if (decoder == null) {
+            return;
+        }
+        try {
+            String[] digests = getExpectedDigests(pRequest);
+            long transferStart = System.nanoTime();
+            // The decoded length of compressed content is not known in advance
+            File dest = uploadWriter.store(decoder.getStream(), pName,
+                                           decoder.isEncoded() ? -1 : getContentLength(pRequest),
+                                           digests[0], digests[1]);
+            recordTransfer(dest.length(), transferStart);
+            recordDecoding(decoder);
+            if (log.isEnabled(LogService.LOG_INFO)) {
+                log.log(LogService.LOG_INFO,"Uploaded " + dest.getName() + " (size: " + dest.length() + ")");
+            }
+            Map<String,Object> ret = decoder.toMap();
+            ret.put("name",dest.getName());
+            sendJson(pResponse, ret);
+        } catch (ZipException exp) {
+            pResponse.sendError(HttpServletResponse.SC_BAD_REQUEST,"Invalid " + decoder.getEncoding() +
+                                " content for " + pName + ": " + exp.getMessage());
+        } catch (QuotaExceededException exp) {
+            quotaExceeded.increment();
+            pResponse.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,exp.getMessage());
+        } catch (IllegalArgumentException exp) {
+            // Invalid name, digest header or checksum mismatch
+            pResponse.sendError(HttpServletResponse.SC_BAD_REQUEST,exp.getMessage());
+        }
+    }
+
+    // Expected hex encoded SHA-256 and base64 encoded MD5 digest, each null if not given.
+    // Taken from the "sha256" parameter, a "Content-MD5" header or a "Digest" header
+    // like "SHA-256=<base64>,MD5=<base64>"
+    private String[] getExpectedDigests(HttpServletRequest pRequest) {
+        String sha256 = pRequest.getParameter(DIGEST_PARAM);
+        String md5 = pRequest.getHeader("Content-MD5");
+        String header = pRequest.getHeader("Digest");
+        if (header != null) {
+            for (String instance : header.split(",")) {
+                int idx = instance.indexOf('=');
+                if (idx == -1) {
+                    continue;
+                }
+                String algorithm = instance.substring(0, idx).trim();
+                String value = instance.substring(idx + 1).trim();
+                if (algorithm.equalsIgnoreCase("SHA-256") && sha256 == null) {
+                    sha256 = UploadIndex.toHex(Base64.decode(value));
+                } else if (algorithm.equalsIgnoreCase("MD5") && md5 == null) {
+                    md5 = value;
+                }
+            }
+        }
+        return new String[] { sha256, md5 };
+    }
+
+    // getContentLength() is an int, so larger bundles need the header itself
+    private long getContentLength(HttpServletRequest pRequest) {
+        return parseLength(pRequest.getHeader("Content-Length"));
+    }
+
+    private long parseLength(String pLength) {
+        if (pLength == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(pLength.trim());
+        } catch (NumberFormatException exp) {
+            return -1;
+        }
+    }
+
+    // Open a session for a chunked upload. Name and total size are given as request parameters.
+    private void createSession(HttpServletRequest pRequest, HttpServletResponse pResponse) throws IOException {
+        String name = pRequest.getParameter("name");
+        String size = pRequest.getParameter("size");
+        try {
+            UploadSession session = uploadSessions.create(name, size != null ? Long.parseLong(size) : -1,
+                                                           pRequest.getParameter(DIGEST_PARAM));
+            sendJson(pResponse, session.toMap());
+        } catch (QuotaExceededException exp) {
+            quotaExceeded.increment();
+            pResponse.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,exp.getMessage());
+        } catch (IllegalArgumentException exp) {
+            pResponse.sendError(HttpServletResponse.SC_BAD_REQUEST,exp.getMessage());
+        } catch (IllegalStateException exp) {
+            pResponse.setHeader("Retry-After",Integer.toString(admission.getRetryAfter()));
+            pResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,exp.getMessage());
+        }
+    }
+
+    // Publish a completely received chunked upload
+    private void commitSession(HttpServletRequest pRequest, HttpServletResponse pResponse) throws IOException {
+        UploadSession session = lookupSession(pRequest, pResponse);
+        if (session == null) {
+            return;
+        }
+        if (!session.isComplete()) {
+            pResponse.setStatus(HttpServletResponse.SC_CONFLICT);
+            sendJson(pResponse, session.toMap());
+            return;
+        }
+        File dest;
+        try {
+            dest = session.commit();
+        } catch (QuotaExceededException exp) {
+            quotaExceeded.increment();
+            pResponse.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,exp.getMessage());
+            return;
+        } catch (IllegalArgumentException exp) {
+            pResponse.sendError(HttpServletResponse.SC_BAD_REQUEST,exp.getMessage());
+            return;
+        } finally {
+            uploadSessions.remove(session.getId());
+        }
+        if (log.isEnabled(LogService.LOG_INFO)) {
+            log.log(LogService.LOG_INFO,"Uploaded " + dest.getName() + " in chunks (size: " + dest.length() + ")");
+        }
+        Map<String,Object> ret = new HashMap<String, Object>();
+        ret.put("name",dest.getName());
+        ret.put("size",dest.length());
+        sendJson(pResponse, ret);
+    }
+
+    private Histogram getMethodTimer(String pMethod) {
+        if ("GET".equals(pMethod)) {
+            return getTimer;
+        } else if ("POST".equals(pMethod)) {
+            return postTimer;
+        } else if ("PUT".equals(pMethod)) {
+            return putTimer;
+        } else if ("DELETE".equals(pMethod)) {
+            return deleteTimer;
+        } else {
+            return otherTimer;
+        }
+    }
+
+    // Whether the path addresses the session resource or one of its sessions. Files whose
+    // name merely starts with "session" are uploaded raw.
+    private boolean isSessionPath(String pPath) {
+        return pPath != null && (pPath.equals(SESSION_PATH) || pPath.startsWith(SESSION_PATH + "/"));
+    }
+
+    // Lookup the session addressed by the path. Returns null and sends a 404 if the
+    // path refers to a session which does not exist. Returns null without sending anything
+    // if the path is not a session path at all.
+    private UploadSession lookupSession(HttpServletRequest pRequest, HttpServletResponse pResponse) throws IOException {
+        String path = pRequest.getPathInfo();
+        if (path == null || !path.startsWith(SESSION_PATH + "/")) {
+            return null;
+        }
+        String id = path.substring(SESSION_PATH.length() + 1);
+        UploadSession session = id.length() > 0 ? uploadSessions.get(id) : null;
+        if (session == null) {
+            pResponse.sendError(HttpServletResponse.SC_NOT_FOUND,"No upload session " + id);
+        }
+        return session;
+    }
+
+    // Wrap a stream for decoding. Sends a 415 if the encoding is not supported or a 400 if the
+    // content does not start like announced and returns null in both cases.
+    private ContentDecoder createDecoder(InputStream pIn, String pEncoding, HttpServletResponse pResponse)
+            throws IOException {
+        try {
+            ContentDecoder.Encoding.fromHeader(pEncoding);
+        } catch (IllegalArgumentException exp) {
+            pResponse.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,exp.getMessage());
+            return null;
+        }
+        try {
+            return new ContentDecoder(pIn, pEncoding);
+        } catch (ZipException exp) {
+            pResponse.sendError(HttpServletResponse.SC_BAD_REQUEST,"Invalid " + pEncoding + " content: " + exp.getMessage());
+            return null;
+        }
+    }
+
+    private String getHeader(FileItemStream pItem, String pName) {
+        FileItemHeaders headers = pItem.getHeaders();
+        return headers != null ? headers.getHeader(pName) : null;
+    }
+
+    private void recordDecoding(ContentDecoder pDecoder) {
+        if (pDecoder.isEncoded()) {
+            decodeTime.record(pDecoder.getDecodeNanos());
+            bytesTransferred.add(pDecoder.getEncodedSize());
+            if (pDecoder.getEncodedSize() > 0) {
+                compressionRatio.record(pDecoder.getDecodedSize() * 100 / pDecoder.getEncodedSize());
+            }
+        } else {
+            bytesTransferred.add(pDecoder.getDecodedSize());
+        }
+    }
+
+    private void recordTransfer(long pBytes, long pStartNanos) {
+        long nanos = System.nanoTime() - pStartNanos;
+        bytesReceived.add(pBytes);
+        transferSize.record(pBytes);
+        if (nanos > 0) {
+            throughput.record((long) (pBytes / 1024.0 * 1e9 / nanos));
+        }
+    }
+
+    private void sendJson(HttpServletResponse pResponse, Map<String,Object> pValue) throws IOException {
+        pResponse.setContentType("application/json");
+        pResponse.setCharacterEncoding("UTF-8");
+        PrintWriter writer = pResponse.getWriter();
+        writer.write(JSONValue.toJSONString(pValue));
+        writer.flush();
+    }
 
     /**
      * Get the upload alias based on the already install j4p alias
@@ -0,0 +1,350 @@
+package org.jolokia.osgish.upload;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.*;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+/**
+ * A resumable upload of a single file, which is transferred in chunks. Chunks
+ * can arrive in any order and in parallel, each one is written at its offset
+ * into a temporary file. The session keeps track of the byte ranges received so
+ * far. Once everything has arrived, the session can be committed which moves the
+ * temporary file to its final name. The temporary file is only kept open while
+ * chunks are arriving, it is closed when the session has been idle for a while.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class UploadSession {
+
+    private final String id;
+    private final String name;
+    private final long size;
+
+    // Digest the content must have or null
+    private final String expectedDigest;
+
+    private final UploadWriter writer;
+    private final File tempFile;
+
+    // Open temporary file or null if closed while idle, and the number of writes using it
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private int activeWrites;
+
+    // Received ranges, start -> end (exclusive). Ranges never overlap or touch.
+    private final TreeMap<Long,Long> ranges = new TreeMap<Long, Long>();
+
+    // Last time this session was used
+    private volatile long lastAccess;
+
+    private boolean closed;
+
+    /**
+     * Create a new session, allocating the temporary file
+     *
+     * @param pId session id
+     * @param pName final name of the file within the upload directory
+     * @param pSize total size of the file
+     * @param pExpectedDigest hex encoded SHA-256 digest of the complete file or null
+     * @param pWriter writer used for creating and publishing the file
+     * @throws IOException if the temporary file can not be created
+     */
+    UploadSession(String pId, String pName, long pSize, String pExpectedDigest, UploadWriter pWriter) throws IOException {
+        id = pId;
+        name = pName;
+        size = pSize;
+        expectedDigest = pExpectedDigest;
+        writer = pWriter;
+        tempFile = pWriter.createTempFile();
+        openFile();
+        file.setLength(pSize);
+        touch();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Write a chunk at the given offset. Can be called concurrently for different chunks.
+     *
+     * @param pIn stream providing the chunk. It is not closed.
+     * @param pOffset offset within the file
+     * @param pLength length of the chunk
+     * @return number of bytes written. If the stream ends prematurely, this can be less than
+     *         the requested length, only the bytes written are recorded as received.
+     * @throws IOException if reading or writing fails
+     * @throws IllegalArgumentException if the range is outside of the file or the stream has
+     *         more content than the range. Nothing is recorded as received in the latter case.
+     * @throws IllegalStateException if the session has been committed or aborted already
+     */
+    public long write(InputStream pIn, long pOffset, long pLength) throws IOException {
+        if (pOffset < 0 || pLength < 0 || pOffset + pLength > size) {
+            throw new IllegalArgumentException("Range " + pOffset + "-" + (pOffset + pLength - 1) +
+                                               " is outside of " + name + " (size: " + size + ")");
+        }
+        FileChannel out = acquireChannel();
+        ReadableByteChannel in = Channels.newChannel(pIn);
+        ByteBuffer buffer = writer.acquireBuffer(pLength);
+        long position = pOffset;
+        long end = pOffset + pLength;
+        boolean overlong = false;
+        try {
+            while (position < end) {
+                buffer.clear();
+                if (end - position < buffer.capacity()) {
+                    buffer.limit((int) (end - position));
+                }
+                // Fill up the buffer for large positional writes
+                boolean eof = false;
+                while (buffer.hasRemaining() && !eof) {
+                    eof = in.read(buffer) == -1;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += out.write(buffer, position);
+                }
+                if (eof) {
+                    break;
+                }
+            }
+            // Content beyond the range means that the chunk doesn't match its range
+            overlong = position == end && pIn.read() != -1;
+        } finally {
+            writer.releaseBuffer(buffer);
+            if (position > pOffset && !overlong) {
+                addRange(pOffset, position);
+            }
+            releaseChannel();
+        }
+        if (overlong) {
+            throw new IllegalArgumentException("Chunk " + pOffset + "-" + (end - 1) + " of " + name +
+                                               " has more content than its range");
+        }
+        return position - pOffset;
+    }
+
+    /**
+     * Get the ranges received so far as list of <code>[start, end]</code> pairs
+     * (both inclusive, like in a HTTP Content-Range header)
+     *
+     * @return list of received ranges
+     */
+    public synchronized List<List<Long>> getReceivedRanges() {
+        List<List<Long>> ret = new ArrayList<List<Long>>();
+        for (Map.Entry<Long,Long> range : ranges.entrySet()) {
+            ret.add(Arrays.asList(range.getKey(), range.getValue() - 1));
+        }
+        return ret;
+    }
+
+    /**
+     * Check whether all bytes have been received
+     *
+     * @return true if the upload is complete
+     */
+    public synchronized boolean isComplete() {
+        if (size == 0) {
+            return true;
+        }
+        Long end = ranges.get(0L);
+        return ranges.size() == 1 && end != null && end == size;
+    }
+
+    /**
+     * Publish the uploaded file under its final name. The session is closed afterwards.
+     * Since chunks arrive in any order, the digest is calculated from the complete file.
+     *
+     * @return the published file
+     * @throws IOException if the file can not be published
+     * @throws IllegalStateException if the upload is not complete yet
+     * @throws IllegalArgumentException if the content does not match the expected digest. The
+     *         session is aborted in this case.
+     */
+    public synchronized File commit() throws IOException {
+        if (!isComplete()) {
+            throw new IllegalStateException("Upload of " + name + " is not complete yet");
+        }
+        checkOpen();
+        if (activeWrites > 0) {
+            throw new IllegalStateException("Upload of " + name + " is still receiving chunks");
+        }
+        if (channel == null) {
+            // Closed while idle, but possibly not synced yet
+            openFile();
+        }
+        closed = true;
+        try {
+            writer.sync(channel);
+        } finally {
+            closeFile();
+        }
+        File dest = new File(tempFile.getParentFile(), name);
+        boolean published = false;
+        try {
+            String digest = UploadIndex.digest(tempFile);
+            UploadWriter.verifyDigest(name, digest, expectedDigest);
+            writer.publish(tempFile, dest, digest);
+            published = true;
+        } finally {
+            if (!published) {
+                tempFile.delete();
+            }
+        }
+        return dest;
+    }
+
+    /**
+     * Abort this session and remove all data received so far
+     */
+    public synchronized void abort() {
+        if (!closed) {
+            closed = true;
+            try { closeFile(); } catch (IOException ex) { }
+        }
+        tempFile.delete();
+    }
+
+    /**
+     * Close the temporary file if no chunk has arrived since the given time. It is
+     * opened again with the next chunk.
+     *
+     * @param pLimit time in epoch milliseconds
+     * @throws IOException if closing fails
+     */
+    synchronized void closeIfIdle(long pLimit) throws IOException {
+        if (!closed && activeWrites == 0 && lastAccess < pLimit) {
+            closeFile();
+        }
+    }
+
+    File getTempFile() {
+        return tempFile;
+    }
+
+    /**
+     * Check whether this session is not in use and has not been used since the given time
+     *
+     * @param pLimit time in epoch milliseconds
+     * @return true if the session is idle
+     */
+    synchronized boolean isIdleSince(long pLimit) {
+        return activeWrites == 0 && lastAccess < pLimit;
+    }
+
+    /**
+     * Get the state of this session as map suitable for JSON serialization
+     *
+     * @return map with "session", "name", "size", "received" and "complete"
+     */
+    public Map<String,Object> toMap() {
+        Map<String,Object> ret = new HashMap<String, Object>();
+        ret.put("session",id);
+        ret.put("name",name);
+        ret.put("size",size);
+        ret.put("received",getReceivedRanges());
+        ret.put("complete",isComplete());
+        return ret;
+    }
+
+    // =================================================================================
+
+    private void touch() {
+        lastAccess = System.currentTimeMillis();
+    }
+
+    // Get the channel for a write, opening the file if it has been closed while idle
+    private synchronized FileChannel acquireChannel() throws IOException {
+        checkOpen();
+        if (channel == null) {
+            openFile();
+        }
+        activeWrites++;
+        touch();
+        return channel;
+    }
+
+    private synchronized void releaseChannel() {
+        activeWrites--;
+        touch();
+    }
+
+    private void openFile() throws IOException {
+        file = new RandomAccessFile(tempFile, "rw");
+        channel = file.getChannel();
+    }
+
+    private void closeFile() throws IOException {
+        if (file != null) {
+            RandomAccessFile toClose = file;
+            file = null;
+            channel = null;
+            toClose.close();
+        }
+    }
+
+    private synchronized void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Upload session " + id + " is already closed");
+        }
+    }
+
+    // Add a range and merge it with overlapping or adjacent ranges
+    private synchronized void addRange(long pStart, long pEnd) {
+        long start = pStart;
+        long end = pEnd;
+        SortedMap<Long,Long> head = ranges.headMap(start + 1);
+        if (!head.isEmpty()) {
+            Long before = head.lastKey();
+            long beforeEnd = ranges.get(before);
+            if (beforeEnd >= start) {
+                start = before;
+                end = Math.max(end, beforeEnd);
+                ranges.remove(before);
+            }
+        }
+        SortedMap<Long,Long> tail = ranges.tailMap(start);
+        while (!tail.isEmpty() && tail.firstKey() <= end) {
+            Long next = tail.firstKey();
+            end = Math.max(end, ranges.get(next));
+            ranges.remove(next);
+        }
+        ranges.put(start, end);
+    }
+}
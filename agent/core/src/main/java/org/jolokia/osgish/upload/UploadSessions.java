@@ -0,0 +1,156 @@
+package org.jolokia.osgish.upload;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+/**
+ * Registry of all open {@link UploadSession}s. The number of sessions is limited,
+ * sessions which have not been used for a while are aborted when new sessions are
+ * created and periodically by the {@link UploadSweeper}.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class UploadSessions {
+
+    // Idle time after which a session is aborted (one day, so that a client can
+    // resume after a longer network outage)
+    static final long MAX_IDLE_TIME = 24 * 60 * 60 * 1000L;
+
+    // Idle time after which the temporary file of a session is closed
+    private static final long MAX_OPEN_IDLE_TIME = 60 * 1000L;
+
+    // Maximum number of sessions open at the same time, each one holding a temporary file
+    private static final int MAX_SESSIONS = 100;
+
+    private final ConcurrentMap<String,UploadSession> sessions = new ConcurrentHashMap<String, UploadSession>();
+
+    private final UploadWriter writer;
+
+    public UploadSessions(UploadWriter pWriter) {
+        writer = pWriter;
+    }
+
+    /**
+     * Open a new upload session
+     *
+     * @param pName name of the file to upload
+     * @param pSize total size of the file
+     * @param pExpectedDigest hex encoded SHA-256 digest of the file, verified on commit. Can be null.
+     * @return the new session
+     * @throws IOException if the temporary file for the session can not be created
+     * @throws QuotaExceededException if a file of this size would exceed the quota
+     * @throws IllegalStateException if too many sessions are open already
+     */
+    public UploadSession create(String pName, long pSize, String pExpectedDigest) throws IOException {
+        UploadWriter.checkName(pName);
+        if (pSize < 0) {
+            throw new IllegalArgumentException("Invalid size " + pSize + " for " + pName);
+        }
+        // Reject right away instead of after the whole transfer
+        writer.checkQuota(pName, pSize);
+        expireIdleSessions();
+        if (sessions.size() >= MAX_SESSIONS) {
+            throw new IllegalStateException("Too many open upload sessions (" + MAX_SESSIONS +
+                                            "), commit or abort some of them first");
+        }
+        UploadSession session = new UploadSession(UUID.randomUUID().toString(), pName, pSize, pExpectedDigest, writer);
+        sessions.put(session.getId(), session);
+        return session;
+    }
+
+    /**
+     * Lookup a session
+     *
+     * @param pId id of the session
+     * @return the session or null if there is no open session with this id
+     */
+    public UploadSession get(String pId) {
+        return sessions.get(pId);
+    }
+
+    /**
+     * Remove a session after it has been committed or aborted
+     *
+     * @param pId id of the session
+     * @return the removed session or null
+     */
+    public UploadSession remove(String pId) {
+        return sessions.remove(pId);
+    }
+
+    /**
+     * Abort all sessions, e.g. when the servlet is going down
+     */
+    public void abortAll() {
+        for (String id : sessions.keySet()) {
+            UploadSession session = sessions.remove(id);
+            if (session != null) {
+                session.abort();
+            }
+        }
+    }
+
+    /**
+     * Get the temporary files of all open sessions
+     *
+     * @return temporary files in use
+     */
+    Set<File> getTempFiles() {
+        Set<File> ret = new HashSet<File>();
+        for (UploadSession session : sessions.values()) {
+            ret.add(session.getTempFile());
+        }
+        return ret;
+    }
+
+    /**
+     * Abort sessions which have been idle for too long and close the temporary files
+     * of sessions which are idle for a shorter time. Called periodically by the
+     * {@link UploadSweeper}.
+     */
+    public void expireIdleSessions() {
+        long now = System.currentTimeMillis();
+        Iterator<UploadSession> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            UploadSession session = it.next();
+            if (session.isIdleSince(now - MAX_IDLE_TIME)) {
+                it.remove();
+                session.abort();
+            } else {
+                try {
+                    session.closeIfIdle(now - MAX_OPEN_IDLE_TIME);
+                } catch (IOException exp) {
+                    // Try again next time
+                }
+            }
+        }
+    }
+}
@@ -1,11 +1,20 @@
 package org.jolokia.osgish.upload;
 
+import org.jolokia.osgish.lifecycle.BundleLifecycle;
+import org.jolokia.osgish.state.DependencyGraph;
+import org.osgi.framework.BundleContext;
+
 import javax.management.MBeanRegistration;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 /*
  * osgish - An OSGi Shell
@@ -41,11 +50,55 @@ public class UploadStore implements UploadStoreMBean, MBeanRegistration {
 
     File dataDir;
 
+    // Writer for storing copies, also providing the digest index
+    private UploadWriter writer;
+
+    // For installing bundles straight from the upload directory. The graph orders updates,
+    // it rereads the wiring of the bundles to update on each use, so it needs no events.
+    private BundleLifecycle bundleLifecycle;
+    private DependencyGraph dependencyGraph;
+
+    private BundleContext bundleContext;
+
+    // Enforcing the retention rules, null if there are none
+    private UploadSweeper sweeper;
+
     // Name to be used for registering as MBean
     private static final String UPLOAD_STORE_NAME = "osgish:type=Upload";
 
-    public UploadStore(File pDataDir) {
+    // Number of bundles installed concurrently
+    private static final int INSTALL_THREADS = 4;
+
+    // Hex encoded SHA-256 digest
+    private static final Pattern DIGEST_PATTERN = Pattern.compile("^[0-9a-fA-F]{64}$");
+
+    /**
+     * Constructor
+     *
+     * @param pDataDir upload directory
+     * @param pWriter writer for the upload directory
+     * @param pBundleContext bundle context used for installing bundles
+     */
+    public UploadStore(File pDataDir, UploadWriter pWriter, BundleContext pBundleContext) {
+        this(pDataDir,pWriter,pBundleContext,null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param pDataDir upload directory
+     * @param pWriter writer for the upload directory
+     * @param pBundleContext bundle context used for installing bundles
+     * @param pSweeper sweeper enforcing the retention rules, started and stopped along with
+     *        this MBean. Can be null.
+     */
+    public UploadStore(File pDataDir, UploadWriter pWriter, BundleContext pBundleContext, UploadSweeper pSweeper) {
         dataDir = pDataDir;
+        writer = pWriter;
+        bundleContext = pBundleContext;
+        sweeper = pSweeper;
+        dependencyGraph = new DependencyGraph(pBundleContext);
+        bundleLifecycle = new BundleLifecycle(pBundleContext, dependencyGraph, INSTALL_THREADS);
         if (!dataDir.exists()) {
             throw new IllegalArgumentException("No data directory " + dataDir.getAbsolutePath() + " found");
         }
@@ -55,14 +108,29 @@ public class UploadStore implements UploadStoreMBean, MBeanRegistration {
     }
 
     public Map listUploadDirectory() {
-        File files[] = dataDir.listFiles();
-        Map<String,File> ret = new HashMap<String,File>();
-        for (File file : files) {
-            ret.put(file.getName(),file);
+        Map<String,Object> ret = new HashMap<String,Object>();
+        for (Map<String,Object> info : getFiles(listFiles(null,0,-1))) {
+            ret.put((String) info.get("name"),info);
         }
         return ret;
     }
 
+    public Map listFiles(String pPrefix, int pOffset, int pLimit) {
+        try {
+            return writer.getIndex().list(pPrefix,Math.max(pOffset,0),pLimit);
+        } catch (IOException exp) {
+            throw new IllegalStateException("Cannot list upload directory: " + exp,exp);
+        }
+    }
+
+    public List listFileNames(String pPrefix, int pLimit) {
+        try {
+            return writer.getIndex().getNames(pPrefix,pLimit);
+        } catch (IOException exp) {
+            throw new IllegalStateException("Cannot list upload directory: " + exp,exp);
+        }
+    }
+
     public String deleteFile(String pFilename) {
         if (pFilename == null) {
             return "No filename given";
@@ -81,25 +149,228 @@ public class UploadStore implements UploadStoreMBean, MBeanRegistration {
                 return dir.getPath() + " is not a directory";
             }
         }
-        File file = new File(dir,last);
-        if (!file.exists()) {
-            return file.getName() + ": No such file";
+        return deleteFile(new File(dir,last));
+    }
+
+    public Map deleteFiles(String pPattern) {
+        if (pPattern == null || pPattern.length() == 0) {
+            throw new IllegalArgumentException("No pattern given");
+        }
+        if (pPattern.indexOf('/') != -1) {
+            throw new IllegalArgumentException("Pattern " + pPattern + " must not contain a path");
+        }
+        Pattern pattern = globToPattern(pPattern);
+        List<String> names;
+        try {
+            names = writer.getIndex().getNames(getLiteralPrefix(pPattern),-1);
+        } catch (IOException exp) {
+            throw new IllegalStateException("Cannot list upload directory: " + exp,exp);
+        }
+        Map<String,Long> installed = UploadSweeper.getInstalledBundles(bundleContext);
+        List<String> deleted = new ArrayList<String>();
+        Map<String,String> errors = new HashMap<String, String>();
+        for (String name : names) {
+            if (!pattern.matcher(name).matches()) {
+                continue;
+            }
+            Long id = installed.get("file://" + writer.getIndex().getCanonicalPath(name));
+            if (id != null) {
+                errors.put(name,"Still installed as bundle " + id);
+                continue;
+            }
+            try {
+                if (writer.delete(name,-1)) {
+                    deleted.add(name);
+                }
+            } catch (IOException exp) {
+                errors.put(name,exp.getMessage());
+            }
+        }
+        Map<String,Object> ret = new HashMap<String, Object>();
+        ret.put("deleted",deleted);
+        ret.put("errors",errors);
+        return ret;
+    }
+
+    public Map getUsage() {
+        UploadIndex index = writer.getIndex();
+        Map<String,Object> ret = new HashMap<String, Object>();
+        ret.put("size",index.getTotalSize());
+        ret.put("files",index.getFileCount());
+        ret.put("quota",writer.getQuota());
+        long tempSize = 0;
+        File[] tempFiles = writer.listTempFiles();
+        for (File file : tempFiles) {
+            tempSize += file.length();
+        }
+        ret.put("tempFiles",tempFiles.length);
+        ret.put("tempSize",tempSize);
+        if (sweeper != null) {
+            ret.put("tempFilesRemoved",sweeper.getRemovedTempFiles());
+            if (sweeper.isEnabled()) {
+                ret.put("retention",sweeper.getStatus());
+            }
+        }
+        return ret;
+    }
+
+    public boolean sweep() {
+        return sweeper != null && sweeper.trigger();
+    }
+
+    public Map lookupDigest(String pDigest) {
+        if (pDigest == null) {
+            throw new IllegalArgumentException("No digest given");
+        }
+        try {
+            UploadIndex index = writer.getIndex();
+            File file = index.lookup(pDigest);
+            return file != null ? index.getFileInfo(file.getName()) : null;
+        } catch (IOException exp) {
+            throw new IllegalStateException("Cannot lookup digest " + pDigest + ": " + exp,exp);
+        }
+    }
+
+    public String getDigest(String pFilename) {
+        UploadWriter.checkName(pFilename);
+        try {
+            return writer.getIndex().getDigest(pFilename);
+        } catch (IOException exp) {
+            throw new IllegalStateException("Cannot calculate digest of " + pFilename + ": " + exp,exp);
+        }
+    }
+
+    public String createAlias(String pFilename, String pDigest) {
+        if (pFilename == null || pDigest == null) {
+            return "Filename and digest must be given";
+        }
+        try {
+            UploadWriter.checkName(pFilename);
+            UploadIndex index = writer.getIndex();
+            if (pDigest.equalsIgnoreCase(index.getDigest(pFilename))) {
+                // Already there with the very same content
+                return null;
+            }
+            File source = index.lookup(pDigest);
+            if (source == null) {
+                return "No file with digest " + pDigest;
+            }
+            writer.copy(source, pFilename, pDigest.toLowerCase());
+            return null;
+        } catch (IllegalArgumentException exp) {
+            return exp.getMessage();
+        } catch (IOException exp) {
+            return "Cannot create " + pFilename + ": " + exp;
+        }
+    }
+
+    public Map installBundles(String[] pEntries, boolean pUpdate) {
+        if (pEntries == null || pEntries.length == 0) {
+            throw new IllegalArgumentException("No files given");
+        }
+        Map<String,File> files = new LinkedHashMap<String, File>();
+        for (String entry : pEntries) {
+            String name = resolveEntry(entry);
+            // Same location as used by clients installing via a file: URL, so that both ways
+            // recognize each other's bundles
+            files.put("file://" + writer.getIndex().getCanonicalPath(name),new File(dataDir,name));
+        }
+        return bundleLifecycle.install(files,pUpdate);
+    }
+
+    // Get the name of the file for an entry given by name or by digest
+    private String resolveEntry(String pEntry) {
+        try {
+            UploadIndex index = writer.getIndex();
+            if (pEntry != null && pEntry.indexOf('/') == -1 && index.getDigest(pEntry) != null) {
+                return pEntry;
+            }
+            if (pEntry != null && DIGEST_PATTERN.matcher(pEntry).matches()) {
+                File file = index.lookup(pEntry);
+                if (file != null) {
+                    return file.getName();
+                }
+            }
+        } catch (IOException exp) {
+            throw new IllegalStateException("Cannot lookup " + pEntry + " in upload directory: " + exp,exp);
+        }
+        throw new IllegalArgumentException("No file or digest " + pEntry + " in upload directory");
+    }
+
+    private String deleteFile(File pFile) {
+        if (pFile.getParentFile().equals(dataDir)) {
+            // Don't interfere with an upload of the same name which is just being published
+            try {
+                return writer.delete(pFile.getName(),-1) ? null : pFile.getName() + ": No such file";
+            } catch (IOException exp) {
+                return exp.getMessage();
+            }
+        }
+        if (!pFile.exists()) {
+            return pFile.getName() + ": No such file";
         }
-        if (!file.delete()) {
-            return "Could not delete file " + file.getName();
+        if (!pFile.delete()) {
+            return "Could not delete file " + pFile.getName();
         }
         return null;
     }
 
+    // Glob with "*" and "?" as wildcards, everything else matches literally
+    private static Pattern globToPattern(String pGlob) {
+        StringBuilder regexp = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < pGlob.length(); i++) {
+            char c = pGlob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > start) {
+                    regexp.append(Pattern.quote(pGlob.substring(start, i)));
+                }
+                regexp.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < pGlob.length()) {
+            regexp.append(Pattern.quote(pGlob.substring(start)));
+        }
+        return Pattern.compile(regexp.toString());
+    }
+
+    // Part of a glob before the first wildcard, so that only matching names need to be looked at
+    private static String getLiteralPrefix(String pGlob) {
+        for (int i = 0; i < pGlob.length(); i++) {
+            char c = pGlob.charAt(i);
+            if (c == '*' || c == '?') {
+                return pGlob.substring(0, i);
+            }
+        }
+        return pGlob;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Map<String,Object>> getFiles(Map pListing) {
+        return (List<Map<String,Object>>) pListing.get("files");
+    }
+
     public ObjectName preRegister(MBeanServer server, ObjectName name) throws Exception {
         // We are providing our own name
         return new ObjectName(UPLOAD_STORE_NAME);
     }
 
     public void postRegister(Boolean registrationDone) {
+        dependencyGraph.open();
+        bundleLifecycle.open();
+        if (sweeper != null) {
+            sweeper.open();
+        }
     }
 
     public void preDeregister() throws Exception {
+        if (sweeper != null) {
+            sweeper.close();
+        }
+        writer.getIndex().flush();
+        bundleLifecycle.close();
+        dependencyGraph.close();
     }
 
     public void postDeregister() {
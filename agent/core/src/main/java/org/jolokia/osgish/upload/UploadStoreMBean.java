@@ -1,5 +1,6 @@
 package org.jolokia.osgish.upload;
 
+import java.util.List;
 import java.util.Map;
 
 /*
@@ -42,6 +43,28 @@ public interface UploadStoreMBean {
      */
     Map listUploadDirectory();
 
+    /**
+     * List a page of the files in the upload directory whose name starts with a given prefix.
+     * Files are sorted by name and described by "name", "length", "modified", "canonicalPath",
+     * "digest" and, for bundles, "symbolicName" and "version".
+     *
+     * @param pPrefix prefix to match, null or empty for all files
+     * @param pOffset number of matching files to skip
+     * @param pLimit maximum number of files to return, -1 for all
+     * @return map with the number of matching files ("total"), the "offset" and the
+     *         list of "files"
+     */
+    Map listFiles(String pPrefix, int pOffset, int pLimit);
+
+    /**
+     * Get the sorted names of the files starting with a given prefix, e.g. for completion
+     *
+     * @param pPrefix prefix to match
+     * @param pLimit maximum number of names to return, -1 for all
+     * @return list of file names
+     */
+    List listFileNames(String pPrefix, int pLimit);
+
     /**
      * Delete a certain file in the directory
      *
@@ -49,4 +72,77 @@ public interface UploadStoreMBean {
      * @return error message if any or null if everything was fine
      */
     String deleteFile(String pFilename);
+
+    /**
+     * Delete all files matching a pattern. Files from which a bundle is installed are kept.
+     *
+     * @param pPattern file name pattern with "*" matching any sequence of characters and
+     *        "?" matching a single character
+     * @return map with the names of the files "deleted" and the "errors" for the files which
+     *         could not be deleted, by file name
+     */
+    Map deleteFiles(String pPattern);
+
+    /**
+     * Get the space used by the upload directory
+     *
+     * @return map with the total "size" in bytes, the number of "files", the "quota" (0 if
+     *         there is none), the number of temporary files ("tempFiles") and their size
+     *         ("tempSize"), the orphaned temporary files removed so far ("tempFilesRemoved")
+     *         and the "retention" rules with the result of the last sweep, if any rules are
+     *         configured
+     */
+    Map getUsage();
+
+    /**
+     * Apply the retention rules in the background right now instead of waiting for the
+     * next periodic sweep. The outcome is reported by {@link #getUsage()}.
+     *
+     * @return true if a sweep has been scheduled, false if there are no retention rules
+     */
+    boolean sweep();
+
+    /**
+     * Check whether a file with the given content is already stored. Clients should
+     * call this before uploading in order to avoid transferring the same content again.
+     *
+     * @param pDigest hex encoded SHA-256 digest of the content
+     * @return map describing a file having this content (like the entries returned by
+     *         {@link #listFiles(String, int, int)}) or null if there is no such file
+     */
+    Map lookupDigest(String pDigest);
+
+    /**
+     * Get the SHA-256 digest of a file in the upload directory
+     *
+     * @param pFilename name of the file
+     * @return hex encoded digest or null if there is no such file
+     */
+    String getDigest(String pFilename);
+
+    /**
+     * Make content which is already stored available under another name. If the file
+     * already has this content, nothing is done at all. Otherwise the content is copied
+     * within the upload directory.
+     *
+     * @param pFilename name under which the content should be available
+     * @param pDigest hex encoded SHA-256 digest of the content
+     * @return error message if any or null if everything was fine
+     */
+    String createAlias(String pFilename, String pDigest);
+
+    /**
+     * Install bundles straight from the upload directory. The files are handed over to the
+     * framework as streams under the location <code>file://&lt;canonicalPath&gt;</code>, so the
+     * framework doesn't have to open them again via their URL. New bundles are installed
+     * concurrently.
+     *
+     * @param pEntries names of files in the upload directory or SHA-256 digests of their content
+     * @param pUpdate whether bundles already installed from these files should be updated
+     * @return map with the total "time" in ms, the number of bundles "failed" and the list of
+     *         "results", one per file. Each result contains the bundle "id", its "symbolicName",
+     *         the "location", the "action" taken ("installed", "updated" or "none"), whether it
+     *         succeeded ("success"), the "error" message if any and the resulting "state".
+     */
+    Map installBundles(String[] pEntries, boolean pUpdate);
 }
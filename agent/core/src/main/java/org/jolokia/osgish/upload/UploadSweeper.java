@@ -0,0 +1,420 @@
+package org.jolokia.osgish.upload;
+
+import org.jolokia.osgish.metrics.Metrics;
+import org.jolokia.osgish.metrics.StripedCounter;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Version;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+/**
+ * Enforces the retention rules of the upload directory in the background. A sweep
+ * removes files which are older than a maximum age, all but the newest versions of
+ * each bundle (by symbolic name and version) and finally the oldest files until the
+ * directory fits into its maximum size. Files from which a bundle is currently
+ * installed are never removed, but still count for the size and the versions kept.
+ *
+ * Sweeps run on a single daemon thread with minimum priority at a fixed delay, so
+ * they never hold up requests. A file is only removed if it has not been modified
+ * since the sweep looked at it, so a file uploaded again meanwhile survives.
+ *
+ * Independent of the retention rules, the periodic housekeeping removes temporary
+ * files which belong to no open upload session and haven't been touched for as long
+ * as a session may stay idle, e.g. left behind when the agent was stopped during an
+ * upload.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class UploadSweeper {
+
+    // Delay before the first sweep after startup
+    private static final long INITIAL_DELAY = 60 * 1000L;
+
+    // Delay between two checks for idle upload sessions and unsaved changes of the index
+    private static final long HOUSEKEEPING_INTERVAL = 30 * 1000L;
+
+    private final UploadWriter writer;
+    private final UploadSessions sessions;
+    private final BundleContext bundleContext;
+
+    // Retention rules, each switched off if 0
+    private final long maxAge;
+    private final long maxBytes;
+    private final int keepVersions;
+
+    // Delay between two sweeps in ms
+    private final long interval;
+
+    private final StripedCounter sweptFiles;
+    private final StripedCounter sweptBytes;
+    private final StripedCounter sweptTempFiles;
+
+    private ScheduledExecutorService executor;
+
+    // Result of the last sweep, null if there was none yet
+    private volatile Map<String,Object> lastSweep;
+
+    /**
+     * Constructor
+     *
+     * @param pWriter writer of the upload directory, used for removing files
+     * @param pSessions open upload sessions, expired when idle
+     * @param pBundleContext bundle context for finding out which files are installed
+     * @param pMaxAge maximum age of a file in ms, 0 for no limit
+     * @param pMaxBytes maximum total size of the directory in bytes, 0 for no limit
+     * @param pKeepVersions number of versions kept per symbolic name, 0 for all
+     * @param pInterval delay between two sweeps in ms
+     * @param pMetrics where to count the files and bytes removed
+     */
+    public UploadSweeper(UploadWriter pWriter, UploadSessions pSessions, BundleContext pBundleContext,
+                         long pMaxAge, long pMaxBytes, int pKeepVersions, long pInterval, Metrics pMetrics) {
+        writer = pWriter;
+        sessions = pSessions;
+        bundleContext = pBundleContext;
+        maxAge = pMaxAge;
+        maxBytes = pMaxBytes;
+        keepVersions = pKeepVersions;
+        interval = pInterval;
+        sweptFiles = pMetrics.counter("upload.swept");
+        sweptBytes = pMetrics.counter("upload.sweptBytes");
+        sweptTempFiles = pMetrics.counter("upload.sweptTempFiles");
+    }
+
+    /**
+     * Check whether any retention rule is configured at all
+     *
+     * @return true if there is something to enforce
+     */
+    public boolean isEnabled() {
+        return maxAge > 0 || maxBytes > 0 || keepVersions > 0;
+    }
+
+    /**
+     * Start expiring idle upload sessions, saving the index and, if any rule is configured,
+     * sweeping periodically
+     */
+    public synchronized void open() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new SweeperThreadFactory());
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                houseKeepQuietly();
+            }
+        }, HOUSEKEEPING_INTERVAL, HOUSEKEEPING_INTERVAL, TimeUnit.MILLISECONDS);
+        if (isEnabled()) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    sweepQuietly();
+                }
+            }, INITIAL_DELAY, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Schedule a sweep right now, in the background
+     *
+     * @return true if a sweep has been scheduled, false if the sweeper is not running
+     */
+    public synchronized boolean trigger() {
+        if (executor == null) {
+            return false;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                sweepQuietly();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Get the configured rules along with the result of the last sweep
+     *
+     * @return map with "maxAge" (ms), "maxBytes", "keepVersions", "interval" (ms) and
+     *         "lastSweep" as returned by {@link #sweep()}, if any
+     */
+    public Map<String,Object> getStatus() {
+        Map<String,Object> ret = new HashMap<String, Object>();
+        ret.put("maxAge",maxAge);
+        ret.put("maxBytes",maxBytes);
+        ret.put("keepVersions",keepVersions);
+        ret.put("interval",interval);
+        if (lastSweep != null) {
+            ret.put("lastSweep",lastSweep);
+        }
+        return ret;
+    }
+
+    /**
+     * Apply the retention rules once, on the calling thread
+     *
+     * @return map with the "time" the sweep finished, how long it "took" in ms, the files
+     *         "removed", the bytes "freed", the "remaining" size and the "errors" if any
+     * @throws IOException if the upload directory can not be scanned
+     */
+    public Map<String,Object> sweep() throws IOException {
+        long start = System.nanoTime();
+        UploadIndex index = writer.getIndex();
+        index.refresh();
+        List<Map<String,Object>> files = getFiles(index.list(null,0,-1));
+        Map<String,Long> installed = getInstalledBundles(bundleContext);
+
+        Map<String,Map<String,Object>> doomed = new LinkedHashMap<String, Map<String, Object>>();
+        if (keepVersions > 0) {
+            selectOldVersions(files, installed, doomed);
+        }
+        if (maxAge > 0) {
+            long limit = System.currentTimeMillis() - maxAge;
+            for (Map<String,Object> file : files) {
+                if (getModified(file) < limit && !isInstalled(file, installed)) {
+                    doomed.put(getName(file), file);
+                }
+            }
+        }
+        if (maxBytes > 0) {
+            selectOldest(files, installed, doomed);
+        }
+
+        List<String> removed = new ArrayList<String>();
+        Map<String,String> errors = new HashMap<String, String>();
+        long freed = 0;
+        for (Map<String,Object> file : doomed.values()) {
+            String name = getName(file);
+            try {
+                if (writer.delete(name, getModified(file))) {
+                    removed.add(name);
+                    freed += getLength(file);
+                }
+            } catch (IOException exp) {
+                errors.put(name,exp.getMessage());
+            }
+        }
+        sweptFiles.add(removed.size());
+        sweptBytes.add(freed);
+
+        Map<String,Object> ret = new HashMap<String, Object>();
+        ret.put("time",System.currentTimeMillis());
+        ret.put("took",(System.nanoTime() - start) / 1000000);
+        ret.put("removed",removed);
+        ret.put("freed",freed);
+        ret.put("remaining",index.getTotalSize());
+        if (!errors.isEmpty()) {
+            ret.put("errors",errors);
+        }
+        lastSweep = ret;
+        return ret;
+    }
+
+    /**
+     * Remove temporary files which belong to no open upload session and have not been
+     * modified for longer than a session may be idle
+     *
+     * @return number of files removed
+     */
+    public int removeOrphanedTempFiles() {
+        long limit = System.currentTimeMillis() - UploadSessions.MAX_IDLE_TIME;
+        Set<File> inUse = sessions.getTempFiles();
+        int removed = 0;
+        for (File file : writer.listTempFiles()) {
+            if (file.lastModified() < limit && !inUse.contains(file) && file.delete()) {
+                removed++;
+            }
+        }
+        sweptTempFiles.add(removed);
+        return removed;
+    }
+
+    /**
+     * Number of orphaned temporary files removed since startup
+     *
+     * @return number of files
+     */
+    public long getRemovedTempFiles() {
+        return sweptTempFiles.sum();
+    }
+
+    /**
+     * Get the ids of all installed bundles by their location
+     *
+     * @param pBundleContext bundle context to query
+     * @return map from location to bundle id
+     */
+    static Map<String,Long> getInstalledBundles(BundleContext pBundleContext) {
+        Map<String,Long> ret = new HashMap<String, Long>();
+        Bundle[] bundles = pBundleContext.getBundles();
+        for (Bundle bundle : bundles != null ? bundles : new Bundle[0]) {
+            ret.put(bundle.getLocation(),bundle.getBundleId());
+        }
+        return ret;
+    }
+
+    // =================================================================================
+
+    // The sweeper thread must survive any failure, the next sweep might succeed
+    private void sweepQuietly() {
+        try {
+            sweep();
+        } catch (Exception exp) {
+            Map<String,Object> ret = new HashMap<String, Object>();
+            ret.put("time",System.currentTimeMillis());
+            ret.put("error",exp.toString());
+            lastSweep = ret;
+        }
+    }
+
+    // A failing check must not cancel the periodic task
+    private void houseKeepQuietly() {
+        try {
+            sessions.expireIdleSessions();
+            removeOrphanedTempFiles();
+            writer.getIndex().flush();
+        } catch (RuntimeException exp) {
+            // Try again next time
+        }
+    }
+
+    // Keep the newest versions per symbolic name, installed ones count as kept
+    private void selectOldVersions(List<Map<String,Object>> pFiles, Map<String,Long> pInstalled,
+                                   Map<String,Map<String,Object>> pDoomed) {
+        Map<String,List<Map<String,Object>>> bySymbolicName = new HashMap<String, List<Map<String, Object>>>();
+        for (Map<String,Object> file : pFiles) {
+            String symbolicName = (String) file.get("symbolicName");
+            if (symbolicName != null) {
+                List<Map<String,Object>> versions = bySymbolicName.get(symbolicName);
+                if (versions == null) {
+                    versions = new ArrayList<Map<String, Object>>();
+                    bySymbolicName.put(symbolicName,versions);
+                }
+                versions.add(file);
+            }
+        }
+        for (List<Map<String,Object>> versions : bySymbolicName.values()) {
+            if (versions.size() > keepVersions) {
+                Collections.sort(versions, NEWEST_VERSION_FIRST);
+                for (Map<String,Object> file : versions.subList(keepVersions, versions.size())) {
+                    if (!isInstalled(file, pInstalled)) {
+                        pDoomed.put(getName(file), file);
+                    }
+                }
+            }
+        }
+    }
+
+    // Remove the oldest files until the rest fits
+    private void selectOldest(List<Map<String,Object>> pFiles, Map<String,Long> pInstalled,
+                              Map<String,Map<String,Object>> pDoomed) {
+        long total = 0;
+        List<Map<String,Object>> candidates = new ArrayList<Map<String, Object>>();
+        for (Map<String,Object> file : pFiles) {
+            if (!pDoomed.containsKey(getName(file))) {
+                total += getLength(file);
+                if (!isInstalled(file, pInstalled)) {
+                    candidates.add(file);
+                }
+            }
+        }
+        Collections.sort(candidates, OLDEST_FIRST);
+        for (Iterator<Map<String,Object>> it = candidates.iterator(); total > maxBytes && it.hasNext(); ) {
+            Map<String,Object> file = it.next();
+            pDoomed.put(getName(file), file);
+            total -= getLength(file);
+        }
+    }
+
+    private boolean isInstalled(Map<String,Object> pFile, Map<String,Long> pInstalled) {
+        return pInstalled.containsKey("file://" + pFile.get("canonicalPath"));
+    }
+
+    private static String getName(Map<String,Object> pFile) {
+        return (String) pFile.get("name");
+    }
+
+    private static long getModified(Map<String,Object> pFile) {
+        return (Long) pFile.get("modified");
+    }
+
+    private static long getLength(Map<String,Object> pFile) {
+        return (Long) pFile.get("length");
+    }
+
+    private static Version getVersion(Map<String,Object> pFile) {
+        try {
+            return Version.parseVersion((String) pFile.get("version"));
+        } catch (IllegalArgumentException exp) {
+            return Version.emptyVersion;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String,Object>> getFiles(Map<String,Object> pListing) {
+        return (List<Map<String,Object>>) pListing.get("files");
+    }
+
+    private static final Comparator<Map<String,Object>> NEWEST_VERSION_FIRST = new Comparator<Map<String, Object>>() {
+        public int compare(Map<String,Object> o1, Map<String,Object> o2) {
+            int ret = getVersion(o2).compareTo(getVersion(o1));
+            return ret != 0 ? ret : compareLongs(getModified(o2), getModified(o1));
+        }
+    };
+
+    private static final Comparator<Map<String,Object>> OLDEST_FIRST = new Comparator<Map<String, Object>>() {
+        public int compare(Map<String,Object> o1, Map<String,Object> o2) {
+            return compareLongs(getModified(o1), getModified(o2));
+        }
+    };
+
+    private static int compareLongs(long pA, long pB) {
+        return pA < pB ? -1 : (pA == pB ? 0 : 1);
+    }
+
+    // A single daemon thread which gives way to everything else
+    private static final class SweeperThreadFactory implements ThreadFactory {
+        public Thread newThread(Runnable pRunnable) {
+            Thread thread = new Thread(pRunnable, "osgish-upload-sweeper");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,552 @@
+package org.jolokia.osgish.upload;
+
+import org.jolokia.osgish.util.Base64;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+/**
+ * Writes uploaded content into the upload directory. The content is first
+ * streamed through a pooled direct buffer into a temporary file via a
+ * {@link FileChannel} and then renamed to its final name, so that nobody ever
+ * sees a half written file under the final name. The SHA-256 digest of the
+ * content is calculated on the fly and recorded in the {@link UploadIndex}.
+ *
+ * Concurrent uploads write into temporary files of their own. Only publishing
+ * under the final name is serialized per name via {@link NameLocks}, so that
+ * the last upload of a name wins completely and the index always matches the
+ * file on disk.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class UploadWriter {
+
+    /**
+     * Prefix for temporary files in the upload directory. Such files are not
+     * considered to be part of the upload store.
+     */
+    public static final String TEMP_PREFIX = ".upload-";
+
+    // Buffer sizes: small uploads get a heap buffer of their size, everything else a
+    // pooled direct buffer
+    private static final int MIN_BUFFER_SIZE = 8 * 1024;
+    private static final int DIRECT_BUFFER_SIZE = 256 * 1024;
+
+    // Number of direct buffers kept for reuse
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    // Number of lock stripes for file names
+    private static final int LOCK_STRIPES = 64;
+
+    // Size of a single file accepted by default. Compressed uploads are limited by it while
+    // they are decoded, so that a small request can't inflate into a huge file.
+    private static final long DEFAULT_MAX_FILE_SIZE = 1024L * 1024 * 1024;
+
+    /**
+     * When to force uploaded content to disk before it is published
+     */
+    public enum SyncPolicy {
+        /** Leave it to the operating system */
+        NONE,
+        /** Force the file content, but not necessarily its metadata */
+        DATA,
+        /** Force file content and metadata */
+        FULL;
+
+        /**
+         * Lookup a policy by name, case insensitive
+         *
+         * @param pName name of the policy, can be null
+         * @return the policy or {@link #NONE} if no name is given
+         */
+        public static SyncPolicy fromName(String pName) {
+            return pName != null ? valueOf(pName.trim().toUpperCase()) : NONE;
+        }
+    }
+
+    // Directory to write into
+    private final File directory;
+
+    private final SyncPolicy syncPolicy;
+
+    // Index where to record the digests of written files
+    private final UploadIndex index;
+
+    // Pool of direct buffers
+    private final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    // Locks for publishing and removing files by name
+    private final NameLocks locks = new NameLocks(LOCK_STRIPES);
+
+    // Held across the final quota check and the index update when publishing, so that
+    // files of different names can't exceed the quota together
+    private final Object publishLock = new Object();
+
+    // Maximum total size of the upload directory in bytes, 0 for no limit
+    private volatile long quota;
+
+    // Maximum size of a single file in bytes, 0 for no limit
+    private volatile long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+
+    /**
+     * Constructor
+     *
+     * @param pDirectory directory where to store uploaded files
+     * @param pSyncPolicy policy for syncing data to disk
+     * @param pIndex digest index of the upload directory
+     */
+    public UploadWriter(File pDirectory, SyncPolicy pSyncPolicy, UploadIndex pIndex) {
+        directory = pDirectory;
+        syncPolicy = pSyncPolicy;
+        index = pIndex;
+    }
+
+    /**
+     * Get the digest index which is updated by this writer
+     *
+     * @return digest index
+     */
+    public UploadIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Limit the total size of the upload directory. Files which would exceed it are
+     * rejected with a {@link QuotaExceededException}.
+     *
+     * @param pQuota maximum size in bytes, 0 for no limit
+     */
+    public void setQuota(long pQuota) {
+        quota = pQuota;
+    }
+
+    public long getQuota() {
+        return quota;
+    }
+
+    /**
+     * Limit the size of a single file. Files which would exceed it are rejected with a
+     * {@link QuotaExceededException}, content of unknown size as soon as it gets too large.
+     *
+     * @param pMaxFileSize maximum size in bytes, 0 for no limit
+     */
+    public void setMaxFileSize(long pMaxFileSize) {
+        maxFileSize = pMaxFileSize;
+    }
+
+    /**
+     * Check whether a file of the given size can be stored under the given name. Only
+     * the sizes known to the index are summed up, so this check never touches the disk
+     * and can be done early, before any content has been transferred.
+     *
+     * @param pName name of the file, a file of the same name is replaced
+     * @param pSize size of the new content or -1 if not known yet
+     * @throws QuotaExceededException if the quota or the maximum file size would be exceeded
+     */
+    public void checkQuota(String pName, long pSize) throws QuotaExceededException {
+        if (pSize < 0) {
+            return;
+        }
+        long maxSize = maxFileSize;
+        if (maxSize > 0 && pSize > maxSize) {
+            throw new QuotaExceededException("Cannot store " + pName + " (" + pSize + " bytes): Maximum file size is " +
+                                             maxSize + " bytes");
+        }
+        long max = quota;
+        if (max <= 0) {
+            return;
+        }
+        long used = index.getTotalSize() - index.getSize(pName);
+        if (used + pSize > max) {
+            throw new QuotaExceededException("Cannot store " + pName + " (" + pSize + " bytes): Upload quota of " +
+                                             max + " bytes exceeded (" + used + " bytes used)");
+        }
+    }
+
+    /**
+     * Get the lock which must be held while replacing or removing the file with the
+     * given name in the upload directory
+     *
+     * @param pName name of the file
+     * @return lock for this name
+     */
+    public Lock getLock(String pName) {
+        return locks.get(pName);
+    }
+
+    /**
+     * Write the content of the given stream under the given name into the upload directory.
+     * The stream is always closed.
+     *
+     * @param pIn stream to read from
+     * @param pName name of the file within the upload directory
+     * @param pSizeHint expected size of the content or -1 if not known
+     * @param pExpectedDigest hex encoded SHA-256 digest the content must have or null if it should
+     *        not be verified
+     * @return the file written
+     * @throws IOException if reading or writing fails or the quota is exceeded. No file
+     *         with the given name is created or overwritten in this case.
+     * @throws IllegalArgumentException if the name is invalid or the content does not match the
+     *         expected digest. Nothing is stored in this case, too.
+     */
+    public File write(InputStream pIn, String pName, long pSizeHint, String pExpectedDigest) throws IOException {
+        return write(pIn, pName, pSizeHint, -1, pExpectedDigest, null);
+    }
+
+    /**
+     * Write content of a known length, e.g. the raw body of a request, under the given name
+     * into the upload directory. The file is preallocated to its final size up front, so that
+     * the filesystem can lay it out in one go instead of growing it with every write. The
+     * stream is always closed.
+     *
+     * @param pIn stream to read from
+     * @param pName name of the file within the upload directory
+     * @param pLength exact length of the content or -1 if not known
+     * @param pExpectedDigest hex encoded SHA-256 digest the content must have or null
+     * @param pExpectedMd5 base64 encoded MD5 digest the content must have (like in a
+     *        <code>Content-MD5</code> header) or null. MD5 is only calculated if given.
+     * @return the file written
+     * @throws IOException if reading or writing fails, the content is shorter or longer than
+     *         announced or the quota is exceeded. Nothing is stored in this case.
+     * @throws IllegalArgumentException if the name is invalid or the content does not match
+     *         one of the expected digests. Nothing is stored in this case, too.
+     */
+    public File store(InputStream pIn, String pName, long pLength, String pExpectedDigest, String pExpectedMd5)
+            throws IOException {
+        return write(pIn, pName, pLength, pLength, pExpectedDigest, pExpectedMd5);
+    }
+
+    // Write with an optional exact length for preallocation and an optional MD5 check
+    private File write(InputStream pIn, String pName, long pSizeHint, long pLength,
+                       String pExpectedDigest, String pExpectedMd5) throws IOException {
+        checkName(pName);
+        checkQuota(pName, pSizeHint);
+        File dest = new File(directory, pName);
+        File temp = createTempFile();
+        boolean published = false;
+        try {
+            MessageDigest md5 = pExpectedMd5 != null ? newMd5() : null;
+            String digest = copy(pIn, temp, pName, pSizeHint, pLength, md5);
+            verifyDigest(pName, digest, pExpectedDigest);
+            if (md5 != null) {
+                String actual = Base64.encode(md5.digest());
+                if (!actual.equals(pExpectedMd5.trim())) {
+                    throw new IllegalArgumentException("MD5 mismatch for " + pName + ": Expected " + pExpectedMd5 +
+                                                       ", got " + actual);
+                }
+            }
+            publish(temp, dest, digest);
+            published = true;
+            return dest;
+        } finally {
+            if (!published) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Check that the given name denotes a plain file directly within the upload directory
+     *
+     * @param pName name to check
+     * @throws IllegalArgumentException if the name is not acceptable
+     */
+    public static void checkName(String pName) {
+        if (pName == null || pName.length() == 0) {
+            throw new IllegalArgumentException("No file name given");
+        }
+        if (pName.indexOf('/') != -1 || pName.indexOf('\\') != -1 ||
+            pName.equals(".") || pName.equals("..") || pName.startsWith(TEMP_PREFIX)) {
+            throw new IllegalArgumentException("Invalid file name " + pName);
+        }
+    }
+
+    /**
+     * Store a copy of a file which is already in the upload directory under another name.
+     * The copy is done within the filesystem, so no content has to be transferred by the client.
+     *
+     * @param pSource file to copy
+     * @param pName name of the copy
+     * @param pDigest digest of the source
+     * @return the new file
+     * @throws IOException if copying fails
+     */
+    public File copy(File pSource, String pName, String pDigest) throws IOException {
+        checkName(pName);
+        File dest = new File(directory, pName);
+        File temp = createTempFile();
+        boolean published = false;
+        FileInputStream in = new FileInputStream(pSource);
+        try {
+            FileOutputStream fos = new FileOutputStream(temp);
+            try {
+                FileChannel src = in.getChannel();
+                FileChannel out = fos.getChannel();
+                long size = src.size();
+                long pos = 0;
+                while (pos < size) {
+                    pos += src.transferTo(pos, size - pos, out);
+                }
+                sync(out);
+            } finally {
+                fos.close();
+            }
+            publish(temp, dest, pDigest);
+            published = true;
+            return dest;
+        } finally {
+            in.close();
+            if (!published) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Check a calculated digest against the digest expected by the client
+     *
+     * @param pName name of the file, used for the error message
+     * @param pDigest digest calculated
+     * @param pExpectedDigest digest expected or null if nothing is expected
+     * @throws IllegalArgumentException if the digests differ
+     */
+    public static void verifyDigest(String pName, String pDigest, String pExpectedDigest) {
+        if (pExpectedDigest != null && !pExpectedDigest.equalsIgnoreCase(pDigest)) {
+            throw new IllegalArgumentException("Checksum mismatch for " + pName + ": Expected " + pExpectedDigest +
+                                               ", got " + pDigest);
+        }
+    }
+
+    /**
+     * Create a temporary file within the upload directory
+     *
+     * @return temporary file
+     * @throws IOException if the file can not be created
+     */
+    public File createTempFile() throws IOException {
+        return File.createTempFile(TEMP_PREFIX, ".tmp", directory);
+    }
+
+    /**
+     * Get all temporary files within the upload directory, including those of uploads
+     * still in progress
+     *
+     * @return temporary files
+     */
+    public File[] listTempFiles() {
+        File[] ret = directory.listFiles(new FileFilter() {
+            public boolean accept(File pFile) {
+                String name = pFile.getName();
+                return name.startsWith(TEMP_PREFIX) && name.endsWith(".tmp") && pFile.isFile();
+            }
+        });
+        return ret != null ? ret : new File[0];
+    }
+
+    /**
+     * Move a completely written temporary file to its final destination and record its
+     * digest. Within the same directory, a rename is atomic on POSIX systems. Where it is
+     * not possible to rename onto an existing file, the old file is removed first. Both
+     * happen under the lock for the destination's name. The quota is checked once more
+     * right before, under a lock shared by all names, so that it is a hard limit.
+     *
+     * @param pTemp temporary file
+     * @param pDest final destination
+     * @param pDigest hex encoded digest of the content
+     * @throws IOException if the file can not be moved
+     * @throws QuotaExceededException if the file would exceed the quota. The temporary
+     *         file is left alone in this case.
+     */
+    public void publish(File pTemp, File pDest, String pDigest) throws IOException {
+        Lock lock = getLock(pDest.getName());
+        lock.lock();
+        try {
+            synchronized (publishLock) {
+                checkQuota(pDest.getName(), pTemp.length());
+                if (!pTemp.renameTo(pDest)) {
+                    if (!pDest.delete() || !pTemp.renameTo(pDest)) {
+                        throw new IOException("Cannot move " + pTemp.getName() + " to " + pDest.getAbsolutePath());
+                    }
+                }
+                index.put(pDest, pDigest);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove a file from the upload directory along with its index entry
+     *
+     * @param pName name of the file
+     * @param pLastModified modification time the file must still have, so that a file
+     *        which has just been uploaded again is kept. -1 to remove it in any case.
+     * @return true if the file has been removed, false if there is no such file or it
+     *         has been modified meanwhile
+     * @throws IOException if the file can not be deleted
+     */
+    public boolean delete(String pName, long pLastModified) throws IOException {
+        File file = new File(directory, pName);
+        Lock lock = getLock(pName);
+        lock.lock();
+        try {
+            if (!file.isFile() || (pLastModified != -1 && file.lastModified() != pLastModified)) {
+                return false;
+            }
+            if (!file.delete()) {
+                throw new IOException("Could not delete file " + pName);
+            }
+            index.remove(pName);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Force the content of the given channel to disk according to the configured policy
+     *
+     * @param pChannel channel to sync
+     * @throws IOException if syncing fails
+     */
+    public void sync(FileChannel pChannel) throws IOException {
+        if (syncPolicy != SyncPolicy.NONE) {
+            pChannel.force(syncPolicy == SyncPolicy.FULL);
+        }
+    }
+
+    // =================================================================================
+
+    // Copy and return the hex encoded digest of the content. With a length given, the file is
+    // preallocated and the content must have exactly this length. An additional digest is
+    // updated as well, if given. Copying stops as soon as the content exceeds the quota left
+    // or the maximum file size, since content of unknown length can be anything.
+    private String copy(InputStream pIn, File pDest, String pName, long pSizeHint, long pLength,
+                        MessageDigest pExtraDigest) throws IOException {
+        long limit = getSizeLimit(pName);
+        ReadableByteChannel in = Channels.newChannel(pIn);
+        MessageDigest digest = UploadIndex.newDigest();
+        RandomAccessFile file = null;
+        ByteBuffer buffer = acquireBuffer(pSizeHint);
+        try {
+            file = new RandomAccessFile(pDest, "rw");
+            if (pLength > 0) {
+                file.setLength(pLength);
+            }
+            FileChannel out = file.getChannel();
+            boolean eof = false;
+            while (!eof) {
+                // Fill the buffer completely (the stream usually delivers small chunks only)
+                // so that the file channel gets large writes
+                while (buffer.hasRemaining() && !eof) {
+                    eof = in.read(buffer) == -1;
+                }
+                buffer.flip();
+                if (out.position() + buffer.remaining() > limit) {
+                    throw new QuotaExceededException("Cannot store " + pName + ": Content exceeds the " + limit +
+                                                     " bytes left by the upload quota and maximum file size");
+                }
+                buffer.mark();
+                digest.update(buffer);
+                buffer.reset();
+                if (pExtraDigest != null) {
+                    pExtraDigest.update(buffer);
+                    buffer.reset();
+                }
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+            if (pLength >= 0 && out.position() != pLength) {
+                throw new IOException("Content has " + out.position() + " bytes instead of the " + pLength + " bytes announced");
+            }
+            sync(out);
+            return UploadIndex.toHex(digest.digest());
+        } finally {
+            releaseBuffer(buffer);
+            try { in.close(); } catch (IOException ex) { }
+            if (file != null) {
+                // Errors on close must not go unnoticed, the content might be incomplete
+                file.close();
+            }
+        }
+    }
+
+    // Maximum number of bytes which can be stored under the given name right now
+    private long getSizeLimit(String pName) {
+        long limit = maxFileSize > 0 ? maxFileSize : Long.MAX_VALUE;
+        long max = quota;
+        if (max > 0) {
+            limit = Math.min(limit, Math.max(max - (index.getTotalSize() - index.getSize(pName)), 0));
+        }
+        return limit;
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JRE is required to support MD5
+            throw new IllegalStateException("No MD5 available: " + e,e);
+        }
+    }
+
+    // Get a buffer suitable for transferring the given number of bytes
+    ByteBuffer acquireBuffer(long pSizeHint) {
+        if (pSizeHint >= 0 && pSizeHint < DIRECT_BUFFER_SIZE) {
+            return ByteBuffer.allocate((int) Math.max(pSizeHint, MIN_BUFFER_SIZE));
+        }
+        ByteBuffer buffer = bufferPool.poll();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+            return buffer;
+        }
+        return ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+    }
+
+    // Return a buffer obtained with acquireBuffer()
+    void releaseBuffer(ByteBuffer pBuffer) {
+        if (pBuffer.isDirect() && pooled.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            pBuffer.clear();
+            bufferPool.offer(pBuffer);
+        } else if (pBuffer.isDirect()) {
+            pooled.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.jolokia.osgish.util;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Minimal Base64 codec (RFC 4648, with padding) for transferring binary
+ * content as JSON string or in HTTP headers. Java 5 does not ship a public one.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public final class Base64 {
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    // Value of each alphabet character, -1 for all other characters
+    private static final int[] VALUES = new int[128];
+    static {
+        java.util.Arrays.fill(VALUES, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = i;
+        }
+    }
+
+    private Base64() {
+    }
+
+    /**
+     * Encode a part of a byte array
+     *
+     * @param pData data to encode
+     * @param pOffset where to start within the array
+     * @param pLength number of bytes to encode
+     * @return encoded string
+     */
+    public static String encode(byte[] pData, int pOffset, int pLength) {
+        char[] out = new char[(pLength + 2) / 3 * 4];
+        int o = 0;
+        int end = pOffset + pLength;
+        int i = pOffset;
+        for (; i + 2 < end; i += 3) {
+            int bits = (pData[i] & 0xff) << 16 | (pData[i + 1] & 0xff) << 8 | (pData[i + 2] & 0xff);
+            out[o++] = ALPHABET[bits >>> 18];
+            out[o++] = ALPHABET[(bits >>> 12) & 0x3f];
+            out[o++] = ALPHABET[(bits >>> 6) & 0x3f];
+            out[o++] = ALPHABET[bits & 0x3f];
+        }
+        int rest = end - i;
+        if (rest > 0) {
+            int bits = (pData[i] & 0xff) << 16 | (rest == 2 ? (pData[i + 1] & 0xff) << 8 : 0);
+            out[o++] = ALPHABET[bits >>> 18];
+            out[o++] = ALPHABET[(bits >>> 12) & 0x3f];
+            out[o++] = rest == 2 ? ALPHABET[(bits >>> 6) & 0x3f] : '=';
+            out[o] = '=';
+        }
+        return new String(out);
+    }
+
+    /**
+     * Encode a byte array
+     *
+     * @param pData data to encode
+     * @return encoded string
+     */
+    public static String encode(byte[] pData) {
+        return encode(pData, 0, pData.length);
+    }
+
+    /**
+     * Decode a base64 string, e.g. the value of a <code>Digest</code> header
+     *
+     * @param pValue base64 string, padding is optional
+     * @return decoded bytes
+     * @throws IllegalArgumentException if the string is not valid base64
+     */
+    public static byte[] decode(String pValue) {
+        String value = pValue.trim();
+        int length = value.length();
+        while (length > 0 && value.charAt(length - 1) == '=') {
+            length--;
+        }
+        if (length % 4 == 1) {
+            throw new IllegalArgumentException("Invalid base64 value " + pValue);
+        }
+        byte[] ret = new byte[length * 3 / 4];
+        int bits = 0;
+        int buffer = 0;
+        int idx = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            int v = c < VALUES.length ? VALUES[c] : -1;
+            if (v == -1) {
+                throw new IllegalArgumentException("Invalid base64 value " + pValue);
+            }
+            buffer = (buffer << 6) | v;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                ret[idx++] = (byte) (buffer >> bits);
+            }
+        }
+        return ret;
+    }
+}
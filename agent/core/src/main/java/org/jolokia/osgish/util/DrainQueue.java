@@ -0,0 +1,240 @@
+package org.jolokia.osgish.util;
+
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Bounded, lock-free queue drained by a single background thread. Producers never
+ * block: {@link #offer(Object, int)} fails if the queue is full. The drain thread
+ * repeatedly calls the {@link Handler}, which takes out the queued elements in batches
+ * with {@link #drainTo(Collection)}, and parks when there is nothing to do. Producers
+ * only wake it up when it is actually parked.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public class DrainQueue<T> {
+
+    /**
+     * Called from the drain thread
+     */
+    public interface Handler {
+
+        /**
+         * Process the next batch
+         *
+         * @return false if there was nothing to do, so that the drain thread can park
+         */
+        boolean process();
+
+        /**
+         * Whether there is work besides the queued elements, e.g. dropped elements to
+         * report. The drain thread doesn't park then.
+         *
+         * @return true if {@link #process()} should be called right away
+         */
+        boolean hasPending();
+    }
+
+    // How long the drain thread sleeps at most without being woken up
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String threadName;
+    private final int maxBatch;
+
+    private final Queue<T> queue = new ConcurrentLinkedQueue<T>();
+
+    // Number of queued elements (ConcurrentLinkedQueue.size() is not constant time)
+    private final AtomicInteger size = new AtomicInteger();
+
+    private volatile Handler handler;
+    private volatile Thread drainer;
+    private volatile boolean parked;
+    private volatile boolean running;
+
+    /**
+     * Constructor
+     *
+     * @param pThreadName name of the drain thread
+     * @param pMaxBatch maximum number of elements taken out by one {@link #drainTo(Collection)}
+     */
+    public DrainQueue(String pThreadName, int pMaxBatch) {
+        threadName = pThreadName;
+        maxBatch = pMaxBatch;
+    }
+
+    /**
+     * Start the drain thread
+     *
+     * @param pHandler handler called from the drain thread
+     * @return false if the thread was running already
+     */
+    public synchronized boolean start(Handler pHandler) {
+        if (running) {
+            return false;
+        }
+        handler = pHandler;
+        running = true;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, threadName);
+        thread.setDaemon(true);
+        drainer = thread;
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Stop the drain thread and wait a bit for it to finish. Queued elements are kept.
+     *
+     * @return false if the thread wasn't running
+     */
+    public synchronized boolean stop() {
+        if (!running) {
+            return false;
+        }
+        running = false;
+        Thread thread = drainer;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+        }
+        drainer = null;
+        return true;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Queue an element unless the queue already holds the given number of elements.
+     * Never blocks.
+     *
+     * @param pElement element to queue
+     * @param pLimit maximum number of queued elements
+     * @return false if the queue was full and the element has been dropped
+     */
+    public boolean offer(T pElement, int pLimit) {
+        if (size.incrementAndGet() > pLimit) {
+            size.decrementAndGet();
+            return false;
+        }
+        queue.offer(pElement);
+        wakeUp();
+        return true;
+    }
+
+    /**
+     * Wake up the drain thread if it is parked, e.g. after dropping an element
+     */
+    public void wakeUp() {
+        if (parked) {
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    /**
+     * Move up to the maximum batch size of queued elements into the given collection
+     *
+     * @param pBatch where to add the elements
+     * @return number of elements moved
+     */
+    public int drainTo(Collection<? super T> pBatch) {
+        int count = 0;
+        T element;
+        while (count < maxBatch && (element = queue.poll()) != null) {
+            pBatch.add(element);
+            count++;
+        }
+        if (count > 0) {
+            size.addAndGet(-count);
+        }
+        return count;
+    }
+
+    /**
+     * Get the oldest queued element without removing it
+     *
+     * @return oldest element or null if the queue is empty
+     */
+    public T peek() {
+        return queue.peek();
+    }
+
+    /**
+     * Number of queued elements
+     *
+     * @return queue depth
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Discard all queued elements
+     */
+    public void clear() {
+        queue.clear();
+        size.set(0);
+    }
+
+    // =================================================================================
+
+    private void drain() {
+        while (running) {
+            boolean busy;
+            try {
+                busy = handler.process();
+            } catch (Throwable exp) {
+                // Whatever happens, the drain thread must survive. Don't retry in a tight loop.
+                busy = false;
+            }
+            if (!busy) {
+                idle();
+            }
+        }
+    }
+
+    private void idle() {
+        parked = true;
+        // Check again after announcing that we are about to sleep, so that no wakeup gets lost
+        if (queue.isEmpty() && !handler.hasPending() && running) {
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        parked = false;
+    }
+}
@@ -0,0 +1,115 @@
+package org.jolokia.osgish.util;
+
+import java.util.*;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * Parser for OSGi manifest headers like Import-Package or Require-Bundle.
+ * A header consists of comma separated clauses, each holding one or more
+ * names followed by attributes (<code>a=b</code>) and directives
+ * (<code>a:=b</code>). Values can be quoted and contain commas then.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public final class HeaderParser {
+
+    private HeaderParser() {
+    }
+
+    /**
+     * Parse a header into its clauses. Each clause is returned as map from name to its
+     * parameters (attributes and directives, the latter with a trailing ':' in their key).
+     * Names sharing a clause share the same parameter map.
+     *
+     * @param pHeader header value, can be null
+     * @return map of names to parameters, in the order of the header
+     */
+    public static Map<String,Map<String,String>> parse(String pHeader) {
+        Map<String,Map<String,String>> ret = new LinkedHashMap<String, Map<String, String>>();
+        if (pHeader == null) {
+            return ret;
+        }
+        for (String clause : split(pHeader, ',')) {
+            List<String> names = new ArrayList<String>();
+            Map<String,String> params = new HashMap<String, String>();
+            for (String part : split(clause, ';')) {
+                int eq = part.indexOf('=');
+                if (eq == -1) {
+                    if (part.length() > 0) {
+                        names.add(part);
+                    }
+                } else {
+                    boolean directive = eq > 0 && part.charAt(eq - 1) == ':';
+                    String key = part.substring(0, directive ? eq - 1 : eq).trim();
+                    params.put(directive ? key + ":" : key, unquote(part.substring(eq + 1).trim()));
+                }
+            }
+            for (String name : names) {
+                ret.put(name, params);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get only the names of a header, e.g. the packages of an Import-Package header
+     *
+     * @param pHeader header value, can be null
+     * @return names in the order of the header
+     */
+    public static Set<String> getNames(String pHeader) {
+        return parse(pHeader).keySet();
+    }
+
+    // =================================================================================
+
+    // Split at the given separator, but not within quotes. Parts are trimmed.
+    private static List<String> split(String pValue, char pSeparator) {
+        List<String> ret = new ArrayList<String>();
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < pValue.length(); i++) {
+            char c = pValue.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == pSeparator && !quoted) {
+                ret.add(pValue.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        ret.add(pValue.substring(start).trim());
+        return ret;
+    }
+
+    private static String unquote(String pValue) {
+        if (pValue.length() > 1 && pValue.startsWith("\"") && pValue.endsWith("\"")) {
+            return pValue.substring(1, pValue.length() - 1);
+        }
+        return pValue;
+    }
+}
@@ -0,0 +1,113 @@
+package org.jolokia.osgish.util;
+
+import org.osgi.framework.Version;
+
+/*
+ * osgish - An OSGi Shell
+ *
+ * Copyright (C) 2009 Roland Huß, roland@cpan.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * A commercial license is available as well. Please contact roland@cpan.org for
+ * further details.
+ */
+
+
+
+/**
+ * OSGi version range like <code>[1.0,2.0)</code>. A single version like
+ * <code>1.2</code> stands for "at least 1.2", as in an Import-Package header.
+ *
+ * @author roland
+ * @since Oct 17, 2026
+ */
+public final class VersionRange {
+
+    /**
+     * Range matching every version
+     */
+    public static final VersionRange ANY = new VersionRange(Version.emptyVersion, true, null, false);
+
+    private final Version floor;
+    private final boolean floorInclusive;
+    // null for an unbounded range
+    private final Version ceiling;
+    private final boolean ceilingInclusive;
+
+    private VersionRange(Version pFloor, boolean pFloorInclusive, Version pCeiling, boolean pCeilingInclusive) {
+        floor = pFloor;
+        floorInclusive = pFloorInclusive;
+        ceiling = pCeiling;
+        ceilingInclusive = pCeilingInclusive;
+    }
+
+    /**
+     * Parse a version range
+     *
+     * @param pRange range to parse. null or an empty string matches all versions
+     * @return the parsed range
+     * @throws IllegalArgumentException if the range can not be parsed
+     */
+    public static VersionRange parse(String pRange) {
+        if (pRange == null) {
+            return ANY;
+        }
+        String range = pRange.trim();
+        if (range.startsWith("\"") && range.endsWith("\"") && range.length() > 1) {
+            range = range.substring(1, range.length() - 1).trim();
+        }
+        if (range.length() == 0) {
+            return ANY;
+        }
+        char first = range.charAt(0);
+        if (first != '[' && first != '(') {
+            return new VersionRange(Version.parseVersion(range), true, null, false);
+        }
+        char last = range.charAt(range.length() - 1);
+        int comma = range.indexOf(',');
+        if ((last != ']' && last != ')') || comma == -1) {
+            throw new IllegalArgumentException("Invalid version range " + pRange);
+        }
+        return new VersionRange(Version.parseVersion(range.substring(1, comma).trim()), first == '[',
+                                Version.parseVersion(range.substring(comma + 1, range.length() - 1).trim()), last == ']');
+    }
+
+    /**
+     * Check whether a version is within this range
+     *
+     * @param pVersion version to check
+     * @return true if the version is included
+     */
+    public boolean includes(Version pVersion) {
+        int cmp = pVersion.compareTo(floor);
+        if (cmp < 0 || (cmp == 0 && !floorInclusive)) {
+            return false;
+        }
+        if (ceiling == null) {
+            return true;
+        }
+        cmp = pVersion.compareTo(ceiling);
+        return cmp < 0 || (cmp == 0 && ceilingInclusive);
+    }
+
+    @Override
+    public String toString() {
+        if (ceiling == null) {
+            return floor.toString();
+        }
+        return (floorInclusive ? "[" : "(") + floor + "," + ceiling + (ceilingInclusive ? "]" : ")");
+    }
+}
@@ -15,6 +15,9 @@ use strict;
 use JMX::Jmx4Perl;
 use JMX::Jmx4Perl::Request;
 use OSGi::Osgish::Agent::Upload;
+use MIME::Base64;
+use IO::Uncompress::Gunzip qw(gunzip $GunzipError);
+use JSON;
 use Data::Dumper;
 
 # Osgi EEG MBeans
@@ -74,8 +77,7 @@ sub init {
     my $old_bundle = delete $self->{bundle};
     my $old_service = delete $self->{service};
     eval {
-        $self->_fetch_bundles;
-        $self->_fetch_services;
+        $self->_fetch_state("bundle","service");
     };
     if ($@) {
         $self->{bundle} = $old_bundle;
@@ -142,6 +144,116 @@ sub service {
     return $self->{service}->{ids}->{$id};
 }
 
+# Fetch all bundles in the compact columnar encoding and return them as hashref
+# keyed by bundle id. Each bundle is a hashref with "id", "symbolicName", "version", 
+# "state" and "location". This is much smaller on the wire than the full bundle 
+# list for large frameworks, but isn't cached locally.
+sub compact_bundles {
+    my $self = shift;
+    return $self->_read_columnar("ColumnarBundles");
+}
+
+# Like compact_bundles, but for services with "id", "bundle" and "objectClass".
+# The using bundles are not included, use the regular service list for them.
+sub compact_services {
+    my $self = shift;
+    return $self->_read_columnar("ColumnarServices");
+}
+
+sub _read_columnar {
+    my $self = shift;
+    my $attribute = shift;
+    my $encoded = $self->_do_execute(new JMX::Jmx4Perl::Request(READ,$OSGISH_SERVICE_NAME,$attribute));
+    my $rows = &_decode_columnar($encoded);
+    return { map { $_->{id} => $_ } @$rows };
+}
+
+# Column types of the columnar encoding
+my ($COL_LONG,$COL_STRING,$COL_LONG_LIST,$COL_STRING_LIST) = (0,1,2,3);
+
+# Decode a table in the columnar encoding (gzipped and Base64 encoded) into 
+# a list of hashrefs, one per row
+sub _decode_columnar {
+    my $encoded = shift;
+    my $compressed = decode_base64($encoded);
+    my $data;
+    gunzip(\$compressed => \$data) or die "Cannot uncompress table: $GunzipError\n";
+    my @bytes = unpack("C*",$data);
+    my $pos = 0;
+    my $varint = sub {
+        my ($value,$shift) = (0,0);
+        while (1) {
+            my $b = $bytes[$pos++];
+            die "Truncated table\n" unless defined($b);
+            $value += ($b & 0x7f) * (2 ** $shift);
+            return $value unless $b & 0x80;
+            $shift += 7;
+        }
+    };
+    my $zigzag = sub {
+        my $v = $varint->();
+        return $v % 2 ? -($v + 1) / 2 : $v / 2;
+    };
+    my $string = sub {
+        my $len = $varint->();
+        my $s = substr($data,$pos,$len);
+        $pos += $len;
+        utf8::decode($s);
+        return $s;
+    };
+    die "Invalid table format\n" unless $bytes[0] == ord('O') && $bytes[1] == ord('C');
+    die "Unsupported table version ",$bytes[2],"\n" unless $bytes[2] == 1;
+    $pos = 3;
+    my @columns;
+    my $nr_columns = $varint->();
+    for (1 .. $nr_columns) {
+        my $name = $string->();
+        push @columns,[ $name, $bytes[$pos++] ];
+    }
+    my $nr_rows = $varint->();
+    my @strings = (undef);
+    my $nr_strings = $varint->();
+    push @strings,$string->() for (1 .. $nr_strings);
+    my @rows = map { +{} } (1 .. $nr_rows);
+    for my $col (@columns) {
+        my ($name,$type) = @$col;
+        my $last = 0;
+        for my $row (@rows) {
+            if ($type == $COL_LONG) {
+                $last += $zigzag->();
+                $row->{$name} = $last;
+            } elsif ($type == $COL_STRING) {
+                $row->{$name} = $strings[$varint->()];
+            } elsif ($type == $COL_LONG_LIST) {
+                my $n = $varint->();
+                $row->{$name} = [ map { $zigzag->() } (1 .. $n) ];
+            } elsif ($type == $COL_STRING_LIST) {
+                my $n = $varint->();
+                $row->{$name} = [ map { $strings[$varint->()] } (1 .. $n) ];
+            } else {
+                die "Unknown column type $type\n";
+            }
+        }
+    }
+    return \@rows;
+}
+
+# Block on the server until bundles, services or packages (or "all" of them)
+# change compared to the cached state or until the timeout (in ms) expires. 
+# Returns true if the cached state is outdated. If the server is too busy to
+# let us wait, the state is checked once without blocking.
+sub await_state_change {
+    my $self = shift;
+    my $what = shift || "all";
+    my $timeout = shift || 10000;
+    my @types = $what eq "all" ? qw(bundle service package) : ($what =~ /^(.*)s$/);
+    my @sequences = map { $self->{$_}->{sequence} } @types;
+    return 1 if grep { !defined($_) } @sequences;
+    my ($sequence) = sort { $a <=> $b } @sequences;
+    my $ret = $self->execute($OSGISH_SERVICE_NAME,"awaitStateChange",$what,$sequence,$timeout);
+    return &_is_true($ret->{changed});
+}
+
 sub resolve_bundle {
     my $self = shift;
     $self->_update_bundles();
@@ -182,7 +294,10 @@ sub _bulk_bundle_cmd {
         push @ids,$self->_id_or_symbolic_name($i);
     }
     die "No id given\n" unless @ids;
-    if (@ids > 1) {
+    if (@ids > 1 && $what_single =~ /^(start|stop|refresh)Bundle$/) {
+        # Done in parallel, along the dependencies
+        return $self->execute($OSGISH_SERVICE_NAME,"executeBundleOperation",$1,\@ids);
+    } elsif (@ids > 1) {
         return $self->execute($self->_mbean_name("framework"),$what_multi,\@ids);
     } else {
         $self->execute($self->_mbean_name("framework"),$what_single,$ids[0]);
@@ -224,12 +339,49 @@ sub update_bundles {
         push @ids,$self->_id_or_symbolic_name($i);
     }
     if (@ids > 1) {
-        return $self->execute($self->_mbean_name("framework"),"updateBundles([J)",\@ids);    
+        return $self->execute($OSGISH_SERVICE_NAME,"executeBundleOperation","update",\@ids);
     } else {
         return $self->execute($self->_mbean_name("framework"),"updateBundle(long)",$ids[0]);
     }
 }
 
+# List the entries of a bundle archive, optionally only those below a given path
+sub bundle_content {
+    my $self = shift;
+    my $id = $self->_id_or_symbolic_name(shift);
+    my $prefix = shift;
+    return $self->execute($OSGISH_SERVICE_NAME,"listBundleContent",$id,$prefix);
+}
+
+# Get the content of a single entry of a bundle archive. The content is
+# fetched in parts, each one being at most as large as the agent allows.
+sub bundle_entry {
+    my $self = shift;
+    my $id = $self->_id_or_symbolic_name(shift);
+    my $entry = shift || die "No entry given\n";
+    return $self->_read_in_parts(sub { $self->execute($OSGISH_SERVICE_NAME,"readBundleEntry",$id,$entry,shift,-1) });
+}
+
+# Get the bundle archive itself (only for bundles installed from a local file)
+sub bundle_archive {
+    my $self = shift;
+    my $id = $self->_id_or_symbolic_name(shift);
+    return $self->_read_in_parts(sub { $self->execute($OSGISH_SERVICE_NAME,"readBundle",$id,shift,-1) });
+}
+
+sub _read_in_parts {
+    my $self = shift;
+    my $read = shift;
+    my $data = "";
+    while (1) {
+        my $part = &$read(length($data));
+        die "Cannot read: ",$self->last_error,"\n" unless $part;
+        $data .= decode_base64($part->{data});
+        last if !$part->{length} || ($part->{size} >= 0 && length($data) >= $part->{size});
+    }
+    return $data;
+}
+
 sub _id_or_symbolic_name {
     my $self = shift;
     my $id = shift;
@@ -329,9 +481,11 @@ sub _update_services {
     # TODO: Update policy
 
     # Cache bundle list
-    if ($self->_server_state_changed("services",$self->{service}->{timestamp})) {
-        $self->_fetch_services;
-    }    
+    my ($changed,$sequence,$epoch) = $self->_server_state_changed("services",$self->{service});
+    $self->_forget_version($self->{service},$epoch);
+    $self->_fetch_services if $changed;
+    $self->{service}->{sequence} = $sequence;
+    $self->{service}->{epoch} = $epoch;
 }
 
 sub _update_bundles {
@@ -344,9 +498,11 @@ sub _update_bundles {
     # TODO: Update policy
 
     # Cache bundle list
-    if ($self->_server_state_changed("bundles",$self->{bundle}->{timestamp})) {
-        $self->_fetch_bundles;
-    }
+    my ($changed,$sequence,$epoch) = $self->_server_state_changed("bundles",$self->{bundle});
+    $self->_forget_version($self->{bundle},$epoch);
+    $self->_fetch_bundles if $changed;
+    $self->{bundle}->{sequence} = $sequence;
+    $self->{bundle}->{epoch} = $epoch;
 }
 
 sub _update_packages {
@@ -357,16 +513,74 @@ sub _update_packages {
     return if ($self->{package} && $args->{use_cached});
     # TODO: Update policy
     # Cache bundle list
-    if (!$self->{package} || $self->_server_state_changed("packages",$self->{bundle}->{timestamp})) {
-        #print "FETCH PKG\n";
-        $self->_fetch_packages;
-    }
+    my ($changed,$sequence,$epoch) = $self->_server_state_changed("packages",$self->{package});
+    $self->_forget_version($self->{package},$epoch);
+    $self->_fetch_packages if $changed;
+    $self->{package}->{sequence} = $sequence;
+    $self->{package}->{epoch} = $epoch;
 }
 
 
+# Operations for fetching the delta of a cached type
+my $DELTA_OPERATIONS = 
+    {
+     "bundle" => "getBundleDelta",
+     "service" => "getServiceDelta",
+     "package" => "getPackageDelta"
+    };
+
+# Execute several operations on the osgish service within a single request. Each
+# request is a hash ref with "operation", "arguments" (array ref) and optionally
+# "mbean". Returns the list of results, dies if one of the operations failed.
+sub batch {
+    my $self = shift;
+    my @requests = @_;
+    my $ret = $self->execute_post($OSGISH_SERVICE_NAME,"batch",to_json(\@requests));
+    my @values;
+    for my $i (0 .. $#requests) {
+        my $result = $ret->{results}->[$i];
+        die "Error while executing ",$requests[$i]->{operation},": ",$result->{error},"\n" 
+          if (defined($result->{error}));
+        push @values,$result->{value};
+    }
+    return wantarray ? @values : \@values;
+}
+
+# Update the cached state for all given types ("bundle", "service", "package") 
+# with a single request. The sequence number remembered is the one from before 
+# the batch, so that changes which happened in between are picked up by the next
+# check.
+sub _fetch_state {
+    my $self = shift;
+    my @types = @_;
+    my @requests = map { 
+        { operation => $DELTA_OPERATIONS->{$_}, arguments => [ $self->_delta_version($self->{$_}) ] } 
+    } @types;
+    my $ret = $self->execute_post($OSGISH_SERVICE_NAME,"batch",to_json(\@requests));
+    for my $i (0 .. $#types) {
+        my $type = $types[$i];
+        my $result = $ret->{results}->[$i];
+        die "Cannot fetch ${type}s: ",$result->{error},"\n" if defined($result->{error});
+        my $method = "_set_" . $type . "s";
+        my $delta = $result->{value};
+        if ($self->_forget_version($self->{$type},$ret->{epoch}) && !&_is_true($delta->{full})) {
+            # Versions from a previous agent can't be compared, fetch everything again
+            $delta = $self->execute($OSGISH_SERVICE_NAME,$DELTA_OPERATIONS->{$type},-1);
+        }
+        $self->$method($self->_merge_delta($self->{$type},$delta));
+        $self->{$type}->{sequence} = $ret->{sequence};
+        $self->{$type}->{epoch} = $ret->{epoch};
+    }
+}
+
 sub _fetch_bundles {
     my $self = shift;
-    my $bundle = $self->_fetch_list("bundleState","listBundles");
+    $self->_set_bundles($self->_fetch_delta("getBundleDelta",$self->{bundle}));
+}
+
+sub _set_bundles {
+    my $self = shift;
+    my $bundle = shift;
     my $names = {};
     my $ids = {};
     my $bundles =  $bundle->{list};
@@ -383,15 +597,24 @@ sub _fetch_bundles {
 
 sub _fetch_services {
     my $self = shift;
-    my $service = $self->_fetch_list("serviceState","listServices");
+    $self->_set_services($self->_fetch_delta("getServiceDelta",$self->{service}));
+}
+
+sub _set_services {
+    my $self = shift;
+    my $service = shift;
     ($service->{object_classes},$service->{ids}) = $self->_extract_object_classes($service->{list});
     $self->{service} = $service;
 }
 
 sub _fetch_packages {
     my $self = shift;
-    my $package = $self->_fetch_list("packageState","listPackages");
-    #print Dumper($package);
+    $self->_set_packages($self->_fetch_delta("getPackageDelta",$self->{package}));
+}
+
+sub _set_packages {
+    my $self = shift;
+    my $package = shift;
     $package->{import_export} = $self->_extract_import_export($package->{list});
     $self->{package} = $package;
 
@@ -415,24 +638,68 @@ sub _exporting_importing_bundle {
     return $self->{package}->{import_export}->{$package}->{$version}->{$what};
 }
 
+# Search for exported packages on the server side. A trailing '*' in the name
+# matches all packages starting with it. Returns a list of packages, each with
+# its exporting and importing bundles as list of ids and names.
+sub search_packages {
+    my $self = shift;
+    my $name = shift || die "No package given\n";
+    my $range = shift;
+    my $limit = shift || -1;
+    my $found = $self->execute($OSGISH_SERVICE_NAME,"searchPackages",$name,$range,$limit);
+    return [ map {
+        { 
+         name => $_->{Name},
+         version => $_->{Version},
+         exporting => $self->_extract_unique_bundles($_->{ExportingBundles}),
+         importing => $self->_extract_unique_bundles($_->{ImportingBundles})
+        }
+    } @{$found || []} ];
+}
+
+# Query services on the server with an LDAP filter. Returns a hashref with the 
+# service ids as keys and the services (in the same format as for services())
+# as values. Optionally, the columns to return and a limit can be given.
+sub query_services {
+    my $self = shift;
+    my $filter = shift;
+    my $projection = shift || [];
+    my $limit = shift || -1;
+    my $found = $self->execute_post($OSGISH_SERVICE_NAME,"queryServices",$filter,$projection,$limit);
+    return { map { $_->{Identifier} => $_ } @{$found || []} };
+}
+
+# Analyze the wiring of the given bundles (ids or symbolic names) on the server:
+# Returns the bundles depending on them, the bundles they depend on and the
+# bundles affected by a refresh, each as list of bundles with id and name, and
+# the dependency cycles among the affected bundles as lists of such bundles.
+# Without bundles, all cycles are returned.
+sub analyze_dependencies {
+    my $self = shift;
+    $self->_update_bundles();
+    my @ids = map { $self->_id_or_symbolic_name($_) } @_;
+    my $ret = $self->execute_post($OSGISH_SERVICE_NAME,"analyzeDependencies",\@ids);
+    return {
+            dependents => $self->_extract_unique_bundles($ret->{dependents}),
+            dependencies => $self->_extract_unique_bundles($ret->{dependencies}),
+            impact => $self->_extract_unique_bundles($ret->{impact}),
+            cycles => [ map { $self->_extract_unique_bundles($_) } @{$ret->{cycles}} ]
+           };
+}
+
 sub _extract_import_export {
     my $self = shift;
     my $plist = shift;
     
     my $ret = {};
     #print Dumper($plist);
-    for my $e (values %{$plist}) {
-        for my $b (values %$e) {
-            for my $v (values %$b) {
-                die "Internal: No version found for ",$v->{Name},"\n" unless $v->{Version};
-                # We are using the chached bundle names here. Should be ok.
-                $ret->{$v->{Name}}->{$v->{Version}} = 
-                    {              
-                     importing => $self->_extract_unique_bundles($v->{ImportingBundles}),
-                     exporting => $self->_extract_unique_bundles($v->{ExportingBundles})
-                    };                
-            }            
-        }
+    for my $v (values %{$plist}) {
+        die "Internal: No version found for ",$v->{Name},"\n" unless $v->{Version};
+        # We are using the chached bundle names here. Should be ok.
+        my $entry = $ret->{$v->{Name}}->{$v->{Version}} ||= { importing => [], exporting => [] };
+        # The same package can be exported by more than one bundle
+        $entry->{importing} = $self->_extract_unique_bundles([ (map { $_->{id} } @{$entry->{importing}}), @{$v->{ImportingBundles}} ]);
+        $entry->{exporting} = $self->_extract_unique_bundles([ (map { $_->{id} } @{$entry->{exporting}}), @{$v->{ExportingBundles}} ]);
     }
     return $ret;
 }
@@ -450,21 +717,81 @@ sub _extract_unique_bundles {
     return [ sort { $a->{id} <=> $b->{id} } values %$ret ];
 }
 
-sub _fetch_list {
+# Fetch the rows which changed since the version of the given old state and
+# merge them into a copy of the old list. The server decides whether a delta
+# can be applied or whether the full list is returned.
+sub _fetch_delta {
     my $self = shift;
-    my ($mbean,$operation) = @_;
-    my $ret = {};
-    $ret->{list} = $self->execute($self->_mbean_name($mbean),$operation);
-    $ret->{timestamp} = time;
-    return $ret;
+    my $operation = shift;
+    my $old = shift;
+    my $delta = $self->execute($OSGISH_SERVICE_NAME,$operation,$self->_delta_version($old));
+    return $self->_merge_delta($old,$delta);
+}
+
+sub _delta_version {
+    my $self = shift;
+    my $old = shift;
+    return $old && defined($old->{version}) ? $old->{version} : -1;
+}
+
+# Table versions restart with every agent, so a cached version from another 
+# epoch must not be used for fetching a delta. Returns true if the version has
+# been dropped.
+sub _forget_version {
+    my $self = shift;
+    my $state = shift;
+    my $epoch = shift;
+    return 0 unless $state && defined($state->{version});
+    return 0 if defined($epoch) && ($state->{epoch} || 0) == $epoch;
+    delete $state->{version};
+    return 1;
 }
 
+# Merge a delta as returned by the server into a copy of the old list
+sub _merge_delta {
+    my $self = shift;
+    my $old = shift;
+    my $delta = shift;
+    my $list = &_is_true($delta->{full}) ? {} : { %{$old->{list} || {}} };
+    for my $rows ($delta->{added},$delta->{modified}) {
+        map { $list->{$_} = $rows->{$_} } keys %{$rows || {}};
+    }
+    map { delete $list->{$_} } @{$delta->{removed} || []};
+    # Columns which change without an event come fresh for all rows
+    my $live = $delta->{live} || {};
+    for my $column (keys %$live) {
+        my $values = $live->{$column};
+        for my $key (keys %$list) {
+            $list->{$key} = { %{$list->{$key}}, $column => $values->{$key} || [] };
+        }
+    }
+    return { list => $list, version => $delta->{version}, timestamp => time };
+}
+
+# Check via the server side change journal whether something of the given type
+# has changed since the sequence number of the given cached state. Returns a flag 
+# indicating a change and the sequence number and epoch to remember for the next 
+# check. A missing sequence number or one from another epoch (i.e. from before an 
+# agent restart) always results in a change.
 sub _server_state_changed {
     my $self = shift;
     my $type = shift;
-    my $timestamp = shift;
-    my $state = $self->execute($OSGISH_SERVICE_NAME,"hasStateChanged",$type,$timestamp);
-    return $state eq "true" ? 1 : 0;
+    my $state = shift || {};
+    my $sequence = $state->{sequence};
+    my $ret = $self->execute($OSGISH_SERVICE_NAME,"changesSince",
+                             defined($sequence) ? $sequence : -1,$state->{epoch} || 0);
+    my @next = ($ret->{sequence},$ret->{epoch});
+    return (1,@next) if (!defined($sequence) || &_is_true($ret->{resync}));
+    for my $change (@{$ret->{changes} || []}) {
+        return (1,@next) if grep { $_ eq $type } @{$change->{categories}};
+    }
+    return (0,@next);
+}
+
+# JSON booleans might come in as objects or as strings
+sub _is_true {
+    my $val = shift;
+    return $val && $val ne "false" ? 1 : 0;
 }
 
 sub _extract_object_classes {
@@ -15,7 +15,13 @@ package OSGi::Osgish::Agent::Upload;
 use strict;
 use warnings;
 use LWP::UserAgent;
-use HTTP::Request::Common;
+use HTTP::Request;
+use File::Basename;
+use Digest::SHA;
+use File::Temp;
+use IO::Compress::Gzip qw(gzip $GzipError);
+use JSON;
+use POSIX ();
 use OSGi::Osgish;
 use JMX::Jmx4Perl::Agent::UserAgent;
 use Data::Dumper;
@@ -23,6 +29,23 @@ use vars qw($HAS_PROGRESS_BAR);
 
 my $UPLOAD_SERVICE_NAME = "osgish:type=Upload";
 
+# Defaults for chunked uploads: size of a single chunk, number of chunks
+# in flight and how often to retry missing chunks
+my $CHUNK_SIZE = 4 * 1024 * 1024;
+my $PARALLEL_CHUNKS = 4;
+my $CHUNK_RETRIES = 3;
+
+# How often to retry a request the agent rejected because it is busy with
+# other uploads (HTTP 503), and how long to wait if it doesn't say so
+my $BUSY_RETRIES = 10;
+my $BUSY_WAIT = 5;
+
+# Block size for streaming a file as request body
+my $READ_SIZE = 64 * 1024;
+
+# Maximum number of file names fetched for completion
+my $MAX_COMPLETIONS = 200;
+
 BEGIN {
     eval {
         require "Term/ProgressBar.pm";
@@ -63,6 +86,22 @@ sub remove {
     return $agent->execute($UPLOAD_SERVICE_NAME,"deleteFile",$file);
 }
 
+# Remove all files matching a pattern with '*' and '?' as wildcards. Files from
+# which a bundle is installed are kept. Returns the names of the files 'deleted'
+# and the 'errors' by file name.
+sub remove_matching {
+    my $self = shift;
+    my $pattern = shift || die "No pattern given\n";
+    my $agent = $self->{agent};
+    return $agent->execute($UPLOAD_SERVICE_NAME,"deleteFiles",$pattern);
+}
+
+# Space used by the upload directory along with its quota and retention rules
+sub usage {
+    my $self = shift;
+    return $self->{agent}->get_attribute($UPLOAD_SERVICE_NAME,"Usage");
+}
+
 sub upload { 
     my $self = shift;
     my $file = shift;
@@ -72,21 +111,99 @@ sub upload {
     }
     #$file = glob($file) if $file =~ /^~/;
     die "No file $file\n" unless $file and -f $file;
-    my $ua = $self->{ua};
-    
-    {
-        local $HTTP::Request::Common::DYNAMIC_FILE_UPLOAD = 1;
-        
-        my $req = 
-          POST 
-            $self->{url},
-              'Content_Type' => 'form-data', 
-                'Content' => { "upload" => [ $file ] };
-        my $reader = $self->_content_reader($req->content(),$cfg,$req->header('Content_Length'));
-        $req->content($reader);
-        my $resp = $ua->request($req);
-        die "Error while uploading $file: ",$resp->message if $resp->is_error;
+    my ($digest,$needed) = $self->_prepare_upload($file);
+    return unless $needed;
+
+    # With 'compress', the file is gzipped into a temporary file first, which is then
+    # streamed like the file itself. The digest is still the one of the original.
+    my ($send,$tmp) = ($file);
+    if ($cfg->{compress}) {
+        $tmp = File::Temp->new(SUFFIX => ".gz");
+        gzip($file => $tmp->filename,BinModeIn => 1) || die "Cannot compress $file: $GzipError\n";
+        $send = $tmp->filename;
+    }
+    my $len = -s $send;
+
+    # Sent as raw body, so the agent doesn't need to parse a multipart request. The
+    # content is streamed from the file, so the request is built anew for a retry.
+    my $resp = $self->_request(sub {
+        my $req = new HTTP::Request(PUT => $self->{url} . "/" . _uri_escape(basename($file)) . "?sha256=" . $digest);
+        $req->header("Content-Type" => "application/octet-stream");
+        $req->header("Content-Length" => $len);
+        $req->header("Content-Encoding" => "gzip") if $tmp;
+        open(my $fh,"<",$send) || die "Cannot open $send: $!\n";
+        binmode($fh);
+        my $gen = sub {
+            my $buf;
+            my $read = read($fh,$buf,$READ_SIZE);
+            die "Cannot read $send: $!\n" unless defined($read);
+            return $read ? $buf : "";
+        };
+        $req->content($self->_content_reader($gen,$cfg,$len));
+        return $req;
+    });
+    die "Error while uploading $file: ",$resp->message,"\n" if $resp->is_error;
+    # Size, compression ratio and decoding time of the file stored
+    return eval { from_json($resp->decoded_content) };
+}
+
+# Upload a file in chunks. Up to 'parallel' chunks are sent at once, each one in
+# its own process. Chunks which failed are retried up to 'retries' times. If the
+# upload nevertheless fails, calling this method again for the same file resumes
+# the upload by sending only the chunks which have not been received yet.
+# With 'compress', each chunk is sent gzipped.
+sub upload_chunked {
+    my $self = shift;
+    my $file = shift;
+    my $cfg = {};
+    if (@_) {
+        $cfg = ref($_[0]) eq "HASH" ? $_[0] : { @_ };
+    }
+    die "No file $file\n" unless $file and -f $file;
+    my $size = -s $file;
+    my $name = basename($file);
+    my $chunk_size = $cfg->{chunk_size} || $CHUNK_SIZE;
+    my $parallel = $cfg->{parallel} || $PARALLEL_CHUNKS;
+    my $retries = defined($cfg->{retries}) ? $cfg->{retries} : $CHUNK_RETRIES;
+    my ($digest,$needed) = $self->_prepare_upload($file);
+    return { name => $name, size => $size } unless $needed;
+
+    # Resume a previous session for this file if it is still known to the agent
+    my $sessions = $self->{sessions} ||= {};
+    my $session;
+    my $old = $sessions->{$file};
+    if ($old && $old->{size} == $size) {
+        $session = $self->_session_request(GET => "/session/" . $old->{session},1);
+    }
+    $session ||= $self->_session_request(POST => "/session?name=" . _uri_escape($name) .
+                                         "&size=" . $size . "&sha256=" . $digest);
+    my $id = $session->{session};
+    $sessions->{$file} = { session => $id, size => $size };
+
+    for (my $try = 0; !_is_complete($session) && $try <= $retries; $try++) {
+        my @missing = _missing_chunks($session->{received},$size,$chunk_size);
+        $self->_send_chunks($id,$file,$size,\@missing,$parallel,$cfg->{compress});
+        $session = $self->_session_request(GET => "/session/" . $id);
     }
+    die "Error while uploading $file: Upload is incomplete, try again to resume\n"
+      unless _is_complete($session);
+    my $ret = $self->_session_request(POST => "/session/" . $id);
+    delete $sessions->{$file};
+    return $ret;
+}
+
+# Install bundles straight out of the upload directory. Files can be given
+# by name or by the SHA-256 digest of their content. With the option 'update',
+# bundles already installed from these files are updated. Returns the results
+# per file, each with the bundle 'id', 'action', 'success' and 'error'.
+sub install {
+    my $self = shift;
+    my $cfg = ref($_[-1]) eq "HASH" ? pop : {};
+    my @entries = @_;
+    die "No file given\n" unless @entries;
+    my $ret = $self->{agent}->execute_post($UPLOAD_SERVICE_NAME,"installBundles",\@entries,
+                                           $cfg->{update} ? "true" : "false");
+    return $ret->{results};
 }
 
 sub complete_files_in_upload_dir {
@@ -94,12 +211,10 @@ sub complete_files_in_upload_dir {
     my $term = shift;
     my $cmpl = shift;
     
-    my $list = $self->{list} || $self->list;
     my $file = $cmpl->{str} || "";
-    my $flen = length($file);
-
-    my @files = grep { substr($_,0,$flen) eq $file } keys %$list;
-    return \@files;
+    # The agent keeps a sorted index, so only matching names are transferred
+    my $files = $self->{agent}->execute($UPLOAD_SERVICE_NAME,"listFileNames",$file,$MAX_COMPLETIONS);
+    return $files || [];
 }
 
 sub _content_reader {
@@ -126,6 +241,144 @@ sub _content_reader {
     }
 }
 
+# Check whether the agent already has the content of $file. If so, it is made
+# available under the file's name without transferring it again. Returns the
+# SHA-256 digest of the file and whether it still needs to be uploaded.
+sub _prepare_upload {
+    my $self = shift;
+    my $file = shift;
+    my $name = basename($file);
+    my $digest = Digest::SHA->new(256)->addfile($file,"b")->hexdigest;
+    my $agent = $self->{agent};
+    my $found = $agent->execute($UPLOAD_SERVICE_NAME,"lookupDigest",$digest);
+    if ($found) {
+        return ($digest,0) if $found->{name} eq $name;
+        my $error = $agent->execute($UPLOAD_SERVICE_NAME,"createAlias",$name,$digest);
+        return ($digest,0) unless $error;
+    }
+    return ($digest,1);
+}
+
+# Send the given chunks, at most $parallel at once. Errors are not reported
+# here, the caller checks the session status afterwards to find out what is
+# still missing.
+sub _send_chunks {
+    my $self = shift;
+    my ($id,$file,$size,$chunks,$parallel,$compress) = @_;
+    my @todo = @$chunks;
+    my %running = ();
+    while (@todo || %running) {
+        while (@todo && keys(%running) < $parallel) {
+            my $chunk = shift @todo;
+            my $pid = fork();
+            die "Cannot fork for uploading $file: $!\n" unless defined($pid);
+            if (!$pid) {
+                # Use a fresh connection, the parent's keep-alive connection must not be shared
+                my $ok = eval { $self->_send_chunk($id,$file,$size,$compress,@$chunk) };
+                POSIX::_exit($ok ? 0 : 1);
+            }
+            $running{$pid} = $chunk;
+        }
+        my $pid = waitpid(-1,0);
+        last if $pid <= 0;
+        delete $running{$pid};
+    }
+}
+
+sub _send_chunk {
+    my $self = shift;
+    my ($id,$file,$size,$compress,$start,$end) = @_;
+    open(my $fh,"<",$file) || die "Cannot open $file: $!\n";
+    binmode($fh);
+    seek($fh,$start,0) || die "Cannot seek to $start in $file: $!\n";
+    my $len = $end - $start + 1;
+    my $data = "";
+    while (length($data) < $len) {
+        my $read = read($fh,$data,$len - length($data),length($data));
+        die "Cannot read $file: $!\n" unless defined($read);
+        last if $read == 0;
+    }
+    close $fh;
+    die "$file changed while uploading\n" unless length($data) == $len;
+    my $ua = new JMX::Jmx4Perl::Agent::UserAgent();
+    $ua->jjagent_config($self->{agent}->cfg());
+    my $req = new HTTP::Request(PUT => $self->{url} . "/session/" . $id);
+    $req->header("Content-Range" => "bytes $start-$end/$size");
+    $req->header("Content-Type" => "application/octet-stream");
+    if ($compress) {
+        # The range still refers to the uncompressed content
+        my $gzipped;
+        gzip(\$data => \$gzipped) || die "Cannot compress chunk $start-$end of $file: $GzipError\n";
+        $req->header("Content-Encoding" => "gzip");
+        $data = $gzipped;
+    }
+    $req->content($data);
+    my $resp = $self->_request(sub { $req },$ua);
+    die "Error while uploading chunk $start-$end of $file: ",$resp->message,"\n" if $resp->is_error;
+    return 1;
+}
+
+# Call the session part of the upload servlet and return the decoded answer.
+# With $ignore_missing set, an unknown session results in undef instead of an error.
+sub _session_request {
+    my $self = shift;
+    my ($method,$path,$ignore_missing) = @_;
+    my $req = new HTTP::Request($method => $self->{url} . $path);
+    my $resp = $self->_request(sub { $req });
+    return undef if $ignore_missing && $resp->code == 404;
+    die "Error while uploading: ",$resp->message,"\n" if $resp->is_error;
+    return from_json($resp->content);
+}
+
+# Send the request created by $create. If the agent is busy with other uploads,
+# it answers with 503 and a Retry-After header, in which case the request is sent
+# again after the given time.
+sub _request {
+    my $self = shift;
+    my $create = shift;
+    my $ua = shift || $self->{ua};
+    my $resp;
+    for my $try (0 .. $BUSY_RETRIES) {
+        $resp = $ua->request(&$create());
+        last if $resp->code != 503 || $try == $BUSY_RETRIES;
+        my $wait = $resp->header("Retry-After");
+        $wait = $BUSY_WAIT unless defined($wait) && $wait =~ /^\d+$/;
+        sleep($wait);
+    }
+    return $resp;
+}
+
+# Split everything not received yet into chunks of at most $chunk_size bytes.
+# Received ranges are sorted and inclusive, as returned by the agent.
+sub _missing_chunks {
+    my ($received,$size,$chunk_size) = @_;
+    my @missing = ();
+    my $pos = 0;
+    for my $range (@{$received || []}, [ $size, $size ]) {
+        my ($start,$end) = @$range;
+        while ($pos < $start) {
+            my $chunk_end = $pos + $chunk_size - 1;
+            $chunk_end = $start - 1 if $chunk_end >= $start;
+            push @missing,[ $pos, $chunk_end ];
+            $pos = $chunk_end + 1;
+        }
+        $pos = $end + 1 if $end + 1 > $pos;
+    }
+    return @missing;
+}
+
+sub _is_complete {
+    my $session = shift;
+    my $complete = $session->{complete};
+    return $complete && "$complete" ne "false" && "$complete" ne "0";
+}
+
+sub _uri_escape {
+    my $val = shift;
+    $val =~ s/([^A-Za-z0-9\-_.~])/sprintf("%%%02X",ord($1))/ge;
+    return $val;
+}
+
 #my $u = new OSGi::Osgish(url => "http://localhost:8080/j4p-upload");
 #$u->upload("n",progress_bar => 1);
 
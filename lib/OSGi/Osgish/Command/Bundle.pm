@@ -176,6 +176,60 @@ as ids or symbolic names (or mixed). Wildcards
 ('*' and '?') are supported on symbolic names.
 EOT
                            },
+            "packages" => {
+                           desc => "Search packages",
+                           proc => $self->cmd_packages,
+                           doc => <<EOT
+
+packages <package> [<version range>]
+
+Search for exported packages and show which bundles
+export and import them. A trailing '*' searches for
+all packages starting with the given name, e.g.
+'org.osgi.*'. The version range has the OSGi syntax, 
+e.g. '[1.0,2.0)'.
+EOT
+                          },
+            "deps" => {
+                       desc => "Analyze bundle dependencies",
+                       proc => $self->cmd_deps,
+                       args => $self->complete->bundles,
+                       doc => <<EOT
+
+deps <bnd1> <bnd2> ...
+deps
+
+Show which bundles depend on the given bundles, which
+bundles they depend on, which bundles are affected
+when refreshing them and the dependency cycles among
+the affected bundles. Without bundles, all cycles are
+shown. Bundles can be given as ids or symbolic names.
+EOT
+                      },
+            "content" => {
+                          desc => "List bundle content",
+                          proc => $self->cmd_content,
+                          args => $self->complete->bundles,
+                          doc => <<EOT
+
+content <bnd> [<path>]
+
+List the entries of a bundle archive, optionally
+only those below the given path.
+EOT
+                         },
+            "cat" => {
+                      desc => "Show a bundle entry",
+                      proc => $self->cmd_cat,
+                      args => $self->complete->bundles,
+                      doc => <<EOT
+
+cat <bnd> <entry>
+
+Print the content of a single entry of a bundle
+archive, e.g. META-INF/MANIFEST.MF
+EOT
+                     },
             "refresh" => {
                           desc => "Refresh bundles",
                           proc => $self->cmd_refresh,
@@ -386,6 +440,93 @@ sub cmd_uninstall {
     }
 }
 
+=item cmd_packages
+
+Search for exported packages
+
+=cut
+
+sub cmd_packages {
+    my $self = shift;
+    return sub {
+        my $package = shift || die "No package given\n";
+        my $range = shift;
+        my $osgish = $self->osgish;
+        # Bundle names are taken from the cache
+        $self->agent->bundles(use_cached => 1);
+        my ($c_id,$c_reset) = $osgish->color("bundle_id",RESET);
+        my $format = sub { join ", ",map { $c_id . $_->{id} . $c_reset . " " . ($_->{name} || "") } @{shift()} };
+        for my $p (@{$self->agent->search_packages($package,$range)}) {
+            print $p->{name}," ",$p->{version},"\n";
+            print "    Exported by: ",&$format($p->{exporting}),"\n";
+            print "    Imported by: ",&$format($p->{importing}),"\n" if @{$p->{importing}};
+        }
+    }
+}
+
+=item cmd_deps
+
+Analyze the dependencies of bundles
+
+=cut
+
+sub cmd_deps {
+    my $self = shift;
+    return sub {
+        my $osgish = $self->osgish;
+        my $filters = @_ ? $self->_filter_symbolic_names(@_) : [];
+        my $ret = $self->agent->analyze_dependencies(@$filters);
+        my ($c_id,$c_reset) = $osgish->color("bundle_id",RESET);
+        my $format = sub { join ", ",map { $c_id . $_->{id} . $c_reset . " " . ($_->{name} || "") } @{shift()} };
+        if (@$filters) {
+            print "Dependents:   ",&$format($ret->{dependents}),"\n";
+            print "Dependencies: ",&$format($ret->{dependencies}),"\n";
+            print "Refresh:      ",&$format($ret->{impact}),"\n";
+        }
+        print "Cycles:       ",(@{$ret->{cycles}} ? "" : "none"),"\n";
+        for my $cycle (@{$ret->{cycles}}) {
+            print "    ",&$format($cycle),"\n";
+        }
+    }
+}
+
+=item cmd_content
+
+List the entries of a bundle archive
+
+=cut
+
+sub cmd_content {
+    my $self = shift;
+    return sub {
+        my $bundle = shift || die "No bundle given\n";
+        my $prefix = shift;
+        my $entries = $self->agent->bundle_content($bundle,$prefix);
+        for my $e (@$entries) {
+            if ($e->{size} >= 0) {
+                printf "%10d %s %s\n",$e->{size},$self->format_date($e->{time} / 1000),$e->{name};
+            } else {
+                printf "%10s %12s %s\n","","",$e->{name};
+            }
+        }
+    }
+}
+
+=item cmd_cat
+
+Print a single entry of a bundle archive
+
+=cut
+
+sub cmd_cat {
+    my $self = shift;
+    return sub {
+        my $bundle = shift || die "No bundle given\n";
+        my $entry = shift || die "No entry given\n";
+        print $self->agent->bundle_entry($bundle,$entry);
+    }
+}
+
 =item cmd_refresh
 
 Refresh one or more bundles
@@ -448,6 +589,18 @@ sub _print_operation_result {
     if ($error) {
         print $label . "ing failed for " . join(",",map { $c_bname . $_ . $c_r } @$bundles) . ":\n";
         print $error;
+    } elsif (ref($ret) eq "HASH" && $ret->{results}) {
+        # Result of a parallel bulk operation, with timing per bundle
+        for my $r (sort { $a->{id} <=> $b->{id} } @{$ret->{results}}) {
+            my $name = $agent->bundle_name($r->{id},use_cached => 1) || $r->{symbolicName} || "";
+            if (lc $r->{success} eq "false") {
+                print $label . "ing failed for bundle " . $c_bname . $name . $c_r . " (" . $c_bid . $r->{id} . $c_r . "): " .
+                  $r->{error} . "\n";
+            } else {
+                printf "%sed bundle %s (%s) in %.1f ms\n",$label,$c_bname . $name . $c_r,$c_bid . $r->{id} . $c_r,$r->{time};
+            }
+        }
+        printf "%d bundles in %.1f ms, %d failed\n",scalar(@{$ret->{results}}),$ret->{time},$ret->{failed};
     } elsif (ref($ret) eq "HASH") {
         if (lc $ret->{Success} eq "false") {       
             my $id = $ret->{BundleInError};
@@ -57,7 +57,7 @@ sub sub_commands {
                   args => $self->complete->services(no_ids => 1),
                   doc => <<EOT
 
-ls [-u <using>] [-b <bundle>] [<service id>|<object class>]
+ls [-u <using>] [-b <bundle>] [-f <filter>] [<service id>|<object class>]
 
 List all services or, when a single service id is given, print
 details of this service. As argument a object class can be given
@@ -67,6 +67,7 @@ Options:
 
   -u <using>  : List all services which are used by bundle <using>
   -b <bundle> : List all services provided by bundle <bundle>
+  -f <filter> : List all services matching the given LDAP filter
 EOT
                  },
 #         "bls" => { 
@@ -86,8 +87,8 @@ sub cmd_list {
         my $osgish = $self->osgish;
         my $osgi = $osgish->agent;
         print "Not connected to a server\n" and return unless $osgi;
-        my $services = $osgi->services;
-        my ($opts,@filters) = $self->extract_command_options(["u=s","b=s"],@_);
+        my ($opts,@filters) = $self->extract_command_options(["u=s","b=s","f=s"],@_);
+        my $services = $self->_query_services($osgi,$opts,@filters);
         
         my $filtered_services = $self->_filter_services($services,$opts,@filters);
         return unless @$filtered_services;
@@ -161,6 +162,28 @@ sub print_service_info {
     $self->print_paged($ret);
 }
 
+# Let the server select the services if an LDAP filter is given or if only
+# object classes are asked for. Otherwise all services are fetched.
+sub _query_services {
+    my $self = shift;
+    my ($osgi,$opts,@filters) = @_;
+    my @parts;
+    push @parts,$opts->{f} if $opts->{f};
+    if (@filters && !grep { /^\d+$/ || /\?/ } @filters) {
+        my @classes = map { "(objectClass=" . &_escape_ldap($_) . ")" } @filters;
+        push @parts,@classes > 1 ? "(|" . join("",@classes) . ")" : $classes[0];
+    }
+    return $osgi->services unless @parts;
+    return $osgi->query_services(@parts > 1 ? "(&" . join("",@parts) . ")" : $parts[0]);
+}
+
+# Escape the special chars of an LDAP filter value, except for the wildcard '*'
+sub _escape_ldap {
+    my $value = shift;
+    $value =~ s/([\\()])/\\$1/g;
+    return $value;
+}
+
 # Filter services according to one or more criteria
 sub _filter_services {
     my $self = shift;
@@ -9,6 +9,9 @@ use Data::Dumper;
 
 @ISA = qw(OSGi::Osgish::Command);
 
+# Files larger than this are uploaded in chunks
+my $CHUNKED_UPLOAD_THRESHOLD = 8 * 1024 * 1024;
+
 =head1 NAME 
 
 OSGi::Osgish::Command::Upload - Upload related commands
@@ -60,16 +63,28 @@ EOT
                       proc => $self->cmd_put,
                       args => $self->complete->files_extended,
                       doc => <<EOT
-Upload a bundle from the local filesystem.
+Upload a bundle from the local filesystem. With "-z",
+the bundle is compressed for the transfer, which pays
+off on slow links.
 EOT
                      },
+            "df" => {
+                     desc => "Show space used by uploads",
+                     proc => $self->cmd_usage,
+                     doc => <<EOT
+Show the space used by the upload directory, its quota
+and the retention rules along with the outcome of the
+last cleanup.
+EOT
+                    },
             "rm" => {
                      desc => "Remove a bundle",
                      proc => $self->cmd_delete,
                      args => sub { $self->agent->upload->complete_files_in_upload_dir(@_) },
                      doc => <<EOT
 Remove a bundle from the upload directory. Installed
-bundles need to be uninstalled first.
+bundles need to be uninstalled first. With wildcards ('*'
+or '?'), all matching files are removed at once.
 EOT
                     },
             "install" => {
@@ -77,7 +92,9 @@ EOT
                           proc => $self->cmd_install,
                           args => sub { $self->agent->upload->complete_files_in_upload_dir(@_) },
                           doc => <<EOT
-Install a bundle out of the upload directory.
+Install bundles out of the upload directory. Files
+can be given by name or by the SHA-256 digest of
+their content.
 EOT
                          },
             "update" => {
@@ -96,20 +113,38 @@ sub cmd_install {
     my $self = shift;
 
     return sub {
-        my $file = shift || die "No file given"; 
+        my @files = @_;
+        die "No file given" unless @files;
         my $osgish = $self->osgish;
         my $agent = $osgish->agent;
         print "Not connected to a server\n" and return unless $agent;
-        my $list = $agent->upload->list;
-        my $uf = $list->{$file} || die "No file $file uploaded\n";
-        my $ret = $agent->install_bundle("file://" . $uf->{canonicalPath});
-        my ($color,$reset) = $osgish->color("bundle_id",RESET);
-        if (!ref($ret)) {
-            print "Installed bundle " . $color . $ret . $reset . ".\n";
+        # Installed directly from the upload directory, all at once
+        my $results = $agent->upload->install(@files);
+        $self->print_install_results($results);
+    }
+}
+
+sub print_install_results {
+    my $self = shift;
+    my $results = shift;
+    my ($color,$reset) = $self->osgish->color("bundle_id",RESET);
+    for my $r (@$results) {
+        my $file = (split m|/|,$r->{location})[-1];
+        if (!_is_true($r->{success})) {
+            print "$file: ",$r->{error},"\n";
+        } elsif ($r->{action} eq "none") {
+            print "$file is already installed as bundle " . $color . $r->{id} . $reset . ".\n";
+        } else {
+            print ucfirst($r->{action}) . " bundle " . $color . $r->{id} . $reset . " from $file.\n";
         }
     }
 }
 
+sub _is_true {
+    my $val = shift;
+    return $val && "$val" ne "false" && "$val" ne "0";
+}
+
 sub cmd_update {
     my $self = shift;
 
@@ -125,9 +160,9 @@ sub cmd_update {
         } else {
             my $list = $agent->upload->list;
             my $installed = $self->uploaded_installed_bundles($list);
-            my $b_id = $installed->{$file} || die "No bundle $file installed.\n";
-            $agent->update_bundle($b_id);
-            print "Updated bundle $file (" . ($color . $b_id . $reset) . ").\n";
+            die "No bundle $file installed.\n" unless $installed->{$file};
+            # Update from the upload directory without re-reading the bundle location
+            $self->print_install_results($agent->upload->install($file,{ update => 1 }));
         }
     }
 }
@@ -161,13 +196,29 @@ sub cmd_list {
 sub cmd_put {
     my $self = shift;
     return sub {
+        my $compress = 0;
+        if (@_ && $_[0] eq "-z") {
+            $compress = 1;
+            shift;
+        }
         my $file = shift || die "No file given";
         my $osgi = $self->agent;
         my @files = bsd_glob($file, GLOB_TILDE | GLOB_ERR);
         for my $f (@files) {
             if (-f $f && -s $f) {
-                $osgi->upload->upload($f,progress_bar => 1);
-                print "Uploaded $f\n";
+                my $ret;
+                if (-s $f > $CHUNKED_UPLOAD_THRESHOLD) {
+                    # Large files are uploaded in parallel chunks, which can be resumed
+                    # by calling put again if the transfer breaks
+                    $osgi->upload->upload_chunked($f,compress => $compress);
+                } else {
+                    $ret = $osgi->upload->upload($f,progress_bar => 1,compress => $compress);
+                }
+                if ($ret && $ret->{encoding} ne "identity") {
+                    printf "Uploaded %s (%s, ratio %.2f, decoded in %.1f ms)\n",$f,$ret->{encoding},$ret->{ratio},$ret->{decodeTime};
+                } else {
+                    print "Uploaded $f\n";
+                }
             } 
         }
         $osgi->upload->cache_update;
@@ -181,31 +232,64 @@ sub cmd_delete {
         my $osgi = $osgish->agent;
         my $file = shift || die "No file given"; 
         die "Filepath must not be absolute" if $file =~ /^\//;
-        my @files;
-        my $list = $osgi->upload->list;
-        my $installed = $self->uploaded_installed_bundles($list);
-        if ($file =~ /\*/) {
-            # It's a glob, we need to expand it and do multiple removes
-            my $pattern = $file;
-            $pattern =~ s/\./\\./g;
-            $pattern =~ s/\*/.*/g;
-            $pattern =~ s/\?/./g;
-            @files = grep { /^$pattern$/ } sort keys %$list;
+        if ($file =~ /[\*\?]/) {
+            # A glob, expanded and removed on the server in one go
+            my $ret = $osgi->upload->remove_matching($file);
+            print "Removed $_.\n" for sort @{$ret->{deleted}};
+            for my $f (sort keys %{$ret->{errors}}) {
+                print "rm: $f: ",$ret->{errors}->{$f},"\n";
+            }
         } else {
-            @files = ( $file );
-        }
-        for my $f (@files) {
-            if ($installed->{$f}) {
-                print "$f is still installed as bundle. Uninstall it first\n";
-                next;
+            my $list = $osgi->upload->list;
+            my $installed = $self->uploaded_installed_bundles($list);
+            if ($installed->{$file}) {
+                print "$file is still installed as bundle. Uninstall it first\n";
+            } else {
+                my $error = $osgi->upload->remove($file);
+                print $error ? "rm: $error\n" : "Removed $file.\n";
             }
-            my $error = $osgi->upload->remove($f);
-            print $error ? "rm: $error\n" : "Removed $f.\n";
         }
         $osgi->upload->cache_update;
     }
 }
 
+sub cmd_usage {
+    my $self = shift;
+    return sub {
+        my $osgi = $self->agent;
+        print "Not connected to a server\n" and return unless $osgi;
+        my $usage = $osgi->upload->usage;
+        printf "%d files, %s used",$usage->{files},_format_size($usage->{size});
+        print $usage->{quota} ? " of " . _format_size($usage->{quota}) . " quota\n" : "\n";
+        printf "%d temporary files, %s\n",$usage->{tempFiles},_format_size($usage->{tempSize})
+          if $usage->{tempFiles};
+        my $retention = $usage->{retention} || return;
+        my @rules;
+        push @rules,"max age " . int($retention->{maxAge} / 1000) . "s" if $retention->{maxAge};
+        push @rules,"max size " . _format_size($retention->{maxBytes}) if $retention->{maxBytes};
+        push @rules,"keep " . $retention->{keepVersions} . " versions" if $retention->{keepVersions};
+        print "Retention: ",join(", ",@rules),"\n";
+        my $last = $retention->{lastSweep} || return;
+        my $date = $self->format_date($last->{time} / 1000);
+        if ($last->{error}) {
+            print "Last cleanup ($date) failed: ",$last->{error},"\n";
+        } else {
+            printf "Last cleanup (%s): removed %d files, freed %s\n",$date,scalar(@{$last->{removed}}),_format_size($last->{freed});
+        }
+    }
+}
+
+sub _format_size {
+    my $size = shift;
+    my @units = ("B","KB","MB","GB","TB");
+    my $unit = 0;
+    while ($size >= 1024 && $unit < $#units) {
+        $size /= 1024;
+        $unit++;
+    }
+    return $unit ? sprintf("%.1f %s",$size,$units[$unit]) : "$size B";
+}
+
 sub uploaded_installed_bundles {
     my $self = shift;
     my $list = shift;